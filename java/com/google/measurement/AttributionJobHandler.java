@@ -45,12 +45,10 @@ import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 public class AttributionJobHandler {
@@ -60,7 +58,8 @@ public class AttributionJobHandler {
   private final DebugReportApi mDebugReportApi;
   private final EventReportWindowCalcDelegate mEventReportWindowCalcDelegate;
   private final SourceNoiseHandler mSourceNoiseHandler;
-  private List<Object> combinedData;
+  private Iterable<UserEvent> combinedData;
+  private Consumer<List<EventReport>> mExpiredEventReportConsumer = eventReports -> {};
   private static final String API_VERSION = "0.1";
 
   private enum TriggeringStatus {
@@ -68,7 +67,7 @@ public class AttributionJobHandler {
     ATTRIBUTED
   }
 
-  AttributionJobHandler(IMeasurementDAO measurementDAO, List<Object> combinedData) {
+  AttributionJobHandler(IMeasurementDAO measurementDAO, Iterable<UserEvent> combinedData) {
     this(
         measurementDAO,
         combinedData,
@@ -80,7 +79,7 @@ public class AttributionJobHandler {
 
   AttributionJobHandler(
       IMeasurementDAO measurementDAO,
-      List<Object> combinedData,
+      Iterable<UserEvent> combinedData,
       Flags flags,
       DebugReportApi debugReportApi,
       EventReportWindowCalcDelegate eventReportWindowCalcDelegate,
@@ -93,25 +92,47 @@ public class AttributionJobHandler {
     this.combinedData = combinedData;
   }
 
+  /**
+   * Hands the event reports deleted as expired, see {@link
+   * Flags#getMeasurementEnableSimulatedClockExpiry()}, to {@code consumer} as they are deleted.
+   * They are otherwise dropped.
+   */
+  void setExpiredEventReportConsumer(Consumer<List<EventReport>> consumer) {
+    mExpiredEventReportConsumer = consumer;
+  }
+
   synchronized void performPendingAttributions() {
     if (this.combinedData == null) {
-      this.combinedData = new ArrayList<>();
-      this.combinedData.addAll(measurementDAO.getPendingTriggers());
+      this.combinedData = new ArrayList<>(measurementDAO.getPendingTriggers());
     }
 
-    for (Object combinedDatum : this.combinedData) {
-      if (combinedDatum instanceof Trigger) {
-        performAttribution((Trigger) combinedDatum);
-      } else {
-        // This is an (un)install event
-        ExtensionEvent event = (ExtensionEvent) combinedDatum;
-        if (event.getAction().equals("install")) {
-          measurementDAO.doInstallAttribution(event.getUri(), event.getTimestamp());
-        } else {
-          measurementDAO.undoInstallAttribution(event.getUri());
-          measurementDAO.deleteAppRecords(event.getUri().toString());
+    for (UserEvent combinedDatum : this.combinedData) {
+      if (mFlags.getMeasurementEnableSimulatedClockExpiry()) {
+        // The data is in time order, so this advances the simulated clock.
+        List<EventReport> expiredEventReports =
+            measurementDAO.deleteExpiredRecords(combinedDatum.getTimestamp());
+        if (!expiredEventReports.isEmpty()) {
+          mExpiredEventReportConsumer.accept(expiredEventReports);
         }
       }
+      switch (combinedDatum.getUserEventType()) {
+        case TRIGGER:
+          performAttribution((Trigger) combinedDatum);
+          break;
+        case EXTENSION_EVENT:
+          // This is an (un)install event
+          ExtensionEvent event = (ExtensionEvent) combinedDatum;
+          if (event.getAction().equals("install")) {
+            measurementDAO.doInstallAttribution(event.getUri(), event.getTimestamp());
+          } else {
+            measurementDAO.undoInstallAttribution(event.getUri());
+            measurementDAO.deleteAppRecords(event.getUri().toString());
+          }
+          break;
+        default:
+          throw new IllegalArgumentException(
+              "Unexpected event type: " + combinedDatum.getUserEventType());
+      }
     }
   }
 
@@ -653,12 +674,12 @@ public class AttributionJobHandler {
 
   private void attributeTriggerAndInsertAttribution(
       Trigger trigger, Source source, IMeasurementDAO measurementDAO) {
-    trigger.setStatus(Trigger.Status.ATTRIBUTED);
+    measurementDAO.updateTriggerStatus(List.of(trigger.getId()), Trigger.Status.ATTRIBUTED);
     measurementDAO.insertAttribution(createAttribution(source, trigger));
   }
 
   private void ignoreTrigger(Trigger trigger, IMeasurementDAO measurementDAO) {
-    trigger.setStatus(Trigger.Status.IGNORED);
+    measurementDAO.updateTriggerStatus(List.of(trigger.getId()), Trigger.Status.IGNORED);
   }
 
   private boolean hasAttributionQuota(
@@ -702,8 +723,8 @@ public class AttributionJobHandler {
   private boolean doTopLevelFiltersMatch(Source source, Trigger trigger) {
     try {
       FilterMap sourceFilters = source.getFilterData();
-      List<FilterMap> triggerFilterSet = extractFilterSet(trigger.getFilters());
-      List<FilterMap> triggerNotFilterSet = extractFilterSet(trigger.getNotFilters());
+      List<FilterMap> triggerFilterSet = trigger.getFilterSet();
+      List<FilterMap> triggerNotFilterSet = trigger.getNotFilterSet();
       boolean isFilterMatch =
           Filter.isFilterMatch(sourceFilters, triggerFilterSet, true)
               && Filter.isFilterMatch(sourceFilters, triggerNotFilterSet, false);
@@ -727,7 +748,7 @@ public class AttributionJobHandler {
       Source source, Trigger trigger, IMeasurementDAO measurementDAO) {
     try {
       FilterMap sourceFiltersData = source.getFilterData();
-      List<EventTrigger> eventTriggers = trigger.parseEventTriggers(true);
+      List<EventTrigger> eventTriggers = trigger.getParsedEventTriggers();
       Optional<EventTrigger> matchingEventTrigger =
           eventTriggers.stream()
               .filter(eventTrigger -> doEventLevelFiltersMatch(sourceFiltersData, eventTrigger))
@@ -763,20 +784,6 @@ public class AttributionJobHandler {
     return true;
   }
 
-  private static List<FilterMap> extractFilterSet(String str) throws ParseException {
-    String json = (str == null || str.isEmpty()) ? "[]" : str;
-    List<FilterMap> filterSet = new ArrayList<>();
-    JSONParser parser = new JSONParser();
-    JSONArray filters = (JSONArray) parser.parse(json);
-
-    for (int i = 0; i < filters.size(); i++) {
-      FilterMap filterMap =
-          new FilterMap.Builder().buildFilterData((JSONObject) filters.get(i)).build();
-      filterSet.add(filterMap);
-    }
-    return filterSet;
-  }
-
   private OptionalInt validateAndGetUpdatedAggregateContributions(
       List<AggregateHistogramContribution> contributions,
       Source source,
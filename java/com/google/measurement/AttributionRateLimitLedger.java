@@ -0,0 +1,180 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Sliding-window view over {@link Attribution} rate-limit records. Trigger times are grouped by
+ * (source site, destination site) and then by enrollment, and each group is kept as a sorted
+ * primitive array, so that the number of attributions in a window is found with two binary searches
+ * instead of a scan over every attribution.
+ */
+public class AttributionRateLimitLedger {
+  private final Map<Pair<String, String>, Map<String, TriggerTimes>> mTriggerTimesBySites =
+      new HashMap<>();
+
+  public AttributionRateLimitLedger() {}
+
+  /** Creates a ledger with the trigger times recorded in {@code other}. */
+  public AttributionRateLimitLedger(AttributionRateLimitLedger other) {
+    other.mTriggerTimesBySites.forEach(
+        (sitesKey, triggerTimesByEnrollment) -> {
+          Map<String, TriggerTimes> copy = new HashMap<>();
+          triggerTimesByEnrollment.forEach(
+              (enrollmentId, triggerTimes) ->
+                  copy.put(enrollmentId, new TriggerTimes(triggerTimes)));
+          mTriggerTimesBySites.put(sitesKey, copy);
+        });
+  }
+
+  /** Records the trigger time of {@code attribution}. */
+  public void add(Attribution attribution) {
+    mTriggerTimesBySites
+        .computeIfAbsent(sitesKey(attribution), k -> new HashMap<>())
+        .computeIfAbsent(attribution.getEnrollmentId(), k -> new TriggerTimes())
+        .add(attribution.getTriggerTime());
+  }
+
+  /** Drops one recorded trigger time of {@code attribution}, if present. */
+  public void remove(Attribution attribution) {
+    Pair<String, String> sitesKey = sitesKey(attribution);
+    Map<String, TriggerTimes> triggerTimesByEnrollment = mTriggerTimesBySites.get(sitesKey);
+    if (triggerTimesByEnrollment == null) {
+      return;
+    }
+    TriggerTimes triggerTimes = triggerTimesByEnrollment.get(attribution.getEnrollmentId());
+    if (triggerTimes == null || !triggerTimes.remove(attribution.getTriggerTime())) {
+      return;
+    }
+    if (triggerTimes.isEmpty()) {
+      triggerTimesByEnrollment.remove(attribution.getEnrollmentId());
+      if (triggerTimesByEnrollment.isEmpty()) {
+        mTriggerTimesBySites.remove(sitesKey);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of attributions for the given sites and enrollment whose trigger time is in
+   * the window ({@code windowStartTime}, {@code windowEndTime}].
+   */
+  public long count(
+      String sourceSite,
+      String destinationSite,
+      String enrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    Map<String, TriggerTimes> triggerTimesByEnrollment =
+        mTriggerTimesBySites.get(new Pair<>(sourceSite, destinationSite));
+    if (triggerTimesByEnrollment == null) {
+      return 0;
+    }
+    TriggerTimes triggerTimes = triggerTimesByEnrollment.get(enrollmentId);
+    return triggerTimes == null ? 0 : triggerTimes.countInWindow(windowStartTime, windowEndTime);
+  }
+
+  /**
+   * Returns the number of distinct enrollments, other than {@code excludedEnrollmentId}, with at
+   * least one attribution for the given sites whose trigger time is in the window ({@code
+   * windowStartTime}, {@code windowEndTime}].
+   */
+  public int countDistinctEnrollments(
+      String sourceSite,
+      String destinationSite,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    Map<String, TriggerTimes> triggerTimesByEnrollment =
+        mTriggerTimesBySites.get(new Pair<>(sourceSite, destinationSite));
+    if (triggerTimesByEnrollment == null) {
+      return 0;
+    }
+    int count = 0;
+    for (Map.Entry<String, TriggerTimes> entry : triggerTimesByEnrollment.entrySet()) {
+      if (!Objects.equals(entry.getKey(), excludedEnrollmentId)
+          && entry.getValue().countInWindow(windowStartTime, windowEndTime) > 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static Pair<String, String> sitesKey(Attribution attribution) {
+    return new Pair<>(attribution.getSourceSite(), attribution.getDestinationSite());
+  }
+
+  /** Sorted multiset of trigger times backed by a growable {@code long[]}. */
+  private static class TriggerTimes {
+    private long[] mTimes = new long[4];
+    private int mSize;
+
+    TriggerTimes() {}
+
+    TriggerTimes(TriggerTimes other) {
+      mTimes = other.mTimes.clone();
+      mSize = other.mSize;
+    }
+
+    void add(long time) {
+      // Attributions mostly arrive in trigger time order, so this is usually an append.
+      int index = upperBound(time);
+      if (mSize == mTimes.length) {
+        mTimes = Arrays.copyOf(mTimes, mSize * 2);
+      }
+      System.arraycopy(mTimes, index, mTimes, index + 1, mSize - index);
+      mTimes[index] = time;
+      mSize++;
+    }
+
+    boolean remove(long time) {
+      int index = upperBound(time) - 1;
+      if (index < 0 || mTimes[index] != time) {
+        return false;
+      }
+      System.arraycopy(mTimes, index + 1, mTimes, index, mSize - index - 1);
+      mSize--;
+      return true;
+    }
+
+    boolean isEmpty() {
+      return mSize == 0;
+    }
+
+    int countInWindow(long windowStartTime, long windowEndTime) {
+      return Math.max(0, upperBound(windowEndTime) - upperBound(windowStartTime));
+    }
+
+    /** Returns the index of the first time strictly greater than {@code time}. */
+    private int upperBound(long time) {
+      int low = 0;
+      int high = mSize;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (mTimes[mid] <= time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
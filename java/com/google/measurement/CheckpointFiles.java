@@ -0,0 +1,341 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.AvroIO;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.EmptyMatchTreatment;
+import org.apache.beam.sdk.io.fs.MatchResult;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.transforms.Contextful;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.MapElements;
+import org.apache.beam.sdk.util.MimeTypes;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TypeDescriptor;
+import org.apache.beam.sdk.values.TypeDescriptors;
+
+/**
+ * Stores the checkpoints of incremental runs, see {@link UserStateCheckpoint}, as generations of
+ * sharded Avro files under the checkpoint directory, named {@code
+ * generation-GGGGG/checkpoint-SSSSS-of-NNNNN.avro}. Each row holds the {@link
+ * DataProcessor#platformKey(ApiChoice, String)} of a user and its encoded state, with the {@link
+ * #CHECKPOINT_ROW} schema, so that a checkpoint is stored in a few large files whatever its number
+ * of users, and UserIds are never part of a file name.
+ *
+ * <p>A run reads the latest committed generation and writes the next one, which it commits with a
+ * {@link #COMMITTED} file once all of its shards are written, so a run that fails leaves the
+ * checkpoint it started from in place. Users without new input are carried over to the next
+ * generation, and users left without live state are dropped from it. The earlier generations are
+ * deleted once a run has committed its own.
+ *
+ * <p>The pipeline reads and writes the rows with {@link #read} and {@link #write}. The local engine
+ * reads the shards itself and writes them with a {@link Writer}.
+ */
+final class CheckpointFiles {
+  /** Avro schema of the checkpoint rows. */
+  static final Schema CHECKPOINT_ROW =
+      SchemaBuilder.record("CheckpointRow")
+          .namespace("com.google.measurement")
+          .fields()
+          .requiredString("key")
+          .requiredBytes("state")
+          .endRecord();
+
+  /** Coder of the checkpoint rows, keyed by platform key. */
+  static final KvCoder<String, byte[]> ROW_CODER =
+      KvCoder.of(StringUtf8Coder.of(), ByteArrayCoder.of());
+
+  /** Name of the file that marks a generation as complete. */
+  static final String COMMITTED = "_COMMITTED";
+
+  private static final String SHARD_PREFIX = "checkpoint";
+  private static final String SUFFIX = ".avro";
+  private static final Pattern GENERATION_FILE = Pattern.compile("generation-(\\d+)/([^/]+)$");
+
+  private CheckpointFiles() {}
+
+  /**
+   * Returns the number of shards of the checkpoints.
+   *
+   * @throws IllegalArgumentException if it is not positive
+   */
+  static int getShardCount(SimulationConfig options) {
+    if (options.getCheckpointShards() <= 0) {
+      throw new IllegalArgumentException(
+          "checkpointShards must be positive, was " + options.getCheckpointShards());
+    }
+    return options.getCheckpointShards();
+  }
+
+  /** Returns the number of the latest committed generation, or -1 if there is none. */
+  static int latestGeneration(String checkpointDirectory) throws IOException {
+    int latest = -1;
+    for (Map.Entry<Integer, Set<String>> generation :
+        listGenerations(checkpointDirectory).entrySet()) {
+      if (generation.getValue().contains(COMMITTED)) {
+        latest = generation.getKey();
+      }
+    }
+    return latest;
+  }
+
+  /** Returns the number of the generation after every generation with files. */
+  static int nextGeneration(String checkpointDirectory) throws IOException {
+    TreeMap<Integer, Set<String>> generations = listGenerations(checkpointDirectory);
+    return generations.isEmpty() ? 0 : generations.lastKey() + 1;
+  }
+
+  /** Returns the directory of {@code generation}. */
+  static String generationDirectory(String checkpointDirectory, int generation) {
+    return String.format("%s/generation-%05d", checkpointDirectory, generation);
+  }
+
+  /** Returns the shard files of {@code generation}. */
+  static List<String> shards(String checkpointDirectory, int generation) throws IOException {
+    List<String> shards = new ArrayList<>();
+    for (MatchResult.Metadata metadata : matchShards(checkpointDirectory, generation)) {
+      shards.add(metadata.resourceId().toString());
+    }
+    return shards;
+  }
+
+  /** Marks {@code generation} as complete, once all of its shards are written. */
+  static void commit(String checkpointDirectory, int generation) throws IOException {
+    FileSystems.create(
+            FileSystems.matchNewResource(
+                generationDirectory(checkpointDirectory, generation) + "/" + COMMITTED, false),
+            MimeTypes.BINARY)
+        .close();
+  }
+
+  /**
+   * Waits for the pipeline of {@code result} to finish, then commits {@code generation} and deletes
+   * the generations before it. Remote runners report a failed pipeline through its state rather
+   * than by throwing, so any state other than {@link PipelineResult.State#DONE} leaves {@code
+   * generation} uncommitted and the checkpoint the run started from in place.
+   *
+   * @throws IllegalStateException if the pipeline did not end in {@link PipelineResult.State#DONE}
+   */
+  static void commitWhenDone(PipelineResult result, String checkpointDirectory, int generation)
+      throws IOException {
+    PipelineResult.State state = result.waitUntilFinish();
+    if (state != PipelineResult.State.DONE) {
+      throw new IllegalStateException(
+          String.format(
+              "The pipeline ended in state %s, checkpoint generation %d was not committed",
+              state, generation));
+    }
+    commit(checkpointDirectory, generation);
+    deleteGenerationsBefore(checkpointDirectory, generation);
+  }
+
+  /** Deletes the files of the generations before {@code generation}. */
+  static void deleteGenerationsBefore(String checkpointDirectory, int generation)
+      throws IOException {
+    List<ResourceId> files = new ArrayList<>();
+    for (MatchResult.Metadata metadata : matchGenerationFiles(checkpointDirectory)) {
+      Matcher matcher = GENERATION_FILE.matcher(metadata.resourceId().toString());
+      if (matcher.find() && Integer.parseInt(matcher.group(1)) < generation) {
+        files.add(metadata.resourceId());
+      }
+    }
+    FileSystems.delete(files);
+  }
+
+  /**
+   * Reads the rows of {@code generation} under {@code checkpointDirectory}, keyed by platform key,
+   * or none if {@code generation} is -1 or has no shards.
+   */
+  static PCollection<KV<String, byte[]>> read(
+      Pipeline p, String checkpointDirectory, int generation) throws IOException {
+    if (generation < 0 || matchShards(checkpointDirectory, generation).isEmpty()) {
+      return p.apply("NoCheckpoints", Create.empty(ROW_CODER));
+    }
+    return p.apply(
+            "ReadCheckpoints",
+            AvroIO.readGenericRecords(CHECKPOINT_ROW)
+                .from(shardPattern(checkpointDirectory, generation)))
+        .apply(
+            "KeyCheckpoints",
+            MapElements.into(
+                    TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptor.of(byte[].class)))
+                .via(CheckpointFiles::fromRow))
+        .setCoder(ROW_CODER);
+  }
+
+  /**
+   * Writes {@code rows} to {@code shardCount} shards of {@code generation} under {@code
+   * checkpointDirectory}, which must be committed once the pipeline has run, see {@link #commit}.
+   * Shards without rows are not written.
+   */
+  static void write(
+      PCollection<KV<String, byte[]>> rows,
+      String checkpointDirectory,
+      int generation,
+      int shardCount) {
+    rows.apply(
+        "WriteCheckpoints",
+        FileIO.<KV<String, byte[]>>write()
+            .via(
+                Contextful.fn(row -> toRow(row.getKey(), row.getValue())),
+                AvroIO.sink(CHECKPOINT_ROW)
+                    .withCodec(CodecFactory.deflateCodec(CodecFactory.DEFAULT_DEFLATE_LEVEL)))
+            .to(generationDirectory(checkpointDirectory, generation))
+            .withNaming(FileIO.Write.defaultNaming(SHARD_PREFIX, SUFFIX))
+            .withNumShards(shardCount));
+  }
+
+  static GenericRecord toRow(String key, byte[] state) {
+    GenericRecord row = new GenericData.Record(CHECKPOINT_ROW);
+    row.put("key", key);
+    row.put("state", ByteBuffer.wrap(state));
+    return row;
+  }
+
+  static KV<String, byte[]> fromRow(GenericRecord row) {
+    ByteBuffer buffer = (ByteBuffer) row.get("state");
+    byte[] state = new byte[buffer.remaining()];
+    buffer.duplicate().get(state);
+    return KV.of(row.get("key").toString(), state);
+  }
+
+  private static String shardPattern(String checkpointDirectory, int generation) {
+    return generationDirectory(checkpointDirectory, generation)
+        + "/"
+        + SHARD_PREFIX
+        + "-*"
+        + SUFFIX;
+  }
+
+  private static List<MatchResult.Metadata> matchShards(String checkpointDirectory, int generation)
+      throws IOException {
+    return FileSystems.match(
+            shardPattern(checkpointDirectory, generation), EmptyMatchTreatment.ALLOW)
+        .metadata();
+  }
+
+  private static List<MatchResult.Metadata> matchGenerationFiles(String checkpointDirectory)
+      throws IOException {
+    return FileSystems.match(checkpointDirectory + "/generation-*/*", EmptyMatchTreatment.ALLOW)
+        .metadata();
+  }
+
+  // The names of the files of each generation, by generation number.
+  private static TreeMap<Integer, Set<String>> listGenerations(String checkpointDirectory)
+      throws IOException {
+    TreeMap<Integer, Set<String>> generations = new TreeMap<>();
+    for (MatchResult.Metadata metadata : matchGenerationFiles(checkpointDirectory)) {
+      Matcher matcher = GENERATION_FILE.matcher(metadata.resourceId().toString());
+      if (matcher.find()) {
+        generations
+            .computeIfAbsent(Integer.parseInt(matcher.group(1)), g -> new TreeSet<>())
+            .add(matcher.group(2));
+      }
+    }
+    return generations;
+  }
+
+  /**
+   * Writes checkpoint rows to the shards of a generation on this machine, named as the pipeline
+   * names them. The row of a user goes to the shard picked by the hash of its key, and each shard
+   * is written by one thread at a time. The generation is only committed by {@link #commit()}, and
+   * its shards are deleted if it is closed before.
+   */
+  static final class Writer implements Closeable {
+    private final String mCheckpointDirectory;
+    private final int mGeneration;
+    private final Path[] mPaths;
+    private final DataFileWriter<GenericRecord>[] mShards;
+    private boolean mCommitted;
+
+    @SuppressWarnings("unchecked")
+    Writer(String checkpointDirectory, int generation, int shardCount) throws IOException {
+      mCheckpointDirectory = checkpointDirectory;
+      mGeneration = generation;
+      Path directory =
+          Files.createDirectories(Path.of(generationDirectory(checkpointDirectory, generation)));
+      mPaths = new Path[shardCount];
+      mShards = new DataFileWriter[shardCount];
+      for (int i = 0; i < shardCount; i++) {
+        mPaths[i] =
+            directory.resolve(
+                String.format("%s-%05d-of-%05d%s", SHARD_PREFIX, i, shardCount, SUFFIX));
+        mShards[i] =
+            new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(CHECKPOINT_ROW))
+                .setCodec(CodecFactory.deflateCodec(CodecFactory.DEFAULT_DEFLATE_LEVEL))
+                .create(CHECKPOINT_ROW, mPaths[i].toFile());
+      }
+    }
+
+    void write(String key, UserStateCheckpoint checkpoint) throws IOException {
+      GenericRecord row = toRow(key, checkpoint.encode());
+      DataFileWriter<GenericRecord> shard = mShards[Math.floorMod(key.hashCode(), mShards.length)];
+      synchronized (shard) {
+        shard.append(row);
+      }
+    }
+
+    /** Closes every shard and commits the generation. */
+    void commit() throws IOException {
+      for (DataFileWriter<GenericRecord> shard : mShards) {
+        shard.close();
+      }
+      CheckpointFiles.commit(mCheckpointDirectory, mGeneration);
+      mCommitted = true;
+    }
+
+    /** Closes every shard and deletes them if the generation was not committed. */
+    @Override
+    public void close() throws IOException {
+      if (mCommitted) {
+        return;
+      }
+      for (int i = 0; i < mShards.length; i++) {
+        mShards[i].close();
+        Files.deleteIfExists(mPaths[i]);
+      }
+    }
+  }
+}
@@ -16,34 +16,61 @@
 
 package com.google.measurement;
 
+import com.google.common.hash.Hashing;
+import com.google.measurement.InputFileProcessor.AttributionSourceAvroMapperDoFn;
 import com.google.measurement.InputFileProcessor.AttributionSourceJsonMapperDoFn;
+import com.google.measurement.InputFileProcessor.ExtensionEventAvroMapperDoFn;
 import com.google.measurement.InputFileProcessor.ExtensionEventJsonMapperDoFn;
+import com.google.measurement.InputFileProcessor.TriggerAvroMapperDoFn;
 import com.google.measurement.InputFileProcessor.TriggerJsonMapperDoFn;
 import com.google.measurement.util.Util;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 import org.apache.beam.sdk.Pipeline;
-import org.apache.beam.sdk.coders.AvroCoder;
 import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.AvroIO;
 import org.apache.beam.sdk.io.FileIO;
 import org.apache.beam.sdk.io.FileIO.ReadableFile;
 import org.apache.beam.sdk.io.TextIO;
+import org.apache.beam.sdk.transforms.Contextful;
+import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.Filter;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Partition;
+import org.apache.beam.sdk.transforms.Requirements;
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.apache.beam.sdk.transforms.View;
 import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.transforms.join.CoGroupByKey;
 import org.apache.beam.sdk.transforms.join.KeyedPCollectionTuple;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionView;
 import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TypeDescriptors;
 
 public class DataProcessor {
   private static final Logger logger = Logger.getLogger(DataProcessor.class.getName());
+  private static final char PLATFORM_KEY_SEPARATOR = '/';
+
+  /** Index of the records of regular keys in the result of {@link #partitionByKeySize}. */
+  public static final int REGULAR_KEYS = 0;
+
+  /** Index of the records of heavy keys in the result of {@link #partitionByKeySize}. */
+  public static final int HEAVY_KEYS = 1;
 
   /**
    * Given a PCollection of Source objects keyed by UserId and a choice of which API platform to
@@ -59,12 +86,200 @@ public class DataProcessor {
       PCollection<KV<String, Source>> sourceMap, ApiChoice apiChoice) {
     return sourceMap
         .apply(Filter.by(x -> x.getValue().getApiChoice().equals(apiChoice)))
+        .apply(Filter.by(x -> isSupportedByPlatform(x.getValue())));
+  }
+
+  /**
+   * Given a PCollection of Source objects keyed by UserId, return it keyed by {@link
+   * #platformKey(ApiChoice, String)} instead, so that the records of both API platforms can be
+   * joined in a single shuffle. Records that {@link #filterSourceMap} would drop for their platform
+   * are dropped.
+   *
+   * @param sourceMap PCollection of Source objects keyed by UserId.
+   * @return sourceMap keyed by api choice and UserId.
+   */
+  public static PCollection<KV<String, Source>> keySourceMapByPlatform(
+      PCollection<KV<String, Source>> sourceMap) {
+    return keyByPlatform(
+        sourceMap.apply(Filter.by(x -> isSupportedByPlatform(x.getValue()))), Source::getApiChoice);
+  }
+
+  /**
+   * Given a PCollection of Trigger objects keyed by UserId, return it keyed by {@link
+   * #platformKey(ApiChoice, String)} instead.
+   *
+   * @param triggerMap PCollection of Trigger objects keyed by UserId.
+   * @return triggerMap keyed by api choice and UserId.
+   */
+  public static PCollection<KV<String, Trigger>> keyTriggerMapByPlatform(
+      PCollection<KV<String, Trigger>> triggerMap) {
+    return keyByPlatform(triggerMap, Trigger::getApiChoice);
+  }
+
+  /**
+   * Given a PCollection of ExtensionEvent objects keyed by UserId, return it keyed by {@link
+   * #platformKey(ApiChoice, String)} instead. Extension events only apply to the OS platform.
+   *
+   * @param extensionEventMap PCollection of ExtensionEvent objects keyed by UserId.
+   * @return extensionEventMap keyed by the OS api choice and UserId.
+   */
+  public static PCollection<KV<String, ExtensionEvent>> keyExtensionEventMapByPlatform(
+      PCollection<KV<String, ExtensionEvent>> extensionEventMap) {
+    return keyByPlatform(extensionEventMap, e -> ApiChoice.OS);
+  }
+
+  /**
+   * Returns the key that groups the records of {@code userId} for the {@code apiChoice} platform.
+   */
+  public static String platformKey(ApiChoice apiChoice, String userId) {
+    return apiChoice.name() + PLATFORM_KEY_SEPARATOR + userId;
+  }
+
+  /** Returns the api choice of a key built by {@link #platformKey(ApiChoice, String)}. */
+  public static ApiChoice apiChoiceOf(String platformKey) {
+    return ApiChoice.valueOf(platformKey.substring(0, platformKey.indexOf(PLATFORM_KEY_SEPARATOR)));
+  }
+
+  /** Returns the UserId of a key built by {@link #platformKey(ApiChoice, String)}. */
+  public static String userIdOf(String platformKey) {
+    return platformKey.substring(platformKey.indexOf(PLATFORM_KEY_SEPARATOR) + 1);
+  }
+
+  /**
+   * Estimates the number of records of each key from a sample of the records and returns the keys
+   * estimated to have at least {@code threshold} records, with their estimates. Only the sampled
+   * keys are counted, and they are combined before the shuffle, so this is much cheaper than the
+   * join itself.
+   *
+   * @param sourceMap PCollection of Source objects keyed by api choice and UserId.
+   * @param triggerMap PCollection of Trigger objects keyed by api choice and UserId.
+   * @param extensionEventMap PCollection of ExtensionEvent objects keyed by api choice and UserId.
+   * @param sampleRate fraction of the records to sample, greater than 0 and at most 1.
+   * @param threshold smallest estimated number of records of a heavy key.
+   * @return view of the heavy keys and their estimated number of records.
+   */
+  public static PCollectionView<Map<String, Long>> detectHeavyKeys(
+      PCollection<KV<String, Source>> sourceMap,
+      PCollection<KV<String, Trigger>> triggerMap,
+      PCollection<KV<String, ExtensionEvent>> extensionEventMap,
+      double sampleRate,
+      long threshold) {
+    if (!(sampleRate > 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException(
+          "hotKeySampleRate must be greater than 0 and at most 1, was " + sampleRate);
+    }
+    return PCollectionList.of(sourceMap.apply(ParDo.of(new SampleKeysDoFn<>(sampleRate))))
+        .and(triggerMap.apply(ParDo.of(new SampleKeysDoFn<>(sampleRate))))
+        .and(extensionEventMap.apply(ParDo.of(new SampleKeysDoFn<>(sampleRate))))
+        .apply(Flatten.pCollections())
+        .apply(Count.perElement())
         .apply(
-            Filter.by(
-                x ->
-                    !(x.getValue().getApiChoice() == ApiChoice.WEB
-                        && x.getValue().getAppDestinations() != null
-                        && !x.getValue().getAppDestinations().isEmpty())));
+            MapElements.into(
+                    TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.longs()))
+                .via(count -> KV.of(count.getKey(), Math.round(count.getValue() / sampleRate))))
+        .apply(Filter.by(estimate -> estimate.getValue() >= threshold))
+        .apply(View.asMap());
+  }
+
+  /**
+   * Splits records keyed by {@link #platformKey(ApiChoice, String)} into the records of regular
+   * keys, at index {@link #REGULAR_KEYS}, and those of the keys in {@code heavyKeys}, at index
+   * {@link #HEAVY_KEYS}.
+   *
+   * @param userMap PCollection of records keyed by api choice and UserId.
+   * @param heavyKeys view returned by {@link #detectHeavyKeys}.
+   * @return the records of regular keys and the records of heavy keys.
+   */
+  public static <T> PCollectionList<KV<String, T>> partitionByKeySize(
+      PCollection<KV<String, T>> userMap, PCollectionView<Map<String, Long>> heavyKeys) {
+    return userMap.apply(
+        Partition.of(
+            2,
+            (KV<String, T> record, int numPartitions, Contextful.Fn.Context c) ->
+                c.sideInput(heavyKeys).containsKey(record.getKey()) ? HEAVY_KEYS : REGULAR_KEYS,
+            Requirements.requiresSideInputs(heavyKeys)));
+  }
+
+  /**
+   * Keeps the records of the users that {@link #isSampledUser} keeps for {@code sampleRate} and
+   * {@code seed}. Apply it to the records keyed by UserId before they are joined, so that the
+   * sources, triggers and extension events of a kept user are all kept.
+   *
+   * @param userMap PCollection of records keyed by UserId.
+   * @param sampleRate fraction of the users to keep, greater than 0 and at most 1.
+   * @param seed seed of the hash that picks the users.
+   * @return the records of the sampled users, or {@code userMap} itself for a rate of 1.
+   */
+  public static <T> PCollection<KV<String, T>> sampleUsers(
+      PCollection<KV<String, T>> userMap, double sampleRate, int seed) {
+    checkUserSampleRate(sampleRate);
+    if (sampleRate == 1) {
+      return userMap;
+    }
+    return userMap.apply(Filter.by(record -> isSampledUser(record.getKey(), sampleRate, seed)));
+  }
+
+  /**
+   * Returns whether {@code userId} is in the sample of {@code sampleRate} of the users picked by
+   * {@code seed}. The decision only depends on its arguments, so a user is kept by every run with
+   * the same rate and seed, on every platform and engine, and the sample of a smaller rate is a
+   * subset of the sample of a larger one.
+   */
+  public static boolean isSampledUser(String userId, double sampleRate, int seed) {
+    long hash = Hashing.murmur3_128(seed).hashString(userId, StandardCharsets.UTF_8).asLong();
+    // The top 53 bits of the hash as a uniform double in [0, 1).
+    return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+  }
+
+  static void checkUserSampleRate(double sampleRate) {
+    if (!(sampleRate > 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException(
+          "userSampleRate must be greater than 0 and at most 1, was " + sampleRate);
+    }
+  }
+
+  private static class SampleKeysDoFn<T> extends DoFn<KV<String, T>, String> {
+    private final double mSampleRate;
+
+    SampleKeysDoFn(double sampleRate) {
+      mSampleRate = sampleRate;
+    }
+
+    @ProcessElement
+    public void processElement(@Element KV<String, T> element, OutputReceiver<String> output) {
+      if (mSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < mSampleRate) {
+        output.output(element.getKey());
+      }
+    }
+  }
+
+  // The Web platform does not handle app destinations in the actual Attribution Reporting API.
+  static boolean isSupportedByPlatform(Source source) {
+    return !(source.getApiChoice() == ApiChoice.WEB
+        && source.getAppDestinations() != null
+        && !source.getAppDestinations().isEmpty());
+  }
+
+  private static <T> PCollection<KV<String, T>> keyByPlatform(
+      PCollection<KV<String, T>> userMap, SerializableFunction<T, ApiChoice> apiChoice) {
+    return userMap.apply(ParDo.of(new KeyByPlatformDoFn<>(apiChoice))).setCoder(userMap.getCoder());
+  }
+
+  private static class KeyByPlatformDoFn<T> extends DoFn<KV<String, T>, KV<String, T>> {
+    private final SerializableFunction<T, ApiChoice> mApiChoice;
+
+    KeyByPlatformDoFn(SerializableFunction<T, ApiChoice> apiChoice) {
+      mApiChoice = apiChoice;
+    }
+
+    @ProcessElement
+    public void processElement(
+        @Element KV<String, T> element, OutputReceiver<KV<String, T>> output) {
+      output.output(
+          KV.of(
+              platformKey(mApiChoice.apply(element.getValue()), element.getKey()),
+              element.getValue()));
+    }
   }
 
   /**
@@ -90,13 +305,20 @@ public class DataProcessor {
   public static PCollection<KV<String, Source>> buildUserToSourceMap(
       Pipeline p, SimulationConfig options) {
     PCollection<ReadableFile> files = getAttributionSourceFiles(p, options);
-    String attributionSourceFileType = Util.getFileType(options.getAttributionSourceFileName());
+    String attributionSourceFileType =
+        getInputFileFormat(options, options.getAttributionSourceFileName());
     if (Objects.equals(attributionSourceFileType, "json")) {
       return files.apply(TextIO.readFiles()).apply(ParDo.of(new AttributionSourceJsonMapperDoFn()));
     }
+    if (Objects.equals(attributionSourceFileType, "avro")) {
+      return files
+          .apply(AvroIO.readFilesGenericRecords(InputSchemas.ATTRIBUTION_SOURCE))
+          .apply(ParDo.of(new AttributionSourceAvroMapperDoFn()));
+    }
 
     throw new IllegalArgumentException(
-        "Invalid file type for attributionSourceFileName. Acceptable file format is json");
+        "Invalid file type for attributionSourceFileName. Acceptable file formats are json and"
+            + " avro");
   }
 
   /**
@@ -109,13 +331,18 @@ public class DataProcessor {
   public static PCollection<KV<String, Trigger>> buildUserToTriggerMap(
       Pipeline p, SimulationConfig options) {
     PCollection<ReadableFile> files = getTriggerFiles(p, options);
-    String triggerFileType = Util.getFileType(options.getAttributionSourceFileName());
+    String triggerFileType = getInputFileFormat(options, options.getTriggerFileName());
     if (Objects.equals(triggerFileType, "json")) {
       return files.apply(TextIO.readFiles()).apply(ParDo.of(new TriggerJsonMapperDoFn()));
     }
+    if (Objects.equals(triggerFileType, "avro")) {
+      return files
+          .apply(AvroIO.readFilesGenericRecords(InputSchemas.TRIGGER))
+          .apply(ParDo.of(new TriggerAvroMapperDoFn()));
+    }
 
     throw new IllegalArgumentException(
-        "Invalid file type for triggerFileName. Acceptable file format is json");
+        "Invalid file type for triggerFileName. Acceptable file formats are json and avro");
   }
 
   /**
@@ -129,54 +356,93 @@ public class DataProcessor {
       Pipeline p, SimulationConfig options) {
     try {
       PCollection<ReadableFile> files = getExtensionEventFiles(p, options);
-      String extensionEventFileType = Util.getFileType(options.getExtensionEventFileName());
+      String extensionEventFileType =
+          getInputFileFormat(options, options.getExtensionEventFileName());
       if (Objects.equals(extensionEventFileType, "json")) {
         return files.apply(TextIO.readFiles()).apply(ParDo.of(new ExtensionEventJsonMapperDoFn()));
       }
+      if (Objects.equals(extensionEventFileType, "avro")) {
+        return files
+            .apply(AvroIO.readFilesGenericRecords(InputSchemas.EXTENSION_EVENT))
+            .apply(ParDo.of(new ExtensionEventAvroMapperDoFn()));
+      }
     } catch (Exception e) {
       logger.info("No extension events found in the given time interval.");
       HashMap<String, ExtensionEvent> userExtensionEventMap = new HashMap();
       return p.apply(
           Create.of(userExtensionEventMap)
-              .withCoder(KvCoder.of(StringUtf8Coder.of(), AvroCoder.of(ExtensionEvent.class))));
+              .withCoder(KvCoder.of(StringUtf8Coder.of(), ExtensionEventCoder.of())));
     }
 
     throw new IllegalArgumentException(
-        "Invalid file type for extensionEventFileName. Acceptable file format is json");
+        "Invalid file type for extensionEventFileName. Acceptable file formats are json and avro");
+  }
+
+  // The configured input file format, or else the extension of fileName.
+  static String getInputFileFormat(SimulationConfig options, String fileName) {
+    String inputFileFormat = options.getInputFileFormat();
+    if (inputFileFormat != null) {
+      return inputFileFormat.toLowerCase(Locale.ROOT);
+    }
+    return Util.getFileType(fileName);
+  }
+
+  /** Returns the default {@link Flags} with the settings of {@code options} applied. */
+  static Flags getFlags(SimulationConfig options) {
+    Flags flags = new Flags();
+    flags.setMeasurementEnableSimulatedClockExpiry(options.getSimulatedClockExpiry());
+    flags.setMeasurementSqliteDaoRecordThreshold(options.getSqliteDaoRecordThreshold());
+    return flags;
   }
 
   private static PCollection<ReadableFile> getAttributionSourceFiles(
       Pipeline p, SimulationConfig options) {
+    return readMatches(p, getAttributionSourcePaths(options));
+  }
+
+  private static PCollection<ReadableFile> getTriggerFiles(Pipeline p, SimulationConfig options) {
+    return readMatches(p, getTriggerPaths(options));
+  }
+
+  private static PCollection<ReadableFile> getExtensionEventFiles(
+      Pipeline p, SimulationConfig options) {
+    return readMatches(p, getExtensionEventPaths(options));
+  }
+
+  // The coder is set for days without input, such as those of a checkpointed run without sources.
+  private static PCollection<ReadableFile> readMatches(Pipeline p, List<String> paths) {
+    return p.apply(Create.of(paths).withCoder(StringUtf8Coder.of()))
+        .apply(FileIO.matchAll())
+        .apply(FileIO.readMatches());
+  }
+
+  /** Returns the attribution source files of the configured date range. */
+  static List<String> getAttributionSourcePaths(SimulationConfig options) {
     String inputDir = options.getInputDirectory();
     String attributionSourceFileName = options.getAttributionSourceFileName();
     LocalDate sourceStartDate = Util.parseStringDate(options.getSourceStartDate());
     LocalDate sourceEndDate = Util.parseStringDate(options.getSourceEndDate());
-    List<String> paths =
-        Util.getPathsInDateRange(
-            sourceStartDate, sourceEndDate, inputDir, attributionSourceFileName);
-    return p.apply(Create.of(paths)).apply(FileIO.matchAll()).apply(FileIO.readMatches());
+    return Util.getPathsInDateRange(
+        sourceStartDate, sourceEndDate, inputDir, attributionSourceFileName);
   }
 
-  private static PCollection<ReadableFile> getTriggerFiles(Pipeline p, SimulationConfig options) {
+  /** Returns the trigger files of the configured date range. */
+  static List<String> getTriggerPaths(SimulationConfig options) {
     String inputDir = options.getInputDirectory();
     String triggerFileName = options.getTriggerFileName();
     LocalDate triggerStartDate = Util.parseStringDate(options.getTriggerStartDate());
     LocalDate triggerEndDate = Util.parseStringDate(options.getTriggerEndDate());
-    List<String> paths =
-        Util.getPathsInDateRange(triggerStartDate, triggerEndDate, inputDir, triggerFileName);
-    return p.apply(Create.of(paths)).apply(FileIO.matchAll()).apply(FileIO.readMatches());
+    return Util.getPathsInDateRange(triggerStartDate, triggerEndDate, inputDir, triggerFileName);
   }
 
-  private static PCollection<ReadableFile> getExtensionEventFiles(
-      Pipeline p, SimulationConfig options) {
+  /** Returns the extension event files of the configured date range. */
+  static List<String> getExtensionEventPaths(SimulationConfig options) {
     String inputDir = options.getInputDirectory();
     String extensionEventFileName = options.getExtensionEventFileName();
     LocalDate extensionEventStartDate = Util.parseStringDate(options.getExtensionEventStartDate());
     LocalDate extensionEventEndDate = Util.parseStringDate(options.getExtensionEventEndDate());
-    List<String> paths =
-        Util.getPathsInDateRange(
-            extensionEventStartDate, extensionEventEndDate, inputDir, extensionEventFileName);
-    return p.apply(Create.of(paths)).apply(FileIO.matchAll()).apply(FileIO.readMatches());
+    return Util.getPathsInDateRange(
+        extensionEventStartDate, extensionEventEndDate, inputDir, extensionEventFileName);
   }
 
   /**
@@ -224,4 +490,27 @@ public class DataProcessor {
         .and(extensionEventTupleTag, userToAdtechExtensionEventData)
         .apply(CoGroupByKey.create());
   }
+
+  /**
+   * Like {@link #joinUserIdData(PCollection, PCollection, PCollection, TupleTag, TupleTag,
+   * TupleTag)}, also joining the checkpoint state of each key, see {@link CheckpointFiles}.
+   *
+   * @param userToCheckpointData PCollection of key-value pairs of keys and their checkpoint state
+   * @param checkpointTag Tag to identify the checkpoint state
+   */
+  public static PCollection<KV<String, CoGbkResult>> joinUserIdData(
+      PCollection<KV<String, Source>> userToAdtechSourceData,
+      PCollection<KV<String, Trigger>> userToAdtechTriggerData,
+      PCollection<KV<String, ExtensionEvent>> userToAdtechExtensionEventData,
+      PCollection<KV<String, byte[]>> userToCheckpointData,
+      TupleTag<Source> sourceTag,
+      TupleTag<Trigger> triggerTag,
+      TupleTag<ExtensionEvent> extensionEventTupleTag,
+      TupleTag<byte[]> checkpointTag) {
+    return KeyedPCollectionTuple.of(sourceTag, userToAdtechSourceData)
+        .and(triggerTag, userToAdtechTriggerData)
+        .and(extensionEventTupleTag, userToAdtechExtensionEventData)
+        .and(checkpointTag, userToCheckpointData)
+        .apply(CoGroupByKey.create());
+  }
 }
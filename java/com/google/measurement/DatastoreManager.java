@@ -19,56 +19,93 @@ package com.google.measurement;
 import com.google.measurement.Source.Status;
 import com.google.measurement.aggregation.AggregateReport;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Stores {@link Source} and {@link Trigger} instances, and provides methods of searching for and
  * iterating over them.
+ *
+ * <p>Records are kept in insertion order and can also be looked up by id in constant time.
+ * Attributions have no id and are looked up by value instead.
  */
 public class DatastoreManager {
-  private List<Source> sources;
-  private List<Trigger> triggers;
-  private List<EventReport> eventReports;
-  private List<Attribution> attributions;
-  private List<AggregateReport> aggregateReports; // List of AggregateReports
-  private List<DebugReport> debugReports;
+  private final RecordStore<String, Source> sources;
+  private final RecordStore<String, Trigger> triggers;
+  private final RecordStore<String, EventReport> eventReports;
+  private final RecordStore<Attribution, Attribution> attributions;
+  private final List<AggregateReport> aggregateReports; // List of AggregateReports
+  private final List<DebugReport> debugReports;
+  // Sources, triggers and event reports shared with a snapshot, compared by reference. Each is
+  // replaced by a private copy before this store hands it out or modifies it.
+  private final Set<Object> mShared = Collections.newSetFromMap(new IdentityHashMap<>());
 
   public DatastoreManager() {
-    this.sources = new ArrayList<>();
-    this.triggers = new ArrayList<>();
-    eventReports = new ArrayList<>();
-    attributions = new ArrayList<>();
+    this.sources = new RecordStore<>(Source::getId);
+    this.triggers = new RecordStore<>(Trigger::getId);
+    eventReports = new RecordStore<>(EventReport::getId);
+    attributions = new RecordStore<>(Function.identity());
     aggregateReports = new ArrayList<>();
     debugReports = new ArrayList<>();
   }
 
+  /** Creates a store holding the records of {@code other}, all of them shared with it. */
+  protected DatastoreManager(DatastoreManager other) {
+    sources = new RecordStore<>(other.sources);
+    triggers = new RecordStore<>(other.triggers);
+    eventReports = new RecordStore<>(other.eventReports);
+    attributions = new RecordStore<>(other.attributions);
+    aggregateReports = new ArrayList<>(other.aggregateReports);
+    debugReports = new ArrayList<>(other.debugReports);
+    markAllShared();
+  }
+
   // Getters/Modifiers Methods
 
   public void insertSource(Source source) {
     this.sources.add(source);
+    onSourceInserted(source);
+  }
+
+  /** Returns an unmodifiable view of the sources, in insertion order. */
+  public Collection<Source> getSources() {
+    return sources.values();
   }
 
-  public List<Source> getSources() {
-    return sources;
+  /** Returns the first inserted source with the given id, or null if there is none. */
+  public Source getSource(String sourceId) {
+    return sources.getFirst(sourceId);
   }
 
   public void insertTrigger(Trigger trigger) {
     this.triggers.add(trigger);
+    onTriggerInserted(trigger);
+  }
+
+  /** Returns an unmodifiable view of the triggers, in insertion order. */
+  public Collection<Trigger> getTriggers() {
+    return triggers.values();
   }
 
-  public List<Trigger> getTriggers() {
-    return triggers;
+  /** Returns the first inserted trigger with the given id, or null if there is none. */
+  public Trigger getTrigger(String triggerId) {
+    return triggers.getFirst(triggerId);
   }
 
-  public List<EventReport> getEventReports() {
-    return eventReports;
+  /** Returns an unmodifiable view of the event reports, in insertion order. */
+  public Collection<EventReport> getEventReports() {
+    return eventReports.values();
   }
 
-  public List<Attribution> getAttributions() {
-    return attributions;
+  /** Returns an unmodifiable view of the attributions, in insertion order. */
+  public Collection<Attribution> getAttributions() {
+    return attributions.values();
   }
 
   public List<AggregateReport> getAggregateReports() {
@@ -80,100 +117,326 @@ public class DatastoreManager {
   }
 
   public void updateSourceStatus(List<Source> sources, Status status) {
-    List<String> ids = sources.stream().map(Source::getId).collect(Collectors.toList());
-    sources.stream().filter((s) -> ids.contains(s.getId())).forEach((s) -> s.setStatus(status));
+    for (Source source : sources) {
+      for (Source s : ownSources(this.sources.get(source.getId()))) {
+        s.setStatus(status);
+        onSourceStatusUpdated(s);
+      }
+    }
+  }
+
+  public void updateTriggerStatus(List<String> triggerIds, Trigger.Status status) {
+    for (String triggerId : triggerIds) {
+      ownTriggers(triggers.get(triggerId)).forEach((t) -> t.setStatus(status));
+    }
   }
 
   public void updateSourceAggregateContributions(Source source) {
-    sources.stream()
-        .filter((s) -> s.getId().equals(source.getId()))
+    ownSources(sources.get(source.getId()))
         .forEach((s) -> s.setAggregateContributions(source.getAggregateContributions()));
   }
 
   public void updateSourceEventReportDedupKeys(Source source) {
-    sources.stream()
-        .filter((s) -> s.getId().equals(source.getId()))
+    ownSources(sources.get(source.getId()))
         .forEach((s) -> s.setEventReportDedupKeys(source.getEventReportDedupKeys()));
   }
 
   public void updateSourceAttributedTriggers(Source source) {
-    sources.stream()
-        .filter((s) -> s.getId().equals(source.getId()))
+    ownSources(sources.get(source.getId()))
         .forEach((s) -> s.setAttributedTriggers(source.getAttributedTriggers()));
   }
 
   public void updateSourceAggregateReportDedupKeys(Source source) {
-    sources.stream()
-        .filter((s) -> s.getId().equals(source.getId()))
+    ownSources(sources.get(source.getId()))
         .forEach((s) -> s.setAggregateReportDedupKeys(source.getAggregateReportDedupKeys()));
   }
 
   public void updateEventReportSummaryBucket(String eventReportId, Pair<Long, Long> summaryBucket) {
-    eventReports.stream()
-        .filter((s) -> s.getId().equals(eventReportId))
+    ownEventReports(eventReports.get(eventReportId))
         .forEach((s) -> s.setTriggerSummaryBucket(summaryBucket));
   }
 
   public void insertEventReport(EventReport report) {
     eventReports.add(report);
+    onEventReportInserted(report);
   }
 
   public void insertAttribution(Attribution attribution) {
     attributions.add(attribution);
+    onAttributionInserted(attribution);
+  }
+
+  public void insertAggregateReport(AggregateReport aggregateReport) {
+    aggregateReports.add(aggregateReport);
+    onAggregateReportInserted(aggregateReport);
+  }
+
+  public void insertDebugReport(DebugReport debugReport) {
+    debugReports.add(debugReport);
   }
 
   public void removeEventReport(EventReport report) {
-    eventReports.remove(report);
+    EventReport removed = eventReports.removeFirstEqual(report);
+    if (removed != null) {
+      onEventReportRemoved(removed);
+    }
   }
 
   public void removeAttributionRateLimit(Attribution attribution) {
-    attributions.remove(attribution);
+    Attribution removed = attributions.removeFirstEqual(attribution);
+    if (removed != null) {
+      onAttributionRemoved(removed);
+    }
   }
 
+  /** Returns the event reports of the sources registered by {@code registrant}. */
   public List<EventReport> getEventReportsByRegistrant(String registrant) {
-    return eventReports.stream()
-        .filter(
-            e ->
-                sources.stream() // Search for EventReports, Source.eventId == EventReport.sourceId
-                    .filter(s -> s.getId().equals(e.getSourceId()))
-                    .anyMatch(s -> s.getRegistrant().toString().equals(registrant))
-            // Filter for where such a Source exists that fulfils the above
-            )
+    Set<String> sourceIds =
+        sources.values().stream()
+            .filter(s -> s.getRegistrant().toString().equals(registrant))
+            .map(Source::getId)
+            .collect(Collectors.toSet());
+    return eventReports.values().stream()
+        .filter(e -> sourceIds.contains(e.getSourceId()))
         .collect(Collectors.toList());
   }
 
+  // The removeXByFilter methods combine their filters in place, since passing their varargs arrays
+  // on to another method is flagged as possible heap pollution.
+
   @SafeVarargs
   public final void removeSourcesByFilter(Predicate<Source>... filters) {
-    Stream<Source> sourceStream = sources.stream();
-    for (Predicate<Source> filter : filters) sourceStream = sourceStream.filter(filter);
-    List<Source> sourcesToRemove = sourceStream.collect(Collectors.toList());
-    sources.removeAll(sourcesToRemove);
+    Predicate<Source> filter = s -> true;
+    for (Predicate<Source> each : filters) {
+      filter = filter.and(each);
+    }
+    List<Source> removed = sources.removeIf(filter);
+    if (!removed.isEmpty()) {
+      onSourcesRemoved(removed);
+    }
   }
 
   @SafeVarargs
   public final void removeTriggersByFilter(Predicate<Trigger>... filters) {
-    Stream<Trigger> triggerStream = triggers.stream();
-    for (Predicate<Trigger> filter : filters) triggerStream = triggerStream.filter(filter);
-    List<Trigger> triggersToRemove = triggerStream.collect(Collectors.toList());
-    triggers.removeAll(triggersToRemove);
+    Predicate<Trigger> filter = t -> true;
+    for (Predicate<Trigger> each : filters) {
+      filter = filter.and(each);
+    }
+    List<Trigger> removed = triggers.removeIf(filter);
+    if (!removed.isEmpty()) {
+      onTriggersRemoved(removed);
+    }
   }
 
   @SafeVarargs
   public final void removeEventReportsByFilter(Predicate<EventReport>... filters) {
-    Stream<EventReport> eventReportStream = eventReports.stream();
-    for (Predicate<EventReport> filter : filters)
-      eventReportStream = eventReportStream.filter(filter);
-    List<EventReport> eventReportsToRemove = eventReportStream.collect(Collectors.toList());
-    eventReports.removeAll(eventReportsToRemove);
+    Predicate<EventReport> filter = e -> true;
+    for (Predicate<EventReport> each : filters) {
+      filter = filter.and(each);
+    }
+    List<EventReport> removed = eventReports.removeIf(filter);
+    if (!removed.isEmpty()) {
+      onEventReportsRemoved(removed);
+    }
   }
 
   @SafeVarargs
   public final void removeAttributionRateLimitsByFilter(Predicate<Attribution>... filters) {
-    Stream<Attribution> attributionRateLimitStream = attributions.stream();
-    for (Predicate<Attribution> filter : filters)
-      attributionRateLimitStream = attributionRateLimitStream.filter(filter);
-    List<Attribution> attributionRateLimitsToRemove =
-        attributionRateLimitStream.collect(Collectors.toList());
-    attributions.removeAll(attributionRateLimitsToRemove);
+    Predicate<Attribution> filter = a -> true;
+    for (Predicate<Attribution> each : filters) {
+      filter = filter.and(each);
+    }
+    List<Attribution> removed = attributions.removeIf(filter);
+    if (!removed.isEmpty()) {
+      onAttributionsRemoved(removed);
+    }
+  }
+
+  /**
+   * Removes one stored occurrence of each of the given source instances.
+   *
+   * @return the sources that were stored and have been removed
+   */
+  public List<Source> removeSources(List<Source> toRemove) {
+    List<Source> removed = removeEach(sources, toRemove);
+    if (!removed.isEmpty()) {
+      onSourcesRemoved(removed);
+    }
+    return removed;
+  }
+
+  /**
+   * Removes one stored occurrence of each of the given trigger instances.
+   *
+   * @return the triggers that were stored and have been removed
+   */
+  public List<Trigger> removeTriggers(List<Trigger> toRemove) {
+    List<Trigger> removed = removeEach(triggers, toRemove);
+    if (!removed.isEmpty()) {
+      onTriggersRemoved(removed);
+    }
+    return removed;
+  }
+
+  /**
+   * Removes one stored occurrence of each of the given event report instances.
+   *
+   * @return the event reports that were stored and have been removed
+   */
+  public List<EventReport> removeEventReports(List<EventReport> toRemove) {
+    List<EventReport> removed = removeEach(eventReports, toRemove);
+    if (!removed.isEmpty()) {
+      onEventReportsRemoved(removed);
+    }
+    return removed;
+  }
+
+  /**
+   * Removes one stored occurrence of each of the given attribution instances.
+   *
+   * @return the attributions that were stored and have been removed
+   */
+  public List<Attribution> removeAttributionRateLimits(List<Attribution> toRemove) {
+    List<Attribution> removed = removeEach(attributions, toRemove);
+    if (!removed.isEmpty()) {
+      onAttributionsRemoved(removed);
+    }
+    return removed;
+  }
+
+  private static <T> List<T> removeEach(RecordStore<?, T> store, List<T> toRemove) {
+    List<T> removed = new ArrayList<>(toRemove.size());
+    for (T record : toRemove) {
+      if (store.removeSame(record)) {
+        removed.add(record);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Captures the stored records. The snapshot, this store and every store forked from the snapshot
+   * share the captured records until one of them modifies or hands out a source, trigger or event
+   * report, at which point that store replaces the record with a private copy.
+   */
+  public DatastoreSnapshot snapshot() {
+    DatastoreSnapshot snapshot = new DatastoreSnapshot(copy());
+    markAllShared();
+    return snapshot;
+  }
+
+  /**
+   * Returns a store of the same kind as this one that shares its records and holds copies of its
+   * indexes, used to fork snapshots without inserting every record again.
+   */
+  protected DatastoreManager copy() {
+    return new DatastoreManager(this);
+  }
+
+  private void markAllShared() {
+    mShared.addAll(sources.values());
+    mShared.addAll(triggers.values());
+    mShared.addAll(eventReports.values());
+  }
+
+  /**
+   * Returns the stored instance to modify or hand out for {@code source}: the source itself, or a
+   * private copy that replaces it if it is shared with a snapshot.
+   */
+  public Source ownSource(Source source) {
+    if (!mShared.remove(source)) {
+      return source;
+    }
+    Source copy = source.copy();
+    sources.replaceSame(source, copy);
+    onSourceReplaced(source, copy);
+    return copy;
+  }
+
+  /** See {@link #ownSource(Source)}. */
+  public Trigger ownTrigger(Trigger trigger) {
+    if (!mShared.remove(trigger)) {
+      return trigger;
+    }
+    Trigger copy = trigger.copy();
+    triggers.replaceSame(trigger, copy);
+    onTriggerReplaced(trigger, copy);
+    return copy;
+  }
+
+  /** See {@link #ownSource(Source)}. */
+  public EventReport ownEventReport(EventReport report) {
+    if (!mShared.remove(report)) {
+      return report;
+    }
+    EventReport copy = report.copy();
+    eventReports.replaceSame(report, copy);
+    onEventReportReplaced(report, copy);
+    return copy;
   }
+
+  /** Applies {@link #ownSource(Source)} to each of {@code sources}, into a new list. */
+  public List<Source> ownSources(Collection<Source> sources) {
+    return sources.stream().map(this::ownSource).collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  /** Applies {@link #ownTrigger(Trigger)} to each of {@code triggers}, into a new list. */
+  public List<Trigger> ownTriggers(Collection<Trigger> triggers) {
+    return triggers.stream().map(this::ownTrigger).collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  /** Applies {@link #ownEventReport(EventReport)} to each of {@code reports}, into a new list. */
+  public List<EventReport> ownEventReports(Collection<EventReport> reports) {
+    return reports.stream()
+        .map(this::ownEventReport)
+        .collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  // Index maintenance hooks. This store only indexes records by id, so these are no-ops here;
+  // subclasses override them to keep their secondary indexes in sync with the stores above.
+
+  /** Called after {@code source} has been added to the sources. */
+  protected void onSourceInserted(Source source) {}
+
+  /** Called after every occurrence of {@code source} has been replaced by {@code copy}. */
+  protected void onSourceReplaced(Source source, Source copy) {}
+
+  /** Called after every occurrence of {@code trigger} has been replaced by {@code copy}. */
+  protected void onTriggerReplaced(Trigger trigger, Trigger copy) {}
+
+  /** Called after every occurrence of {@code report} has been replaced by {@code copy}. */
+  protected void onEventReportReplaced(EventReport report, EventReport copy) {}
+
+  /** Called after the status of the stored {@code source} has been updated. */
+  protected void onSourceStatusUpdated(Source source) {}
+
+  /** Called after the sources in {@code removed} were removed. */
+  protected void onSourcesRemoved(List<Source> removed) {}
+
+  /** Called after {@code trigger} has been added to the triggers. */
+  protected void onTriggerInserted(Trigger trigger) {}
+
+  /** Called after the triggers in {@code removed} were removed. */
+  protected void onTriggersRemoved(List<Trigger> removed) {}
+
+  /** Called after {@code report} has been added to the event reports. */
+  protected void onEventReportInserted(EventReport report) {}
+
+  /** Called after {@code report} was removed on its own. */
+  protected void onEventReportRemoved(EventReport report) {}
+
+  /** Called after the event reports in {@code removed} were removed. */
+  protected void onEventReportsRemoved(List<EventReport> removed) {}
+
+  /** Called after {@code aggregateReport} has been added to the aggregate reports. */
+  protected void onAggregateReportInserted(AggregateReport aggregateReport) {}
+
+  /** Called after {@code attribution} has been added to the attributions. */
+  protected void onAttributionInserted(Attribution attribution) {}
+
+  /** Called after {@code attribution} was removed on its own. */
+  protected void onAttributionRemoved(Attribution attribution) {}
+
+  /** Called after the attributions in {@code removed} were removed. */
+  protected void onAttributionsRemoved(List<Attribution> removed) {}
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+/**
+ * Records of a {@link DatastoreManager} captured by {@link DatastoreManager#snapshot()}. Each
+ * {@link #fork()} starts a new store from the captured records and indexes without copying the
+ * records or inserting them again; a store copies a source, trigger or event report only when it
+ * first modifies or hands it out, so forks never see each other's changes.
+ */
+public class DatastoreSnapshot {
+  // Never modified: each fork is a copy of it.
+  private final DatastoreManager mTemplate;
+
+  DatastoreSnapshot(DatastoreManager template) {
+    mTemplate = template;
+  }
+
+  /** Returns a new store of the snapshotted kind holding the captured records. */
+  public DatastoreManager fork() {
+    return mTemplate.copy();
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.google.measurement;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.util.Objects;
 import org.json.simple.JSONArray;
@@ -24,7 +25,7 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 /** Debug Report. */
-public final class DebugReport {
+public final class DebugReport implements Serializable {
   private final String mId;
   private final String mType;
   private final JSONObject mBody;
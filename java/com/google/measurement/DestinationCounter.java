@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.util.DestinationUri;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts records by destination (or publisher) URI so that the origin and site match counts used by
+ * the system health limits are a single hash lookup. Each URI is normalized once when it is added,
+ * and counted under its origin and under every site it is a site match for.
+ */
+public class DestinationCounter {
+  private final Map<String, Integer> mCountsByOrigin = new HashMap<>();
+  private final Map<String, Integer> mCountsBySite = new HashMap<>();
+
+  public DestinationCounter() {}
+
+  /** Creates a counter with the counts of {@code other}. */
+  public DestinationCounter(DestinationCounter other) {
+    mCountsByOrigin.putAll(other.mCountsByOrigin);
+    mCountsBySite.putAll(other.mCountsBySite);
+  }
+
+  /** Counts one more record for {@code uri}. A null URI is ignored. */
+  public void add(URI uri) {
+    update(uri, 1);
+  }
+
+  /** Counts one less record for {@code uri}. A null URI is ignored. */
+  public void remove(URI uri) {
+    update(uri, -1);
+  }
+
+  /** Returns the number of records whose URI is a {@link DestinationUri#isSameOrigin} match. */
+  public int countSameOrigin(DestinationUri origin) {
+    String key = origin.getOriginKey();
+    return key == null ? 0 : mCountsByOrigin.getOrDefault(key, 0);
+  }
+
+  /**
+   * Returns the number of records whose URI is a {@link DestinationUri#isSameSiteOrSubdomain}
+   * match.
+   */
+  public int countSameSiteOrSubdomain(DestinationUri site) {
+    String key = site.getSiteKey();
+    return key == null ? 0 : mCountsBySite.getOrDefault(key, 0);
+  }
+
+  private void update(URI uri, int delta) {
+    if (uri == null) {
+      return;
+    }
+    DestinationUri destination = DestinationUri.from(uri);
+    String originKey = destination.getOriginKey();
+    if (originKey != null) {
+      mCountsByOrigin.merge(originKey, delta, DestinationCounter::sumOrNull);
+    }
+    for (String siteKey : destination.getMatchingSiteKeys()) {
+      mCountsBySite.merge(siteKey, delta, DestinationCounter::sumOrNull);
+    }
+  }
+
+  // Drops keys whose count reaches zero so that the maps only hold live destinations.
+  private static Integer sumOrNull(Integer count, Integer delta) {
+    int sum = count + delta;
+    return sum == 0 ? null : sum;
+  }
+}
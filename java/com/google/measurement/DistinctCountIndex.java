@@ -0,0 +1,459 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Maintained aggregates behind the distinct-count privacy limits of {@link IMeasurementDAO}.
+ *
+ * <p>Sources are grouped by (enrollment, publisher) for the distinct destinations of active
+ * sources, and by (destination, publisher) for the distinct enrollments of sources. Each group
+ * keeps its sources sorted by event time together with the interned ids of the values they
+ * contribute, so a limit is answered by range scans over the groups of the requested key instead of
+ * a scan over every source. Only active sources are kept in the destination groups; callers must
+ * report every status change through {@link #updateStatus(Source)}.
+ *
+ * <p>Debug ad ids are kept as reference-counted sets per enrollment, shared by web sources and web
+ * triggers.
+ */
+class DistinctCountIndex {
+  private final Map<String, Integer> mValueIds = new HashMap<>();
+  private final Map<String, Map<URI, Rows>> mActiveAppDestinations = new HashMap<>();
+  private final Map<String, Map<URI, Rows>> mActiveWebDestinations = new HashMap<>();
+  private final Map<Integer, Map<URI, Rows>> mEnrollmentsByDestination = new HashMap<>();
+  private final Map<String, Map<String, Integer>> mDebugAdIds = new HashMap<>();
+  // Stored occurrences of each source instance, and whether they are in the destination groups.
+  private final Map<Source, Integer> mOccurrences = new IdentityHashMap<>();
+  private final Map<Source, Boolean> mIndexedAsActive = new IdentityHashMap<>();
+  private final BitSet mSeen = new BitSet();
+
+  DistinctCountIndex() {}
+
+  /** Creates an index with the groups and counts of {@code other}. */
+  DistinctCountIndex(DistinctCountIndex other) {
+    mValueIds.putAll(other.mValueIds);
+    copyGroups(other.mActiveAppDestinations, mActiveAppDestinations);
+    copyGroups(other.mActiveWebDestinations, mActiveWebDestinations);
+    copyGroups(other.mEnrollmentsByDestination, mEnrollmentsByDestination);
+    other.mDebugAdIds.forEach((enrollment, ids) -> mDebugAdIds.put(enrollment, new HashMap<>(ids)));
+    mOccurrences.putAll(other.mOccurrences);
+    mIndexedAsActive.putAll(other.mIndexedAsActive);
+  }
+
+  /** Adds one occurrence of {@code source}. */
+  void addSource(Source source) {
+    boolean active = source.getStatus() == Source.Status.ACTIVE;
+    Integer occurrences = mOccurrences.merge(source, 1, Integer::sum);
+    if (occurrences > 1 && mIndexedAsActive.get(source) != active) {
+      setIndexedAsActive(source, active, occurrences - 1);
+    }
+    mIndexedAsActive.put(source, active);
+    if (active) {
+      addActiveRows(source);
+    }
+    int enrollment = intern(source.getEnrollmentId());
+    for (String destination : destinations(source)) {
+      rows(mEnrollmentsByDestination, intern(destination), source.getPublisher())
+          .add(source, new int[] {enrollment});
+    }
+    if (isWebDebugAdId(source.getPublisherType(), source.getDebugAdId())) {
+      addDebugAdId(source.getEnrollmentId(), source.getDebugAdId());
+    }
+  }
+
+  /** Removes one occurrence of {@code source}, if there is one. */
+  void removeSource(Source source) {
+    Integer occurrences = mOccurrences.get(source);
+    if (occurrences == null) {
+      return;
+    }
+    if (occurrences == 1) {
+      mOccurrences.remove(source);
+    } else {
+      mOccurrences.put(source, occurrences - 1);
+    }
+    boolean active =
+        occurrences == 1 ? mIndexedAsActive.remove(source) : mIndexedAsActive.get(source);
+    if (active) {
+      removeActiveRows(source);
+    }
+    for (String destination : destinations(source)) {
+      removeRow(mEnrollmentsByDestination, mValueIds.get(destination), source);
+    }
+    if (isWebDebugAdId(source.getPublisherType(), source.getDebugAdId())) {
+      removeDebugAdId(source.getEnrollmentId(), source.getDebugAdId());
+    }
+  }
+
+  /**
+   * Replaces every occurrence of the instance {@code source} with {@code copy}, which must not be
+   * added yet and must hold the same values.
+   */
+  void replaceSource(Source source, Source copy) {
+    Integer occurrences = mOccurrences.get(source);
+    if (occurrences == null) {
+      return;
+    }
+    for (int i = 0; i < occurrences; i++) {
+      removeSource(source);
+    }
+    for (int i = 0; i < occurrences; i++) {
+      addSource(copy);
+    }
+  }
+
+  /** Moves every occurrence of {@code source} in or out of the groups of active sources. */
+  void updateStatus(Source source) {
+    Boolean indexedAsActive = mIndexedAsActive.get(source);
+    boolean active = source.getStatus() == Source.Status.ACTIVE;
+    if (indexedAsActive != null && indexedAsActive != active) {
+      setIndexedAsActive(source, active, mOccurrences.get(source));
+    }
+  }
+
+  /** Adds the debug ad id of {@code trigger}, if it counts towards the limit. */
+  void addTrigger(Trigger trigger) {
+    if (isWebDebugAdId(trigger.getDestinationType(), trigger.getDebugAdId())) {
+      addDebugAdId(trigger.getEnrollmentId(), trigger.getDebugAdId());
+    }
+  }
+
+  /** Drops the debug ad id of {@code trigger}, if it counts towards the limit. */
+  void removeTrigger(Trigger trigger) {
+    if (isWebDebugAdId(trigger.getDestinationType(), trigger.getDebugAdId())) {
+      removeDebugAdId(trigger.getEnrollmentId(), trigger.getDebugAdId());
+    }
+  }
+
+  /**
+   * See {@link IMeasurementDAO#countDistinctDestinationsPerPublisherXEnrollmentInActiveSource}. Web
+   * publishers match the same patterns as in {@link MeasurementDAO}.
+   */
+  int countDistinctDestinationsInActiveSources(
+      URI publisher,
+      EventSurfaceType publisherType,
+      String enrollmentId,
+      List<URI> excludedDestinations,
+      EventSurfaceType destinationType,
+      long windowStartTime,
+      long windowEndTime) {
+    Map<URI, Rows> rowsByPublisher =
+        (destinationType == EventSurfaceType.APP ? mActiveAppDestinations : mActiveWebDestinations)
+            .get(enrollmentId);
+    if (rowsByPublisher == null) {
+      return 0;
+    }
+    BitSet excluded = new BitSet();
+    for (URI destination : excludedDestinations) {
+      Integer id = mValueIds.get(destination.toString());
+      if (id != null) {
+        excluded.set(id);
+      }
+    }
+    mSeen.clear();
+    collect(
+        rowsByPublisher,
+        publisher,
+        publisherPattern(publisher, publisherType, "://.*."),
+        windowStartTime,
+        windowEndTime,
+        excluded);
+    return mSeen.cardinality();
+  }
+
+  /**
+   * See {@link IMeasurementDAO#countDistinctEnrollmentsPerPublisherXDestinationInSource}. Web
+   * publishers match the same patterns as in {@link MeasurementDAO}.
+   */
+  int countDistinctEnrollmentsInSources(
+      URI publisher,
+      EventSurfaceType publisherType,
+      List<URI> destinations,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    BitSet excluded = new BitSet();
+    Integer excludedId = mValueIds.get(excludedEnrollmentId);
+    if (excludedId != null) {
+      excluded.set(excludedId);
+    }
+    mSeen.clear();
+    Pattern pattern = publisherPattern(publisher, publisherType, "://%.");
+    for (String destination : new LinkedHashSet<>(toStrings(destinations))) {
+      Integer destinationId = mValueIds.get(destination);
+      Map<URI, Rows> rowsByPublisher =
+          destinationId == null ? null : mEnrollmentsByDestination.get(destinationId);
+      if (rowsByPublisher == null) {
+        continue;
+      }
+      collect(rowsByPublisher, publisher, pattern, windowStartTime, windowEndTime, excluded);
+    }
+    return mSeen.cardinality();
+  }
+
+  /** See {@link IMeasurementDAO#countDistinctDebugAdIdsUsedByEnrollment(String)}. */
+  long countDistinctDebugAdIds(String enrollmentId) {
+    Map<String, Integer> debugAdIds = mDebugAdIds.get(enrollmentId);
+    return debugAdIds == null ? 0 : debugAdIds.size();
+  }
+
+  /**
+   * Collects into {@link #mSeen} the values of the rows of the publishers matching {@code
+   * publisher}: by equality for app publishers, and by equality or {@code webPattern} for web ones.
+   */
+  private void collect(
+      Map<URI, Rows> rowsByPublisher,
+      URI publisher,
+      Pattern webPattern,
+      long windowStartTime,
+      long windowEndTime,
+      BitSet excluded) {
+    if (webPattern == null) {
+      Rows rows = rowsByPublisher.get(publisher);
+      if (rows != null) {
+        rows.collect(windowStartTime, windowEndTime, excluded, mSeen);
+      }
+      return;
+    }
+    for (Map.Entry<URI, Rows> entry : rowsByPublisher.entrySet()) {
+      if (entry.getKey().equals(publisher)
+          || webPattern.matcher(entry.getKey().toString()).matches()) {
+        entry.getValue().collect(windowStartTime, windowEndTime, excluded, mSeen);
+      }
+    }
+  }
+
+  private void setIndexedAsActive(Source source, boolean active, int occurrences) {
+    for (int i = 0; i < occurrences; i++) {
+      if (active) {
+        addActiveRows(source);
+      } else {
+        removeActiveRows(source);
+      }
+    }
+    mIndexedAsActive.put(source, active);
+  }
+
+  private void addActiveRows(Source source) {
+    rows(mActiveAppDestinations, source.getEnrollmentId(), source.getPublisher())
+        .add(source, internAll(source.getAppDestinations()));
+    rows(mActiveWebDestinations, source.getEnrollmentId(), source.getPublisher())
+        .add(source, internAll(source.getWebDestinations()));
+  }
+
+  private void removeActiveRows(Source source) {
+    removeRow(mActiveAppDestinations, source.getEnrollmentId(), source);
+    removeRow(mActiveWebDestinations, source.getEnrollmentId(), source);
+  }
+
+  private void addDebugAdId(String enrollmentId, String debugAdId) {
+    mDebugAdIds
+        .computeIfAbsent(enrollmentId, k -> new HashMap<>())
+        .merge(debugAdId, 1, Integer::sum);
+  }
+
+  private void removeDebugAdId(String enrollmentId, String debugAdId) {
+    Map<String, Integer> debugAdIds = mDebugAdIds.get(enrollmentId);
+    if (debugAdIds == null || debugAdIds.computeIfPresent(debugAdId, (k, n) -> n - 1) == null) {
+      return;
+    }
+    if (debugAdIds.get(debugAdId) == 0) {
+      debugAdIds.remove(debugAdId);
+      if (debugAdIds.isEmpty()) {
+        mDebugAdIds.remove(enrollmentId);
+      }
+    }
+  }
+
+  private int intern(String value) {
+    return mValueIds.computeIfAbsent(value, v -> mValueIds.size());
+  }
+
+  private int[] internAll(List<URI> uris) {
+    if (uris == null) {
+      return new int[0];
+    }
+    return uris.stream().mapToInt(uri -> intern(uri.toString())).toArray();
+  }
+
+  private static <K> void copyGroups(Map<K, Map<URI, Rows>> from, Map<K, Map<URI, Rows>> to) {
+    from.forEach(
+        (key, rowsByPublisher) -> {
+          Map<URI, Rows> copy = new HashMap<>();
+          rowsByPublisher.forEach((publisher, rows) -> copy.put(publisher, new Rows(rows)));
+          to.put(key, copy);
+        });
+  }
+
+  private static <K> Rows rows(Map<K, Map<URI, Rows>> groups, K key, URI publisher) {
+    return groups
+        .computeIfAbsent(key, k -> new HashMap<>())
+        .computeIfAbsent(publisher, p -> new Rows());
+  }
+
+  private static <K> void removeRow(Map<K, Map<URI, Rows>> groups, K key, Source source) {
+    Map<URI, Rows> rowsByPublisher = groups.get(key);
+    if (rowsByPublisher == null) {
+      return;
+    }
+    Rows rows = rowsByPublisher.get(source.getPublisher());
+    if (rows != null && rows.remove(source)) {
+      rowsByPublisher.remove(source.getPublisher());
+      if (rowsByPublisher.isEmpty()) {
+        groups.remove(key);
+      }
+    }
+  }
+
+  private static Pattern publisherPattern(
+      URI publisher, EventSurfaceType publisherType, String infix) {
+    return publisherType == EventSurfaceType.APP
+        ? null
+        : Pattern.compile(publisher.getScheme() + infix + publisher.getAuthority());
+  }
+
+  private static boolean isWebDebugAdId(EventSurfaceType type, String debugAdId) {
+    return debugAdId != null && type == EventSurfaceType.WEB;
+  }
+
+  private static Set<String> destinations(Source source) {
+    Set<String> destinations = new LinkedHashSet<>(toStrings(source.getAppDestinations()));
+    destinations.addAll(toStrings(source.getWebDestinations()));
+    return destinations;
+  }
+
+  private static List<String> toStrings(List<URI> uris) {
+    return uris == null
+        ? Collections.emptyList()
+        : uris.stream().map(URI::toString).collect(Collectors.toList());
+  }
+
+  /**
+   * Sources of one group sorted by event time, each with the ids of the values it contributes.
+   * Sources with equal event times keep their insertion order.
+   */
+  private static class Rows {
+    private long[] mEventTimes = new long[4];
+    private long[] mExpiryTimes = new long[4];
+    private Source[] mSources = new Source[4];
+    private int[][] mValues = new int[4][];
+    private int mSize;
+
+    Rows() {}
+
+    // The value arrays are never changed once added, so they are shared.
+    Rows(Rows other) {
+      mEventTimes = other.mEventTimes.clone();
+      mExpiryTimes = other.mExpiryTimes.clone();
+      mSources = other.mSources.clone();
+      mValues = other.mValues.clone();
+      mSize = other.mSize;
+    }
+
+    void add(Source source, int[] values) {
+      if (mSize == mSources.length) {
+        int capacity = mSize * 2;
+        mEventTimes = Arrays.copyOf(mEventTimes, capacity);
+        mExpiryTimes = Arrays.copyOf(mExpiryTimes, capacity);
+        mSources = Arrays.copyOf(mSources, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+      }
+      int index = upperBound(source.getEventTime());
+      int tail = mSize - index;
+      System.arraycopy(mEventTimes, index, mEventTimes, index + 1, tail);
+      System.arraycopy(mExpiryTimes, index, mExpiryTimes, index + 1, tail);
+      System.arraycopy(mSources, index, mSources, index + 1, tail);
+      System.arraycopy(mValues, index, mValues, index + 1, tail);
+      mEventTimes[index] = source.getEventTime();
+      mExpiryTimes[index] = source.getExpiryTime();
+      mSources[index] = source;
+      mValues[index] = values;
+      mSize++;
+    }
+
+    /** Removes the first row of the instance {@code source}; returns true if no rows remain. */
+    boolean remove(Source source) {
+      long eventTime = source.getEventTime();
+      for (int i = upperBound(eventTime - 1); i < mSize && mEventTimes[i] == eventTime; i++) {
+        if (mSources[i] == source) {
+          int tail = mSize - i - 1;
+          System.arraycopy(mEventTimes, i + 1, mEventTimes, i, tail);
+          System.arraycopy(mExpiryTimes, i + 1, mExpiryTimes, i, tail);
+          System.arraycopy(mSources, i + 1, mSources, i, tail);
+          System.arraycopy(mValues, i + 1, mValues, i, tail);
+          mSize--;
+          mSources[mSize] = null;
+          mValues[mSize] = null;
+          break;
+        }
+      }
+      return mSize == 0;
+    }
+
+    /**
+     * Adds to {@code seen} the values of the rows with an event time in ({@code windowStartTime},
+     * {@code windowEndTime}] and an expiry time after {@code windowEndTime}, skipping the rows with
+     * any value in {@code excluded}.
+     */
+    void collect(long windowStartTime, long windowEndTime, BitSet excluded, BitSet seen) {
+      int end = upperBound(windowEndTime);
+      for (int i = upperBound(windowStartTime); i < end; i++) {
+        if (mExpiryTimes[i] > windowEndTime && !containsAny(mValues[i], excluded)) {
+          for (int value : mValues[i]) {
+            seen.set(value);
+          }
+        }
+      }
+    }
+
+    private static boolean containsAny(int[] values, BitSet excluded) {
+      for (int value : values) {
+        if (excluded.get(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Returns the number of rows with an event time at or before {@code time}. */
+    private int upperBound(long time) {
+      int low = 0;
+      int high = mSize;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (mEventTimes[mid] <= time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
@@ -29,7 +29,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.json.simple.JSONObject;
 
-public class EventReport implements Serializable {
+public class EventReport implements Serializable, Cloneable {
   private String mId;
   private UnsignedLong mSourceEventId;
   private long mReportTime;
@@ -227,6 +227,19 @@ public class EventReport implements Serializable {
     mTriggerSummaryBucket = summaryBucket;
   }
 
+  /**
+   * Returns a copy of this report for a store to update without changing this report. Only the
+   * priority and summary bucket of a stored report change, and neither in place, so the copy shares
+   * everything else with this report.
+   */
+  EventReport copy() {
+    try {
+      return (EventReport) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   /** Builder for {@link EventReport} */
   public static final class Builder {
     private final EventReport mBuilding;
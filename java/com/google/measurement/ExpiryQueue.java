@@ -0,0 +1,86 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Min-heap of records ordered by a time, such as an event or report time, so that the records
+ * expiring as the simulated clock advances are found without looking at the ones that do not.
+ *
+ * <p>Records deleted by other means stay queued until their time passes, so callers must ignore
+ * polled records that are no longer stored.
+ *
+ * @param <T> type of the queued records
+ */
+class ExpiryQueue<T> {
+  private final PriorityQueue<Entry<T>> mEntries;
+  private long mNextSequence;
+
+  ExpiryQueue() {
+    mEntries = new PriorityQueue<>();
+  }
+
+  /** Creates a queue holding the records queued in {@code other}. */
+  ExpiryQueue(ExpiryQueue<T> other) {
+    // Copying a priority queue keeps its heap order instead of sorting the entries again.
+    mEntries = new PriorityQueue<>(other.mEntries);
+    mNextSequence = other.mNextSequence;
+  }
+
+  /** Queues {@code record} to expire at {@code time}. */
+  void add(T record, long time) {
+    mEntries.add(new Entry<>(time, mNextSequence++, record));
+  }
+
+  /**
+   * Removes and returns the records whose time is before {@code time}, ordered by time and then by
+   * insertion.
+   */
+  List<T> pollBefore(long time) {
+    List<T> expired = new ArrayList<>();
+    while (!mEntries.isEmpty() && mEntries.peek().mTime < time) {
+      expired.add(mEntries.poll().mRecord);
+    }
+    return expired;
+  }
+
+  /** Returns the number of queued records. */
+  int size() {
+    return mEntries.size();
+  }
+
+  private static class Entry<T> implements Comparable<Entry<T>> {
+    final long mTime;
+    final long mSequence;
+    final T mRecord;
+
+    Entry(long time, long sequence, T record) {
+      mTime = time;
+      mSequence = sequence;
+      mRecord = record;
+    }
+
+    @Override
+    public int compareTo(Entry<T> other) {
+      int byTime = Long.compare(mTime, other.mTime);
+      return byTime != 0 ? byTime : Long.compare(mSequence, other.mSequence);
+    }
+  }
+}
@@ -17,14 +17,14 @@
 package com.google.measurement;
 
 import com.google.measurement.util.Util;
+import java.io.Serializable;
 import java.net.URI;
 import java.util.Objects;
-import org.apache.beam.sdk.coders.AvroCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
 import org.json.simple.JSONObject;
 
-@DefaultCoder(AvroCoder.class)
-public class ExtensionEvent {
+@DefaultCoder(ExtensionEventCoder.class)
+public class ExtensionEvent implements UserEvent, Serializable {
   private String action;
   private URI uri;
   private long timestamp;
@@ -62,10 +62,16 @@ public class ExtensionEvent {
     this.uri = uri;
   }
 
+  @Override
   public long getTimestamp() {
     return this.timestamp;
   }
 
+  @Override
+  public Type getUserEventType() {
+    return Type.EXTENSION_EVENT;
+  }
+
   public void setTimestamp(long timestamp) {
     this.timestamp = timestamp;
   }
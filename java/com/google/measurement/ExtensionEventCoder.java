@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static com.google.measurement.RecordCoding.readString;
+import static com.google.measurement.RecordCoding.readUri;
+import static com.google.measurement.RecordCoding.readVarLong;
+import static com.google.measurement.RecordCoding.writeString;
+import static com.google.measurement.RecordCoding.writeUri;
+import static com.google.measurement.RecordCoding.writeVarLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.values.TypeDescriptor;
+
+/**
+ * Binary {@link org.apache.beam.sdk.coders.Coder} for {@link ExtensionEvent}. Every field takes
+ * part in equality, so the encoding is deterministic.
+ */
+public class ExtensionEventCoder extends AtomicCoder<ExtensionEvent> {
+  private static final ExtensionEventCoder INSTANCE = new ExtensionEventCoder();
+
+  public static ExtensionEventCoder of() {
+    return INSTANCE;
+  }
+
+  /** Used by {@link org.apache.beam.sdk.coders.DefaultCoder} to register this coder. */
+  public static CoderProvider getCoderProvider() {
+    return CoderProviders.forCoder(TypeDescriptor.of(ExtensionEvent.class), INSTANCE);
+  }
+
+  private ExtensionEventCoder() {}
+
+  @Override
+  public void encode(ExtensionEvent event, OutputStream out) throws IOException {
+    if (event == null) {
+      throw new CoderException("Cannot encode a null ExtensionEvent");
+    }
+    writeString(event.getAction(), out);
+    writeUri(event.getUri(), out);
+    writeVarLong(event.getTimestamp(), out);
+  }
+
+  @Override
+  public ExtensionEvent decode(InputStream in) throws IOException {
+    ExtensionEvent event = new ExtensionEvent();
+    event.setAction(readString(in));
+    event.setURI(readUri(in));
+    event.setTimestamp(readVarLong(in));
+    return event;
+  }
+
+  @Override
+  public void verifyDeterministic() {}
+
+  @Override
+  public boolean consistentWithEquals() {
+    return true;
+  }
+}
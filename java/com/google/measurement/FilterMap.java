@@ -16,17 +16,22 @@
 
 package com.google.measurement;
 
+import com.google.measurement.util.CompiledFilterMap;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import org.apache.avro.reflect.Nullable;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 /** POJO for FilterMap. */
-public class FilterMap {
+public class FilterMap implements Serializable {
   private Map<String, List<String>> mAttributionFilterMap;
+  // Built from mAttributionFilterMap on first use; not serialized.
+  @Nullable private transient CompiledFilterMap mCompiledFilterMap;
 
   private FilterMap() {
     mAttributionFilterMap = new HashMap<>();
@@ -51,6 +56,18 @@ public class FilterMap {
     return mAttributionFilterMap;
   }
 
+  /**
+   * Returns the attribution filter map compiled for matching. The attribution filter map must not
+   * change once this is called. It is compiled again once its ids are replaced, so that it keeps
+   * matching new filter maps by id.
+   */
+  public CompiledFilterMap getCompiledFilterMap() {
+    if (mCompiledFilterMap == null || !mCompiledFilterMap.isCurrent()) {
+      mCompiledFilterMap = CompiledFilterMap.compile(mAttributionFilterMap);
+    }
+    return mCompiledFilterMap;
+  }
+
   /**
    * Serializes the object into a {@link JSONObject}.
    *
@@ -16,9 +16,10 @@
 
 package com.google.measurement;
 
+import java.io.Serializable;
 import java.util.concurrent.TimeUnit;
 
-public class Flags {
+public class Flags implements Serializable {
 
   boolean MEASUREMENT_ENABLE_DEBUG_REPORT = true;
   boolean MEASUREMENT_ENABLE_SOURCE_DEBUG_REPORT = true;
@@ -51,6 +52,18 @@ public class Flags {
 
   long DEFAULT_MEASUREMENT_PLATFORM_DEBUG_AD_ID_MATCHING_LIMIT = 5L;
 
+  /**
+   * Disable deleting expired records as the simulated clock advances by default, since it changes
+   * which old records count towards limits and uninstall deletions.
+   */
+  boolean MEASUREMENT_ENABLE_SIMULATED_CLOCK_EXPIRY = false;
+
+  /**
+   * Number of input sources and triggers of a single user above which the user's records are kept
+   * in an embedded SQLite database on disk instead of in heap.
+   */
+  int MEASUREMENT_SQLITE_DAO_RECORD_THRESHOLD = 100_000;
+
   /** Returns whether verbose debug report generation is enabled. */
   public boolean getMeasurementEnableDebugReport() {
     return MEASUREMENT_ENABLE_DEBUG_REPORT;
@@ -112,4 +125,35 @@ public class Flags {
   public long getMeasurementPlatformDebugAdIdMatchingLimit() {
     return DEFAULT_MEASUREMENT_PLATFORM_DEBUG_AD_ID_MATCHING_LIMIT;
   }
+
+  /**
+   * Returns true if expired records are deleted as the attribution job advances the simulated
+   * clock, false otherwise.
+   */
+  public boolean getMeasurementEnableSimulatedClockExpiry() {
+    return MEASUREMENT_ENABLE_SIMULATED_CLOCK_EXPIRY;
+  }
+
+  /**
+   * Sets whether expired records are deleted as the attribution job advances the simulated clock.
+   */
+  public void setMeasurementEnableSimulatedClockExpiry(boolean enableSimulatedClockExpiry) {
+    MEASUREMENT_ENABLE_SIMULATED_CLOCK_EXPIRY = enableSimulatedClockExpiry;
+  }
+
+  /**
+   * Returns the number of input sources and triggers of a single user above which the user's
+   * records are stored in {@link SqliteMeasurementDAO}.
+   */
+  public int getMeasurementSqliteDaoRecordThreshold() {
+    return MEASUREMENT_SQLITE_DAO_RECORD_THRESHOLD;
+  }
+
+  /**
+   * Sets the number of input sources and triggers of a single user above which the user's records
+   * are stored in {@link SqliteMeasurementDAO}.
+   */
+  public void setMeasurementSqliteDaoRecordThreshold(int sqliteDaoRecordThreshold) {
+    MEASUREMENT_SQLITE_DAO_RECORD_THRESHOLD = sqliteDaoRecordThreshold;
+  }
 }
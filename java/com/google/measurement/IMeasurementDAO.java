@@ -123,6 +123,14 @@ public interface IMeasurementDAO {
    */
   void updateSourceStatus(List<Source> sources, Status status);
 
+  /**
+   * Updates the {@link Trigger.Status} value of the triggers with the provided ids
+   *
+   * @param triggerIds ids of the triggers.
+   * @param status value to be set
+   */
+  void updateTriggerStatus(List<String> triggerIds, Trigger.Status status);
+
   /**
    * Update the set of Event dedup keys contained in the provided {@link Source}
    *
@@ -190,7 +198,14 @@ public interface IMeasurementDAO {
 
   void deleteAppRecords(String uri);
 
-  void deleteExpiredRecords();
+  /**
+   * Deletes the records that have expired as of {@code currentTime}, the simulated time of the
+   * event being processed, in the same way as the on-device deletion job does as of the wall-clock
+   * time.
+   *
+   * @return the deleted event reports, which count as delivered, ordered by the time they expired
+   */
+  List<EventReport> deleteExpiredRecords(long currentTime);
 
   void doInstallAttribution(URI uri, long eventTimestamp);
 
@@ -213,10 +228,20 @@ public interface IMeasurementDAO {
 
   List<AggregateReport> getAllAggregateReports();
 
+  /** Returns every stored event report, in insertion order. */
   List<EventReport> getAllEventReports();
 
   List<DebugReport> getAllDebugReports();
 
+  /** Returns every stored source, in insertion order. */
+  List<Source> getAllSources();
+
+  /** Returns every stored trigger, in insertion order. */
+  List<Trigger> getAllTriggers();
+
+  /** Returns every stored attribution rate limit entry, in insertion order. */
+  List<Attribution> getAllAttributions();
+
   boolean canStoreSource(Source source);
 
   boolean canStoreTrigger(Trigger trigger);
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.aggregation.AggregateReport;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link DatastoreManager} that additionally maintains hash and time-ordered secondary indexes over
+ * the stored records, so that the hot {@link IMeasurementDAO} queries can be answered with a point
+ * lookup followed by a range scan instead of a scan over every record. The registrant, source id,
+ * destination and site indexes let deletions find the records to delete without a scan, and the
+ * expiry queues do the same for the records expiring as the simulated clock advances.
+ *
+ * <p>The expiry queues are only built when they are first polled, so stores that never delete
+ * expired records do not keep them, and a queue is rebuilt from its store once the records deleted
+ * by other means make up most of it.
+ *
+ * <p>The stores held by {@link DatastoreManager} remain the source of truth; every index here is
+ * kept in sync through the insertion, replacement and removal hooks.
+ */
+public class IndexedDatastoreManager extends DatastoreManager {
+  // Queued records beyond twice the stored ones above which an expiry queue is rebuilt.
+  private static final int MIN_DELETED_QUEUED_RECORDS = 16;
+  private final SourceTable mSourceTable;
+  private final DistinctCountIndex mDistinctCounts;
+  private final RecordStore<String, Source> mSourcesByRegistrant;
+  private final RecordStore<String, Source> mSourcesByFirstAppDestination;
+  private final RecordStore<String, Trigger> mTriggersByRegistrant;
+  private final RecordStore<String, EventReport> mEventReportsBySourceId;
+  private final RecordStore<String, EventReport> mEventReportsByFirstDestination;
+  private final RecordStore<String, Attribution> mAttributionsByRegistrant;
+  private final RecordStore<String, Attribution> mAttributionsBySourceSite;
+  private final RecordStore<String, Attribution> mAttributionsByDestinationSite;
+  // Null until first polled.
+  private ExpiryQueue<Source> mSourcesByEventTime;
+  private ExpiryQueue<Trigger> mTriggersByTriggerTime;
+  private ExpiryQueue<EventReport> mEventReportsByExpiryTime;
+  private ExpiryQueue<Attribution> mAttributionsByTriggerTime;
+  private final AttributionRateLimitLedger mAttributionRateLimitLedger;
+  private final DestinationCounter mSourcesByPublisher;
+  private final DestinationCounter mTriggersByDestination;
+  private final DestinationCounter mEventReportsByDestination;
+  private final DestinationCounter mAggregateReportsByDestination;
+  // Copies that replaced shared records, keyed by the replaced instance. The expiry queues may
+  // still
+  // hold the replaced instances, so polled records are resolved through this map.
+  private final Map<Object, Object> mReplacements;
+
+  public IndexedDatastoreManager() {
+    mSourceTable = new SourceTable();
+    mDistinctCounts = new DistinctCountIndex();
+    mSourcesByRegistrant = new RecordStore<>(s -> uriKey(s.getRegistrant()));
+    mSourcesByFirstAppDestination = new RecordStore<>(s -> uriKey(first(s.getAppDestinations())));
+    mTriggersByRegistrant = new RecordStore<>(t -> uriKey(t.getRegistrant()));
+    mEventReportsBySourceId = new RecordStore<>(EventReport::getSourceId);
+    mEventReportsByFirstDestination =
+        new RecordStore<>(e -> uriKey(first(e.getAttributionDestinations())));
+    mAttributionsByRegistrant = new RecordStore<>(Attribution::getRegistrant);
+    mAttributionsBySourceSite = new RecordStore<>(Attribution::getSourceSite);
+    mAttributionsByDestinationSite = new RecordStore<>(Attribution::getDestinationSite);
+    mAttributionRateLimitLedger = new AttributionRateLimitLedger();
+    mSourcesByPublisher = new DestinationCounter();
+    mTriggersByDestination = new DestinationCounter();
+    mEventReportsByDestination = new DestinationCounter();
+    mAggregateReportsByDestination = new DestinationCounter();
+    mReplacements = new IdentityHashMap<>();
+  }
+
+  /** Creates a store with the records of {@code other} and copies of its indexes. */
+  private IndexedDatastoreManager(IndexedDatastoreManager other) {
+    super(other);
+    mSourceTable = new SourceTable(other.mSourceTable);
+    mDistinctCounts = new DistinctCountIndex(other.mDistinctCounts);
+    mSourcesByRegistrant = new RecordStore<>(other.mSourcesByRegistrant);
+    mSourcesByFirstAppDestination = new RecordStore<>(other.mSourcesByFirstAppDestination);
+    mTriggersByRegistrant = new RecordStore<>(other.mTriggersByRegistrant);
+    mEventReportsBySourceId = new RecordStore<>(other.mEventReportsBySourceId);
+    mEventReportsByFirstDestination = new RecordStore<>(other.mEventReportsByFirstDestination);
+    mAttributionsByRegistrant = new RecordStore<>(other.mAttributionsByRegistrant);
+    mAttributionsBySourceSite = new RecordStore<>(other.mAttributionsBySourceSite);
+    mAttributionsByDestinationSite = new RecordStore<>(other.mAttributionsByDestinationSite);
+    mSourcesByEventTime = copyOf(other.mSourcesByEventTime);
+    mTriggersByTriggerTime = copyOf(other.mTriggersByTriggerTime);
+    mEventReportsByExpiryTime = copyOf(other.mEventReportsByExpiryTime);
+    mAttributionsByTriggerTime = copyOf(other.mAttributionsByTriggerTime);
+    mAttributionRateLimitLedger = new AttributionRateLimitLedger(other.mAttributionRateLimitLedger);
+    mSourcesByPublisher = new DestinationCounter(other.mSourcesByPublisher);
+    mTriggersByDestination = new DestinationCounter(other.mTriggersByDestination);
+    mEventReportsByDestination = new DestinationCounter(other.mEventReportsByDestination);
+    mAggregateReportsByDestination = new DestinationCounter(other.mAggregateReportsByDestination);
+    mReplacements = new IdentityHashMap<>(other.mReplacements);
+  }
+
+  /**
+   * Returns the active sources registered by {@code enrollmentId} for the app or web {@code
+   * destination} that are live at {@code time}, i.e. whose event time is at or before it and whose
+   * expiry time is after it, ordered by event time and then by insertion. Only the columnar {@link
+   * SourceTable} is read to find them.
+   */
+  public List<Source> getActiveSourcesByDestination(
+      String enrollmentId, URI destination, EventSurfaceType destinationType, long time) {
+    return mSourceTable.getActiveSources(enrollmentId, destination, destinationType, time);
+  }
+
+  /**
+   * See {@link IMeasurementDAO#countDistinctDestinationsPerPublisherXEnrollmentInActiveSource}.
+   * Answered from the maintained {@link DistinctCountIndex}.
+   */
+  public int countDistinctDestinationsInActiveSources(
+      URI publisher,
+      EventSurfaceType publisherType,
+      String enrollmentId,
+      List<URI> excludedDestinations,
+      EventSurfaceType destinationType,
+      long windowStartTime,
+      long windowEndTime) {
+    return mDistinctCounts.countDistinctDestinationsInActiveSources(
+        publisher,
+        publisherType,
+        enrollmentId,
+        excludedDestinations,
+        destinationType,
+        windowStartTime,
+        windowEndTime);
+  }
+
+  /**
+   * See {@link IMeasurementDAO#countDistinctEnrollmentsPerPublisherXDestinationInSource}. Answered
+   * from the maintained {@link DistinctCountIndex}.
+   */
+  public int countDistinctEnrollmentsInSources(
+      URI publisher,
+      EventSurfaceType publisherType,
+      List<URI> destinations,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    return mDistinctCounts.countDistinctEnrollmentsInSources(
+        publisher,
+        publisherType,
+        destinations,
+        excludedEnrollmentId,
+        windowStartTime,
+        windowEndTime);
+  }
+
+  /**
+   * Returns the number of distinct debug ad ids of the web sources and triggers of an enrollment.
+   */
+  public long countDistinctDebugAdIds(String enrollmentId) {
+    return mDistinctCounts.countDistinctDebugAdIds(enrollmentId);
+  }
+
+  /** Returns the sources whose registrant is {@code registrant}, in insertion order. */
+  public List<Source> getSourcesByRegistrant(String registrant) {
+    return mSourcesByRegistrant.get(registrant);
+  }
+
+  /** Returns the sources whose first app destination is {@code destination}, in insertion order. */
+  public List<Source> getSourcesByFirstAppDestination(String destination) {
+    return mSourcesByFirstAppDestination.get(destination);
+  }
+
+  /** Returns the triggers whose registrant is {@code registrant}, in insertion order. */
+  public List<Trigger> getTriggersByRegistrant(String registrant) {
+    return mTriggersByRegistrant.get(registrant);
+  }
+
+  /** Returns the event reports attributed to the source with the given id, in insertion order. */
+  public List<EventReport> getEventReportsBySourceId(String sourceId) {
+    return mEventReportsBySourceId.get(sourceId);
+  }
+
+  /**
+   * Returns the event reports whose first attribution destination is {@code destination}, in
+   * insertion order.
+   */
+  public List<EventReport> getEventReportsByFirstDestination(String destination) {
+    return mEventReportsByFirstDestination.get(destination);
+  }
+
+  /** Returns the attributions whose registrant is {@code registrant}, in insertion order. */
+  public List<Attribution> getAttributionsByRegistrant(String registrant) {
+    return mAttributionsByRegistrant.get(registrant);
+  }
+
+  /** Returns the attributions whose source site is {@code sourceSite}, in insertion order. */
+  public List<Attribution> getAttributionsBySourceSite(String sourceSite) {
+    return mAttributionsBySourceSite.get(sourceSite);
+  }
+
+  /**
+   * Returns the attributions whose destination site is {@code destinationSite}, in insertion order.
+   */
+  public List<Attribution> getAttributionsByDestinationSite(String destinationSite) {
+    return mAttributionsByDestinationSite.get(destinationSite);
+  }
+
+  /**
+   * Removes from the expiry queue and returns the sources with an event time before {@code time}.
+   * Sources that were already deleted may be included.
+   */
+  public List<Source> pollSourcesWithEventTimeBefore(long time) {
+    if (mSourcesByEventTime == null) {
+      mSourcesByEventTime = queueOf(getSources(), Source::getEventTime);
+    }
+    return resolve(mSourcesByEventTime.pollBefore(time));
+  }
+
+  /**
+   * Removes from the expiry queue and returns the triggers with a trigger time before {@code time}.
+   * Triggers that were already deleted may be included.
+   */
+  public List<Trigger> pollTriggersWithTriggerTimeBefore(long time) {
+    if (mTriggersByTriggerTime == null) {
+      mTriggersByTriggerTime = queueOf(getTriggers(), Trigger::getTriggerTime);
+    }
+    return resolve(mTriggersByTriggerTime.pollBefore(time));
+  }
+
+  /**
+   * Removes from the expiry queue and returns the event reports whose {@link
+   * MeasurementDAO#getExpiryTime(EventReport)} is before {@code time}. Event reports that were
+   * already deleted may be included.
+   */
+  public List<EventReport> pollEventReportsExpiringBefore(long time) {
+    if (mEventReportsByExpiryTime == null) {
+      mEventReportsByExpiryTime = queueOf(getEventReports(), MeasurementDAO::getExpiryTime);
+    }
+    return resolve(mEventReportsByExpiryTime.pollBefore(time));
+  }
+
+  /**
+   * Removes from the expiry queue and returns the attributions with a trigger time before {@code
+   * time}. Attributions that were already deleted may be included.
+   */
+  public List<Attribution> pollAttributionsWithTriggerTimeBefore(long time) {
+    if (mAttributionsByTriggerTime == null) {
+      mAttributionsByTriggerTime = queueOf(getAttributions(), Attribution::getTriggerTime);
+    }
+    return mAttributionsByTriggerTime.pollBefore(time);
+  }
+
+  /** Returns the sliding-window ledger over the stored attribution rate-limit records. */
+  public AttributionRateLimitLedger getAttributionRateLimitLedger() {
+    return mAttributionRateLimitLedger;
+  }
+
+  /** Returns the counts of stored sources by publisher. */
+  public DestinationCounter getSourcesByPublisher() {
+    return mSourcesByPublisher;
+  }
+
+  /** Returns the counts of stored triggers by attribution destination. */
+  public DestinationCounter getTriggersByDestination() {
+    return mTriggersByDestination;
+  }
+
+  /** Returns the counts of stored event reports by their first attribution destination. */
+  public DestinationCounter getEventReportsByDestination() {
+    return mEventReportsByDestination;
+  }
+
+  /** Returns the counts of stored aggregate reports by attribution destination. */
+  public DestinationCounter getAggregateReportsByDestination() {
+    return mAggregateReportsByDestination;
+  }
+
+  @Override
+  protected void onSourceInserted(Source source) {
+    mSourcesByPublisher.add(source.getPublisher());
+    mSourcesByRegistrant.add(source);
+    mSourcesByFirstAppDestination.add(source);
+    if (mSourcesByEventTime != null) {
+      mSourcesByEventTime.add(source, source.getEventTime());
+    }
+    mSourceTable.add(source);
+    mDistinctCounts.addSource(source);
+  }
+
+  @Override
+  protected DatastoreManager copy() {
+    return new IndexedDatastoreManager(this);
+  }
+
+  @Override
+  protected void onSourceReplaced(Source source, Source copy) {
+    mSourcesByRegistrant.replaceSame(source, copy);
+    mSourcesByFirstAppDestination.replaceSame(source, copy);
+    mSourceTable.replace(source, copy);
+    mDistinctCounts.replaceSource(source, copy);
+    mReplacements.put(source, copy);
+  }
+
+  @Override
+  protected void onTriggerReplaced(Trigger trigger, Trigger copy) {
+    mTriggersByRegistrant.replaceSame(trigger, copy);
+    mReplacements.put(trigger, copy);
+  }
+
+  @Override
+  protected void onEventReportReplaced(EventReport report, EventReport copy) {
+    mEventReportsBySourceId.replaceSame(report, copy);
+    mEventReportsByFirstDestination.replaceSame(report, copy);
+    mReplacements.put(report, copy);
+  }
+
+  @Override
+  protected void onSourceStatusUpdated(Source source) {
+    mSourceTable.updateStatus(source);
+    mDistinctCounts.updateStatus(source);
+  }
+
+  @Override
+  protected void onSourcesRemoved(List<Source> removed) {
+    for (Source source : removed) {
+      mSourcesByPublisher.remove(source.getPublisher());
+      mSourcesByRegistrant.removeSame(source);
+      mSourcesByFirstAppDestination.removeSame(source);
+      mSourceTable.remove(source);
+      mDistinctCounts.removeSource(source);
+    }
+    mSourcesByEventTime = compact(mSourcesByEventTime, getSources(), Source::getEventTime);
+  }
+
+  @Override
+  protected void onTriggerInserted(Trigger trigger) {
+    mTriggersByDestination.add(trigger.getAttributionDestination());
+    mTriggersByRegistrant.add(trigger);
+    if (mTriggersByTriggerTime != null) {
+      mTriggersByTriggerTime.add(trigger, trigger.getTriggerTime());
+    }
+    mDistinctCounts.addTrigger(trigger);
+  }
+
+  @Override
+  protected void onTriggersRemoved(List<Trigger> removed) {
+    for (Trigger trigger : removed) {
+      mTriggersByDestination.remove(trigger.getAttributionDestination());
+      mTriggersByRegistrant.removeSame(trigger);
+      mDistinctCounts.removeTrigger(trigger);
+    }
+    mTriggersByTriggerTime =
+        compact(mTriggersByTriggerTime, getTriggers(), Trigger::getTriggerTime);
+  }
+
+  @Override
+  protected void onEventReportInserted(EventReport report) {
+    mEventReportsBySourceId.add(report);
+    mEventReportsByFirstDestination.add(report);
+    if (mEventReportsByExpiryTime != null) {
+      mEventReportsByExpiryTime.add(report, MeasurementDAO.getExpiryTime(report));
+    }
+    mEventReportsByDestination.add(first(report.getAttributionDestinations()));
+  }
+
+  @Override
+  protected void onEventReportRemoved(EventReport report) {
+    removeFromEventReportIndexes(report);
+    compactEventReportQueue();
+  }
+
+  @Override
+  protected void onEventReportsRemoved(List<EventReport> removed) {
+    for (EventReport report : removed) {
+      removeFromEventReportIndexes(report);
+    }
+    compactEventReportQueue();
+  }
+
+  @Override
+  protected void onAggregateReportInserted(AggregateReport aggregateReport) {
+    mAggregateReportsByDestination.add(aggregateReport.getAttributionDestination());
+  }
+
+  @Override
+  protected void onAttributionInserted(Attribution attribution) {
+    mAttributionRateLimitLedger.add(attribution);
+    mAttributionsByRegistrant.add(attribution);
+    mAttributionsBySourceSite.add(attribution);
+    mAttributionsByDestinationSite.add(attribution);
+    if (mAttributionsByTriggerTime != null) {
+      mAttributionsByTriggerTime.add(attribution, attribution.getTriggerTime());
+    }
+  }
+
+  @Override
+  protected void onAttributionRemoved(Attribution attribution) {
+    removeFromAttributionIndexes(attribution);
+    compactAttributionQueue();
+  }
+
+  @Override
+  protected void onAttributionsRemoved(List<Attribution> removed) {
+    for (Attribution attribution : removed) {
+      removeFromAttributionIndexes(attribution);
+    }
+    compactAttributionQueue();
+  }
+
+  // The same report instance may be stored more than once, so exactly one occurrence is dropped.
+  private void removeFromEventReportIndexes(EventReport report) {
+    mEventReportsByDestination.remove(first(report.getAttributionDestinations()));
+    mEventReportsBySourceId.removeSame(report);
+    mEventReportsByFirstDestination.removeSame(report);
+  }
+
+  private void removeFromAttributionIndexes(Attribution attribution) {
+    mAttributionRateLimitLedger.remove(attribution);
+    mAttributionsByRegistrant.removeSame(attribution);
+    mAttributionsBySourceSite.removeSame(attribution);
+    mAttributionsByDestinationSite.removeSame(attribution);
+  }
+
+  private void compactEventReportQueue() {
+    mEventReportsByExpiryTime =
+        compact(mEventReportsByExpiryTime, getEventReports(), MeasurementDAO::getExpiryTime);
+  }
+
+  private void compactAttributionQueue() {
+    mAttributionsByTriggerTime =
+        compact(mAttributionsByTriggerTime, getAttributions(), Attribution::getTriggerTime);
+  }
+
+  // Queues the stored records in insertion order, which is the order they were queued in.
+  private static <T> ExpiryQueue<T> queueOf(Collection<T> stored, ToLongFunction<T> time) {
+    ExpiryQueue<T> queue = new ExpiryQueue<>();
+    for (T record : stored) {
+      queue.add(record, time.applyAsLong(record));
+    }
+    return queue;
+  }
+
+  // The stored records are the queued ones that were not deleted, so the rebuilt queue drops only
+  // deleted records.
+  private static <T> ExpiryQueue<T> compact(
+      ExpiryQueue<T> queue, Collection<T> stored, ToLongFunction<T> time) {
+    if (queue == null || queue.size() <= 2 * stored.size() + MIN_DELETED_QUEUED_RECORDS) {
+      return queue;
+    }
+    return queueOf(stored, time);
+  }
+
+  private static <T> ExpiryQueue<T> copyOf(ExpiryQueue<T> queue) {
+    return queue == null ? null : new ExpiryQueue<>(queue);
+  }
+
+  // A record may have been replaced again after its copy was itself shared with a snapshot.
+  @SuppressWarnings("unchecked")
+  private <T> List<T> resolve(List<T> records) {
+    if (mReplacements.isEmpty()) {
+      return records;
+    }
+    List<T> resolved = new ArrayList<>(records.size());
+    for (T record : records) {
+      Object current = record;
+      while (mReplacements.containsKey(current)) {
+        current = mReplacements.get(current);
+      }
+      resolved.add((T) current);
+    }
+    return resolved;
+  }
+
+  private static URI first(List<URI> uris) {
+    return uris == null || uris.isEmpty() ? null : uris.get(0);
+  }
+
+  private static String uriKey(URI uri) {
+    return uri == null ? null : uri.toString();
+  }
+}
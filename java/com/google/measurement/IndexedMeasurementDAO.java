@@ -0,0 +1,356 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.util.DestinationUri;
+import com.google.measurement.util.Web;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * {@link MeasurementDAO} backed by an {@link IndexedDatastoreManager}. Attribution-time lookups are
+ * answered from the secondary indexes, and deletions collect the records to delete from them; every
+ * other query falls back to {@link MeasurementDAO}, which remains the reference implementation.
+ */
+public class IndexedMeasurementDAO extends MeasurementDAO {
+  private static final Logger logger = Logger.getLogger(IndexedMeasurementDAO.class.getName());
+  private final IndexedDatastoreManager mIndexedDatastoreManager;
+
+  public IndexedMeasurementDAO() {
+    this(new IndexedDatastoreManager());
+  }
+
+  IndexedMeasurementDAO(IndexedDatastoreManager datastoreManager) {
+    super(datastoreManager);
+    mIndexedDatastoreManager = datastoreManager;
+  }
+
+  @Override
+  protected MeasurementDAO newFork(DatastoreManager datastoreManager) {
+    return new IndexedMeasurementDAO((IndexedDatastoreManager) datastoreManager);
+  }
+
+  @Override
+  public List<Source> getMatchingActiveSources(Trigger trigger) {
+    Optional<URI> destination =
+        trigger.getDestinationType() == EventSurfaceType.APP
+            ? Optional.of(trigger.getAttributionDestination())
+            : Web.topPrivateDomainAndScheme(trigger.getAttributionDestination());
+    if (!destination.isPresent()) {
+      logger.info(
+          String.format(
+              "getMatchingActiveSources: unable to obtain destination column and value: %s",
+              trigger.getAttributionDestination().toString()));
+      return new ArrayList<>();
+    }
+
+    return mIndexedDatastoreManager.ownSources(
+        mIndexedDatastoreManager.getActiveSourcesByDestination(
+            trigger.getEnrollmentId(),
+            destination.get(),
+            trigger.getDestinationType(),
+            trigger.getTriggerTime()));
+  }
+
+  @Override
+  public List<EventReport> getSourceEventReports(Source source) {
+    return mIndexedDatastoreManager.ownEventReports(
+        mIndexedDatastoreManager.getEventReportsBySourceId(source.getId()));
+  }
+
+  @Override
+  public long getAttributionsPerRateLimitWindow(Source source, Trigger trigger) {
+    Optional<URI> publisherBaseURI =
+        extractBaseURI(source.getPublisher(), source.getPublisherType());
+    Optional<URI> destinationBaseURI =
+        extractBaseURI(trigger.getAttributionDestination(), trigger.getDestinationType());
+    if (!publisherBaseURI.isPresent() || !destinationBaseURI.isPresent()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "getAttributionsPerRateLimitWindow: extractBaseURI "
+                  + "failed. Publisher: %s; Attribution destination: %s",
+              source.getPublisher().toString(), trigger.getAttributionDestination().toString()));
+    }
+
+    return mIndexedDatastoreManager
+        .getAttributionRateLimitLedger()
+        .count(
+            publisherBaseURI.get().toString(),
+            destinationBaseURI.get().toString(),
+            trigger.getEnrollmentId(),
+            trigger.getTriggerTime() - PrivacyParams.RATE_LIMIT_WINDOW_MILLISECONDS,
+            trigger.getTriggerTime());
+  }
+
+  @Override
+  public Integer countDistinctEnrollmentsPerPublisherXDestinationInAttribution(
+      URI sourceSite,
+      URI destinationSite,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    return mIndexedDatastoreManager
+        .getAttributionRateLimitLedger()
+        .countDistinctEnrollments(
+            sourceSite.toString(),
+            destinationSite.toString(),
+            excludedEnrollmentId,
+            windowStartTime,
+            windowEndTime);
+  }
+
+  @Override
+  public Integer countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+      URI publisher,
+      EventSurfaceType publisherType,
+      String enrollmentId,
+      List<URI> excludedDestinations,
+      EventSurfaceType destinationType,
+      long windowStartTime,
+      long windowEndTime) {
+    return mIndexedDatastoreManager.countDistinctDestinationsInActiveSources(
+        publisher,
+        publisherType,
+        enrollmentId,
+        excludedDestinations,
+        destinationType,
+        windowStartTime,
+        windowEndTime);
+  }
+
+  @Override
+  public Integer countDistinctEnrollmentsPerPublisherXDestinationInSource(
+      URI publisher,
+      EventSurfaceType publisherType,
+      List<URI> destinations,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    return mIndexedDatastoreManager.countDistinctEnrollmentsInSources(
+        publisher,
+        publisherType,
+        destinations,
+        excludedEnrollmentId,
+        windowStartTime,
+        windowEndTime);
+  }
+
+  @Override
+  public long countDistinctDebugAdIdsUsedByEnrollment(String enrollmentId) {
+    return mIndexedDatastoreManager.countDistinctDebugAdIds(enrollmentId);
+  }
+
+  @Override
+  public void deleteAppRecords(String uri) {
+    List<Source> registrantSources = mIndexedDatastoreManager.getSourcesByRegistrant(uri);
+    Set<String> registrantSourceIds =
+        registrantSources.stream().map(Source::getId).collect(Collectors.toSet());
+    List<EventReport> eventReports = new ArrayList<>();
+    for (String sourceId : registrantSourceIds) {
+      eventReports.addAll(mIndexedDatastoreManager.getEventReportsBySourceId(sourceId));
+    }
+    for (EventReport report : mIndexedDatastoreManager.getEventReportsByFirstDestination(uri)) {
+      if (!registrantSourceIds.contains(report.getSourceId())) {
+        eventReports.add(report);
+      }
+    }
+    mIndexedDatastoreManager.removeEventReports(eventReports);
+
+    List<Source> sources = new ArrayList<>(registrantSources);
+    for (Source source : mIndexedDatastoreManager.getSourcesByFirstAppDestination(uri)) {
+      if (source.getStatus() == Source.Status.IGNORED
+          && !source.getRegistrant().toString().equals(uri)) {
+        sources.add(source);
+      }
+    }
+    mIndexedDatastoreManager.removeSources(sources);
+
+    mIndexedDatastoreManager.removeTriggers(mIndexedDatastoreManager.getTriggersByRegistrant(uri));
+
+    List<Attribution> attributions =
+        new ArrayList<>(mIndexedDatastoreManager.getAttributionsBySourceSite(uri));
+    for (Attribution attribution : mIndexedDatastoreManager.getAttributionsByDestinationSite(uri)) {
+      if (!attribution.getSourceSite().equals(uri)) {
+        attributions.add(attribution);
+      }
+    }
+    mIndexedDatastoreManager.removeAttributionRateLimits(attributions);
+  }
+
+  @Override
+  protected void deleteMeasurementDataByRegistrant(String registrant) {
+    deleteRegistrantRecords(registrant, a -> true, (s, e) -> true, t -> true, s -> true);
+  }
+
+  @Override
+  protected void deleteMeasurementDataByRegistrantAndURI(String registrant, String origin) {
+    deleteRegistrantRecords(
+        registrant,
+        a -> a.getSourceSite().equals(origin) || a.getDestinationSite().equals(origin),
+        (s, e) ->
+            s.getPublisher().toString().equals(origin)
+                || e.getAttributionDestinations().get(0).toString().equals(origin),
+        t -> t.getAttributionDestination().toString().equals(origin),
+        s -> s.getPublisher().toString().equals(origin));
+  }
+
+  @Override
+  protected void deleteMeasurementDataByRegistrantAndTimeRange(
+      String registrant, Instant start, Instant end) {
+    long startTime = start.toEpochMilli();
+    long endTime = end.toEpochMilli();
+    deleteRegistrantRecords(
+        registrant,
+        a -> a.getTriggerTime() >= startTime && a.getTriggerTime() <= endTime,
+        (s, e) ->
+            (s.getEventTime() >= startTime && s.getEventTime() <= endTime)
+                || (e.getTriggerTime() >= startTime && e.getTriggerTime() <= endTime),
+        t -> t.getTriggerTime() >= startTime && t.getTriggerTime() <= endTime,
+        s -> s.getEventTime() >= startTime && s.getEventTime() <= endTime);
+  }
+
+  @Override
+  protected void deleteMeasurementDataByAllVars(
+      String registrant, String origin, Instant start, Instant end) {
+    long startTime = start.toEpochMilli();
+    long endTime = end.toEpochMilli();
+    deleteRegistrantRecords(
+        registrant,
+        a ->
+            (a.getSourceSite().equals(origin) || a.getDestinationSite().equals(origin))
+                && a.getTriggerTime() >= startTime
+                && a.getTriggerTime() <= endTime,
+        (s, e) ->
+            (s.getPublisher().toString().equals(origin)
+                    && s.getEventTime() >= startTime
+                    && s.getEventTime() <= endTime)
+                || (e.getAttributionDestinations().get(0).toString().equals(origin)
+                    && e.getTriggerTime() >= startTime
+                    && e.getTriggerTime() <= endTime),
+        t ->
+            t.getAttributionDestination().toString().equals(origin)
+                && t.getTriggerTime() >= startTime
+                && t.getTriggerTime() <= endTime,
+        s ->
+            s.getPublisher().toString().equals(origin)
+                && s.getEventTime() >= startTime
+                && s.getEventTime() <= endTime);
+  }
+
+  /**
+   * Deletes the records of {@code registrant} that match the given filters. An event report matches
+   * if some source of the registrant with the report's source id matches together with it, as in
+   * {@link MeasurementDAO}.
+   */
+  private void deleteRegistrantRecords(
+      String registrant,
+      Predicate<Attribution> attributionFilter,
+      BiPredicate<Source, EventReport> eventReportFilter,
+      Predicate<Trigger> triggerFilter,
+      Predicate<Source> sourceFilter) {
+    mIndexedDatastoreManager.removeAttributionRateLimits(
+        mIndexedDatastoreManager.getAttributionsByRegistrant(registrant).stream()
+            .filter(attributionFilter)
+            .collect(Collectors.toList()));
+
+    List<Source> registrantSources = mIndexedDatastoreManager.getSourcesByRegistrant(registrant);
+    Map<String, List<Source>> sourcesById = new LinkedHashMap<>();
+    for (Source source : registrantSources) {
+      sourcesById.computeIfAbsent(source.getId(), k -> new ArrayList<>()).add(source);
+    }
+    List<EventReport> eventReports = new ArrayList<>();
+    sourcesById.forEach(
+        (sourceId, sources) -> {
+          for (EventReport report : mIndexedDatastoreManager.getEventReportsBySourceId(sourceId)) {
+            if (sources.stream().anyMatch(s -> eventReportFilter.test(s, report))) {
+              eventReports.add(report);
+            }
+          }
+        });
+    mIndexedDatastoreManager.removeEventReports(eventReports);
+
+    mIndexedDatastoreManager.removeTriggers(
+        mIndexedDatastoreManager.getTriggersByRegistrant(registrant).stream()
+            .filter(triggerFilter)
+            .collect(Collectors.toList()));
+    mIndexedDatastoreManager.removeSources(
+        registrantSources.stream().filter(sourceFilter).collect(Collectors.toList()));
+  }
+
+  @Override
+  protected List<Source> getExpiredSources(long earliestValidInsertion) {
+    return mIndexedDatastoreManager.pollSourcesWithEventTimeBefore(earliestValidInsertion);
+  }
+
+  @Override
+  protected List<Trigger> getExpiredTriggers(long earliestValidInsertion) {
+    return mIndexedDatastoreManager.pollTriggersWithTriggerTimeBefore(earliestValidInsertion);
+  }
+
+  @Override
+  protected List<EventReport> getExpiredEventReports(long earliestValidInsertion) {
+    return mIndexedDatastoreManager.pollEventReportsExpiringBefore(earliestValidInsertion);
+  }
+
+  @Override
+  protected List<Attribution> getExpiredAttributions(long earliestValidInsertion) {
+    return mIndexedDatastoreManager.pollAttributionsWithTriggerTimeBefore(earliestValidInsertion);
+  }
+
+  @Override
+  protected int countAggregateReportsMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return count(
+        mIndexedDatastoreManager.getAggregateReportsByDestination(), destination, destinationType);
+  }
+
+  @Override
+  protected int countEventReportsMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return count(
+        mIndexedDatastoreManager.getEventReportsByDestination(), destination, destinationType);
+  }
+
+  @Override
+  protected long countTriggersMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return count(mIndexedDatastoreManager.getTriggersByDestination(), destination, destinationType);
+  }
+
+  @Override
+  protected long countSourcesMatchingPublisher(
+      DestinationUri publisher, EventSurfaceType publisherType) {
+    return count(mIndexedDatastoreManager.getSourcesByPublisher(), publisher, publisherType);
+  }
+
+  private static int count(
+      DestinationCounter counter, DestinationUri destination, EventSurfaceType destinationType) {
+    return destinationType == EventSurfaceType.APP
+        ? counter.countSameOrigin(destination)
+        : counter.countSameSiteOrSubdomain(destination);
+  }
+}
@@ -16,12 +16,22 @@
 
 package com.google.measurement;
 
+import com.google.measurement.util.JsonPullParser;
+import java.util.Collection;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.values.KV;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
-/** Transforms for converting rows from input files to Trigger or Source objects. */
+/**
+ * Transforms for converting rows from input files to Trigger or Source objects. Each JSON transform
+ * instance parses its rows with its own {@link JsonPullParser}, reused across rows. Avro records,
+ * read with the {@link InputSchemas}, are converted to the same json-simple values a JSON row
+ * parses to, so both formats go through the same validation.
+ */
 public class InputFileProcessor {
 
   /**
@@ -29,15 +39,17 @@ public class InputFileProcessor {
    * JSON row.
    */
   public static class AttributionSourceJsonMapperDoFn extends DoFn<String, KV<String, Source>> {
+    private transient JsonPullParser mParser;
+
+    @Setup
+    public void setup() {
+      mParser = new JsonPullParser();
+    }
+
     @ProcessElement
     public void processElement(@Element String input, OutputReceiver<KV<String, Source>> out) {
-      JSONParser parser = new JSONParser();
       try {
-        Object obj = parser.parse(input);
-        JSONObject jsonObject = (JSONObject) obj;
-        Source source = SourceProcessor.buildSourceFromJson(jsonObject);
-        String userId = (String) jsonObject.get("user_id");
-        out.output(KV.of(userId, source));
+        out.output(toUserSource(mParser.parseObject(input)));
       } catch (Exception e) {
         e.printStackTrace();
         throw new IllegalArgumentException(
@@ -51,15 +63,17 @@ public class InputFileProcessor {
    * JSON row.
    */
   public static class TriggerJsonMapperDoFn extends DoFn<String, KV<String, Trigger>> {
+    private transient JsonPullParser mParser;
+
+    @Setup
+    public void setup() {
+      mParser = new JsonPullParser();
+    }
+
     @ProcessElement
     public void processElement(@Element String input, OutputReceiver<KV<String, Trigger>> out) {
-      JSONParser parser = new JSONParser();
       try {
-        Object obj = parser.parse(input);
-        JSONObject jsonObject = (JSONObject) obj;
-        Trigger trigger = TriggerProcessor.buildTriggerFromJson(jsonObject);
-        String userId = (String) jsonObject.get("user_id");
-        out.output(KV.of(userId, trigger));
+        out.output(toUserTrigger(mParser.parseObject(input)));
       } catch (Exception e) {
         e.printStackTrace();
         throw new IllegalArgumentException(
@@ -74,16 +88,18 @@ public class InputFileProcessor {
    */
   public static class ExtensionEventJsonMapperDoFn
       extends DoFn<String, KV<String, ExtensionEvent>> {
+    private transient JsonPullParser mParser;
+
+    @Setup
+    public void setup() {
+      mParser = new JsonPullParser();
+    }
+
     @ProcessElement
     public void processElement(
         @Element String input, OutputReceiver<KV<String, ExtensionEvent>> out) {
-      JSONParser parser = new JSONParser();
       try {
-        Object obj = parser.parse(input);
-        JSONObject jsonObject = (JSONObject) obj;
-        ExtensionEvent event = ExtensionEvent.buildExtensionEventFromJson(jsonObject);
-        String userId = (String) jsonObject.get("user_id");
-        out.output(KV.of(userId, event));
+        out.output(toUserExtensionEvent(mParser.parseObject(input)));
       } catch (Exception e) {
         e.printStackTrace();
         throw new IllegalArgumentException(
@@ -91,4 +107,130 @@ public class InputFileProcessor {
       }
     }
   }
+
+  /**
+   * Transform to create a KV pair of userIds and Source objects. Creates the Source object from an
+   * Avro record with the {@link InputSchemas#ATTRIBUTION_SOURCE} schema.
+   */
+  public static class AttributionSourceAvroMapperDoFn
+      extends DoFn<GenericRecord, KV<String, Source>> {
+    @ProcessElement
+    public void processElement(
+        @Element GenericRecord input, OutputReceiver<KV<String, Source>> out) {
+      try {
+        out.output(toUserSource(toJsonObject(input)));
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw new IllegalArgumentException(
+            String.format("Failed to parse the source input: %s", input));
+      }
+    }
+  }
+
+  /**
+   * Transform to create a KV pair of userIds and Trigger objects. Creates the Trigger object from
+   * an Avro record with the {@link InputSchemas#TRIGGER} schema.
+   */
+  public static class TriggerAvroMapperDoFn extends DoFn<GenericRecord, KV<String, Trigger>> {
+    @ProcessElement
+    public void processElement(
+        @Element GenericRecord input, OutputReceiver<KV<String, Trigger>> out) {
+      try {
+        out.output(toUserTrigger(toJsonObject(input)));
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw new IllegalArgumentException(
+            String.format("Failed to parse the trigger input: %s", input));
+      }
+    }
+  }
+
+  /**
+   * Transform to create a KV pair of userIds and ExtensionEvent objects. Creates the ExtensionEvent
+   * object from an Avro record with the {@link InputSchemas#EXTENSION_EVENT} schema.
+   */
+  public static class ExtensionEventAvroMapperDoFn
+      extends DoFn<GenericRecord, KV<String, ExtensionEvent>> {
+    @ProcessElement
+    public void processElement(
+        @Element GenericRecord input, OutputReceiver<KV<String, ExtensionEvent>> out) {
+      try {
+        out.output(toUserExtensionEvent(toJsonObject(input)));
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw new IllegalArgumentException(
+            String.format("Failed to parse the extension event input: %s", input));
+      }
+    }
+  }
+
+  /** Returns the userId and the Source of a parsed attribution source row. */
+  static KV<String, Source> toUserSource(JSONObject jsonObject) throws Exception {
+    return KV.of(
+        (String) jsonObject.get("user_id"), SourceProcessor.buildSourceFromJson(jsonObject));
+  }
+
+  /** Returns the userId and the Trigger of a parsed trigger row. */
+  static KV<String, Trigger> toUserTrigger(JSONObject jsonObject) throws Exception {
+    return KV.of(
+        (String) jsonObject.get("user_id"), TriggerProcessor.buildTriggerFromJson(jsonObject));
+  }
+
+  /** Returns the userId and the ExtensionEvent of a parsed extension event row. */
+  static KV<String, ExtensionEvent> toUserExtensionEvent(JSONObject jsonObject) {
+    return KV.of(
+        (String) jsonObject.get("user_id"), ExtensionEvent.buildExtensionEventFromJson(jsonObject));
+  }
+
+  /**
+   * Converts an Avro record to the value json-simple parses the equivalent JSON row to. Null fields
+   * are left out, as they would be absent from the JSON row.
+   */
+  @SuppressWarnings("unchecked")
+  static JSONObject toJsonObject(GenericRecord record) {
+    JSONObject jsonObject = new JSONObject();
+    for (Schema.Field field : record.getSchema().getFields()) {
+      Object value = record.get(field.pos());
+      if (value != null) {
+        jsonObject.put(field.name(), toJsonValue(value));
+      }
+    }
+    return jsonObject;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object toJsonValue(Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof GenericRecord) {
+      return toJsonObject((GenericRecord) value);
+    }
+    if (value instanceof Map) {
+      JSONObject jsonObject = new JSONObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        jsonObject.put(entry.getKey().toString(), toJsonValue(entry.getValue()));
+      }
+      return jsonObject;
+    }
+    if (value instanceof Collection) {
+      JSONArray jsonArray = new JSONArray();
+      for (Object element : (Collection<?>) value) {
+        jsonArray.add(toJsonValue(element));
+      }
+      return jsonArray;
+    }
+    // json-simple parses every integer to a Long and every other number to a Double.
+    if (value instanceof Integer) {
+      return ((Integer) value).longValue();
+    }
+    if (value instanceof Float) {
+      return ((Float) value).doubleValue();
+    }
+    if (value instanceof Long || value instanceof Double || value instanceof Boolean) {
+      return value;
+    }
+    // Avro strings are Utf8 instances, and enum symbols are read as their names.
+    return value.toString();
+  }
 }
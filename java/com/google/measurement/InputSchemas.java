@@ -0,0 +1,44 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import org.apache.avro.Schema;
+
+/**
+ * Avro schemas of the columnar input files, defined in the {@code schema} directory next to this
+ * class. Each schema lists only the columns the simulation reads, with the same names as the keys
+ * of the JSON input rows. Files are read with these as reader schemas, so their other columns are
+ * skipped, and optional columns may be missing from the files altogether.
+ */
+public final class InputSchemas {
+  public static final Schema ATTRIBUTION_SOURCE = load("attribution_source.avsc");
+  public static final Schema TRIGGER = load("trigger.avsc");
+  public static final Schema EXTENSION_EVENT = load("extension_event.avsc");
+
+  private InputSchemas() {}
+
+  private static Schema load(String fileName) {
+    try (InputStream in = InputSchemas.class.getResourceAsStream("schema/" + fileName)) {
+      return new Schema.Parser().parse(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to load input schema " + fileName, e);
+    }
+  }
+}
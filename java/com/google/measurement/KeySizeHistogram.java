@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.DistributionResult;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricQueryResults;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricResults;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.metrics.MetricsFilter;
+
+/**
+ * Histogram of the number of records joined under each key, kept in Beam metrics so that it is
+ * aggregated across workers. Bucket {@code b} counts the keys with {@code [2^(b-1), 2^b)} records;
+ * bucket 0 counts the keys with none.
+ */
+class KeySizeHistogram {
+  static final String NAMESPACE = KeySizeHistogram.class.getName();
+  private static final String DISTRIBUTION_NAME = "recordsPerKey";
+  // Sizes are never negative, so the highest bucket is [2^62, 2^63).
+  static final int BUCKETS = Long.SIZE;
+
+  private final Counter[] mCounters = new Counter[BUCKETS];
+  private final Distribution mDistribution = Metrics.distribution(NAMESPACE, DISTRIBUTION_NAME);
+
+  KeySizeHistogram() {
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      mCounters[bucket] = Metrics.counter(NAMESPACE, bucketName(bucket));
+    }
+  }
+
+  /** Counts one key with {@code size} records. */
+  void record(long size) {
+    mCounters[bucket(size)].inc();
+    mDistribution.update(size);
+  }
+
+  static int bucket(long size) {
+    return Long.SIZE - Long.numberOfLeadingZeros(size);
+  }
+
+  static String bucketName(int bucket) {
+    return bucket == 0
+        ? "keys with 0 records"
+        : String.format(
+            "keys with [%d, %s) records", 1L << (bucket - 1), Long.toUnsignedString(1L << bucket));
+  }
+
+  /** Formats the histogram recorded by a finished pipeline, one line per non-empty bucket. */
+  static String report(MetricResults metrics) {
+    MetricQueryResults results =
+        metrics.queryMetrics(
+            MetricsFilter.builder().addNameFilter(MetricNameFilter.inNamespace(NAMESPACE)).build());
+    long[] counts = new long[BUCKETS];
+    for (MetricResult<Long> counter : results.getCounters()) {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        if (counter.getName().getName().equals(bucketName(bucket))) {
+          counts[bucket] += counter.getAttempted();
+        }
+      }
+    }
+    long keys = 0;
+    long records = 0;
+    long max = 0;
+    for (MetricResult<DistributionResult> distribution : results.getDistributions()) {
+      keys += distribution.getAttempted().getCount();
+      records += distribution.getAttempted().getSum();
+      max = Math.max(max, distribution.getAttempted().getMax());
+    }
+    return format(counts, keys, records, max);
+  }
+
+  /**
+   * Formats a histogram of {@code counts} keys in each bucket, one line per non-empty bucket,
+   * followed by the number of keys, their average and their largest number of records.
+   */
+  static String format(long[] counts, long keys, long records, long max) {
+    StringBuilder report = new StringBuilder(String.format("Records per user and API platform:%n"));
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      if (counts[bucket] > 0) {
+        report.append(String.format("  %s: %d%n", bucketName(bucket), counts[bucket]));
+      }
+    }
+    if (keys > 0) {
+      report.append(
+          String.format(
+              "  %d keys, %.1f records per key on average, %d at most%n",
+              keys, (double) records / keys, max));
+    }
+    return report.toString();
+  }
+}
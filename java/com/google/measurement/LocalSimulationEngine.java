@@ -0,0 +1,579 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.noising.SourceNoiseHandler;
+import com.google.measurement.util.JsonPullParser;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.values.KV;
+import org.json.simple.JSONObject;
+
+/**
+ * Runs the simulation on one machine without a Beam pipeline. It reads the same input as {@link
+ * SimulationRunner} does and produces the same reports, in two phases:
+ *
+ * <ol>
+ *   <li>Each input file is parsed by a task of its own, as the {@link InputFileProcessor}
+ *       transforms parse it, and its records are spilled to one of {@code localSpillBuckets} files
+ *       on disk by the hash of their {@link DataProcessor#platformKey(ApiChoice, String)}. The
+ *       records of users outside of the {@code userSampleRate} sample are dropped here. The rows of
+ *       the latest checkpoint, if any, are spilled with them, see {@link CheckpointFiles}.
+ *   <li>Each bucket is read back by a task of its own, grouped by key and simulated one key at a
+ *       time by {@link UserSimulation}. Their event and debug reports are written to the files of a
+ *       {@link ShardedReportFiles.ShardedWriter} shared by all tasks.
+ * </ol>
+ *
+ * <p>Tasks run on a work-stealing {@link ForkJoinPool} of {@code localParallelism} threads, so at
+ * most that many buckets are held in memory at a time. The records are spilled with their binary
+ * coders, see {@link SourceCoder}.
+ */
+public class LocalSimulationEngine {
+  private static final Logger logger = Logger.getLogger(LocalSimulationEngine.class.getName());
+  private static final int SPILL_BUFFER_SIZE = 1 << 16;
+
+  private static final RecordKind<Source> SOURCES =
+      new RecordKind<>(
+          "source",
+          InputSchemas.ATTRIBUTION_SOURCE,
+          SourceCoder.of(),
+          InputFileProcessor::toUserSource,
+          Source::getApiChoice,
+          DataProcessor::isSupportedByPlatform,
+          records -> records.mSources);
+  private static final RecordKind<Trigger> TRIGGERS =
+      new RecordKind<>(
+          "trigger",
+          InputSchemas.TRIGGER,
+          TriggerCoder.of(),
+          InputFileProcessor::toUserTrigger,
+          Trigger::getApiChoice,
+          trigger -> true,
+          records -> records.mTriggers);
+  // Extension events only apply to the OS platform.
+  private static final RecordKind<ExtensionEvent> EXTENSION_EVENTS =
+      new RecordKind<>(
+          "extension event",
+          InputSchemas.EXTENSION_EVENT,
+          ExtensionEventCoder.of(),
+          InputFileProcessor::toUserExtensionEvent,
+          event -> ApiChoice.OS,
+          event -> true,
+          records -> records.mExtensionEvents);
+  // The checkpoint rows are already keyed by platform key and are spilled as they are read, see
+  // spillCheckpoints, so they are neither parsed nor filtered.
+  private static final RecordKind<byte[]> CHECKPOINTS =
+      new RecordKind<>(
+          "checkpoint",
+          CheckpointFiles.CHECKPOINT_ROW,
+          ByteArrayCoder.of(),
+          null,
+          null,
+          null,
+          records -> records.mCheckpoints);
+  private static final List<RecordKind<?>> RECORD_KINDS =
+      List.of(SOURCES, TRIGGERS, EXTENSION_EVENTS, CHECKPOINTS);
+  // Key of the aggregatable reports of a run without scenarios.
+  private static final String SINGLE_RUN = "";
+
+  private final SimulationConfig mOptions;
+  private final Flags mFlags;
+  private final int mParallelism;
+  private final int mBucketCount;
+  private final AtomicLongArray mKeySizeCounts = new AtomicLongArray(KeySizeHistogram.BUCKETS);
+  private final LongAdder mRecordCount = new LongAdder();
+  private final LongAccumulator mMaxKeySize = new LongAccumulator(Math::max, 0);
+
+  public LocalSimulationEngine(SimulationConfig options) {
+    if (options.getLocalParallelism() < 0) {
+      throw new IllegalArgumentException(
+          "localParallelism must not be negative, was " + options.getLocalParallelism());
+    }
+    if (options.getLocalSpillBuckets() <= 0) {
+      throw new IllegalArgumentException(
+          "localSpillBuckets must be positive, was " + options.getLocalSpillBuckets());
+    }
+    DataProcessor.checkUserSampleRate(options.getUserSampleRate());
+    mOptions = options;
+    mFlags = DataProcessor.getFlags(options);
+    mParallelism =
+        options.getLocalParallelism() > 0
+            ? options.getLocalParallelism()
+            : Runtime.getRuntime().availableProcessors();
+    mBucketCount = options.getLocalSpillBuckets();
+  }
+
+  /**
+   * Simulates every user of the input and returns their aggregatable reports. The event and debug
+   * reports of each user are written under {@code outputDirectory/<api choice>/<userId>}, as {@link
+   * RunSimulationPerUser} writes them.
+   */
+  public List<JSONObject> run() throws IOException {
+    return simulateInput(List.of()).get(SINGLE_RUN);
+  }
+
+  /**
+   * Simulates every scenario for every user of the input, which is read and spilled once for all of
+   * them, see {@link UserSimulation#runScenarios(Iterable, Iterable, Iterable, List)}. The event
+   * and debug reports of each user are written under {@code outputDirectory/<api
+   * choice>/<scenario>/<userId>}.
+   *
+   * @return the aggregatable reports of each scenario by name
+   */
+  public Map<String, List<JSONObject>> runScenarios(List<SimulationScenario> scenarios)
+      throws IOException {
+    if (scenarios.isEmpty()) {
+      throw new IllegalArgumentException("No scenarios to simulate");
+    }
+    return simulateInput(scenarios);
+  }
+
+  // Returns the aggregatable reports by scenario name, or under SINGLE_RUN without scenarios.
+  private Map<String, List<JSONObject>> simulateInput(List<SimulationScenario> scenarios)
+      throws IOException {
+    // Each user continues from its row of the latest checkpoint generation, which is spilled with
+    // its records, and its state at the end of the run is written to the next generation.
+    String checkpointDirectory = mOptions.getCheckpointDirectory();
+    int checkpointGeneration = -1;
+    int nextCheckpointGeneration = -1;
+    if (checkpointDirectory != null) {
+      checkpointGeneration = CheckpointFiles.latestGeneration(checkpointDirectory);
+      nextCheckpointGeneration = CheckpointFiles.nextGeneration(checkpointDirectory);
+    }
+    Path spillDirectory = Files.createTempDirectory("simulation-spill-");
+    ForkJoinPool pool = new ForkJoinPool(mParallelism);
+    try {
+      List<SpillBucket> buckets = new ArrayList<>(mBucketCount);
+      for (int i = 0; i < mBucketCount; i++) {
+        buckets.add(new SpillBucket(spillDirectory, i));
+      }
+      try {
+        List<Callable<Void>> spillTasks = new ArrayList<>();
+        addSpillTasks(
+            spillTasks,
+            SOURCES,
+            DataProcessor.getAttributionSourcePaths(mOptions),
+            mOptions.getAttributionSourceFileName(),
+            buckets);
+        addSpillTasks(
+            spillTasks,
+            TRIGGERS,
+            DataProcessor.getTriggerPaths(mOptions),
+            mOptions.getTriggerFileName(),
+            buckets);
+        addSpillTasks(
+            spillTasks,
+            EXTENSION_EVENTS,
+            getExtensionEventPaths(),
+            mOptions.getExtensionEventFileName(),
+            buckets);
+        if (checkpointDirectory != null && checkpointGeneration >= 0) {
+          for (String shard : CheckpointFiles.shards(checkpointDirectory, checkpointGeneration)) {
+            spillTasks.add(
+                () -> {
+                  spillCheckpoints(Path.of(shard), buckets);
+                  return null;
+                });
+          }
+        }
+        invokeAll(pool, spillTasks);
+      } finally {
+        for (SpillBucket bucket : buckets) {
+          bucket.closeWriters();
+        }
+      }
+
+      try (ShardedReportFiles.ShardedWriter reportWriter =
+              ShardedReportFiles.isSharded(mOptions)
+                  ? new ShardedReportFiles.ShardedWriter(mOptions, mParallelism)
+                  : null;
+          CheckpointFiles.Writer checkpointWriter =
+              checkpointDirectory != null
+                  ? new CheckpointFiles.Writer(
+                      checkpointDirectory,
+                      nextCheckpointGeneration,
+                      CheckpointFiles.getShardCount(mOptions))
+                  : null) {
+        List<Callable<Map<String, List<JSONObject>>>> simulationTasks =
+            new ArrayList<>(mBucketCount);
+        for (SpillBucket bucket : buckets) {
+          simulationTasks.add(() -> simulate(bucket, scenarios, reportWriter, checkpointWriter));
+        }
+        Map<String, List<JSONObject>> aggregatableReports = new LinkedHashMap<>();
+        for (Map<String, List<JSONObject>> bucketReports : invokeAll(pool, simulationTasks)) {
+          bucketReports.forEach(
+              (name, reports) ->
+                  aggregatableReports
+                      .computeIfAbsent(name, k -> new ArrayList<>())
+                      .addAll(reports));
+        }
+        if (checkpointWriter != null) {
+          checkpointWriter.commit();
+          CheckpointFiles.deleteGenerationsBefore(checkpointDirectory, nextCheckpointGeneration);
+        }
+        return aggregatableReports;
+      }
+    } finally {
+      pool.shutdownNow();
+      deleteRecursively(spillDirectory);
+    }
+  }
+
+  /**
+   * Formats the number of records of each simulated key, as {@link KeySizeHistogram#report} does
+   * for the pipeline.
+   */
+  public String keySizeReport() {
+    long[] counts = new long[KeySizeHistogram.BUCKETS];
+    long keys = 0;
+    for (int bucket = 0; bucket < counts.length; bucket++) {
+      counts[bucket] = mKeySizeCounts.get(bucket);
+      keys += counts[bucket];
+    }
+    return KeySizeHistogram.format(counts, keys, mRecordCount.sum(), mMaxKeySize.get());
+  }
+
+  private List<String> getExtensionEventPaths() {
+    try {
+      return DataProcessor.getExtensionEventPaths(mOptions);
+    } catch (Exception e) {
+      logger.info("No extension events found in the given time interval.");
+      return Collections.emptyList();
+    }
+  }
+
+  private <T> void addSpillTasks(
+      List<Callable<Void>> tasks,
+      RecordKind<T> kind,
+      List<String> paths,
+      String fileName,
+      List<SpillBucket> buckets) {
+    String fileFormat = DataProcessor.getInputFileFormat(mOptions, fileName);
+    if (!Objects.equals(fileFormat, "json") && !Objects.equals(fileFormat, "avro")) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid file type for %s. Acceptable file formats are json and avro", fileName));
+    }
+    for (String path : paths) {
+      tasks.add(
+          () -> {
+            spill(kind, Path.of(path), fileFormat, buckets);
+            return null;
+          });
+    }
+  }
+
+  private <T> void spill(
+      RecordKind<T> kind, Path path, String fileFormat, List<SpillBucket> buckets)
+      throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    RecordSink sink =
+        (input, jsonObject) -> {
+          KV<String, T> userRecord;
+          try {
+            userRecord = kind.mParser.parse(jsonObject);
+          } catch (Exception e) {
+            throw new IllegalArgumentException(
+                String.format("Failed to parse the %s input: %s", kind.mName, input), e);
+          }
+          T value = userRecord.getValue();
+          if (!kind.mIsSupported.test(value)
+              || !DataProcessor.isSampledUser(
+                  userRecord.getKey(),
+                  mOptions.getUserSampleRate(),
+                  mOptions.getUserSampleSeed())) {
+            return;
+          }
+          String key = DataProcessor.platformKey(kind.mApiChoice.apply(value), userRecord.getKey());
+          record.reset();
+          StringUtf8Coder.of().encode(key, record);
+          kind.mCoder.encode(value, record);
+          buckets.get(Math.floorMod(key.hashCode(), mBucketCount)).append(kind, record);
+        };
+    if (fileFormat.equals("json")) {
+      JsonPullParser parser = new JsonPullParser();
+      try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          JSONObject jsonObject;
+          try {
+            jsonObject = parser.parseObject(line);
+          } catch (Exception e) {
+            throw new IllegalArgumentException(
+                String.format("Failed to parse the %s input: %s", kind.mName, line), e);
+          }
+          sink.accept(line, jsonObject);
+        }
+      }
+    } else {
+      try (DataFileReader<GenericRecord> reader =
+          new DataFileReader<>(path.toFile(), new GenericDatumReader<>(kind.mSchema))) {
+        for (GenericRecord input : reader) {
+          sink.accept(input, InputFileProcessor.toJsonObject(input));
+        }
+      }
+    }
+  }
+
+  // Spills the rows of a checkpoint shard, see CheckpointFiles.
+  private void spillCheckpoints(Path shard, List<SpillBucket> buckets) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try (DataFileReader<GenericRecord> reader =
+        new DataFileReader<>(shard.toFile(), new GenericDatumReader<>(CHECKPOINTS.mSchema))) {
+      for (GenericRecord row : reader) {
+        KV<String, byte[]> checkpoint = CheckpointFiles.fromRow(row);
+        record.reset();
+        StringUtf8Coder.of().encode(checkpoint.getKey(), record);
+        CHECKPOINTS.mCoder.encode(checkpoint.getValue(), record);
+        buckets
+            .get(Math.floorMod(checkpoint.getKey().hashCode(), mBucketCount))
+            .append(CHECKPOINTS, record);
+      }
+    }
+  }
+
+  // Writes the event and debug reports to reportWriter, or per user if it is null, and the state of
+  // each user at the end of the run to checkpointWriter, if not null.
+  private Map<String, List<JSONObject>> simulate(
+      SpillBucket bucket,
+      List<SimulationScenario> scenarios,
+      ShardedReportFiles.ShardedWriter reportWriter,
+      CheckpointFiles.Writer checkpointWriter)
+      throws Exception {
+    Map<String, UserRecords> users = new LinkedHashMap<>();
+    for (RecordKind<?> kind : RECORD_KINDS) {
+      bucket.readInto(kind, users);
+    }
+    bucket.delete();
+    Map<String, List<JSONObject>> aggregatableReports = new LinkedHashMap<>();
+    if (scenarios.isEmpty()) {
+      aggregatableReports.put(SINGLE_RUN, new ArrayList<>());
+    }
+    for (SimulationScenario scenario : scenarios) {
+      aggregatableReports.put(scenario.getName(), new ArrayList<>());
+    }
+    for (Map.Entry<String, UserRecords> user : users.entrySet()) {
+      String key = user.getKey();
+      UserRecords records = user.getValue();
+      String userId = DataProcessor.userIdOf(key);
+      ApiChoice apiChoice = DataProcessor.apiChoiceOf(key);
+      UserSimulation userSimulation =
+          new UserSimulation(
+              userId,
+              mOptions.getOutputDirectory() + "/" + apiChoice.toString(),
+              new SourceNoiseHandler(mFlags),
+              mFlags);
+      if (reportWriter != null) {
+        userSimulation.setReportSink(reportWriter);
+      }
+      if (!scenarios.isEmpty()) {
+        userSimulation
+            .runScenarios(records.mSources, records.mTriggers, records.mExtensionEvents, scenarios)
+            .forEach((name, reports) -> aggregatableReports.get(name).addAll(reports));
+      } else {
+        if (checkpointWriter != null) {
+          userSimulation.setCheckpoint(
+              records.mCheckpoints.isEmpty()
+                  ? null
+                  : UserStateCheckpoint.decode(records.mCheckpoints.get(0)),
+              checkpoint -> checkpointWriter.write(key, checkpoint));
+        }
+        aggregatableReports
+            .get(SINGLE_RUN)
+            .addAll(
+                userSimulation.runSimulation(
+                    records.mSources, records.mTriggers, records.mExtensionEvents));
+      }
+      recordKeySize(records.size());
+    }
+    return aggregatableReports;
+  }
+
+  private void recordKeySize(long size) {
+    mKeySizeCounts.incrementAndGet(KeySizeHistogram.bucket(size));
+    mRecordCount.add(size);
+    mMaxKeySize.accumulate(size);
+  }
+
+  // Runs the tasks on the pool and returns their results, rethrowing the first failure.
+  private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks)
+      throws IOException {
+    List<T> results = new ArrayList<>(tasks.size());
+    for (Future<T> future : pool.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while running the simulation", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException("Failed to run the simulation", cause);
+      }
+    }
+    return results;
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private interface RowParser<T> {
+    KV<String, T> parse(JSONObject jsonObject) throws Exception;
+  }
+
+  private interface RecordSink {
+    void accept(Object input, JSONObject jsonObject) throws IOException;
+  }
+
+  // How to parse, key and spill the records of one input.
+  private static final class RecordKind<T> {
+    private final String mName;
+    private final Schema mSchema;
+    private final Coder<T> mCoder;
+    private final RowParser<T> mParser;
+    private final Function<T, ApiChoice> mApiChoice;
+    private final Predicate<T> mIsSupported;
+    private final Function<UserRecords, List<T>> mUserRecords;
+
+    RecordKind(
+        String name,
+        Schema schema,
+        Coder<T> coder,
+        RowParser<T> parser,
+        Function<T, ApiChoice> apiChoice,
+        Predicate<T> isSupported,
+        Function<UserRecords, List<T>> userRecords) {
+      mName = name;
+      mSchema = schema;
+      mCoder = coder;
+      mParser = parser;
+      mApiChoice = apiChoice;
+      mIsSupported = isSupported;
+      mUserRecords = userRecords;
+    }
+  }
+
+  private static final class UserRecords {
+    private final List<Source> mSources = new ArrayList<>();
+    private final List<Trigger> mTriggers = new ArrayList<>();
+    private final List<ExtensionEvent> mExtensionEvents = new ArrayList<>();
+    private final List<byte[]> mCheckpoints = new ArrayList<>();
+
+    // The checkpoint is not counted, as it is not part of the input.
+    long size() {
+      return mSources.size() + mTriggers.size() + mExtensionEvents.size();
+    }
+  }
+
+  // One spill file for each kind of record. Writers are opened on the first record.
+  private static final class SpillBucket {
+    private final Path[] mPaths = new Path[RECORD_KINDS.size()];
+    private final OutputStream[] mWriters = new OutputStream[RECORD_KINDS.size()];
+    private final long[] mCounts = new long[RECORD_KINDS.size()];
+
+    SpillBucket(Path directory, int index) {
+      for (int kind = 0; kind < mPaths.length; kind++) {
+        mPaths[kind] = directory.resolve(String.format("bucket-%05d-%d", index, kind));
+      }
+    }
+
+    synchronized void append(RecordKind<?> kind, ByteArrayOutputStream record) throws IOException {
+      int index = RECORD_KINDS.indexOf(kind);
+      if (mWriters[index] == null) {
+        mWriters[index] =
+            new BufferedOutputStream(Files.newOutputStream(mPaths[index]), SPILL_BUFFER_SIZE);
+      }
+      record.writeTo(mWriters[index]);
+      mCounts[index]++;
+    }
+
+    synchronized void closeWriters() throws IOException {
+      for (int kind = 0; kind < mWriters.length; kind++) {
+        if (mWriters[kind] != null) {
+          mWriters[kind].close();
+          mWriters[kind] = null;
+        }
+      }
+    }
+
+    <T> void readInto(RecordKind<T> kind, Map<String, UserRecords> users) throws IOException {
+      int index = RECORD_KINDS.indexOf(kind);
+      if (mCounts[index] == 0) {
+        return;
+      }
+      try (InputStream in =
+          new BufferedInputStream(Files.newInputStream(mPaths[index]), SPILL_BUFFER_SIZE)) {
+        for (long i = 0; i < mCounts[index]; i++) {
+          String key = StringUtf8Coder.of().decode(in);
+          T value = kind.mCoder.decode(in);
+          kind.mUserRecords.apply(users.computeIfAbsent(key, k -> new UserRecords())).add(value);
+        }
+      }
+    }
+
+    void delete() throws IOException {
+      for (Path path : mPaths) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static com.google.measurement.AdServicesConfig.MEASUREMENT_DELETE_EXPIRED
 import com.google.measurement.Trigger.Status;
 import com.google.measurement.aggregation.AggregateReport;
 import com.google.measurement.util.BaseUriExtractor;
+import com.google.measurement.util.DestinationUri;
 import com.google.measurement.util.Web;
 import java.net.URI;
 import java.time.Instant;
@@ -31,6 +32,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -41,7 +44,42 @@ public class MeasurementDAO implements IMeasurementDAO {
   private final DatastoreManager mDatastoreManager;
 
   public MeasurementDAO() {
-    mDatastoreManager = new DatastoreManager();
+    this(new DatastoreManager());
+  }
+
+  protected MeasurementDAO(DatastoreManager datastoreManager) {
+    mDatastoreManager = datastoreManager;
+  }
+
+  /**
+   * Captures the state of this DAO so that it can be forked into independent DAOs, for example to
+   * rerun attribution under different settings. Records are shared with the forks and copied by
+   * each DAO only when it first modifies or hands them out; see {@link DatastoreSnapshot}.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(mDatastoreManager.snapshot(), this::newFork);
+  }
+
+  /** Returns a DAO of the same kind as this one over a forked {@code datastoreManager}. */
+  protected MeasurementDAO newFork(DatastoreManager datastoreManager) {
+    return new MeasurementDAO(datastoreManager);
+  }
+
+  /** State of a {@link MeasurementDAO} captured by {@link #snapshot()}. */
+  public static class Snapshot {
+    private final DatastoreSnapshot mDatastoreSnapshot;
+    private final Function<DatastoreManager, MeasurementDAO> mFactory;
+
+    private Snapshot(
+        DatastoreSnapshot datastoreSnapshot, Function<DatastoreManager, MeasurementDAO> factory) {
+      mDatastoreSnapshot = datastoreSnapshot;
+      mFactory = factory;
+    }
+
+    /** Returns a new DAO holding the captured state. */
+    public MeasurementDAO fork() {
+      return mFactory.apply(mDatastoreSnapshot.fork());
+    }
   }
 
   /**
@@ -50,9 +88,11 @@ public class MeasurementDAO implements IMeasurementDAO {
    */
   @Override
   public List<Trigger> getPendingTriggers() {
+    // Triggers are only modified through updateTriggerStatus, so the stored instances are handed
+    // out without being copied.
     return mDatastoreManager.getTriggers().stream()
         .filter((t) -> t.getStatus().equals(Status.PENDING)) // Filter only Pending triggers
-        .collect(Collectors.toCollection(ArrayList::new)); // Collect ids into a List
+        .collect(Collectors.toList());
   }
 
   @Override
@@ -91,26 +131,29 @@ public class MeasurementDAO implements IMeasurementDAO {
     String sourceDestinationColumn = destinationColumnAndValue.get().keySet().iterator().next();
     String triggerDestinationValue = destinationColumnAndValue.get().get(sourceDestinationColumn);
 
-    return mDatastoreManager.getSources().stream()
-        .filter(
-            s ->
-                (sourceDestinationColumn.equals("app_destination")
-                    ? s.getAppDestinations() != null
-                        && s.getAppDestinations().contains(URI.create(triggerDestinationValue))
-                    : s.getWebDestinations() != null
-                        && s.getWebDestinations().contains(URI.create(triggerDestinationValue))))
-        .filter(s -> s.getEnrollmentId().equals(trigger.getEnrollmentId()))
-        .filter(s -> s.getEventTime() <= trigger.getTriggerTime())
-        .filter(s -> s.getExpiryTime() > trigger.getTriggerTime())
-        .filter(s -> s.getStatus().equals(Source.Status.ACTIVE))
-        .collect(Collectors.toCollection(ArrayList::new));
+    return mDatastoreManager.ownSources(
+        mDatastoreManager.getSources().stream()
+            .filter(
+                s ->
+                    (sourceDestinationColumn.equals("app_destination")
+                        ? s.getAppDestinations() != null
+                            && s.getAppDestinations().contains(URI.create(triggerDestinationValue))
+                        : s.getWebDestinations() != null
+                            && s.getWebDestinations()
+                                .contains(URI.create(triggerDestinationValue))))
+            .filter(s -> s.getEnrollmentId().equals(trigger.getEnrollmentId()))
+            .filter(s -> s.getEventTime() <= trigger.getTriggerTime())
+            .filter(s -> s.getExpiryTime() > trigger.getTriggerTime())
+            .filter(s -> s.getStatus().equals(Source.Status.ACTIVE))
+            .collect(Collectors.toList()));
   }
 
   @Override
   public List<EventReport> getSourceEventReports(Source source) {
-    return mDatastoreManager.getEventReports().stream()
-        .filter(r -> r.getSourceId() == source.getId())
-        .collect(Collectors.toCollection(ArrayList::new));
+    return mDatastoreManager.ownEventReports(
+        mDatastoreManager.getEventReports().stream()
+            .filter(r -> r.getSourceId() == source.getId())
+            .collect(Collectors.toList()));
   }
 
   @Override
@@ -133,10 +176,7 @@ public class MeasurementDAO implements IMeasurementDAO {
 
   @Override
   public Trigger getTrigger(String triggerId) {
-    return mDatastoreManager.getTriggers().stream()
-        .filter(t -> t.getId().equals(triggerId))
-        .findFirst()
-        .orElse(null);
+    return mDatastoreManager.getTrigger(triggerId);
   }
 
   @Override
@@ -189,20 +229,7 @@ public class MeasurementDAO implements IMeasurementDAO {
   }
 
   public long getNumSourcesPerPublisher(URI publisher, EventSurfaceType publisherType) {
-    if (publisherType == EventSurfaceType.APP) {
-      return mDatastoreManager.getSources().stream()
-          .filter(s -> s.getPublisher().equals(publisher))
-          .count();
-    } else {
-      return mDatastoreManager.getSources().stream()
-          .filter(
-              s ->
-                  (s.getPublisher().equals(publisher)
-                      || s.getPublisher()
-                          .toString()
-                          .matches(publisher.getScheme() + "://%." + publisher.getAuthority())))
-          .count();
-    }
+    return countSourcesMatchingPublisher(DestinationUri.from(publisher), publisherType);
   }
 
   public long getNumTriggersPerRegistrant(URI registrant) {
@@ -222,36 +249,8 @@ public class MeasurementDAO implements IMeasurementDAO {
               destination.toString()));
     }
 
-    URI destinationBaseURI = destinationBaseURIOptional.get();
-
-    if (destinationType == EventSurfaceType.APP) {
-      return mDatastoreManager.getTriggers().stream()
-          .filter(
-              t ->
-                  (t.getAttributionDestination().equals(destinationBaseURI)
-                      || t.getAttributionDestination()
-                          .toString()
-                          .matches(destinationBaseURI.toString() + "/.*")))
-          .count();
-    } else {
-      String schemeSubDomainMatcher =
-          destination.getScheme() + "://.*." + destinationBaseURI.getAuthority();
-      String schemeDomainMatcher =
-          destination.getScheme() + "://" + destinationBaseURI.getAuthority();
-      String domainAndPathMatcher = schemeDomainMatcher + "/.*";
-      String subDomainAndPathMatcher = schemeSubDomainMatcher + "/.*";
-
-      return mDatastoreManager.getTriggers().stream()
-          .filter(
-              t ->
-                  (t.getAttributionDestination().toString().equals(schemeDomainMatcher)
-                          || t.getAttributionDestination()
-                              .toString()
-                              .matches(schemeSubDomainMatcher)
-                          || t.getAttributionDestination().toString().matches(domainAndPathMatcher))
-                      || t.getAttributionDestination().toString().matches(subDomainAndPathMatcher))
-          .count();
-    }
+    return countTriggersMatchingDestination(
+        DestinationUri.from(destinationBaseURIOptional.get()), destinationType);
   }
 
   @Override
@@ -388,44 +387,27 @@ public class MeasurementDAO implements IMeasurementDAO {
 
   @Override
   public void deleteAppRecords(String uri) {
-    final List<EventReport> reportsToRemove = new ArrayList<>();
-    mDatastoreManager.getSources().stream()
-        .filter(s -> s.getRegistrant().toString().equals(uri))
-        .forEach(
-            s -> {
-              mDatastoreManager.getEventReports().stream()
-                  .filter(e -> e.getSourceId().equals(s.getId())) // matches with source
-                  .forEach(e -> reportsToRemove.add(e));
-            });
-    mDatastoreManager.getEventReports().removeAll(reportsToRemove);
-
-    reportsToRemove.clear();
-    mDatastoreManager.getEventReports().stream()
-        .filter(e -> e.getAttributionDestinations().get(0).toString().equals(uri))
-        .forEach(e -> reportsToRemove.add(e));
-    mDatastoreManager.getEventReports().removeAll(reportsToRemove);
-
-    final List<Source> sourcesToRemove = new ArrayList<>();
-    mDatastoreManager.getSources().stream()
-        .filter(
-            s ->
-                s.getRegistrant().toString().equals(uri)
-                    || (s.getStatus() == Source.Status.IGNORED
-                        && s.getAppDestinations().get(0).toString().equals(uri)))
-        .forEach(s -> sourcesToRemove.add(s));
-    mDatastoreManager.getSources().removeAll(sourcesToRemove);
-
-    final List<Trigger> triggersToRemove = new ArrayList<>();
-    mDatastoreManager.getTriggers().stream()
-        .filter(t -> t.getRegistrant().toString().equals(uri))
-        .forEach(t -> triggersToRemove.add(t));
-    mDatastoreManager.getTriggers().removeAll(triggersToRemove);
-
-    final List<Attribution> arlToRemove = new ArrayList<>();
-    mDatastoreManager.getAttributions().stream()
-        .filter(a -> a.getSourceSite().equals(uri) || a.getDestinationSite().equals(uri))
-        .forEach(a -> arlToRemove.add(a));
-    mDatastoreManager.getAttributions().removeAll(arlToRemove);
+    Set<String> registrantSourceIds =
+        mDatastoreManager.getSources().stream()
+            .filter(s -> s.getRegistrant().toString().equals(uri))
+            .map(Source::getId)
+            .collect(Collectors.toSet());
+    mDatastoreManager.removeEventReportsByFilter(
+        e -> registrantSourceIds.contains(e.getSourceId())); // matches with source
+
+    mDatastoreManager.removeEventReportsByFilter(
+        e -> e.getAttributionDestinations().get(0).toString().equals(uri));
+
+    mDatastoreManager.removeSourcesByFilter(
+        s ->
+            s.getRegistrant().toString().equals(uri)
+                || (s.getStatus() == Source.Status.IGNORED
+                    && s.getAppDestinations().get(0).toString().equals(uri)));
+
+    mDatastoreManager.removeTriggersByFilter(t -> t.getRegistrant().toString().equals(uri));
+
+    mDatastoreManager.removeAttributionRateLimitsByFilter(
+        a -> a.getSourceSite().equals(uri) || a.getDestinationSite().equals(uri));
   }
 
   private int getNumAggregateReportsPerDestinationInternal(
@@ -434,43 +416,8 @@ public class MeasurementDAO implements IMeasurementDAO {
     if (!destinationBaseURI.isPresent()) {
       throw new IllegalStateException("extractBaseURI failed for destination.");
     }
-    // Example: https://destination.com
-    String noSubdomainOrPostfixMatch =
-        destinationBaseURI.get().getScheme() + "://" + destinationBaseURI.get().getHost();
-
-    // Example: https://subdomain.destination.com/path
-    String subdomainAndPostfixMatch =
-        destinationBaseURI.get().getScheme()
-            + "://.*."
-            + destinationBaseURI.get().getHost()
-            + "/.*";
-    // Example: https://subdomain.destination.com
-    String subdomainMatch =
-        destinationBaseURI.get().getScheme() + "://.*." + destinationBaseURI.get().getHost();
-    // Example: https://destination.com/path
-    String postfixMatch =
-        destinationBaseURI.get().getScheme() + "://" + destinationBaseURI.get().getHost() + "/.*";
-    if (destinationType == EventSurfaceType.WEB) {
-      return (int)
-          mDatastoreManager.getAggregateReports().stream()
-              .filter(
-                  r ->
-                      (r.getAttributionDestination().toString().equals(noSubdomainOrPostfixMatch)
-                          || r.getAttributionDestination()
-                              .toString()
-                              .matches(subdomainAndPostfixMatch)
-                          || r.getAttributionDestination().toString().matches(subdomainMatch)
-                          || r.getAttributionDestination().toString().matches(postfixMatch)))
-              .count();
-    } else {
-      return (int)
-          mDatastoreManager.getAggregateReports().stream()
-              .filter(
-                  r ->
-                      (r.getAttributionDestination().toString().equals(noSubdomainOrPostfixMatch)
-                          || r.getAttributionDestination().toString().matches(postfixMatch)))
-              .count();
-    }
+    return countAggregateReportsMatchingDestination(
+        DestinationUri.from(destinationBaseURI.get()), destinationType);
   }
 
   private int getNumEventReportsPerDestinationInternal(
@@ -479,59 +426,71 @@ public class MeasurementDAO implements IMeasurementDAO {
     if (!destinationBaseURI.isPresent()) {
       throw new IllegalStateException("extractBaseURI failed for destination.");
     }
-    // Example: https://destination.com
-    String noSubdomainOrPostfixMatch =
-        destinationBaseURI.get().getScheme() + "://" + destinationBaseURI.get().getHost();
-
-    // Example: https://subdomain.destination.com/path
-    String subdomainAndPostfixMatch =
-        destinationBaseURI.get().getScheme()
-            + "://.*."
-            + destinationBaseURI.get().getHost()
-            + "/.*";
-    // Example: https://subdomain.destination.com
-    String subdomainMatch =
-        destinationBaseURI.get().getScheme() + "://.*." + destinationBaseURI.get().getHost();
-    // Example: https://destination.com/path
-    String postfixMatch =
-        destinationBaseURI.get().getScheme() + "://" + destinationBaseURI.get().getHost() + "/.*";
-    if (destinationType == EventSurfaceType.WEB) {
-      return (int)
-          mDatastoreManager.getEventReports().stream()
-              .filter(
-                  r ->
-                      (r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .equals(noSubdomainOrPostfixMatch)
-                          || r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .matches(subdomainAndPostfixMatch)
-                          || r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .matches(subdomainMatch)
-                          || r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .matches(postfixMatch)))
-              .count();
-    } else {
-      return (int)
-          mDatastoreManager.getEventReports().stream()
-              .filter(
-                  r ->
-                      (r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .equals(noSubdomainOrPostfixMatch)
-                          || r.getAttributionDestinations()
-                              .get(0)
-                              .toString()
-                              .matches(postfixMatch)))
-              .count();
+    return countEventReportsMatchingDestination(
+        DestinationUri.from(destinationBaseURI.get()), destinationType);
+  }
+
+  /**
+   * Returns the number of aggregate reports whose attribution destination matches {@code
+   * destination}: an origin match for app destinations and a site match for web destinations.
+   */
+  protected int countAggregateReportsMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return (int)
+        mDatastoreManager.getAggregateReports().stream()
+            .filter(
+                r ->
+                    matchesDestination(r.getAttributionDestination(), destination, destinationType))
+            .count();
+  }
+
+  /**
+   * Returns the number of event reports whose first attribution destination matches {@code
+   * destination}: an origin match for app destinations and a site match for web destinations.
+   */
+  protected int countEventReportsMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return (int)
+        mDatastoreManager.getEventReports().stream()
+            .filter(
+                r ->
+                    matchesDestination(
+                        r.getAttributionDestinations().get(0), destination, destinationType))
+            .count();
+  }
+
+  /**
+   * Returns the number of triggers whose attribution destination matches {@code destination}: an
+   * origin match for app destinations and a site match for web destinations.
+   */
+  protected long countTriggersMatchingDestination(
+      DestinationUri destination, EventSurfaceType destinationType) {
+    return mDatastoreManager.getTriggers().stream()
+        .filter(
+            t -> matchesDestination(t.getAttributionDestination(), destination, destinationType))
+        .count();
+  }
+
+  /**
+   * Returns the number of sources whose publisher matches {@code publisher}: an origin match for
+   * app publishers and a site match for web publishers.
+   */
+  protected long countSourcesMatchingPublisher(
+      DestinationUri publisher, EventSurfaceType publisherType) {
+    return mDatastoreManager.getSources().stream()
+        .filter(s -> matchesDestination(s.getPublisher(), publisher, publisherType))
+        .count();
+  }
+
+  static boolean matchesDestination(
+      URI uri, DestinationUri destination, EventSurfaceType destinationType) {
+    if (uri == null) {
+      return false;
     }
+    DestinationUri candidate = DestinationUri.from(uri);
+    return destinationType == EventSurfaceType.APP
+        ? candidate.isSameOrigin(destination)
+        : candidate.isSameSiteOrSubdomain(destination);
   }
 
   @Override
@@ -549,15 +508,19 @@ public class MeasurementDAO implements IMeasurementDAO {
             .findFirst();
 
     if (sourceOpt.isPresent()) {
-      sourceOpt.get().setInstallAttributed(true);
-      sourceOpt.get().setInstallTime(eventTimestamp);
+      Source source = mDatastoreManager.ownSource(sourceOpt.get());
+      source.setInstallAttributed(true);
+      source.setInstallTime(eventTimestamp);
     }
   }
 
   @Override
   public void undoInstallAttribution(URI uri) {
-    mDatastoreManager.getSources().stream()
-        .filter(s -> s.getAppDestinations().get(0).equals(uri))
+    mDatastoreManager
+        .ownSources(
+            mDatastoreManager.getSources().stream()
+                .filter(s -> s.getAppDestinations().get(0).equals(uri))
+                .collect(Collectors.toList()))
         .forEach(s -> updateSourceInstallData(s, false, null));
   }
 
@@ -567,34 +530,57 @@ public class MeasurementDAO implements IMeasurementDAO {
   }
 
   @Override
-  public void deleteExpiredRecords() {
-    long earliestValidInsertion = System.currentTimeMillis() - MEASUREMENT_DELETE_EXPIRED_WINDOW_MS;
+  public List<EventReport> deleteExpiredRecords(long currentTime) {
+    long earliestValidInsertion = currentTime - MEASUREMENT_DELETE_EXPIRED_WINDOW_MS;
+
+    mDatastoreManager.removeSources(getExpiredSources(earliestValidInsertion));
+    mDatastoreManager.removeTriggers(getExpiredTriggers(earliestValidInsertion));
+    List<EventReport> expiredEventReports =
+        mDatastoreManager.removeEventReports(getExpiredEventReports(earliestValidInsertion));
+    mDatastoreManager.removeAttributionRateLimits(getExpiredAttributions(earliestValidInsertion));
+    return expiredEventReports;
+  }
 
-    List<Source> sourcesToRemove = new ArrayList<>();
-    mDatastoreManager.getSources().stream()
+  // The getExpired* methods may also return records that were already deleted by other means;
+  // deleteExpiredRecords skips those.
+
+  /** Returns the sources with an event time before {@code earliestValidInsertion}. */
+  protected List<Source> getExpiredSources(long earliestValidInsertion) {
+    return mDatastoreManager.getSources().stream()
         .filter(s -> s.getEventTime() < earliestValidInsertion)
-        .forEach(s -> sourcesToRemove.add(s));
-    mDatastoreManager.getSources().removeAll(sourcesToRemove);
-    List<Trigger> triggersToRemove = new ArrayList<>();
-    mDatastoreManager.getTriggers().stream()
+        .collect(Collectors.toList());
+  }
+
+  /** Returns the triggers with a trigger time before {@code earliestValidInsertion}. */
+  protected List<Trigger> getExpiredTriggers(long earliestValidInsertion) {
+    return mDatastoreManager.getTriggers().stream()
         .filter(t -> t.getTriggerTime() < earliestValidInsertion)
-        .forEach(t -> triggersToRemove.add(t));
-    mDatastoreManager.getTriggers().removeAll(triggersToRemove);
+        .collect(Collectors.toList());
+  }
 
-    List<EventReport> eventReportsToRemove = new ArrayList<>();
-    mDatastoreManager.getEventReports().stream()
-        .filter(
-            e ->
-                e.getStatus() == EventReport.Status.DELIVERED
-                    || e.getReportTime() < earliestValidInsertion)
-        .forEach(e -> eventReportsToRemove.add(e));
-    mDatastoreManager.getEventReports().removeAll(eventReportsToRemove);
+  /**
+   * Returns the event reports that were delivered or have a report time before {@code
+   * earliestValidInsertion}, ordered by {@link #getExpiryTime(EventReport)} and then by insertion.
+   */
+  protected List<EventReport> getExpiredEventReports(long earliestValidInsertion) {
+    return mDatastoreManager.getEventReports().stream()
+        .filter(e -> getExpiryTime(e) < earliestValidInsertion)
+        .sorted(Comparator.comparingLong(MeasurementDAO::getExpiryTime))
+        .collect(Collectors.toList());
+  }
+
+  /** Returns the time an event report expires at; delivered reports expire right away. */
+  static long getExpiryTime(EventReport eventReport) {
+    return eventReport.getStatus() == EventReport.Status.DELIVERED
+        ? Long.MIN_VALUE
+        : eventReport.getReportTime();
+  }
 
-    List<Attribution> attributionRateLimitsToRemove = new ArrayList<>();
-    mDatastoreManager.getAttributions().stream()
+  /** Returns the attributions with a trigger time before {@code earliestValidInsertion}. */
+  protected List<Attribution> getExpiredAttributions(long earliestValidInsertion) {
+    return mDatastoreManager.getAttributions().stream()
         .filter(a -> a.getTriggerTime() < earliestValidInsertion)
-        .forEach(a -> attributionRateLimitsToRemove.add(a));
-    mDatastoreManager.getAttributions().removeAll(attributionRateLimitsToRemove);
+        .collect(Collectors.toList());
   }
 
   @Override
@@ -612,16 +598,17 @@ public class MeasurementDAO implements IMeasurementDAO {
     }
   }
 
-  private void deleteMeasurementDataByRegistrant(String registrant) {
+  protected void deleteMeasurementDataByRegistrant(String registrant) {
     mDatastoreManager.removeAttributionRateLimitsByFilter(
         a -> a.getRegistrant().equals(registrant));
-    mDatastoreManager.removeEventReportsByFilter(
-        e -> mDatastoreManager.getEventReportsByRegistrant(registrant).contains(e));
+    List<EventReport> registrantEventReports =
+        mDatastoreManager.getEventReportsByRegistrant(registrant);
+    mDatastoreManager.removeEventReportsByFilter(registrantEventReports::contains);
     mDatastoreManager.removeTriggersByFilter(t -> t.getRegistrant().toString().equals(registrant));
     mDatastoreManager.removeSourcesByFilter(s -> s.getRegistrant().toString().equals(registrant));
   }
 
-  private void deleteMeasurementDataByRegistrantAndURI(String registrant, String origin) {
+  protected void deleteMeasurementDataByRegistrantAndURI(String registrant, String origin) {
     mDatastoreManager.removeAttributionRateLimitsByFilter(
         a -> a.getRegistrant().equals(registrant),
         a -> a.getSourceSite().equals(origin) || a.getDestinationSite().equals(origin));
@@ -645,7 +632,7 @@ public class MeasurementDAO implements IMeasurementDAO {
         s -> s.getPublisher().toString().equals(origin));
   }
 
-  private void deleteMeasurementDataByRegistrantAndTimeRange(
+  protected void deleteMeasurementDataByRegistrantAndTimeRange(
       String registrant, Instant start, Instant end) {
     mDatastoreManager.removeAttributionRateLimitsByFilter(
         a -> a.getRegistrant().equals(registrant),
@@ -672,7 +659,7 @@ public class MeasurementDAO implements IMeasurementDAO {
         s -> s.getEventTime() <= end.toEpochMilli());
   }
 
-  private void deleteMeasurementDataByAllVars(
+  protected void deleteMeasurementDataByAllVars(
       String registrant, String origin, Instant start, Instant end) {
     mDatastoreManager.removeAttributionRateLimitsByFilter(
         a -> a.getRegistrant().equals(registrant),
@@ -704,7 +691,7 @@ public class MeasurementDAO implements IMeasurementDAO {
         s -> s.getEventTime() <= end.toEpochMilli());
   }
 
-  private void validateOptionalRange(Instant start, Instant end) {
+  static void validateOptionalRange(Instant start, Instant end) {
     if (start == null ^ end == null)
       throw new IllegalArgumentException(
           "invalid range, both start and end dates must be provided if providing any");
@@ -743,7 +730,7 @@ public class MeasurementDAO implements IMeasurementDAO {
     }
   }
 
-  private Optional<URI> extractBaseURI(URI uri, EventSurfaceType eventSurfaceType) {
+  protected Optional<URI> extractBaseURI(URI uri, EventSurfaceType eventSurfaceType) {
     return eventSurfaceType == EventSurfaceType.APP
         ? Optional.of(BaseUriExtractor.getBaseUri(uri))
         : Web.topPrivateDomainAndScheme(uri);
@@ -764,6 +751,11 @@ public class MeasurementDAO implements IMeasurementDAO {
     mDatastoreManager.updateSourceStatus(sources, status);
   }
 
+  @Override
+  public void updateTriggerStatus(List<String> triggerIds, Trigger.Status status) {
+    mDatastoreManager.updateTriggerStatus(triggerIds, status);
+  }
+
   @Override
   public void updateSourceEventReportDedupKeys(Source source) {
     mDatastoreManager.updateSourceEventReportDedupKeys(source);
@@ -771,7 +763,7 @@ public class MeasurementDAO implements IMeasurementDAO {
 
   @Override
   public void updateSourceAttributedTriggers(Source source) {
-    mDatastoreManager.updateSourceEventReportDedupKeys(source);
+    mDatastoreManager.updateSourceAttributedTriggers(source);
   }
 
   @Override
@@ -806,17 +798,32 @@ public class MeasurementDAO implements IMeasurementDAO {
 
   @Override
   public void insertAggregateReport(AggregateReport aggregateReport) {
-    mDatastoreManager.getAggregateReports().add(aggregateReport);
+    mDatastoreManager.insertAggregateReport(aggregateReport);
   }
 
   @Override
   public void insertDebugReport(DebugReport debugReport) {
-    mDatastoreManager.getDebugReports().add(debugReport);
+    mDatastoreManager.insertDebugReport(debugReport);
   }
 
   @Override
   public List<EventReport> getAllEventReports() {
-    return mDatastoreManager.getEventReports();
+    return new ArrayList<>(mDatastoreManager.getEventReports());
+  }
+
+  @Override
+  public List<Source> getAllSources() {
+    return new ArrayList<>(mDatastoreManager.getSources());
+  }
+
+  @Override
+  public List<Trigger> getAllTriggers() {
+    return new ArrayList<>(mDatastoreManager.getTriggers());
+  }
+
+  @Override
+  public List<Attribution> getAllAttributions() {
+    return new ArrayList<>(mDatastoreManager.getAttributions());
   }
 
   @Override
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.util.List;
+
+/**
+ * Schema of the tables used by {@link SqliteMeasurementDAO}, mirroring the measurement tables and
+ * indexes on device.
+ *
+ * <p>Every table has an integer {@code _row} primary key, which orders rows by insertion the way
+ * the {@link DatastoreManager} lists are ordered, since the same {@code _id} may be stored more
+ * than once. Records are stored whole in the {@code payload} column, using Java serialization, and
+ * the columns next to it are copies of the fields the queries filter on. The {@code _origin_key}
+ * and {@code _site_key} columns hold the {@link com.google.measurement.util.DestinationUri} origin
+ * key and reversed site key of the publisher or destination, so that origin and site matches are
+ * counted with an index.
+ *
+ * <p>{@link #STAGED_EVENT} has no counterpart on device: it holds the input records of a simulation
+ * until they are read back in time order to be stored.
+ */
+final class MeasurementTables {
+  static final String SOURCE = "msmt_source";
+  static final String SOURCE_DESTINATION = "msmt_source_destination";
+  static final String TRIGGER = "msmt_trigger";
+  static final String EVENT_REPORT = "msmt_event_report";
+  static final String ATTRIBUTION = "msmt_attribution";
+  static final String AGGREGATE_REPORT = "msmt_aggregate_report";
+  static final String DEBUG_REPORT = "msmt_debug_report";
+  static final String STAGED_EVENT = "msmt_staged_event";
+
+  static final List<String> CREATE_STATEMENTS =
+      List.of(
+          "CREATE TABLE "
+              + SOURCE
+              + " (_row INTEGER PRIMARY KEY, _id TEXT, publisher TEXT, publisher_type INTEGER,"
+              + " app_destination TEXT, enrollment_id TEXT, event_time INTEGER,"
+              + " expiry_time INTEGER, priority INTEGER, status INTEGER, registrant TEXT,"
+              + " install_attribution_window INTEGER, debug_ad_id TEXT, publisher_origin_key TEXT,"
+              + " publisher_site_key TEXT, payload BLOB)",
+          "CREATE TABLE "
+              + SOURCE_DESTINATION
+              + " (source_row INTEGER REFERENCES "
+              + SOURCE
+              + " (_row) ON DELETE CASCADE, destination TEXT, destination_type INTEGER)",
+          "CREATE TABLE "
+              + TRIGGER
+              + " (_row INTEGER PRIMARY KEY, _id TEXT, attribution_destination TEXT,"
+              + " destination_type INTEGER, enrollment_id TEXT, trigger_time INTEGER,"
+              + " status INTEGER, registrant TEXT, debug_ad_id TEXT, destination_origin_key TEXT,"
+              + " destination_site_key TEXT, payload BLOB)",
+          "CREATE TABLE "
+              + EVENT_REPORT
+              + " (_row INTEGER PRIMARY KEY, _id TEXT, source_id TEXT,"
+              + " attribution_destination TEXT, trigger_time INTEGER, report_time INTEGER,"
+              + " status INTEGER, debug_report_status INTEGER, destination_origin_key TEXT,"
+              + " destination_site_key TEXT, payload BLOB)",
+          "CREATE TABLE "
+              + ATTRIBUTION
+              + " (_row INTEGER PRIMARY KEY, _id TEXT, source_site TEXT, source_origin TEXT,"
+              + " destination_site TEXT, destination_origin TEXT, enrollment_id TEXT,"
+              + " trigger_time INTEGER, registrant TEXT, source_id TEXT, trigger_id TEXT)",
+          "CREATE TABLE "
+              + AGGREGATE_REPORT
+              + " (_row INTEGER PRIMARY KEY, _id TEXT, publisher TEXT,"
+              + " attribution_destination TEXT, scheduled_report_time INTEGER, status INTEGER,"
+              + " destination_origin_key TEXT, destination_site_key TEXT, payload BLOB)",
+          "CREATE TABLE " + DEBUG_REPORT + " (_row INTEGER PRIMARY KEY, payload BLOB)",
+          "CREATE TABLE "
+              + STAGED_EVENT
+              + " (_row INTEGER PRIMARY KEY, type INTEGER, timestamp INTEGER, payload BLOB)");
+
+  static final List<String> CREATE_INDEXES =
+      List.of(
+          "CREATE INDEX idx_msmt_source_ei_et ON " + SOURCE + " (enrollment_id, expiry_time DESC)",
+          "CREATE INDEX idx_msmt_source_p_s_et ON " + SOURCE + " (publisher, status, event_time)",
+          "CREATE INDEX idx_msmt_source_id ON " + SOURCE + " (_id)",
+          "CREATE INDEX idx_msmt_source_registrant ON " + SOURCE + " (registrant)",
+          "CREATE INDEX idx_msmt_source_ad ON " + SOURCE + " (app_destination)",
+          "CREATE INDEX idx_msmt_source_pok ON " + SOURCE + " (publisher_origin_key)",
+          "CREATE INDEX idx_msmt_source_psk ON " + SOURCE + " (publisher_site_key)",
+          "CREATE INDEX idx_msmt_source_destination_d_dt ON "
+              + SOURCE_DESTINATION
+              + " (destination, destination_type)",
+          "CREATE INDEX idx_msmt_source_destination_sr ON " + SOURCE_DESTINATION + " (source_row)",
+          "CREATE INDEX idx_msmt_trigger_ad_ei_tt ON "
+              + TRIGGER
+              + " (attribution_destination, enrollment_id, trigger_time)",
+          "CREATE INDEX idx_msmt_trigger_id ON " + TRIGGER + " (_id)",
+          "CREATE INDEX idx_msmt_trigger_registrant ON " + TRIGGER + " (registrant)",
+          "CREATE INDEX idx_msmt_trigger_tt ON " + TRIGGER + " (trigger_time)",
+          "CREATE INDEX idx_msmt_trigger_dok ON " + TRIGGER + " (destination_origin_key)",
+          "CREATE INDEX idx_msmt_trigger_dsk ON " + TRIGGER + " (destination_site_key)",
+          "CREATE INDEX idx_msmt_event_report_id ON " + EVENT_REPORT + " (_id)",
+          "CREATE INDEX idx_msmt_event_report_si ON " + EVENT_REPORT + " (source_id)",
+          "CREATE INDEX idx_msmt_event_report_ad ON " + EVENT_REPORT + " (attribution_destination)",
+          "CREATE INDEX idx_msmt_event_report_rt ON " + EVENT_REPORT + " (report_time)",
+          "CREATE INDEX idx_msmt_event_report_dok ON " + EVENT_REPORT + " (destination_origin_key)",
+          "CREATE INDEX idx_msmt_event_report_dsk ON " + EVENT_REPORT + " (destination_site_key)",
+          "CREATE INDEX idx_msmt_attribution_ss_ds_ei_tt ON "
+              + ATTRIBUTION
+              + " (source_site, destination_site, enrollment_id, trigger_time)",
+          "CREATE INDEX idx_msmt_attribution_ds ON " + ATTRIBUTION + " (destination_site)",
+          "CREATE INDEX idx_msmt_attribution_registrant ON " + ATTRIBUTION + " (registrant)",
+          "CREATE INDEX idx_msmt_attribution_tt ON " + ATTRIBUTION + " (trigger_time)",
+          "CREATE INDEX idx_msmt_aggregate_report_ad ON "
+              + AGGREGATE_REPORT
+              + " (attribution_destination)",
+          "CREATE INDEX idx_msmt_aggregate_report_srt ON "
+              + AGGREGATE_REPORT
+              + " (scheduled_report_time)",
+          "CREATE INDEX idx_msmt_aggregate_report_dok ON "
+              + AGGREGATE_REPORT
+              + " (destination_origin_key)",
+          "CREATE INDEX idx_msmt_aggregate_report_dsk ON "
+              + AGGREGATE_REPORT
+              + " (destination_site_key)",
+          "CREATE INDEX idx_msmt_staged_event_t_ts ON " + STAGED_EVENT + " (type, timestamp)");
+
+  private MeasurementTables() {}
+}
@@ -18,14 +18,22 @@ package com.google.measurement;
 
 import com.google.measurement.util.Util;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Class for holding privacy related parameters. All values in this class are temporary and subject
  * to change based on feedback and testing.
+ *
+ * <p>The source noise probabilities are read from a properties file. The static fields hold those
+ * of {@code config/PrivacyParams.properties}; an instance holds those of any file, see {@link
+ * #load(String)}, so that several sets of them can be simulated in the same run.
  */
-public final class PrivacyParams {
+public final class PrivacyParams implements Serializable {
+  private static final String DEFAULT_PROPERTIES_FILE = "./config/PrivacyParams.properties";
+
   /** Max reports for 'Navigation' {@link Source}. */
   public static final int NAVIGATION_SOURCE_MAX_REPORTS = 3;
 
@@ -182,31 +190,142 @@ public final class PrivacyParams {
    */
   public static final int MAX_CONFIGURABLE_EVENT_REPORT_EARLY_REPORTING_WINDOWS = 2;
 
+  private static final PrivacyParams DEFAULT;
+
   static {
-    Properties props = new Properties();
     try {
-      Util.loadProperties(props, "./config/PrivacyParams.properties");
+      DEFAULT = load(DEFAULT_PROPERTIES_FILE);
     } catch (IOException e) {
       throw new RuntimeException(
           "Error with reading file config/PrivacyParams.properties."
               + " Please ensure that it exists and is properly formatted");
     }
-    EVENT_NOISE_PROBABILITY = validateDouble(props, "eventNoiseProbability");
-    NAVIGATION_NOISE_PROBABILITY = validateDouble(props, "navigationNoiseProbability");
-    INSTALL_ATTR_NAVIGATION_NOISE_PROBABILITY = NAVIGATION_NOISE_PROBABILITY;
-    INSTALL_ATTR_EVENT_NOISE_PROBABILITY =
-        validateDouble(props, "installAttrEventNoiseProbability");
-    DUAL_DESTINATION_EVENT_NOISE_PROBABILITY =
-        validateDouble(props, "dualDestinationEventNoiseProbability");
+    EVENT_NOISE_PROBABILITY = DEFAULT.mEventNoiseProbability;
+    NAVIGATION_NOISE_PROBABILITY = DEFAULT.mNavigationNoiseProbability;
+    INSTALL_ATTR_NAVIGATION_NOISE_PROBABILITY = DEFAULT.mInstallAttrNavigationNoiseProbability;
+    INSTALL_ATTR_EVENT_NOISE_PROBABILITY = DEFAULT.mInstallAttrEventNoiseProbability;
+    DUAL_DESTINATION_EVENT_NOISE_PROBABILITY = DEFAULT.mDualDestinationEventNoiseProbability;
     DUAL_DESTINATION_NAVIGATION_NOISE_PROBABILITY =
-        validateDouble(props, "dualDestinationNavigationNoiseProbability");
+        DEFAULT.mDualDestinationNavigationNoiseProbability;
     INSTALL_ATTR_DUAL_DESTINATION_NAVIGATION_NOISE_PROBABILITY =
-        DUAL_DESTINATION_NAVIGATION_NOISE_PROBABILITY;
+        DEFAULT.mInstallAttrDualDestinationNavigationNoiseProbability;
     INSTALL_ATTR_DUAL_DESTINATION_EVENT_NOISE_PROBABILITY =
+        DEFAULT.mInstallAttrDualDestinationEventNoiseProbability;
+  }
+
+  private final double mEventNoiseProbability;
+  private final double mNavigationNoiseProbability;
+  private final double mInstallAttrEventNoiseProbability;
+  private final double mInstallAttrNavigationNoiseProbability;
+  private final double mDualDestinationEventNoiseProbability;
+  private final double mDualDestinationNavigationNoiseProbability;
+  private final double mInstallAttrDualDestinationEventNoiseProbability;
+  private final double mInstallAttrDualDestinationNavigationNoiseProbability;
+
+  private PrivacyParams(Properties props) {
+    mEventNoiseProbability = validateDouble(props, "eventNoiseProbability");
+    mNavigationNoiseProbability = validateDouble(props, "navigationNoiseProbability");
+    mInstallAttrNavigationNoiseProbability = mNavigationNoiseProbability;
+    mInstallAttrEventNoiseProbability = validateDouble(props, "installAttrEventNoiseProbability");
+    mDualDestinationEventNoiseProbability =
+        validateDouble(props, "dualDestinationEventNoiseProbability");
+    mDualDestinationNavigationNoiseProbability =
+        validateDouble(props, "dualDestinationNavigationNoiseProbability");
+    mInstallAttrDualDestinationNavigationNoiseProbability =
+        mDualDestinationNavigationNoiseProbability;
+    mInstallAttrDualDestinationEventNoiseProbability =
         validateDouble(props, "installAttrDualDestinationEventNoiseProbability");
   }
 
-  private PrivacyParams() {}
+  /** Returns the parameters of {@code config/PrivacyParams.properties}. */
+  public static PrivacyParams getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Reads the parameters of a properties file with the keys of {@code
+   * config/PrivacyParams.properties}.
+   *
+   * @throws IllegalArgumentException if a key is missing or its value is not a valid double
+   */
+  public static PrivacyParams load(String propertiesFile) throws IOException {
+    Properties props = new Properties();
+    Util.loadProperties(props, propertiesFile);
+    return new PrivacyParams(props);
+  }
+
+  /** {@link Source} Noise probability for 'Event'. */
+  public double getEventNoiseProbability() {
+    return mEventNoiseProbability;
+  }
+
+  /** {@link Source} Noise probability for 'Navigation'. */
+  public double getNavigationNoiseProbability() {
+    return mNavigationNoiseProbability;
+  }
+
+  /** {@link Source} Noise probability for 'Event' which supports install attribution. */
+  public double getInstallAttrEventNoiseProbability() {
+    return mInstallAttrEventNoiseProbability;
+  }
+
+  /** {@link Source} Noise probability for 'Navigation' which supports install attribution. */
+  public double getInstallAttrNavigationNoiseProbability() {
+    return mInstallAttrNavigationNoiseProbability;
+  }
+
+  /** {@link Source} Noise probability for 'Event' with both app and web destinations. */
+  public double getDualDestinationEventNoiseProbability() {
+    return mDualDestinationEventNoiseProbability;
+  }
+
+  /** {@link Source} Noise probability for 'Navigation' with both app and web destinations. */
+  public double getDualDestinationNavigationNoiseProbability() {
+    return mDualDestinationNavigationNoiseProbability;
+  }
+
+  /**
+   * {@link Source} Noise probability for 'Event' with both app and web destinations which supports
+   * install attribution.
+   */
+  public double getInstallAttrDualDestinationEventNoiseProbability() {
+    return mInstallAttrDualDestinationEventNoiseProbability;
+  }
+
+  /**
+   * {@link Source} Noise probability for 'Navigation' with both app and web destinations which
+   * supports install attribution.
+   */
+  public double getInstallAttrDualDestinationNavigationNoiseProbability() {
+    return mInstallAttrDualDestinationNavigationNoiseProbability;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PrivacyParams)) {
+      return false;
+    }
+    PrivacyParams other = (PrivacyParams) obj;
+    return mEventNoiseProbability == other.mEventNoiseProbability
+        && mNavigationNoiseProbability == other.mNavigationNoiseProbability
+        && mInstallAttrEventNoiseProbability == other.mInstallAttrEventNoiseProbability
+        && mDualDestinationEventNoiseProbability == other.mDualDestinationEventNoiseProbability
+        && mDualDestinationNavigationNoiseProbability
+            == other.mDualDestinationNavigationNoiseProbability
+        && mInstallAttrDualDestinationEventNoiseProbability
+            == other.mInstallAttrDualDestinationEventNoiseProbability;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(
+        mEventNoiseProbability,
+        mNavigationNoiseProbability,
+        mInstallAttrEventNoiseProbability,
+        mDualDestinationEventNoiseProbability,
+        mDualDestinationNavigationNoiseProbability,
+        mInstallAttrDualDestinationEventNoiseProbability);
+  }
 
   private static double validateDouble(Properties props, String key) {
     key = validateKey(props, key);
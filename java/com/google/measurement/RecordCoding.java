@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.measurement.util.UnsignedLong;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.util.VarInt;
+
+/**
+ * Field encodings shared by the record coders. Integers are varints. Nullable strings, URIs, enums
+ * and lists are prefixed with their length or ordinal plus one, so that null costs a single zero
+ * byte. Strings are written as UTF-8.
+ */
+final class RecordCoding {
+  private RecordCoding() {}
+
+  static void writeVarLong(long value, OutputStream out) throws IOException {
+    VarInt.encode(value, out);
+  }
+
+  static long readVarLong(InputStream in) throws IOException {
+    return VarInt.decodeLong(in);
+  }
+
+  static void writeVarInt(int value, OutputStream out) throws IOException {
+    VarInt.encode(value, out);
+  }
+
+  static int readVarInt(InputStream in) throws IOException {
+    return VarInt.decodeInt(in);
+  }
+
+  static void writeString(String value, OutputStream out) throws IOException {
+    if (value == null) {
+      VarInt.encode(0, out);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    VarInt.encode(bytes.length + 1, out);
+    out.write(bytes);
+  }
+
+  static String readString(InputStream in) throws IOException {
+    int length = VarInt.decodeInt(in) - 1;
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = in.readNBytes(length);
+    if (bytes.length != length) {
+      throw new EOFException("Encoded string is truncated");
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  static void writeUri(URI value, OutputStream out) throws IOException {
+    writeString(value == null ? null : value.toString(), out);
+  }
+
+  static URI readUri(InputStream in) throws IOException {
+    String value = readString(in);
+    return value == null ? null : URI.create(value);
+  }
+
+  static void writeUriList(List<URI> values, OutputStream out) throws IOException {
+    if (values == null) {
+      VarInt.encode(0, out);
+      return;
+    }
+    VarInt.encode(values.size() + 1, out);
+    for (URI value : values) {
+      writeUri(value, out);
+    }
+  }
+
+  static List<URI> readUriList(InputStream in) throws IOException {
+    int size = VarInt.decodeInt(in) - 1;
+    if (size < 0) {
+      return null;
+    }
+    List<URI> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(readUri(in));
+    }
+    return values;
+  }
+
+  static void writeUnsignedLong(UnsignedLong value, OutputStream out) throws IOException {
+    if (value == null) {
+      out.write(0);
+      return;
+    }
+    out.write(1);
+    VarInt.encode(value.getValue(), out);
+  }
+
+  static UnsignedLong readUnsignedLong(InputStream in) throws IOException {
+    int present = in.read();
+    if (present < 0) {
+      throw new EOFException("Encoded unsigned long is truncated");
+    }
+    return present == 0 ? null : new UnsignedLong(VarInt.decodeLong(in));
+  }
+
+  static void writeUnsignedLongList(List<UnsignedLong> values, OutputStream out)
+      throws IOException {
+    if (values == null) {
+      VarInt.encode(0, out);
+      return;
+    }
+    VarInt.encode(values.size() + 1, out);
+    for (UnsignedLong value : values) {
+      writeUnsignedLong(value, out);
+    }
+  }
+
+  static List<UnsignedLong> readUnsignedLongList(InputStream in) throws IOException {
+    int size = VarInt.decodeInt(in) - 1;
+    if (size < 0) {
+      return null;
+    }
+    List<UnsignedLong> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(readUnsignedLong(in));
+    }
+    return values;
+  }
+
+  static void writeEnum(Enum<?> value, OutputStream out) throws IOException {
+    VarInt.encode(value == null ? 0 : value.ordinal() + 1, out);
+  }
+
+  static <E extends Enum<E>> E readEnum(E[] values, InputStream in) throws IOException {
+    int ordinal = VarInt.decodeInt(in) - 1;
+    if (ordinal < 0) {
+      return null;
+    }
+    if (ordinal >= values.length) {
+      throw new CoderException("Unknown enum ordinal " + ordinal);
+    }
+    return values[ordinal];
+  }
+}
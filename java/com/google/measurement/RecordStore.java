@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Insertion-ordered store of records that can also be looked up by a key, usually the record id.
+ * Like a list, it may hold the same record, or records with the same key, more than once.
+ *
+ * @param <K> type of the lookup key
+ * @param <T> type of the stored records
+ */
+class RecordStore<K, T> {
+  private final Function<T, K> mKeyFunction;
+  // Records by insertion sequence number; iteration follows insertion order.
+  private final LinkedHashMap<Long, T> mRecords = new LinkedHashMap<>();
+  private final Map<K, Set<Long>> mSequencesByKey = new HashMap<>();
+  // Sequences of each stored instance, compared by reference, in insertion order.
+  private final Map<T, Deque<Long>> mSequencesByRecord = new IdentityHashMap<>();
+  private long mNextSequence;
+
+  RecordStore(Function<T, K> keyFunction) {
+    mKeyFunction = keyFunction;
+  }
+
+  /**
+   * Creates a store holding the records of {@code other}, in the same order and by the same keys.
+   */
+  RecordStore(RecordStore<K, T> other) {
+    mKeyFunction = other.mKeyFunction;
+    mRecords.putAll(other.mRecords);
+    other.mSequencesByKey.forEach((key, s) -> mSequencesByKey.put(key, new LinkedHashSet<>(s)));
+    other.mSequencesByRecord.forEach(
+        (record, s) -> mSequencesByRecord.put(record, new ArrayDeque<>(s)));
+    mNextSequence = other.mNextSequence;
+  }
+
+  /** Appends {@code record}. */
+  void add(T record) {
+    long sequence = mNextSequence++;
+    mRecords.put(sequence, record);
+    mSequencesByKey
+        .computeIfAbsent(mKeyFunction.apply(record), k -> new LinkedHashSet<>())
+        .add(sequence);
+    mSequencesByRecord.computeIfAbsent(record, r -> new ArrayDeque<>()).add(sequence);
+  }
+
+  /** Returns the records with the given key, in insertion order. */
+  List<T> get(K key) {
+    Set<Long> sequences = mSequencesByKey.get(key);
+    if (sequences == null) {
+      return Collections.emptyList();
+    }
+    List<T> records = new ArrayList<>(sequences.size());
+    for (long sequence : sequences) {
+      records.add(mRecords.get(sequence));
+    }
+    return records;
+  }
+
+  /** Returns the first inserted record with the given key, or null if there is none. */
+  T getFirst(K key) {
+    Set<Long> sequences = mSequencesByKey.get(key);
+    return sequences == null ? null : mRecords.get(sequences.iterator().next());
+  }
+
+  /**
+   * Removes the first inserted record that has the same key as {@code record} and is equal to it.
+   * Records are only compared across keys, like {@link List#remove(Object)} does, when no record
+   * with the same key is equal to {@code record}.
+   *
+   * @return the removed record, or null if no record was equal to {@code record}
+   */
+  T removeFirstEqual(T record) {
+    Set<Long> sequences = mSequencesByKey.get(mKeyFunction.apply(record));
+    if (sequences != null) {
+      for (long sequence : sequences) {
+        if (Objects.equals(record, mRecords.get(sequence))) {
+          return remove(sequence);
+        }
+      }
+    }
+    for (Map.Entry<Long, T> entry : mRecords.entrySet()) {
+      if (Objects.equals(record, entry.getValue())) {
+        return remove(entry.getKey());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the first inserted occurrence of the instance {@code record}, compared by reference.
+   *
+   * @return true if an occurrence was removed
+   */
+  boolean removeSame(T record) {
+    Deque<Long> sequences = mSequencesByRecord.get(record);
+    if (sequences == null) {
+      return false;
+    }
+    remove(sequences.getFirst());
+    return true;
+  }
+
+  /**
+   * Replaces every occurrence of the instance {@code record}, compared by reference, with {@code
+   * replacement}, keeping their positions. Both must have the same key, and {@code replacement}
+   * must not be stored yet.
+   */
+  void replaceSame(T record, T replacement) {
+    Deque<Long> sequences = mSequencesByRecord.remove(record);
+    if (sequences == null) {
+      return;
+    }
+    for (long sequence : sequences) {
+      mRecords.put(sequence, replacement);
+    }
+    mSequencesByRecord.put(replacement, sequences);
+  }
+
+  /**
+   * Removes every record matching {@code filter} and returns them in insertion order. The filter is
+   * evaluated against all records before any of them is removed, so it may read this store.
+   */
+  List<T> removeIf(Predicate<T> filter) {
+    List<Long> matchingSequences = new ArrayList<>();
+    for (Map.Entry<Long, T> entry : mRecords.entrySet()) {
+      if (filter.test(entry.getValue())) {
+        matchingSequences.add(entry.getKey());
+      }
+    }
+    List<T> removed = new ArrayList<>(matchingSequences.size());
+    for (long sequence : matchingSequences) {
+      removed.add(remove(sequence));
+    }
+    return removed;
+  }
+
+  /** Returns an unmodifiable insertion-ordered view of the records. */
+  Collection<T> values() {
+    return Collections.unmodifiableCollection(mRecords.values());
+  }
+
+  private T remove(long sequence) {
+    T record = mRecords.remove(sequence);
+    K key = mKeyFunction.apply(record);
+    Set<Long> keySequences = mSequencesByKey.get(key);
+    keySequences.remove(sequence);
+    if (keySequences.isEmpty()) {
+      mSequencesByKey.remove(key);
+    }
+    Deque<Long> recordSequences = mSequencesByRecord.get(record);
+    recordSequences.remove(sequence);
+    if (recordSequences.isEmpty()) {
+      mSequencesByRecord.remove(record);
+    }
+    return record;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Receives the event and debug reports of each simulated user, see {@link UserSimulation}. */
+@FunctionalInterface
+public interface ReportSink extends Serializable {
+  /** Base name of the event report files. */
+  String EVENT_REPORTS = "event_reports";
+
+  /** Base name of the debug report files. */
+  String DEBUG_EVENT_REPORTS = "debug_event_reports";
+
+  /**
+   * Writes the reports of one user. It may be called more than once for the same user and file, for
+   * example as event reports are deleted as expired, each time with the reports that follow those
+   * of the earlier calls.
+   *
+   * @param directory output directory of the reports: {@code outputDirectory/<api choice>}, or
+   *     {@code outputDirectory/<api choice>/<scenario>} in a sweep
+   * @param fileName {@link #EVENT_REPORTS} or {@link #DEBUG_EVENT_REPORTS}
+   * @param userId the user the reports were generated for
+   * @param reports the reports as JSON, not empty
+   */
+  void write(String directory, String fileName, String userId, List<String> reports)
+      throws IOException;
+
+  /**
+   * Returns a sink that writes the reports of each user to {@code
+   * directory/<userId>/<fileName>.json}, one report per line. The first write to a file replaces
+   * the file of a previous run and later ones append to it, so a new sink is needed for every run.
+   */
+  static ReportSink perUserDirectories() {
+    // Kept as strings since Path is not serializable.
+    Set<String> written = new HashSet<>();
+    return (directory, fileName, userId, reports) -> {
+      Path file = Files.createDirectories(Path.of(directory, userId)).resolve(fileName + ".json");
+      if (written.add(file.toString())) {
+        Files.write(file, reports);
+      } else {
+        Files.write(file, reports, StandardOpenOption.APPEND);
+      }
+    };
+  }
+}
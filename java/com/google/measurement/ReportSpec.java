@@ -63,7 +63,7 @@ public class ReportSpec implements Serializable {
         mTriggerSpecs[i] = new TriggerSpec.Builder((JSONObject) triggerSpecs.get(i)).build();
       }
       mMaxEventLevelReports = maxEventLevelReports;
-      mPrivacyParams = new PrivacyComputationParams();
+      mPrivacyParams = new PrivacyComputationParams(mTriggerSpecs, mMaxEventLevelReports);
       if (source != null) {
         mAttributedTriggersRef = source.getAttributedTriggers();
       }
@@ -109,6 +109,21 @@ public class ReportSpec implements Serializable {
     }
   }
 
+  private ReportSpec() {}
+
+  /**
+   * Returns a report spec that shares the trigger specs and privacy parameters of this one, which
+   * never change, and tracks {@code attributedTriggers} instead of the triggers of this one.
+   */
+  ReportSpec copyFor(List<AttributedTrigger> attributedTriggers) {
+    ReportSpec copy = new ReportSpec();
+    copy.mTriggerSpecs = mTriggerSpecs;
+    copy.mMaxEventLevelReports = mMaxEventLevelReports;
+    copy.mPrivacyParams = mPrivacyParams;
+    copy.mAttributedTriggersRef = attributedTriggers;
+    return copy;
+  }
+
   /**
    * @return the probability to use fake report
    */
@@ -223,16 +238,6 @@ public class ReportSpec implements Serializable {
     return encodeTriggerSpecsToJson(mTriggerSpecs);
   }
 
-  private int[] computerPerTypeNumWindowList() {
-    List<Integer> list = new ArrayList<>();
-    for (TriggerSpec triggerSpec : mTriggerSpecs) {
-      for (UnsignedLong ignored : triggerSpec.getTriggerData()) {
-        list.add(triggerSpec.getEventReportWindowsEnd().size());
-      }
-    }
-    return list.stream().mapToInt(Integer::intValue).toArray();
-  }
-
   /**
    * Define the report level priority if multiple trigger contribute to a report. Incoming priority
    * will be compared with previous triggers priority to get the highest priority
@@ -259,16 +264,6 @@ public class ReportSpec implements Serializable {
     return mAttributedTriggersRef;
   }
 
-  private int[] computerPerTypeCapList() {
-    List<Integer> list = new ArrayList<>();
-    for (TriggerSpec triggerSpec : mTriggerSpecs) {
-      for (UnsignedLong ignored : triggerSpec.getTriggerData()) {
-        list.add(triggerSpec.getSummaryBucket().size());
-      }
-    }
-    return list.stream().mapToInt(Integer::intValue).toArray();
-  }
-
   @Override
   public boolean equals(Object obj) {
     if (!(obj instanceof ReportSpec)) {
@@ -312,18 +307,19 @@ public class ReportSpec implements Serializable {
     return result.toJSONString();
   }
 
-  private class PrivacyComputationParams implements Serializable {
+  /** Privacy parameters computed from the trigger specs, which never change once computed. */
+  private static final class PrivacyComputationParams implements Serializable {
     private final int[] mPerTypeNumWindowList;
     private final int[] mPerTypeCapList;
     private final int mNumStates;
-    private double mFlipProbability = 0.0;
+    private final double mFlipProbability;
     private final double mInformationGain;
 
-    PrivacyComputationParams() {
-      mPerTypeNumWindowList = computerPerTypeNumWindowList();
-      mPerTypeCapList = computerPerTypeCapList();
+    PrivacyComputationParams(TriggerSpec[] triggerSpecs, int maxEventLevelReports) {
+      mPerTypeNumWindowList = computePerTypeNumWindowList(triggerSpecs);
+      mPerTypeCapList = computePerTypeCapList(triggerSpecs);
       // Check the upper bound of the parameters
-      if (Math.min(mMaxEventLevelReports, Arrays.stream(mPerTypeCapList).sum())
+      if (Math.min(maxEventLevelReports, Arrays.stream(mPerTypeCapList).sum())
           > PrivacyParams.MAX_FLEXIBLE_EVENT_REPORTS) {
         throw new IllegalArgumentException(
             "Max Event Reports Exceeds " + PrivacyParams.MAX_FLEXIBLE_EVENT_REPORTS);
@@ -336,7 +332,7 @@ public class ReportSpec implements Serializable {
       }
       // check duplication of the trigger data
       Set<UnsignedLong> seen = new HashSet<>();
-      for (TriggerSpec triggerSpec : mTriggerSpecs) {
+      for (TriggerSpec triggerSpec : triggerSpecs) {
         for (UnsignedLong num : triggerSpec.getTriggerData()) {
           if (!seen.add(num)) {
             throw new IllegalArgumentException("Duplication in Trigger Data");
@@ -346,7 +342,7 @@ public class ReportSpec implements Serializable {
       // compute number of state and other privacy parameters
       mNumStates =
           Combinatorics.getNumStatesFlexAPI(
-              mMaxEventLevelReports, mPerTypeNumWindowList, mPerTypeCapList);
+              maxEventLevelReports, mPerTypeNumWindowList, mPerTypeCapList);
       mFlipProbability = Combinatorics.getFlipProbability(mNumStates);
       mInformationGain = Combinatorics.getInformationGain(mNumStates, mFlipProbability);
       if (mInformationGain > PrivacyParams.MAX_FLEXIBLE_EVENT_INFORMATION_GAIN) {
@@ -356,19 +352,42 @@ public class ReportSpec implements Serializable {
     }
 
     PrivacyComputationParams(String inputLine) {
-
       mPerTypeNumWindowList = null;
       mPerTypeCapList = null;
       mNumStates = -1;
       mInformationGain = -1.0;
+      mFlipProbability = parseFlipProbability(inputLine);
+    }
+
+    private static double parseFlipProbability(String inputLine) {
       JSONParser parser = new JSONParser();
       try {
         JSONObject json = (JSONObject) parser.parse(inputLine);
-        mFlipProbability =
-            (Double) json.get(ReportSpecUtil.FlexEventReportJsonKeys.FLIP_PROBABILITY);
+        return (Double) json.get(ReportSpecUtil.FlexEventReportJsonKeys.FLIP_PROBABILITY);
       } catch (ParseException e) {
         e.printStackTrace();
+        return 0.0;
+      }
+    }
+
+    private static int[] computePerTypeNumWindowList(TriggerSpec[] triggerSpecs) {
+      List<Integer> list = new ArrayList<>();
+      for (TriggerSpec triggerSpec : triggerSpecs) {
+        for (UnsignedLong ignored : triggerSpec.getTriggerData()) {
+          list.add(triggerSpec.getEventReportWindowsEnd().size());
+        }
+      }
+      return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int[] computePerTypeCapList(TriggerSpec[] triggerSpecs) {
+      List<Integer> list = new ArrayList<>();
+      for (TriggerSpec triggerSpec : triggerSpecs) {
+        for (UnsignedLong ignored : triggerSpec.getTriggerData()) {
+          list.add(triggerSpec.getSummaryBucket().size());
+        }
       }
+      return list.stream().mapToInt(Integer::intValue).toArray();
     }
 
     private double getFlipProbability() {
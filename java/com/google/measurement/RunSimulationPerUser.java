@@ -16,9 +16,13 @@
 
 package com.google.measurement;
 
+import com.google.measurement.noising.SourceNoiseHandler;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.values.KV;
@@ -26,12 +30,31 @@ import org.apache.beam.sdk.values.TupleTag;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
+/**
+ * Runs the simulation for the records joined under each key built by {@link
+ * DataProcessor#platformKey(ApiChoice, String)}. The reports of each user are written under {@code
+ * outputDirectory/<api choice>/<userId>}, or output as rows, see {@link #withReportTag}. The number
+ * of records of each key is recorded in a {@link KeySizeHistogram}. With checkpoints, each user
+ * continues from the state joined under its key and outputs its state at the end of the run, see
+ * {@link #withCheckpoints}.
+ *
+ * <p>With scenarios, every scenario is run for each user in the same call, see {@link
+ * UserSimulation#runScenarios(Iterable, Iterable, Iterable, List)}, and the aggregatable reports of
+ * each scenario are output to the tag of the scenario instead of the main output.
+ */
 public class RunSimulationPerUser extends DoFn<KV<String, CoGbkResult>, List<JSONObject>>
     implements Serializable {
   private TupleTag<Source> sourceTag;
   private TupleTag<Trigger> triggerTag;
   private TupleTag<ExtensionEvent> extensionEventTag;
   private String outputDirectory;
+  private TupleTag<byte[]> checkpointTag;
+  private TupleTag<KV<String, byte[]>> checkpointRowTag;
+  private List<SimulationScenario> scenarios;
+  private List<TupleTag<List<JSONObject>>> scenarioTags;
+  private TupleTag<KV<String, KV<String, String>>> reportTag;
+  private Flags flags = new Flags();
+  private transient KeySizeHistogram keySizeHistogram;
 
   public RunSimulationPerUser(
       TupleTag<Source> sourceTag,
@@ -42,27 +65,152 @@ public class RunSimulationPerUser extends DoFn<KV<String, CoGbkResult>, List<JSO
     this.triggerTag = triggerTag;
     this.extensionEventTag = extensionEventTag;
     this.outputDirectory = outputDirectory;
+    this.scenarios = Collections.emptyList();
+    this.scenarioTags = Collections.emptyList();
+  }
+
+  /**
+   * @param scenarios scenarios run for each user
+   * @param scenarioTags output tag of the aggregatable reports of each scenario, in the same order
+   */
+  public RunSimulationPerUser(
+      TupleTag<Source> sourceTag,
+      TupleTag<Trigger> triggerTag,
+      TupleTag<ExtensionEvent> extensionEventTag,
+      String outputDirectory,
+      List<SimulationScenario> scenarios,
+      List<TupleTag<List<JSONObject>>> scenarioTags) {
+    this(sourceTag, triggerTag, extensionEventTag, outputDirectory);
+    if (scenarios.size() != scenarioTags.size()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "%d scenarios but %d scenario tags", scenarios.size(), scenarioTags.size()));
+    }
+    this.scenarios = scenarios;
+    this.scenarioTags = scenarioTags;
+  }
+
+  /**
+   * Outputs the event and debug reports to {@code reportTag}, keyed by {@link
+   * ShardedReportFiles#destination(String, String, String)} and holding the UserId and the report,
+   * instead of writing them to per-user directories.
+   */
+  public RunSimulationPerUser withReportTag(TupleTag<KV<String, KV<String, String>>> reportTag) {
+    this.reportTag = reportTag;
+    return this;
+  }
+
+  /**
+   * Continues each user from the {@link UserStateCheckpoint} state joined under {@code
+   * checkpointTag}, if any, and outputs its state at the end of the run to {@code
+   * checkpointRowTag}, keyed like the input, see {@link CheckpointFiles}.
+   */
+  public RunSimulationPerUser withCheckpoints(
+      TupleTag<byte[]> checkpointTag, TupleTag<KV<String, byte[]>> checkpointRowTag) {
+    this.checkpointTag = checkpointTag;
+    this.checkpointRowTag = checkpointRowTag;
+    return this;
+  }
+
+  /** Simulates the users with {@code flags} instead of the default {@link Flags}. */
+  public RunSimulationPerUser withFlags(Flags flags) {
+    this.flags = flags;
+    return this;
+  }
+
+  @Setup
+  public void setup() {
+    keySizeHistogram = new KeySizeHistogram();
   }
 
   @ProcessElement
-  public void processElement(ProcessContext c) throws ParseException {
+  public void processElement(ProcessContext c) throws IOException, ParseException {
     KV<String, CoGbkResult> element = c.element();
-    String userId = element.getKey();
+    String userId = DataProcessor.userIdOf(element.getKey());
+    ApiChoice apiChoice = DataProcessor.apiChoiceOf(element.getKey());
+    String platformOutputDirectory = outputDirectory + "/" + apiChoice.toString();
     CoGbkResult userData = element.getValue();
-    List<Source> userSourceData = (List<Source>) userData.getAll(this.sourceTag);
-    List<Trigger> userTriggerData = (List<Trigger>) userData.getAll(this.triggerTag);
+    // The groups are passed on as the iterables the runner returns, which may read large groups
+    // lazily, and are counted as the simulation reads them.
+    CountingIterable<Source> userSourceData = new CountingIterable<>(userData.getAll(sourceTag));
+    CountingIterable<Trigger> userTriggerData = new CountingIterable<>(userData.getAll(triggerTag));
 
-    List<ExtensionEvent> userExtensionEventData = new ArrayList<>();
+    CountingIterable<ExtensionEvent> userExtensionEventData =
+        new CountingIterable<>(Collections.emptyList());
     try {
-      userExtensionEventData = (List<ExtensionEvent>) userData.getAll(this.extensionEventTag);
+      userExtensionEventData = new CountingIterable<>(userData.getAll(this.extensionEventTag));
     } catch (IllegalArgumentException e) {
       // Ignore as this means there were no Extension events in the input data and/or
       // extensionEventTupleTag was not found
     }
 
+    UserSimulation userSimulation =
+        new UserSimulation(userId, platformOutputDirectory, new SourceNoiseHandler(flags), flags);
+    if (reportTag != null) {
+      userSimulation.setReportSink(
+          (directory, fileName, reportUserId, reports) -> {
+            String destination =
+                ShardedReportFiles.destination(outputDirectory, directory, fileName);
+            for (String report : reports) {
+              c.output(reportTag, KV.of(destination, KV.of(reportUserId, report)));
+            }
+          });
+    }
+    if (!scenarios.isEmpty()) {
+      Map<String, List<JSONObject>> aggregatePayloads =
+          userSimulation.runScenarios(
+              userSourceData, userTriggerData, userExtensionEventData, scenarios);
+      recordKeySize(userSourceData, userTriggerData, userExtensionEventData);
+      for (int i = 0; i < scenarios.size(); i++) {
+        c.output(scenarioTags.get(i), aggregatePayloads.get(scenarios.get(i).getName()));
+      }
+      return;
+    }
+    if (checkpointTag != null) {
+      byte[] state = userData.getOnly(checkpointTag, null);
+      userSimulation.setCheckpoint(
+          state == null ? null : UserStateCheckpoint.decode(state),
+          checkpoint -> c.output(checkpointRowTag, KV.of(element.getKey(), checkpoint.encode())));
+    }
     List<JSONObject> aggregatePayloads =
-        new UserSimulation(userId, outputDirectory)
-            .runSimulation(userSourceData, userTriggerData, userExtensionEventData);
+        userSimulation.runSimulation(userSourceData, userTriggerData, userExtensionEventData);
+    recordKeySize(userSourceData, userTriggerData, userExtensionEventData);
     c.output(aggregatePayloads);
   }
+
+  private void recordKeySize(
+      CountingIterable<Source> userSourceData,
+      CountingIterable<Trigger> userTriggerData,
+      CountingIterable<ExtensionEvent> userExtensionEventData) {
+    keySizeHistogram.record(
+        userSourceData.count + userTriggerData.count + userExtensionEventData.count);
+  }
+
+  private static class CountingIterable<T> implements Iterable<T> {
+    private final Iterable<T> iterable;
+    private long count;
+
+    CountingIterable(Iterable<T> iterable) {
+      this.iterable = iterable;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      count = 0;
+      Iterator<T> iterator = iterable.iterator();
+      return new Iterator<T>() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+          T next = iterator.next();
+          count++;
+          return next;
+        }
+      };
+    }
+  }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.AvroIO;
+import org.apache.beam.sdk.io.Compression;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.TextIO;
+import org.apache.beam.sdk.transforms.Contextful;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.json.simple.JSONValue;
+
+/**
+ * Writes the event and debug reports of all users to a few sharded files per output directory,
+ * instead of a directory per user. Each row holds the {@code user_id} and the {@code report} as
+ * JSON, and is written to {@code <directory>/<file name>-SSSSS-of-NNNNN.json} as a JSON line, or to
+ * {@code .avro} files with the {@link #REPORT_ROW} schema. JSON files are gzipped and Avro files
+ * deflated if compression is enabled.
+ *
+ * <p>The pipeline outputs the reports as rows keyed by their destination, see {@link
+ * #destination(String, String, String)}, and writes them with {@link #write}. The local engine
+ * writes them with a {@link ShardedWriter}, which buffers each shard and is shared by all of its
+ * threads.
+ */
+public class ShardedReportFiles {
+  /** Writes the reports of each user to a directory of their own, see {@link ReportSink}. */
+  public static final String PER_USER_LAYOUT = "perUser";
+
+  /** Writes the reports of all users to sharded files, see {@link ShardedReportFiles}. */
+  public static final String SHARDED_LAYOUT = "sharded";
+
+  public static final String JSON_FORMAT = "json";
+  public static final String AVRO_FORMAT = "avro";
+
+  /** Avro schema of the report rows. */
+  public static final Schema REPORT_ROW =
+      SchemaBuilder.record("ReportRow")
+          .namespace("com.google.measurement")
+          .fields()
+          .requiredString("user_id")
+          .requiredString("report")
+          .endRecord();
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Returns whether the reports are written to sharded files rather than per-user directories.
+   *
+   * @throws IllegalArgumentException if the report options are invalid
+   */
+  public static boolean isSharded(SimulationConfig options) {
+    if (options.getReportShards() < 0) {
+      throw new IllegalArgumentException(
+          "reportShards must not be negative, was " + options.getReportShards());
+    }
+    getFormat(options);
+    switch (options.getReportLayout()) {
+      case SHARDED_LAYOUT:
+        return true;
+      case PER_USER_LAYOUT:
+        return false;
+      default:
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid report layout %s. Acceptable layouts are %s and %s",
+                options.getReportLayout(), SHARDED_LAYOUT, PER_USER_LAYOUT));
+    }
+  }
+
+  /**
+   * Returns the destination of reports written by a {@link ReportSink} to {@code directory} and
+   * {@code fileName}, relative to {@code outputDirectory}.
+   */
+  public static String destination(String outputDirectory, String directory, String fileName) {
+    return Path.of(outputDirectory).relativize(Path.of(directory, fileName)).toString();
+  }
+
+  /**
+   * Writes report rows, each keyed by its {@link #destination(String, String, String)} and holding
+   * the UserId and the report, to the sharded files of their destination under the output
+   * directory.
+   */
+  public static void write(
+      PCollection<KV<String, KV<String, String>>> reports, SimulationConfig options) {
+    String format = getFormat(options);
+    String suffix = "." + format;
+    FileIO.Write<String, KV<String, KV<String, String>>> write =
+        FileIO.<String, KV<String, KV<String, String>>>writeDynamic()
+            .by(KV::getKey)
+            .withDestinationCoder(StringUtf8Coder.of())
+            .to(options.getOutputDirectory())
+            .withNaming(destination -> FileIO.Write.defaultNaming(destination, suffix));
+    if (options.getReportShards() > 0) {
+      write = write.withNumShards(options.getReportShards());
+    }
+    if (format.equals(AVRO_FORMAT)) {
+      AvroIO.Sink<GenericRecord> sink = AvroIO.sink(REPORT_ROW);
+      if (options.getCompressReports()) {
+        sink = sink.withCodec(CodecFactory.deflateCodec(CodecFactory.DEFAULT_DEFLATE_LEVEL));
+      }
+      write =
+          write.via(
+              Contextful.fn(
+                  row -> toAvroRecord(row.getValue().getKey(), row.getValue().getValue())),
+              sink);
+    } else {
+      write =
+          write
+              .via(
+                  Contextful.fn(
+                      row -> toJsonLine(row.getValue().getKey(), row.getValue().getValue())),
+                  TextIO.sink())
+              .withCompression(
+                  options.getCompressReports() ? Compression.GZIP : Compression.UNCOMPRESSED);
+    }
+    reports.apply("WriteReports", write);
+  }
+
+  static String toJsonLine(String userId, String report) {
+    return "{\"user_id\":" + JSONValue.toJSONString(userId) + ",\"report\":" + report + "}";
+  }
+
+  static GenericRecord toAvroRecord(String userId, String report) {
+    GenericRecord record = new GenericData.Record(REPORT_ROW);
+    record.put("user_id", userId);
+    record.put("report", report);
+    return record;
+  }
+
+  private static String getFormat(SimulationConfig options) {
+    String format = options.getReportFileFormat().toLowerCase(Locale.ROOT);
+    if (!format.equals(JSON_FORMAT) && !format.equals(AVRO_FORMAT)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid report file format %s. Acceptable formats are %s and %s",
+              options.getReportFileFormat(), JSON_FORMAT, AVRO_FORMAT));
+    }
+    return format;
+  }
+
+  /**
+   * {@link ReportSink} that writes to the sharded files of each destination on this machine, named
+   * as the pipeline names them. The reports of a user all go to the same shard, picked by the hash
+   * of the UserId, and each shard is written by one thread at a time through a buffer, so that
+   * reports are written with a few large writes. Shards are created on their first report.
+   */
+  public static class ShardedWriter implements ReportSink, Closeable {
+    private final String mOutputDirectory;
+    private final String mFormat;
+    private final boolean mCompress;
+    private final int mShardCount;
+    private final Map<String, Shard[]> mShards = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultShardCount the number of shards of each destination if the options do not set
+     *     one
+     */
+    public ShardedWriter(SimulationConfig options, int defaultShardCount) {
+      isSharded(options);
+      mOutputDirectory = options.getOutputDirectory();
+      mFormat = getFormat(options);
+      mCompress = options.getCompressReports();
+      mShardCount = options.getReportShards() > 0 ? options.getReportShards() : defaultShardCount;
+    }
+
+    @Override
+    public void write(String directory, String fileName, String userId, List<String> reports)
+        throws IOException {
+      String destination = destination(mOutputDirectory, directory, fileName);
+      Shard[] shards = mShards.computeIfAbsent(destination, d -> new Shard[mShardCount]);
+      int index = Math.floorMod(userId.hashCode(), mShardCount);
+      Shard shard;
+      synchronized (shards) {
+        if (shards[index] == null) {
+          shards[index] = new Shard(Path.of(mOutputDirectory, shardName(destination, index)));
+        }
+        shard = shards[index];
+      }
+      synchronized (shard) {
+        for (String report : reports) {
+          shard.append(userId, report);
+        }
+      }
+    }
+
+    /** Flushes and closes every shard. */
+    @Override
+    public void close() throws IOException {
+      IOException failure = null;
+      for (Shard[] shards : mShards.values()) {
+        for (Shard shard : shards) {
+          try {
+            if (shard != null) {
+              shard.close();
+            }
+          } catch (IOException e) {
+            if (failure == null) {
+              failure = e;
+            } else {
+              failure.addSuppressed(e);
+            }
+          }
+        }
+      }
+      mShards.clear();
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    // Same as the names of FileIO.Write.defaultNaming in the global window.
+    private String shardName(String destination, int index) {
+      String compression =
+          mCompress && mFormat.equals(JSON_FORMAT) ? Compression.GZIP.getSuggestedSuffix() : "";
+      return String.format(
+          "%s-%05d-of-%05d.%s%s", destination, index, mShardCount, mFormat, compression);
+    }
+
+    private final class Shard implements Closeable {
+      private final Path mPath;
+      private Writer mJsonWriter;
+      private DataFileWriter<GenericRecord> mAvroWriter;
+
+      Shard(Path path) {
+        mPath = path;
+      }
+
+      void append(String userId, String report) throws IOException {
+        if (mFormat.equals(AVRO_FORMAT)) {
+          avroWriter().append(toAvroRecord(userId, report));
+        } else {
+          jsonWriter().write(toJsonLine(userId, report));
+          jsonWriter().write('\n');
+        }
+      }
+
+      private Writer jsonWriter() throws IOException {
+        if (mJsonWriter == null) {
+          Files.createDirectories(mPath.getParent());
+          OutputStream output = Files.newOutputStream(mPath);
+          if (mCompress) {
+            output = new GZIPOutputStream(output, BUFFER_SIZE);
+          }
+          mJsonWriter =
+              new BufferedWriter(
+                  new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+        return mJsonWriter;
+      }
+
+      private DataFileWriter<GenericRecord> avroWriter() throws IOException {
+        if (mAvroWriter == null) {
+          Files.createDirectories(mPath.getParent());
+          DataFileWriter<GenericRecord> writer =
+              new DataFileWriter<>(new GenericDatumWriter<>(REPORT_ROW));
+          if (mCompress) {
+            writer.setCodec(CodecFactory.deflateCodec(CodecFactory.DEFAULT_DEFLATE_LEVEL));
+          }
+          mAvroWriter = writer.create(REPORT_ROW, mPath.toFile());
+        }
+        return mAvroWriter;
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+        if (mJsonWriter != null) {
+          mJsonWriter.close();
+        }
+        if (mAvroWriter != null) {
+          mAvroWriter.close();
+        }
+      }
+    }
+  }
+}
@@ -66,4 +66,144 @@ public interface SimulationConfig extends PipelineOptions {
   String getExtensionEventFileName();
 
   void setExtensionEventFileName(String extensionEventFileName);
+
+  /**
+   * Format of the input files, json or avro. If unset, the format is taken from the extension of
+   * each input file name.
+   */
+  String getInputFileFormat();
+
+  void setInputFileFormat(String inputFileFormat);
+
+  /**
+   * Fraction of the input records sampled to estimate the number of records of each user. Users
+   * estimated to have at least {@link #getHotKeyThreshold()} records are joined and simulated in a
+   * stage of their own.
+   */
+  @Default.Double(0.01)
+  double getHotKeySampleRate();
+
+  void setHotKeySampleRate(double hotKeySampleRate);
+
+  /** Smallest estimated number of records of a user that is simulated as a heavy user. */
+  @Default.Long(100000)
+  long getHotKeyThreshold();
+
+  void setHotKeyThreshold(long hotKeyThreshold);
+
+  /**
+   * How the event and debug reports are written: "sharded" writes the reports of all users to a few
+   * sharded files per output directory, with the UserId in a column, see {@link
+   * ShardedReportFiles}; "perUser" writes them to a directory per user.
+   */
+  @Default.String(ShardedReportFiles.SHARDED_LAYOUT)
+  String getReportLayout();
+
+  void setReportLayout(String reportLayout);
+
+  /** Format of the sharded report files, json for JSON lines or avro. */
+  @Default.String(ShardedReportFiles.JSON_FORMAT)
+  String getReportFileFormat();
+
+  void setReportFileFormat(String reportFileFormat);
+
+  /**
+   * Number of sharded files of each kind of report per output directory, or 0 to let the pipeline
+   * runner choose, or for the local engine, one per thread.
+   */
+  @Default.Integer(0)
+  int getReportShards();
+
+  void setReportShards(int reportShards);
+
+  /** Whether to compress the sharded report files: JSON files are gzipped, Avro files deflated. */
+  @Default.Boolean(false)
+  boolean getCompressReports();
+
+  void setCompressReports(boolean compressReports);
+
+  /**
+   * Fraction of the users to simulate, greater than 0 and at most 1. Users are picked by a hash of
+   * their UserId and {@link #getUserSampleSeed()}, so runs with the same rate and seed simulate the
+   * same users, with all of their records. The rate is written to the output metadata so that
+   * totals can be scaled back to the whole population.
+   */
+  @Default.Double(1.0)
+  double getUserSampleRate();
+
+  void setUserSampleRate(double userSampleRate);
+
+  /** Seed of the hash that picks the users of a sample, see {@link #getUserSampleRate()}. */
+  @Default.Integer(0)
+  int getUserSampleSeed();
+
+  void setUserSampleSeed(int userSampleSeed);
+
+  /**
+   * Engine that runs the simulation: "beam" runs a Beam pipeline on the configured runner, "local"
+   * runs it on this machine with the {@link LocalSimulationEngine}.
+   */
+  @Default.String("beam")
+  String getEngine();
+
+  void setEngine(String engine);
+
+  /** Number of threads of the local engine, or 0 for one per available processor. */
+  @Default.Integer(0)
+  int getLocalParallelism();
+
+  void setLocalParallelism(int localParallelism);
+
+  /**
+   * Number of files the local engine spills the input records to, by user. Each thread of the local
+   * engine holds the records of one of these in memory at a time.
+   */
+  @Default.Integer(256)
+  int getLocalSpillBuckets();
+
+  void setLocalSpillBuckets(int localSpillBuckets);
+
+  /**
+   * Whether records are deleted once expired as each user's simulated clock advances, as the
+   * deletion job on device deletes them. Event reports deleted this way are output as they are
+   * deleted, which bounds the records held for users with long histories.
+   */
+  @Default.Boolean(false)
+  boolean getSimulatedClockExpiry();
+
+  void setSimulatedClockExpiry(boolean simulatedClockExpiry);
+
+  /**
+   * Number of input sources and triggers of a single user, together with the records restored from
+   * its checkpoint, above which the user's records are kept in an SQLite database on local disk
+   * instead of in heap.
+   */
+  @Default.Integer(100_000)
+  int getSqliteDaoRecordThreshold();
+
+  void setSqliteDaoRecordThreshold(int sqliteDaoRecordThreshold);
+
+  /**
+   * Directory of the checkpoints of incremental runs. If set, each user continues from its state at
+   * the end of the previous run with the same directory, and only the reports generated by this run
+   * are output. If unset, every run starts from its input only.
+   */
+  String getCheckpointDirectory();
+
+  void setCheckpointDirectory(String checkpointDirectory);
+
+  /** Number of sharded files the checkpoint of a run is written to. */
+  @Default.Integer(16)
+  int getCheckpointShards();
+
+  void setCheckpointShards(int checkpointShards);
+
+  /**
+   * Directory of the scenarios of a parameter sweep, one subdirectory each, see {@link
+   * SimulationScenario#load(String)}. If set, the input is read and joined once and every scenario
+   * is simulated for each user, with its reports written under a directory named after it.
+   */
+  String getScenarioDirectory();
+
+  void setScenarioDirectory(String scenarioDirectory);
 }
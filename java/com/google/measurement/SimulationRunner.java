@@ -17,10 +17,20 @@
 package com.google.measurement;
 
 import com.google.measurement.adtech.BatchAggregatableReports;
+import com.google.measurement.aggregation.AggregationArgs;
+import com.google.measurement.util.SiteCache;
 import com.google.measurement.util.Util;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.transforms.Flatten;
 import org.apache.beam.sdk.transforms.ParDo;
@@ -28,26 +38,38 @@ import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.PCollectionView;
 import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
 import org.json.simple.JSONObject;
 
 public class SimulationRunner {
+  static final String BEAM_ENGINE = "beam";
+  static final String LOCAL_ENGINE = "local";
+  static final String METADATA_FILE = "simulation_metadata.json";
+
   private static TupleTag<Source> sourceTag = new TupleTag<>();
   private static TupleTag<Trigger> triggerTag = new TupleTag<>();
   private static TupleTag<ExtensionEvent> extensionEventTupleTag = new TupleTag<>();
-
-  protected PCollection<KV<String, CoGbkResult>> joinSourceAndTriggerData(
-      PCollection<KV<String, Source>> userToAdtechSourceData,
-      PCollection<KV<String, Trigger>> userToAdtechTriggerData) {
-    // Join the 2 datasets to group Source and Trigger data for each user
-    return DataProcessor.joinSourceAndTriggerData(
-        userToAdtechSourceData, userToAdtechTriggerData, sourceTag, triggerTag);
-  }
+  private static TupleTag<byte[]> checkpointTag = new TupleTag<>();
 
   protected PCollection<KV<String, CoGbkResult>> joinUserIdData(
       PCollection<KV<String, Source>> userToAdtechSourceData,
       PCollection<KV<String, Trigger>> userToAdtechTriggerData,
-      PCollection<KV<String, ExtensionEvent>> userToAdtechExtensionEventData) {
+      PCollection<KV<String, ExtensionEvent>> userToAdtechExtensionEventData,
+      PCollection<KV<String, byte[]>> userToCheckpointData) {
+    if (userToCheckpointData != null) {
+      return DataProcessor.joinUserIdData(
+          userToAdtechSourceData,
+          userToAdtechTriggerData,
+          userToAdtechExtensionEventData,
+          userToCheckpointData,
+          sourceTag,
+          triggerTag,
+          extensionEventTupleTag,
+          checkpointTag);
+    }
     return DataProcessor.joinUserIdData(
         userToAdtechSourceData,
         userToAdtechTriggerData,
@@ -57,16 +79,106 @@ public class SimulationRunner {
         extensionEventTupleTag);
   }
 
+  /**
+   * @param reportRows if not null, the event and debug reports are output as rows and added to it,
+   *     see {@link RunSimulationPerUser#withReportTag}, instead of being written per user
+   * @param checkpointRows if not null, each user continues from the checkpoint state joined with
+   *     its records and its state at the end of the run is output as a row and added to it
+   */
   protected PCollection<JSONObject> runUserSimulationInParallel(
-      PCollection<KV<String, CoGbkResult>> joinedData, String outputDirectory) {
+      PCollection<KV<String, CoGbkResult>> joinedData,
+      String outputDirectory,
+      Flags flags,
+      List<PCollection<KV<String, KV<String, String>>>> reportRows,
+      List<PCollection<KV<String, byte[]>>> checkpointRows) {
     // Simulate attribution reporting API for each user id in parallel.
-    PCollection<List<JSONObject>> aggregatableReportList =
+    TupleTag<List<JSONObject>> mainTag = newReportListTag();
+    RunSimulationPerUser simulation =
+        new RunSimulationPerUser(sourceTag, triggerTag, extensionEventTupleTag, outputDirectory)
+            .withFlags(flags);
+    TupleTagList additionalTags = TupleTagList.empty();
+    TupleTag<KV<String, byte[]>> checkpointRowTag = new TupleTag<>();
+    if (checkpointRows != null) {
+      simulation.withCheckpoints(checkpointTag, checkpointRowTag);
+      additionalTags = additionalTags.and(checkpointRowTag);
+    }
+    PCollectionTuple outputs =
+        simulate(joinedData, simulation, mainTag, additionalTags, reportRows);
+    if (checkpointRows != null) {
+      checkpointRows.add(outputs.get(checkpointRowTag).setCoder(CheckpointFiles.ROW_CODER));
+    }
+    return outputs.get(mainTag).apply(Flatten.iterables());
+  }
+
+  /**
+   * Runs every scenario for each user in the same call, so that the input is read and joined once
+   * for all of them.
+   *
+   * @param reportRows if not null, the event and debug reports are output as rows and added to it
+   * @return the aggregatable reports of each scenario, in the order of {@code scenarios}
+   */
+  protected List<PCollection<JSONObject>> runScenariosInParallel(
+      PCollection<KV<String, CoGbkResult>> joinedData,
+      String outputDirectory,
+      List<SimulationScenario> scenarios,
+      Flags flags,
+      List<PCollection<KV<String, KV<String, String>>>> reportRows) {
+    TupleTag<List<JSONObject>> mainTag = newReportListTag();
+    List<TupleTag<List<JSONObject>>> scenarioTags = new ArrayList<>();
+    TupleTagList additionalTags = TupleTagList.empty();
+    for (int i = 0; i < scenarios.size(); i++) {
+      TupleTag<List<JSONObject>> scenarioTag = newReportListTag();
+      scenarioTags.add(scenarioTag);
+      additionalTags = additionalTags.and(scenarioTag);
+    }
+    PCollectionTuple aggregatableReportLists =
+        simulate(
+            joinedData,
+            new RunSimulationPerUser(
+                    sourceTag,
+                    triggerTag,
+                    extensionEventTupleTag,
+                    outputDirectory,
+                    scenarios,
+                    scenarioTags)
+                .withFlags(flags),
+            mainTag,
+            additionalTags,
+            reportRows);
+    List<PCollection<JSONObject>> aggregatableReports = new ArrayList<>();
+    for (TupleTag<List<JSONObject>> scenarioTag : scenarioTags) {
+      aggregatableReports.add(aggregatableReportLists.get(scenarioTag).apply(Flatten.iterables()));
+    }
+    return aggregatableReports;
+  }
+
+  private static PCollectionTuple simulate(
+      PCollection<KV<String, CoGbkResult>> joinedData,
+      RunSimulationPerUser simulation,
+      TupleTag<List<JSONObject>> mainTag,
+      TupleTagList additionalTags,
+      List<PCollection<KV<String, KV<String, String>>>> reportRows) {
+    if (reportRows == null) {
+      return joinedData.apply(ParDo.of(simulation).withOutputTags(mainTag, additionalTags));
+    }
+    TupleTag<KV<String, KV<String, String>>> reportTag = new TupleTag<>();
+    PCollectionTuple outputs =
         joinedData.apply(
-            ParDo.of(
-                new RunSimulationPerUser(
-                    sourceTag, triggerTag, extensionEventTupleTag, outputDirectory)));
+            ParDo.of(simulation.withReportTag(reportTag))
+                .withOutputTags(mainTag, additionalTags.and(reportTag)));
+    reportRows.add(
+        outputs
+            .get(reportTag)
+            .setCoder(
+                KvCoder.of(
+                    StringUtf8Coder.of(), KvCoder.of(StringUtf8Coder.of(), StringUtf8Coder.of()))));
+    return outputs;
+  }
 
-    return aggregatableReportList.apply(Flatten.iterables());
+  // Created outside of an instance so that the tag, an anonymous class that keeps its type
+  // argument for coder inference, does not capture the runner.
+  private static TupleTag<List<JSONObject>> newReportListTag() {
+    return new TupleTag<List<JSONObject>>() {};
   }
 
   protected void generateAggregateReports(
@@ -76,71 +188,246 @@ public class SimulationRunner {
     BatchAggregatableReports.generateAggregateReports(aggregatableReports, outputDirectory);
   }
 
+  protected void generateAggregateReports(
+      List<JSONObject> aggregatableReports, String outputDirectory) {
+    BatchAggregatableReports.generateAggregateReports(aggregatableReports, outputDirectory);
+  }
+
+  protected void generateAggregateReports(
+      PCollection<JSONObject> aggregatableReports,
+      String outputDirectory,
+      AggregationArgs aggregationArgs) {
+    BatchAggregatableReports.generateAggregateReports(
+        aggregatableReports, outputDirectory, aggregationArgs);
+  }
+
+  protected void generateAggregateReports(
+      List<JSONObject> aggregatableReports,
+      String outputDirectory,
+      AggregationArgs aggregationArgs) {
+    BatchAggregatableReports.generateAggregateReports(
+        aggregatableReports, outputDirectory, aggregationArgs);
+  }
+
   public boolean run(String[] args) {
     System.out.println("Simulating Attribution Reporting API...");
-    // Create beam pipeline to read and process data
     SimulationConfig options =
         PipelineOptionsFactory.fromArgs(args).withValidation().as(SimulationConfig.class);
     Util.validateFilenames(options.getAttributionSourceFileName(), options.getTriggerFileName());
-    Pipeline p = Pipeline.create(options);
-
-    PCollection<KV<String, Source>> sourceMap = DataProcessor.buildUserToSourceMap(p, options);
-    PCollection<KV<String, Trigger>> triggerMap = DataProcessor.buildUserToTriggerMap(p, options);
-    PCollection<KV<String, ExtensionEvent>> extensionEventMap =
-        DataProcessor.buildUserToExtensionEventMap(p, options);
-
-    PCollection<JSONObject> aggregatableReportsForOs =
-        getAggregatableReports(options, sourceMap, triggerMap, extensionEventMap);
-
-    PCollection<JSONObject> aggregatableReportsForWeb =
-        getAggregatableReports(options, sourceMap, triggerMap);
-
-    PCollection<JSONObject> aggregatableReports =
-        PCollectionList.of(aggregatableReportsForOs)
-            .and(aggregatableReportsForWeb)
-            .apply(Flatten.pCollections());
-
-    generateAggregateReports(aggregatableReports, options.getOutputDirectory());
-
-    p.run().waitUntilFinish();
-
+    List<SimulationScenario> scenarios = loadScenarios(options);
+    writeMetadata(options);
+    switch (options.getEngine()) {
+      case BEAM_ENGINE:
+        runPipeline(options, scenarios);
+        break;
+      case LOCAL_ENGINE:
+        runLocally(options, scenarios);
+        break;
+      default:
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid engine %s. Acceptable engines are %s and %s",
+                options.getEngine(), BEAM_ENGINE, LOCAL_ENGINE));
+    }
     System.out.println("Attribution Reporting API Simulation ended...");
     return true;
   }
 
-  private PCollection<JSONObject> getAggregatableReports(
-      SimulationConfig options,
-      PCollection<KV<String, Source>> sourceMap,
-      PCollection<KV<String, Trigger>> triggerMap,
-      PCollection<KV<String, ExtensionEvent>> extensionEventMap) {
-    PCollection<KV<String, Source>> userToAdtechSourceData =
-        DataProcessor.filterSourceMap(sourceMap, ApiChoice.OS);
-    PCollection<KV<String, Trigger>> userToAdtechTriggerData =
-        DataProcessor.filterTriggerMap(triggerMap, ApiChoice.OS);
+  // Records the user sample of a sampled run, so that its output can be interpreted without the
+  // command line. The user sample rate is what totals are divided by to estimate those of all
+  // users. Runs of every user write nothing, so their output is as it was before sampling.
+  @SuppressWarnings("unchecked")
+  private static void writeMetadata(SimulationConfig options) {
+    DataProcessor.checkUserSampleRate(options.getUserSampleRate());
+    if (options.getUserSampleRate() >= 1) {
+      return;
+    }
+    JSONObject metadata = new JSONObject();
+    metadata.put("user_sample_rate", options.getUserSampleRate());
+    metadata.put("user_sample_seed", options.getUserSampleSeed());
+    try {
+      Path outputDirectory = Files.createDirectories(Path.of(options.getOutputDirectory()));
+      Files.writeString(outputDirectory.resolve(METADATA_FILE), metadata.toJSONString());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 
-    PCollection<KV<String, CoGbkResult>> joinedData =
-        joinUserIdData(userToAdtechSourceData, userToAdtechTriggerData, extensionEventMap);
-    // Create event reports for each API separately
-    String outputDirectory = options.getOutputDirectory() + "/" + ApiChoice.OS.toString();
+  // The scenarios of a sweep, or an empty list for a single run.
+  private static List<SimulationScenario> loadScenarios(SimulationConfig options) {
+    if (options.getScenarioDirectory() == null) {
+      return List.of();
+    }
+    if (options.getCheckpointDirectory() != null) {
+      throw new IllegalArgumentException(
+          "checkpointDirectory cannot be combined with scenarioDirectory");
+    }
+    try {
+      return SimulationScenario.load(
+          options.getScenarioDirectory(), DataProcessor.getFlags(options));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 
-    return runUserSimulationInParallel(joinedData, outputDirectory);
+  private void runLocally(SimulationConfig options, List<SimulationScenario> scenarios) {
+    LocalSimulationEngine engine = new LocalSimulationEngine(options);
+    try {
+      if (scenarios.isEmpty()) {
+        generateAggregateReports(engine.run(), options.getOutputDirectory());
+      } else {
+        Map<String, List<JSONObject>> aggregatableReports = engine.runScenarios(scenarios);
+        for (SimulationScenario scenario : scenarios) {
+          generateAggregateReports(
+              aggregatableReports.get(scenario.getName()),
+              options.getOutputDirectory() + "/" + scenario.getName(),
+              scenario.getAggregationArgs());
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    System.out.print(engine.keySizeReport());
+    System.out.print(SiteCache.report());
   }
 
-  private PCollection<JSONObject> getAggregatableReports(
-      SimulationConfig options,
-      PCollection<KV<String, Source>> sourceMap,
-      PCollection<KV<String, Trigger>> triggerMap) {
-    PCollection<KV<String, Source>> userToAdtechSourceData =
-        DataProcessor.filterSourceMap(sourceMap, ApiChoice.WEB);
-    PCollection<KV<String, Trigger>> userToAdtechTriggerData =
-        DataProcessor.filterTriggerMap(triggerMap, ApiChoice.WEB);
+  private void runPipeline(SimulationConfig options, List<SimulationScenario> scenarios) {
+    // Create beam pipeline to read and process data
+    Pipeline p = Pipeline.create(options);
+
+    // Drop the users outside of the sample before anything else is done with their records.
+    PCollection<KV<String, Source>> sourceMap =
+        DataProcessor.sampleUsers(
+            DataProcessor.buildUserToSourceMap(p, options),
+            options.getUserSampleRate(),
+            options.getUserSampleSeed());
+    PCollection<KV<String, Trigger>> triggerMap =
+        DataProcessor.sampleUsers(
+            DataProcessor.buildUserToTriggerMap(p, options),
+            options.getUserSampleRate(),
+            options.getUserSampleSeed());
+    PCollection<KV<String, ExtensionEvent>> extensionEventMap =
+        DataProcessor.sampleUsers(
+            DataProcessor.buildUserToExtensionEventMap(p, options),
+            options.getUserSampleRate(),
+            options.getUserSampleSeed());
+
+    // Join the records of both API platforms in a single shuffle, keyed by api choice and user, and
+    // create event reports for each API separately. Users with the most records are joined and
+    // simulated in a stage of their own, so that they do not hold back the bundles of other users.
+    PCollection<KV<String, Source>> platformSourceMap =
+        DataProcessor.keySourceMapByPlatform(sourceMap);
+    PCollection<KV<String, Trigger>> platformTriggerMap =
+        DataProcessor.keyTriggerMapByPlatform(triggerMap);
+    PCollection<KV<String, ExtensionEvent>> platformExtensionEventMap =
+        DataProcessor.keyExtensionEventMapByPlatform(extensionEventMap);
+    PCollectionView<Map<String, Long>> heavyKeys =
+        DataProcessor.detectHeavyKeys(
+            platformSourceMap,
+            platformTriggerMap,
+            platformExtensionEventMap,
+            options.getHotKeySampleRate(),
+            options.getHotKeyThreshold());
+    PCollectionList<KV<String, Source>> sources =
+        DataProcessor.partitionByKeySize(platformSourceMap, heavyKeys);
+    PCollectionList<KV<String, Trigger>> triggers =
+        DataProcessor.partitionByKeySize(platformTriggerMap, heavyKeys);
+    PCollectionList<KV<String, ExtensionEvent>> extensionEvents =
+        DataProcessor.partitionByKeySize(platformExtensionEventMap, heavyKeys);
+
+    // Each user continues from its state in the latest checkpoint generation, which is partitioned
+    // and joined like its records. The states at the end of the run are written to the next
+    // generation by both stages together.
+    String checkpointDirectory = options.getCheckpointDirectory();
+    int nextCheckpointGeneration = -1;
+    PCollectionList<KV<String, byte[]>> checkpoints = null;
+    List<PCollection<KV<String, byte[]>>> checkpointRows = null;
+    if (checkpointDirectory != null) {
+      try {
+        checkpoints =
+            DataProcessor.partitionByKeySize(
+                CheckpointFiles.read(
+                    p, checkpointDirectory, CheckpointFiles.latestGeneration(checkpointDirectory)),
+                heavyKeys);
+        nextCheckpointGeneration = CheckpointFiles.nextGeneration(checkpointDirectory);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      checkpointRows = new ArrayList<>();
+    }
+
+    // The report rows of both stages are written together, so that they do not write the same
+    // files.
+    List<PCollection<KV<String, KV<String, String>>>> reportRows =
+        ShardedReportFiles.isSharded(options) ? new ArrayList<>() : null;
+    PCollectionList<JSONObject> aggregatableReportsByKeySize = PCollectionList.empty(p);
+    List<PCollectionList<JSONObject>> scenarioReportsByKeySize = new ArrayList<>();
+    for (int i = 0; i < scenarios.size(); i++) {
+      scenarioReportsByKeySize.add(PCollectionList.empty(p));
+    }
+    for (int keySize : new int[] {DataProcessor.HEAVY_KEYS, DataProcessor.REGULAR_KEYS}) {
+      PCollection<KV<String, CoGbkResult>> joinedData =
+          joinUserIdData(
+              sources.get(keySize),
+              triggers.get(keySize),
+              extensionEvents.get(keySize),
+              checkpoints == null ? null : checkpoints.get(keySize));
+      Flags flags = DataProcessor.getFlags(options);
+      if (keySize == DataProcessor.HEAVY_KEYS) {
+        // Heavy keys are simulated from disk whatever their number of sources and triggers.
+        flags.setMeasurementSqliteDaoRecordThreshold(0);
+      }
+      if (scenarios.isEmpty()) {
+        aggregatableReportsByKeySize =
+            aggregatableReportsByKeySize.and(
+                runUserSimulationInParallel(
+                    joinedData, options.getOutputDirectory(), flags, reportRows, checkpointRows));
+        continue;
+      }
+      List<PCollection<JSONObject>> scenarioReports =
+          runScenariosInParallel(
+              joinedData, options.getOutputDirectory(), scenarios, flags, reportRows);
+      for (int i = 0; i < scenarios.size(); i++) {
+        scenarioReportsByKeySize.set(
+            i, scenarioReportsByKeySize.get(i).and(scenarioReports.get(i)));
+      }
+    }
 
-    PCollection<KV<String, CoGbkResult>> joinedData =
-        joinSourceAndTriggerData(userToAdtechSourceData, userToAdtechTriggerData);
-    // Create event reports for each API separately
-    String outputDirectory = options.getOutputDirectory() + "/" + ApiChoice.WEB.toString();
+    if (reportRows != null) {
+      ShardedReportFiles.write(
+          PCollectionList.of(reportRows).apply("FlattenReports", Flatten.pCollections()), options);
+    }
+    if (checkpointRows != null) {
+      CheckpointFiles.write(
+          PCollectionList.of(checkpointRows).apply("FlattenCheckpoints", Flatten.pCollections()),
+          checkpointDirectory,
+          nextCheckpointGeneration,
+          CheckpointFiles.getShardCount(options));
+    }
+    if (scenarios.isEmpty()) {
+      generateAggregateReports(
+          aggregatableReportsByKeySize.apply(Flatten.pCollections()), options.getOutputDirectory());
+    }
+    for (int i = 0; i < scenarios.size(); i++) {
+      SimulationScenario scenario = scenarios.get(i);
+      generateAggregateReports(
+          scenarioReportsByKeySize.get(i).apply(Flatten.pCollections()),
+          options.getOutputDirectory() + "/" + scenario.getName(),
+          scenario.getAggregationArgs());
+    }
 
-    return runUserSimulationInParallel(joinedData, outputDirectory);
+    PipelineResult result = p.run();
+    if (checkpointDirectory == null) {
+      result.waitUntilFinish();
+    } else {
+      try {
+        CheckpointFiles.commitWhenDone(result, checkpointDirectory, nextCheckpointGeneration);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    System.out.print(KeySizeHistogram.report(result.metrics()));
+    System.out.print(SiteCache.report(result.metrics()));
   }
 
   // Entrypoint for python code. Is not referenced from anywhere in Java.
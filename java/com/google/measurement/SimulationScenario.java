@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.aggregation.AggregationArgs;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Named set of parameters simulated in a sweep, see {@link UserSimulation#runScenarios(Iterable,
+ * Iterable, Iterable, List)}: the {@link Flags} attribution runs with, the {@link PrivacyParams}
+ * sources are noised with and the {@link AggregationArgs} the aggregatable reports are aggregated
+ * with.
+ */
+public final class SimulationScenario implements Serializable {
+  static final String PRIVACY_PARAMS_FILE = "PrivacyParams.properties";
+  static final String AGGREGATION_ARGS_FILE = "AggregationArgs.properties";
+
+  private final String mName;
+  private final Flags mFlags;
+  private final PrivacyParams mPrivacyParams;
+  private final AggregationArgs mAggregationArgs;
+
+  public SimulationScenario(
+      String name, Flags flags, PrivacyParams privacyParams, AggregationArgs aggregationArgs) {
+    mName = name;
+    mFlags = flags;
+    mPrivacyParams = privacyParams;
+    mAggregationArgs = aggregationArgs;
+  }
+
+  /**
+   * Reads one scenario for each subdirectory of {@code scenarioDirectory}, in name order. A
+   * scenario is named after its subdirectory, which may hold a {@code PrivacyParams.properties} and
+   * an {@code AggregationArgs.properties}; the parameters of a file it does not hold are those of
+   * {@code config/}.
+   *
+   * @throws IllegalArgumentException if {@code scenarioDirectory} has no subdirectory
+   */
+  public static List<SimulationScenario> load(String scenarioDirectory) throws IOException {
+    return load(scenarioDirectory, new Flags());
+  }
+
+  /** Like {@link #load(String)}, with {@code flags} for the attribution of every scenario. */
+  public static List<SimulationScenario> load(String scenarioDirectory, Flags flags)
+      throws IOException {
+    List<Path> directories;
+    try (Stream<Path> files = Files.list(Path.of(scenarioDirectory))) {
+      directories = files.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+    }
+    if (directories.isEmpty()) {
+      throw new IllegalArgumentException("No scenario directories in " + scenarioDirectory);
+    }
+    List<SimulationScenario> scenarios = new ArrayList<>(directories.size());
+    for (Path directory : directories) {
+      Path privacyParamsFile = directory.resolve(PRIVACY_PARAMS_FILE);
+      Path aggregationArgsFile = directory.resolve(AGGREGATION_ARGS_FILE);
+      scenarios.add(
+          new SimulationScenario(
+              directory.getFileName().toString(),
+              flags,
+              Files.exists(privacyParamsFile)
+                  ? PrivacyParams.load(privacyParamsFile.toString())
+                  : PrivacyParams.getDefault(),
+              Files.exists(aggregationArgsFile)
+                  ? AggregationArgs.load(aggregationArgsFile.toString())
+                  : new AggregationArgs()));
+    }
+    return scenarios;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public Flags getFlags() {
+    return mFlags;
+  }
+
+  public PrivacyParams getPrivacyParams() {
+    return mPrivacyParams;
+  }
+
+  public AggregationArgs getAggregationArgs() {
+    return mAggregationArgs;
+  }
+}
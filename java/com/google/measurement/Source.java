@@ -33,7 +33,6 @@ import java.util.Optional;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 import org.apache.avro.reflect.Nullable;
-import org.apache.beam.sdk.coders.AvroCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -41,8 +40,8 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 /** POJO for Source. */
-@DefaultCoder(AvroCoder.class)
-public class Source implements Serializable {
+@DefaultCoder(SourceCoder.class)
+public class Source implements Serializable, UserEvent, Cloneable {
   private String mId;
   private UnsignedLong mEventId;
   private URI mPublisher;
@@ -70,7 +69,10 @@ public class Source implements Serializable {
   @Nullable private FilterMap mFilterData;
   @Nullable private String mAggregateSource;
   private int mAggregateContributions;
-  @Nullable private Optional<AggregatableAttributionSource> mAggregatableAttributionSource;
+  // Parsed lazily from mAggregateSource; Optional is not serializable.
+  @Nullable
+  private transient Optional<AggregatableAttributionSource> mAggregatableAttributionSource;
+
   private boolean mAdIdPermission;
   private boolean mArDebugPermission;
   @Nullable private String mRegistrationId;
@@ -373,6 +375,16 @@ public class Source implements Serializable {
     return mEventTime;
   }
 
+  @Override
+  public long getTimestamp() {
+    return mEventTime;
+  }
+
+  @Override
+  public Type getUserEventType() {
+    return Type.SOURCE;
+  }
+
   /** Is Ad ID Permission Enabled. */
   public boolean hasAdIdPermission() {
     return mAdIdPermission;
@@ -826,6 +838,67 @@ public class Source implements Serializable {
     return mFlexEventReportSpec.encodePrivacyParametersToJSONString();
   }
 
+  /**
+   * Returns a copy of this source for a store to update without changing this source. The copy has
+   * its own dedup keys, attributed triggers and flexible event report spec, which attribution
+   * updates, and shares everything else with this source.
+   */
+  Source copy() {
+    Source copy;
+    try {
+      copy = (Source) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+    copy.mEventReportDedupKeys = copyOf(mEventReportDedupKeys);
+    copy.mAggregateReportDedupKeys = copyOf(mAggregateReportDedupKeys);
+    copy.mAttributedTriggers = copyOf(mAttributedTriggers);
+    if (mFlexEventReportSpec != null) {
+      // The spec usually tracks the attributed triggers of this source, and keeps doing so.
+      List<AttributedTrigger> specTriggers = mFlexEventReportSpec.getAttributedTriggers();
+      copy.mFlexEventReportSpec =
+          mFlexEventReportSpec.copyFor(
+              specTriggers == mAttributedTriggers
+                  ? copy.mAttributedTriggers
+                  : copyOf(specTriggers));
+    }
+    return copy;
+  }
+
+  /**
+   * Returns a copy of this source for a simulation to update. The copy shares the registration data
+   * of this source, which attribution only reads, and has its own dedup keys and attributed
+   * triggers. Its flexible event report spec shares the trigger specs and privacy parameters of
+   * this source and tracks the attributed triggers of the copy.
+   *
+   * <p>Simulations used to run on copies made through the {@link Builder}, which left out the
+   * publisher type, debug ids, registration origin and API choice. The copy leaves them out too, so
+   * that simulations keep generating the same reports.
+   */
+  Source copyForSimulation() {
+    Source copy = copy();
+    if (copy.mAttributedTriggers == null) {
+      copy.mAttributedTriggers = new ArrayList<>();
+    }
+    if (copy.mFlexEventReportSpec != null) {
+      copy.mFlexEventReportSpec = mFlexEventReportSpec.copyFor(copy.mAttributedTriggers);
+    }
+    copy.mPublisherType = EventSurfaceType.APP;
+    copy.mAggregateContributions = 0;
+    copy.mIsInstallAttributed = false;
+    copy.mDebugJoinKey = null;
+    copy.mPlatformAdId = null;
+    copy.mDebugAdId = null;
+    copy.mRegistrationOrigin = null;
+    copy.mCoarseEventReportDestinations = false;
+    copy.mApiChoice = null;
+    return copy;
+  }
+
+  private static <T> List<T> copyOf(@Nullable List<T> list) {
+    return list == null ? null : new ArrayList<>(list);
+  }
+
   /** Builder for {@link Source}. */
   public static final class Builder {
     private final Source mBuilding;
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static com.google.measurement.RecordCoding.readEnum;
+import static com.google.measurement.RecordCoding.readString;
+import static com.google.measurement.RecordCoding.readUnsignedLong;
+import static com.google.measurement.RecordCoding.readUnsignedLongList;
+import static com.google.measurement.RecordCoding.readUri;
+import static com.google.measurement.RecordCoding.readUriList;
+import static com.google.measurement.RecordCoding.readVarInt;
+import static com.google.measurement.RecordCoding.readVarLong;
+import static com.google.measurement.RecordCoding.writeEnum;
+import static com.google.measurement.RecordCoding.writeString;
+import static com.google.measurement.RecordCoding.writeUnsignedLong;
+import static com.google.measurement.RecordCoding.writeUnsignedLongList;
+import static com.google.measurement.RecordCoding.writeUri;
+import static com.google.measurement.RecordCoding.writeUriList;
+import static com.google.measurement.RecordCoding.writeVarInt;
+import static com.google.measurement.RecordCoding.writeVarLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.values.TypeDescriptor;
+
+/**
+ * Binary {@link org.apache.beam.sdk.coders.Coder} for {@link Source}. Fields are written in a fixed
+ * order with the encodings of {@link RecordCoding}; the booleans and the presence of the nullable
+ * numeric fields share one varint of flags.
+ *
+ * <p>The parsed filter data and aggregatable source are caches and are not encoded. The flexible
+ * event report spec is rebuilt from its trigger specs, as {@link Source} does when it is first
+ * built or read back from storage.
+ */
+public class SourceCoder extends AtomicCoder<Source> {
+  private static final SourceCoder INSTANCE = new SourceCoder();
+
+  private static final int AD_ID_PERMISSION = 1;
+  private static final int AR_DEBUG_PERMISSION = 1 << 1;
+  private static final int INSTALL_ATTRIBUTED = 1 << 2;
+  private static final int DEBUG_REPORTING = 1 << 3;
+  private static final int COARSE_EVENT_REPORT_DESTINATIONS = 1 << 4;
+  private static final int HAS_EVENT_REPORT_WINDOW = 1 << 5;
+  private static final int HAS_INSTALL_TIME = 1 << 6;
+  private static final int HAS_MAX_EVENT_LEVEL_REPORTS = 1 << 7;
+  private static final int HAS_ATTRIBUTED_TRIGGERS = 1 << 8;
+
+  // How the flexible event report spec is rebuilt.
+  private static final int NO_SPEC = 0;
+  private static final int EMPTY_SPEC = 1;
+  private static final int COMPUTED_SPEC = 2;
+  private static final int STORED_PRIVACY_PARAMETERS_SPEC = 3;
+
+  public static SourceCoder of() {
+    return INSTANCE;
+  }
+
+  /** Used by {@link org.apache.beam.sdk.coders.DefaultCoder} to register this coder. */
+  public static CoderProvider getCoderProvider() {
+    return CoderProviders.forCoder(TypeDescriptor.of(Source.class), INSTANCE);
+  }
+
+  private SourceCoder() {}
+
+  @Override
+  public void encode(Source source, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new CoderException("Cannot encode a null Source");
+    }
+    int flags = 0;
+    flags |= source.hasAdIdPermission() ? AD_ID_PERMISSION : 0;
+    flags |= source.hasArDebugPermission() ? AR_DEBUG_PERMISSION : 0;
+    flags |= source.isInstallAttributed() ? INSTALL_ATTRIBUTED : 0;
+    flags |= source.isDebugReporting() ? DEBUG_REPORTING : 0;
+    flags |= source.getCoarseEventReportDestinations() ? COARSE_EVENT_REPORT_DESTINATIONS : 0;
+    flags |= source.getEventReportWindow() != null ? HAS_EVENT_REPORT_WINDOW : 0;
+    flags |= source.getInstallTime() != null ? HAS_INSTALL_TIME : 0;
+    flags |= source.getMaxEventLevelReports() != null ? HAS_MAX_EVENT_LEVEL_REPORTS : 0;
+    flags |= source.getAttributedTriggers() != null ? HAS_ATTRIBUTED_TRIGGERS : 0;
+    writeVarInt(flags, out);
+
+    writeString(source.getId(), out);
+    writeUnsignedLong(source.getEventId(), out);
+    writeUri(source.getPublisher(), out);
+    writeEnum(source.getPublisherType(), out);
+    writeUriList(source.getAppDestinations(), out);
+    writeUriList(source.getWebDestinations(), out);
+    writeString(source.getEnrollmentId(), out);
+    writeUri(source.getRegistrant(), out);
+    writeEnum(source.getSourceType(), out);
+    writeVarLong(source.getPriority(), out);
+    writeEnum(source.getStatus(), out);
+    writeVarLong(source.getEventTime(), out);
+    writeVarLong(source.getExpiryTime(), out);
+    if (source.getEventReportWindow() != null) {
+      writeVarLong(source.getEventReportWindow(), out);
+    }
+    writeVarLong(source.getAggregatableReportWindow(), out);
+    writeUnsignedLongList(source.getAggregateReportDedupKeys(), out);
+    writeUnsignedLongList(source.getEventReportDedupKeys(), out);
+    writeEnum(source.getAttributionMode(), out);
+    writeVarLong(source.getInstallAttributionWindow(), out);
+    writeVarLong(source.getInstallCooldownWindow(), out);
+    writeUnsignedLong(source.getDebugKey(), out);
+    writeString(source.getFilterDataString(), out);
+    writeString(source.getAggregateSource(), out);
+    writeVarInt(source.getAggregateContributions(), out);
+    writeString(source.getRegistrationId(), out);
+    writeString(source.getSharedAggregationKeys(), out);
+    if (source.getInstallTime() != null) {
+      writeVarLong(source.getInstallTime(), out);
+    }
+    writeString(source.getParentId(), out);
+    writeString(source.getDebugJoinKey(), out);
+    writeString(source.getPlatformAdId(), out);
+    writeString(source.getDebugAdId(), out);
+    writeUri(source.getRegistrationOrigin(), out);
+    if (source.getAttributedTriggers() != null) {
+      writeVarInt(source.getAttributedTriggers().size(), out);
+      for (AttributedTrigger trigger : source.getAttributedTriggers()) {
+        writeString(trigger.getTriggerId(), out);
+        writeVarLong(trigger.getPriority(), out);
+        writeUnsignedLong(trigger.getTriggerData(), out);
+        writeVarLong(trigger.getValue(), out);
+        writeVarLong(trigger.getTriggerTime(), out);
+        writeUnsignedLong(trigger.getDedupKey(), out);
+      }
+    }
+    writeString(source.getTriggerSpecs(), out);
+    if (source.getMaxEventLevelReports() != null) {
+      writeVarInt(source.getMaxEventLevelReports(), out);
+    }
+    writeString(source.getEventAttributionStatus(), out);
+    writeString(source.getPrivacyParameters(), out);
+    writeEnum(source.getApiChoice(), out);
+    encodeFlexEventReportSpec(source.getFlexEventReportSpec(), out);
+  }
+
+  @Override
+  public Source decode(InputStream in) throws IOException {
+    int flags = readVarInt(in);
+    Source.Builder builder =
+        new Source.Builder()
+            .setAdIdPermission((flags & AD_ID_PERMISSION) != 0)
+            .setArDebugPermission((flags & AR_DEBUG_PERMISSION) != 0)
+            .setInstallAttributed((flags & INSTALL_ATTRIBUTED) != 0)
+            .setIsDebugReporting((flags & DEBUG_REPORTING) != 0)
+            .setCoarseEventReportDestinations((flags & COARSE_EVENT_REPORT_DESTINATIONS) != 0);
+
+    builder
+        .setId(readString(in))
+        .setEventId(readUnsignedLong(in))
+        .setPublisher(readUri(in))
+        .setPublisherType(readEnum(EventSurfaceType.values(), in))
+        .setAppDestinations(readUriList(in))
+        .setWebDestinations(readUriList(in))
+        .setEnrollmentId(readString(in))
+        .setRegistrant(readUri(in))
+        .setSourceType(readEnum(Source.SourceType.values(), in))
+        .setPriority(readVarLong(in))
+        .setStatus(readEnum(Source.Status.values(), in))
+        .setEventTime(readVarLong(in))
+        .setExpiryTime(readVarLong(in))
+        .setEventReportWindow((flags & HAS_EVENT_REPORT_WINDOW) != 0 ? readVarLong(in) : null)
+        .setAggregatableReportWindow(readVarLong(in))
+        .setAggregateReportDedupKeys(readUnsignedLongList(in))
+        .setEventReportDedupKeys(readUnsignedLongList(in))
+        .setAttributionMode(readEnum(Source.AttributionMode.values(), in))
+        .setInstallAttributionWindow(readVarLong(in))
+        .setInstallCooldownWindow(readVarLong(in))
+        .setDebugKey(readUnsignedLong(in))
+        .setFilterData(readString(in))
+        .setAggregateSource(readString(in))
+        .setAggregateContributions(readVarInt(in))
+        .setRegistrationId(readString(in))
+        .setSharedAggregationKeys(readString(in))
+        .setInstallTime((flags & HAS_INSTALL_TIME) != 0 ? readVarLong(in) : null)
+        .setParentId(readString(in))
+        .setDebugJoinKey(readString(in))
+        .setPlatformAdId(readString(in))
+        .setDebugAdId(readString(in))
+        .setRegistrationOrigin(readUri(in));
+    if ((flags & HAS_ATTRIBUTED_TRIGGERS) != 0) {
+      int size = readVarInt(in);
+      List<AttributedTrigger> attributedTriggers = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        attributedTriggers.add(
+            new AttributedTrigger(
+                readString(in),
+                readVarLong(in),
+                readUnsignedLong(in),
+                readVarLong(in),
+                readVarLong(in),
+                readUnsignedLong(in)));
+      }
+      builder.setAttributedTriggers(attributedTriggers);
+    }
+    builder
+        .setTriggerSpecs(readString(in))
+        .setMaxEventLevelReports((flags & HAS_MAX_EVENT_LEVEL_REPORTS) != 0 ? readVarInt(in) : null)
+        .setEventAttributionStatus(readString(in))
+        .setPrivacyParameters(readString(in))
+        .setApiChoice(readEnum(ApiChoice.values(), in));
+    Source source = builder.build();
+    // The spec may refer to the attributed triggers of the built source.
+    builder.setFlexEventReportSpec(decodeFlexEventReportSpec(source, in));
+    return source;
+  }
+
+  @Override
+  public void verifyDeterministic() throws NonDeterministicException {
+    throw new NonDeterministicException(
+        this, "Source equality ignores the id and the order of destinations");
+  }
+
+  private static void encodeFlexEventReportSpec(ReportSpec spec, OutputStream out)
+      throws IOException {
+    if (spec == null) {
+      writeVarInt(NO_SPEC, out);
+      return;
+    }
+    if (spec.getTriggerSpecs() == null) {
+      writeVarInt(EMPTY_SPEC, out);
+      return;
+    }
+    // Specs restored from stored privacy parameters do not compute the number of states.
+    boolean isStored = spec.getNumberState() < 0;
+    writeVarInt(isStored ? STORED_PRIVACY_PARAMETERS_SPEC : COMPUTED_SPEC, out);
+    writeString(spec.encodeTriggerSpecsToJson(), out);
+    writeVarInt(spec.getMaxReports(), out);
+    out.write(spec.getAttributedTriggers() != null ? 1 : 0);
+    if (isStored) {
+      writeString(spec.encodePrivacyParametersToJSONString(), out);
+    }
+  }
+
+  private static ReportSpec decodeFlexEventReportSpec(Source source, InputStream in)
+      throws IOException {
+    int kind = readVarInt(in);
+    switch (kind) {
+      case NO_SPEC:
+        return null;
+      case EMPTY_SPEC:
+        return new ReportSpec("", 0, null);
+      case COMPUTED_SPEC:
+      case STORED_PRIVACY_PARAMETERS_SPEC:
+        String triggerSpecs = readString(in);
+        int maxReports = readVarInt(in);
+        Source owner = in.read() == 1 ? source : null;
+        return kind == COMPUTED_SPEC
+            ? new ReportSpec(triggerSpecs, maxReports, owner)
+            : new ReportSpec(triggerSpecs, maxReports, owner, readString(in));
+      default:
+        throw new CoderException("Unknown flexible event report spec kind " + kind);
+    }
+  }
+}
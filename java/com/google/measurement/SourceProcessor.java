@@ -37,7 +37,6 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 public class SourceProcessor {
@@ -100,14 +99,14 @@ public class SourceProcessor {
     }
     builder.setStatus(Status.ACTIVE);
     if (jsonObject.containsKey("trigger_specs")) {
-      String triggerSpecString = ((JSONArray) jsonObject.get("trigger_specs")).toJSONString();
+      JSONArray triggerSpecArray = (JSONArray) jsonObject.get("trigger_specs");
 
-      if (!isTriggerSpecArrayValid(triggerSpecString, PrivacyParams.EXPIRY)) {
+      if (!isTriggerSpecArrayValid(triggerSpecArray, PrivacyParams.EXPIRY)) {
         throw new Exception("Unable to parse Source data: Invalid Trigger Spec format");
       }
       String updatedTriggerSpec =
           populateTriggerSpecDefaults(
-              triggerSpecString,
+              triggerSpecArray,
               null,
               PrivacyParams.EXPIRY,
               Enum.valueOf(SourceType.class, (String) jsonObject.get("source_type")));
@@ -123,23 +122,15 @@ public class SourceProcessor {
     return builder.build();
   }
 
-  private static boolean isTriggerSpecArrayValid(String triggerSpecString, long expiry) {
-    JSONArray triggerSpecArray = new JSONArray();
-    JSONParser parser = new JSONParser();
-    try {
-      triggerSpecArray = (JSONArray) parser.parse(triggerSpecString);
-      Set<UnsignedLong> triggerDataSet = new HashSet<>();
-      for (int i = 0; i < triggerSpecArray.size(); i++) {
-        if (!isTriggerSpecValid((JSONObject) triggerSpecArray.get(i), expiry, triggerDataSet)) {
-          return false;
-        }
-      }
-      // Check cardinality of trigger_data across the whole trigger spec array
-      if (triggerDataSet.size() > PrivacyParams.MAX_FLEXIBLE_EVENT_TRIGGER_DATA_CARDINALITY) {
+  private static boolean isTriggerSpecArrayValid(JSONArray triggerSpecArray, long expiry) {
+    Set<UnsignedLong> triggerDataSet = new HashSet<>();
+    for (int i = 0; i < triggerSpecArray.size(); i++) {
+      if (!isTriggerSpecValid((JSONObject) triggerSpecArray.get(i), expiry, triggerDataSet)) {
         return false;
       }
-    } catch (ParseException e) {
-      logger.info("Trigger Spec parsing failed");
+    }
+    // Check cardinality of trigger_data across the whole trigger spec array
+    if (triggerDataSet.size() > PrivacyParams.MAX_FLEXIBLE_EVENT_TRIGGER_DATA_CARDINALITY) {
       return false;
     }
     return true;
@@ -424,7 +415,7 @@ public class SourceProcessor {
   }
 
   private static String populateTriggerSpecDefaults(
-      String triggerSpecString,
+      JSONArray triggerSpecJson,
       String eventReportWindows,
       long expiry,
       Source.SourceType sourceType) {
@@ -433,18 +424,12 @@ public class SourceProcessor {
     long defaultStart = parsedEventReportWindows.get(0).first;
     List<Long> defaultEnds =
         parsedEventReportWindows.stream().map((x) -> x.second).collect(Collectors.toList());
-    JSONParser parser = new JSONParser();
-    try {
-      JSONArray triggerSpecJson = (JSONArray) parser.parse(triggerSpecString);
-      TriggerSpec[] triggerSpecs = new TriggerSpec[triggerSpecJson.size()];
-      for (int i = 0; i < triggerSpecJson.size(); i++) {
-        triggerSpecs[i] =
-            new TriggerSpec.Builder((JSONObject) triggerSpecJson.get(i), defaultStart, defaultEnds)
-                .build();
-      }
-      return ReportSpec.encodeTriggerSpecsToJson(triggerSpecs);
-    } catch (ParseException e) {
-      return "";
+    TriggerSpec[] triggerSpecs = new TriggerSpec[triggerSpecJson.size()];
+    for (int i = 0; i < triggerSpecJson.size(); i++) {
+      triggerSpecs[i] =
+          new TriggerSpec.Builder((JSONObject) triggerSpecJson.get(i), defaultStart, defaultEnds)
+              .build();
     }
+    return ReportSpec.encodeTriggerSpecsToJson(triggerSpecs);
   }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Columnar table of the stored sources, laid out for {@link
+ * IMeasurementDAO#getMatchingActiveSources(Trigger)}.
+ *
+ * <p>Each stored source occupies one row holding its status as a byte and a reference to the {@link
+ * Source} itself. Rows are grouped into buckets keyed by the interned ids of the source's
+ * enrollment and of one of its app or web destinations, and each bucket keeps the event and expiry
+ * times of its rows in primitive arrays sorted by event time. Finding the candidate sources for a
+ * trigger is then a hash lookup followed by a loop over primitive arrays, and {@link Source}
+ * objects are only read for the rows that match.
+ *
+ * <p>Event and expiry times never change once a source is built. Statuses do, so callers must
+ * report every status change through {@link #updateStatus(Source)}.
+ */
+class SourceTable {
+  private static final byte ACTIVE = statusCode(Source.Status.ACTIVE);
+  private static final int INITIAL_CAPACITY = 16;
+
+  private byte[] mStatuses = new byte[INITIAL_CAPACITY];
+  private Source[] mSources = new Source[INITIAL_CAPACITY];
+  private int mRowCount;
+  private final Deque<Integer> mFreeRows = new ArrayDeque<>();
+  // Rows of each stored instance, compared by reference, in insertion order.
+  private final Map<Source, Deque<Integer>> mRowsBySource = new IdentityHashMap<>();
+  private final Map<String, Integer> mEnrollmentIds = new HashMap<>();
+  private final Map<URI, Integer> mDestinationIds = new HashMap<>();
+  private final Map<Long, Bucket> mAppBuckets = new HashMap<>();
+  private final Map<Long, Bucket> mWebBuckets = new HashMap<>();
+
+  SourceTable() {}
+
+  /** Creates a table with the rows of {@code other}, laid out the same way. */
+  SourceTable(SourceTable other) {
+    mStatuses = other.mStatuses.clone();
+    mSources = other.mSources.clone();
+    mRowCount = other.mRowCount;
+    mFreeRows.addAll(other.mFreeRows);
+    other.mRowsBySource.forEach(
+        (source, rows) -> mRowsBySource.put(source, new ArrayDeque<>(rows)));
+    mEnrollmentIds.putAll(other.mEnrollmentIds);
+    mDestinationIds.putAll(other.mDestinationIds);
+    other.mAppBuckets.forEach((key, bucket) -> mAppBuckets.put(key, new Bucket(bucket)));
+    other.mWebBuckets.forEach((key, bucket) -> mWebBuckets.put(key, new Bucket(bucket)));
+  }
+
+  /** Adds a row for {@code source}. */
+  void add(Source source) {
+    int row = allocateRow();
+    mSources[row] = source;
+    mStatuses[row] = statusCode(source.getStatus());
+    mRowsBySource.computeIfAbsent(source, s -> new ArrayDeque<>()).add(row);
+    int enrollment = intern(mEnrollmentIds, source.getEnrollmentId());
+    for (URI destination : distinct(source.getAppDestinations())) {
+      mAppBuckets
+          .computeIfAbsent(
+              bucketKey(enrollment, intern(mDestinationIds, destination)), k -> new Bucket())
+          .add(row, source.getEventTime(), source.getExpiryTime());
+    }
+    for (URI destination : distinct(source.getWebDestinations())) {
+      mWebBuckets
+          .computeIfAbsent(
+              bucketKey(enrollment, intern(mDestinationIds, destination)), k -> new Bucket())
+          .add(row, source.getEventTime(), source.getExpiryTime());
+    }
+  }
+
+  /** Removes the first added row for the instance {@code source}, if there is one. */
+  void remove(Source source) {
+    Deque<Integer> rows = mRowsBySource.get(source);
+    if (rows == null) {
+      return;
+    }
+    int row = rows.removeFirst();
+    if (rows.isEmpty()) {
+      mRowsBySource.remove(source);
+    }
+    int enrollment = mEnrollmentIds.get(source.getEnrollmentId());
+    for (URI destination : distinct(source.getAppDestinations())) {
+      removeFromBucket(mAppBuckets, enrollment, destination, row, source.getEventTime());
+    }
+    for (URI destination : distinct(source.getWebDestinations())) {
+      removeFromBucket(mWebBuckets, enrollment, destination, row, source.getEventTime());
+    }
+    mSources[row] = null;
+    mFreeRows.push(row);
+  }
+
+  /** Moves the rows of the instance {@code source} to {@code copy}, which must not be added yet. */
+  void replace(Source source, Source copy) {
+    Deque<Integer> rows = mRowsBySource.remove(source);
+    if (rows == null) {
+      return;
+    }
+    for (int row : rows) {
+      mSources[row] = copy;
+    }
+    mRowsBySource.put(copy, rows);
+  }
+
+  /** Copies the current status of {@code source} into its rows. */
+  void updateStatus(Source source) {
+    Deque<Integer> rows = mRowsBySource.get(source);
+    if (rows == null) {
+      return;
+    }
+    byte status = statusCode(source.getStatus());
+    for (int row : rows) {
+      mStatuses[row] = status;
+    }
+  }
+
+  /**
+   * Returns the active sources of {@code enrollmentId} for the app or web {@code destination} whose
+   * event time is at or before {@code time} and whose expiry time is after it, ordered by event
+   * time and then by insertion. The returned list is a new, modifiable list.
+   */
+  List<Source> getActiveSources(
+      String enrollmentId, URI destination, EventSurfaceType destinationType, long time) {
+    Integer enrollment = mEnrollmentIds.get(enrollmentId);
+    Integer destinationId = mDestinationIds.get(destination);
+    if (enrollment == null || destinationId == null) {
+      return new ArrayList<>();
+    }
+    Bucket bucket =
+        (destinationType == EventSurfaceType.APP ? mAppBuckets : mWebBuckets)
+            .get(bucketKey(enrollment, destinationId));
+    if (bucket == null) {
+      return new ArrayList<>();
+    }
+    List<Source> sources = new ArrayList<>();
+    int end = bucket.upperBound(time);
+    long[] expiryTimes = bucket.mExpiryTimes;
+    int[] rows = bucket.mRows;
+    byte[] statuses = mStatuses;
+    for (int i = 0; i < end; i++) {
+      if (expiryTimes[i] > time && statuses[rows[i]] == ACTIVE) {
+        sources.add(mSources[rows[i]]);
+      }
+    }
+    return sources;
+  }
+
+  /** Returns the number of stored rows. */
+  int size() {
+    return mRowCount - mFreeRows.size();
+  }
+
+  private int allocateRow() {
+    if (!mFreeRows.isEmpty()) {
+      return mFreeRows.pop();
+    }
+    if (mRowCount == mSources.length) {
+      int capacity = mSources.length * 2;
+      mSources = Arrays.copyOf(mSources, capacity);
+      mStatuses = Arrays.copyOf(mStatuses, capacity);
+    }
+    return mRowCount++;
+  }
+
+  private void removeFromBucket(
+      Map<Long, Bucket> buckets, int enrollment, URI destination, int row, long eventTime) {
+    long key = bucketKey(enrollment, mDestinationIds.get(destination));
+    Bucket bucket = buckets.get(key);
+    if (bucket != null && bucket.remove(row, eventTime)) {
+      buckets.remove(key);
+    }
+  }
+
+  private static <T> int intern(Map<T, Integer> ids, T value) {
+    return ids.computeIfAbsent(value, v -> ids.size());
+  }
+
+  private static long bucketKey(int enrollment, int destination) {
+    return ((long) enrollment << 32) | (destination & 0xFFFFFFFFL);
+  }
+
+  private static byte statusCode(Source.Status status) {
+    return (byte) status.ordinal();
+  }
+
+  private static Set<URI> distinct(List<URI> destinations) {
+    return destinations == null ? Collections.emptySet() : new LinkedHashSet<>(destinations);
+  }
+
+  /**
+   * Rows sharing an enrollment and destination, sorted by event time. Rows with equal event times
+   * keep their insertion order, which makes range scans return the same relative order as a scan
+   * over the insertion-ordered sources.
+   */
+  private static class Bucket {
+    private long[] mEventTimes = new long[4];
+    private long[] mExpiryTimes = new long[4];
+    private int[] mRows = new int[4];
+    private int mSize;
+
+    Bucket() {}
+
+    Bucket(Bucket other) {
+      mEventTimes = other.mEventTimes.clone();
+      mExpiryTimes = other.mExpiryTimes.clone();
+      mRows = other.mRows.clone();
+      mSize = other.mSize;
+    }
+
+    void add(int row, long eventTime, long expiryTime) {
+      if (mSize == mRows.length) {
+        int capacity = mRows.length * 2;
+        mEventTimes = Arrays.copyOf(mEventTimes, capacity);
+        mExpiryTimes = Arrays.copyOf(mExpiryTimes, capacity);
+        mRows = Arrays.copyOf(mRows, capacity);
+      }
+      // Insert after every row with an event time less than or equal to this one.
+      int index = upperBound(eventTime);
+      int tail = mSize - index;
+      System.arraycopy(mEventTimes, index, mEventTimes, index + 1, tail);
+      System.arraycopy(mExpiryTimes, index, mExpiryTimes, index + 1, tail);
+      System.arraycopy(mRows, index, mRows, index + 1, tail);
+      mEventTimes[index] = eventTime;
+      mExpiryTimes[index] = expiryTime;
+      mRows[index] = row;
+      mSize++;
+    }
+
+    /** Removes {@code row}; returns true if no rows remain. */
+    boolean remove(int row, long eventTime) {
+      // Only rows with the same event time need to be looked at.
+      for (int i = upperBound(eventTime - 1); i < mSize && mEventTimes[i] == eventTime; i++) {
+        if (mRows[i] == row) {
+          int tail = mSize - i - 1;
+          System.arraycopy(mEventTimes, i + 1, mEventTimes, i, tail);
+          System.arraycopy(mExpiryTimes, i + 1, mExpiryTimes, i, tail);
+          System.arraycopy(mRows, i + 1, mRows, i, tail);
+          mSize--;
+          break;
+        }
+      }
+      return mSize == 0;
+    }
+
+    /** Returns the number of rows with an event time at or before {@code time}. */
+    int upperBound(long time) {
+      int low = 0;
+      int high = mSize;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (mEventTimes[mid] <= time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
@@ -0,0 +1,1103 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static com.google.measurement.AdServicesConfig.MEASUREMENT_DELETE_EXPIRED_WINDOW_MS;
+
+import com.google.measurement.aggregation.AggregateReport;
+import com.google.measurement.util.BaseUriExtractor;
+import com.google.measurement.util.DestinationUri;
+import com.google.measurement.util.Web;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.json.simple.JSONArray;
+import org.sqlite.Function;
+
+/**
+ * {@link IMeasurementDAO} backed by an embedded SQLite database in a local file, for users whose
+ * records do not fit comfortably in heap. The tables and indexes, see {@link MeasurementTables},
+ * mirror the measurement database on device, and every query runs as a cached prepared statement.
+ *
+ * <p>The in-memory DAOs hand out the stored records themselves, so changes callers make to them are
+ * kept even before the matching update method is called. To give the same results, the update
+ * methods here write back the whole record passed to them, and event reports stored more than once
+ * under the same id are kept identical, as if they were the same instance.
+ */
+public class SqliteMeasurementDAO implements IMeasurementDAO, AutoCloseable {
+  private static final Logger logger = Logger.getLogger(SqliteMeasurementDAO.class.getName());
+  private static final String APP_PUBLISHER = "s.publisher = ?";
+  private static final String WEB_PUBLISHER = "(s.publisher = ? OR s.publisher REGEXP ?)";
+  private static final int STAGED_EVENT_PAGE_SIZE = 1_000;
+
+  private final Path mDatabaseFile;
+  private final boolean mDeleteOnClose;
+  private final Connection mConnection;
+  private final Map<String, PreparedStatement> mStatements = new HashMap<>();
+
+  /**
+   * Opens, or creates, the database in {@code databaseFile}; the tables must not exist yet. The
+   * database is not durable until {@link #close()} commits it.
+   */
+  public SqliteMeasurementDAO(Path databaseFile) {
+    this(databaseFile, /* deleteOnClose= */ false);
+  }
+
+  private SqliteMeasurementDAO(Path databaseFile, boolean deleteOnClose) {
+    mDatabaseFile = databaseFile;
+    mDeleteOnClose = deleteOnClose;
+    try {
+      mConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+      try (Statement statement = mConnection.createStatement()) {
+        // The database is scratch space for a single simulation, so durability is traded for
+        // speed.
+        statement.execute("PRAGMA journal_mode = OFF");
+        statement.execute("PRAGMA synchronous = OFF");
+        statement.execute("PRAGMA foreign_keys = ON");
+        for (String sql : MeasurementTables.CREATE_STATEMENTS) {
+          statement.execute(sql);
+        }
+        for (String sql : MeasurementTables.CREATE_INDEXES) {
+          statement.execute(sql);
+        }
+      }
+      Function.create(
+          mConnection,
+          "regexp",
+          new Function() {
+            // Queries use a few patterns per publisher, each for many rows.
+            private final Map<String, Pattern> mPatterns = new HashMap<>();
+
+            @Override
+            protected void xFunc() throws SQLException {
+              String value = value_text(1);
+              result(
+                  value != null
+                          && mPatterns
+                              .computeIfAbsent(value_text(0), Pattern::compile)
+                              .matcher(value)
+                              .matches()
+                      ? 1
+                      : 0);
+            }
+          });
+      mConnection.setAutoCommit(false);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Unable to open measurement database " + databaseFile, e);
+    }
+  }
+
+  /** Returns a DAO whose database lives in a new temporary file, deleted by {@link #close()}. */
+  public static SqliteMeasurementDAO inTemporaryFile(String prefix) {
+    try {
+      return new SqliteMeasurementDAO(
+          Files.createTempFile(prefix, ".db"), /* deleteOnClose= */ true);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Commits the database and closes it. */
+  @Override
+  public void close() {
+    try {
+      for (PreparedStatement statement : mStatements.values()) {
+        statement.close();
+      }
+      mConnection.commit();
+      mConnection.close();
+      if (mDeleteOnClose) {
+        Files.deleteIfExists(mDatabaseFile);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Unable to close measurement database", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Holds {@code event} in the database until it is read back by {@link #getStagedUserEvents}, so
+   * that input too large for heap can be put in time order before it is stored.
+   */
+  void stageUserEvent(UserEvent event) {
+    update(
+        "INSERT INTO msmt_staged_event (type, timestamp, payload) VALUES (?, ?, ?)",
+        event.getUserEventType().ordinal(),
+        event.getTimestamp(),
+        toBytes(event));
+  }
+
+  /**
+   * Returns the staged events of {@code type} in time order, those at the same time in the order
+   * they were staged. The events are read a page at a time as they are iterated, so the other
+   * tables may be updated in between.
+   */
+  <T extends UserEvent> Iterable<T> getStagedUserEvents(UserEvent.Type type) {
+    return () ->
+        new Iterator<T>() {
+          private List<Pair<Long, T>> mPage = List.of();
+          private int mPosition;
+          private boolean mLastPage;
+          private long mTimestamp = Long.MIN_VALUE;
+          private long mRow;
+
+          @Override
+          public boolean hasNext() {
+            if (mPosition == mPage.size() && !mLastPage) {
+              // Continues after the last event read, which the index on (type, timestamp) finds
+              // without scanning the events before it.
+              mPage =
+                  queryRows(
+                      "SELECT _row, payload FROM msmt_staged_event WHERE type = ? AND timestamp >="
+                          + " ? AND (timestamp > ? OR _row > ?) ORDER BY timestamp, _row LIMIT ?",
+                      type.ordinal(),
+                      mTimestamp,
+                      mTimestamp,
+                      mRow,
+                      STAGED_EVENT_PAGE_SIZE);
+              mPosition = 0;
+              mLastPage = mPage.size() < STAGED_EVENT_PAGE_SIZE;
+            }
+            return mPosition < mPage.size();
+          }
+
+          @Override
+          public T next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Pair<Long, T> row = mPage.get(mPosition++);
+            mRow = row.first;
+            mTimestamp = row.second.getTimestamp();
+            return row.second;
+          }
+        };
+  }
+
+  /**
+   * Returns the triggers pending when this is called in time order, those at the same time in the
+   * order they were inserted. They are staged in place of the staged triggers without being read,
+   * and then read a page at a time like {@link #getStagedUserEvents(UserEvent.Type)}; like the list
+   * returned by {@link #getPendingTriggers()}, the result does not follow later updates.
+   */
+  Iterable<Trigger> getPendingTriggersInTimeOrder() {
+    update("DELETE FROM msmt_staged_event WHERE type = ?", UserEvent.Type.TRIGGER.ordinal());
+    update(
+        "INSERT INTO msmt_staged_event (type, timestamp, payload) SELECT ?, trigger_time, payload"
+            + " FROM msmt_trigger WHERE status = ? ORDER BY _row",
+        UserEvent.Type.TRIGGER.ordinal(),
+        Trigger.Status.PENDING.ordinal());
+    return getStagedUserEvents(UserEvent.Type.TRIGGER);
+  }
+
+  @Override
+  public List<Trigger> getPendingTriggers() {
+    return queryPayloads(
+        "SELECT payload FROM msmt_trigger WHERE status = ? ORDER BY _row",
+        Trigger.Status.PENDING.ordinal());
+  }
+
+  @Override
+  public Trigger getTrigger(String triggerId) {
+    List<Trigger> triggers =
+        queryPayloads(
+            "SELECT payload FROM msmt_trigger WHERE _id = ? ORDER BY _row LIMIT 1", triggerId);
+    return triggers.isEmpty() ? null : triggers.get(0);
+  }
+
+  @Override
+  public void insertSource(Source source) {
+    update(
+        "INSERT INTO msmt_source (_id, publisher, publisher_type, app_destination, enrollment_id,"
+            + " event_time, expiry_time, priority, status, registrant, install_attribution_window,"
+            + " debug_ad_id, publisher_origin_key, publisher_site_key, payload)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        source.getId(),
+        toText(source.getPublisher()),
+        source.getPublisherType().ordinal(),
+        toText(first(source.getAppDestinations())),
+        source.getEnrollmentId(),
+        source.getEventTime(),
+        source.getExpiryTime(),
+        source.getPriority(),
+        source.getStatus().ordinal(),
+        toText(source.getRegistrant()),
+        source.getInstallAttributionWindow(),
+        source.getDebugAdId(),
+        originKey(source.getPublisher()),
+        siteKey(source.getPublisher()),
+        toBytes(source));
+    long row = queryLong("SELECT last_insert_rowid()");
+    insertSourceDestinations(row, source.getAppDestinations(), EventSurfaceType.APP);
+    insertSourceDestinations(row, source.getWebDestinations(), EventSurfaceType.WEB);
+  }
+
+  @Override
+  public void insertTrigger(Trigger trigger) {
+    update(
+        "INSERT INTO msmt_trigger (_id, attribution_destination, destination_type, enrollment_id,"
+            + " trigger_time, status, registrant, debug_ad_id, destination_origin_key,"
+            + " destination_site_key, payload) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        trigger.getId(),
+        toText(trigger.getAttributionDestination()),
+        trigger.getDestinationType().ordinal(),
+        trigger.getEnrollmentId(),
+        trigger.getTriggerTime(),
+        trigger.getStatus().ordinal(),
+        toText(trigger.getRegistrant()),
+        trigger.getDebugAdId(),
+        originKey(trigger.getAttributionDestination()),
+        siteKey(trigger.getAttributionDestination()),
+        toBytes(trigger));
+  }
+
+  @Override
+  public int getNumAggregateReportsPerDestination(
+      URI attributionDestination, EventSurfaceType destinationType) {
+    Optional<URI> destinationBaseURI = extractBaseURI(attributionDestination, destinationType);
+    if (!destinationBaseURI.isPresent()) {
+      throw new IllegalStateException("extractBaseURI failed for destination.");
+    }
+    return (int)
+        countMatchingDestination(
+            "msmt_aggregate_report",
+            "destination",
+            DestinationUri.from(destinationBaseURI.get()),
+            destinationType);
+  }
+
+  @Override
+  public int getNumEventReportsPerDestination(
+      URI attributionDestination, EventSurfaceType destinationType) {
+    Optional<URI> destinationBaseURI = extractBaseURI(attributionDestination, destinationType);
+    if (!destinationBaseURI.isPresent()) {
+      throw new IllegalStateException("extractBaseURI failed for destination.");
+    }
+    return (int)
+        countMatchingDestination(
+            "msmt_event_report",
+            "destination",
+            DestinationUri.from(destinationBaseURI.get()),
+            destinationType);
+  }
+
+  @Override
+  public long getNumSourcesPerPublisher(URI publisherURI, EventSurfaceType publisherType) {
+    return countMatchingDestination(
+        "msmt_source", "publisher", DestinationUri.from(publisherURI), publisherType);
+  }
+
+  @Override
+  public long getNumTriggersPerRegistrant(URI registrant) {
+    return queryLong(
+        "SELECT COUNT(*) FROM msmt_trigger WHERE registrant = ?", registrant.toString());
+  }
+
+  @Override
+  public long getNumTriggersPerDestination(URI destination, EventSurfaceType destinationType) {
+    Optional<URI> destinationBaseURI = extractBaseURI(destination, destinationType);
+    if (destinationBaseURI.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "getNumTriggersPerDestination: Unable to extract base URI from %s",
+              destination.toString()));
+    }
+    return countMatchingDestination(
+        "msmt_trigger",
+        "destination",
+        DestinationUri.from(destinationBaseURI.get()),
+        destinationType);
+  }
+
+  @Override
+  public Integer countDistinctEnrollmentsPerPublisherXDestinationInAttribution(
+      URI sourceSite,
+      URI destinationSite,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    return (int)
+        queryLong(
+            "SELECT COUNT(DISTINCT enrollment_id) FROM msmt_attribution WHERE source_site = ?"
+                + " AND destination_site = ? AND enrollment_id IS NOT ? AND trigger_time <= ?"
+                + " AND trigger_time > ?",
+            sourceSite.toString(),
+            destinationSite.toString(),
+            excludedEnrollmentId,
+            windowEndTime,
+            windowStartTime);
+  }
+
+  @Override
+  public Integer countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+      URI publisher,
+      EventSurfaceType publisherType,
+      String enrollmentId,
+      List<URI> excludedDestinations,
+      EventSurfaceType destinationType,
+      long windowStartTime,
+      long windowEndTime) {
+    List<Object> args = publisherArgs(publisher, publisherType, "://.*.");
+    args.add(enrollmentId);
+    args.add(Source.Status.ACTIVE.ordinal());
+    args.add(windowStartTime);
+    args.add(windowEndTime);
+    args.add(windowEndTime);
+    args.add(destinationType.ordinal());
+    args.add(destinationType.ordinal());
+    args.add(toJsonArray(excludedDestinations));
+    return (int)
+        queryLong(
+            "SELECT COUNT(DISTINCT d.destination) FROM msmt_source s"
+                + " JOIN msmt_source_destination d ON d.source_row = s._row WHERE "
+                + publisherClause(publisherType)
+                + " AND s.enrollment_id = ? AND s.status = ? AND s.event_time > ?"
+                + " AND s.event_time <= ? AND s.expiry_time > ? AND d.destination_type = ?"
+                + " AND NOT EXISTS (SELECT 1 FROM msmt_source_destination x"
+                + " WHERE x.source_row = s._row AND x.destination_type = ?"
+                + " AND x.destination IN (SELECT value FROM json_each(?)))",
+            args.toArray());
+  }
+
+  @Override
+  public Integer countDistinctEnrollmentsPerPublisherXDestinationInSource(
+      URI publisher,
+      EventSurfaceType publisherType,
+      List<URI> destinations,
+      String excludedEnrollmentId,
+      long windowStartTime,
+      long windowEndTime) {
+    // MeasurementDAO matches web publishers against this pattern, which only matches literally.
+    List<Object> args = publisherArgs(publisher, publisherType, "://%.");
+    args.add(toJsonArray(destinations));
+    args.add(excludedEnrollmentId);
+    args.add(windowStartTime);
+    args.add(windowEndTime);
+    args.add(windowEndTime);
+    return (int)
+        queryLong(
+            "SELECT COUNT(DISTINCT s.enrollment_id) FROM msmt_source s WHERE "
+                + publisherClause(publisherType)
+                + " AND EXISTS (SELECT 1 FROM msmt_source_destination d"
+                + " WHERE d.source_row = s._row"
+                + " AND d.destination IN (SELECT value FROM json_each(?)))"
+                + " AND s.enrollment_id IS NOT ? AND s.event_time > ? AND s.event_time <= ?"
+                + " AND s.expiry_time > ?",
+            args.toArray());
+  }
+
+  @Override
+  public long countDistinctDebugAdIdsUsedByEnrollment(String enrollmentId) {
+    return queryLong(
+        "SELECT COUNT(*) FROM (SELECT debug_ad_id FROM msmt_source WHERE debug_ad_id IS NOT NULL"
+            + " AND enrollment_id = ? AND publisher_type = ? UNION SELECT debug_ad_id"
+            + " FROM msmt_trigger WHERE debug_ad_id IS NOT NULL AND enrollment_id = ?"
+            + " AND destination_type = ?)",
+        enrollmentId,
+        EventSurfaceType.WEB.ordinal(),
+        enrollmentId,
+        EventSurfaceType.WEB.ordinal());
+  }
+
+  @Override
+  public List<Source> getMatchingActiveSources(Trigger trigger) {
+    Optional<URI> destination =
+        trigger.getDestinationType() == EventSurfaceType.APP
+            ? Optional.of(trigger.getAttributionDestination())
+            : Web.topPrivateDomainAndScheme(trigger.getAttributionDestination());
+    if (!destination.isPresent()) {
+      logger.info(
+          String.format(
+              "getMatchingActiveSources: unable to obtain destination column and value: %s",
+              trigger.getAttributionDestination().toString()));
+      return new ArrayList<>();
+    }
+    return queryPayloads(
+        "SELECT s.payload FROM msmt_source s WHERE s.enrollment_id = ? AND s.event_time <= ?"
+            + " AND s.expiry_time > ? AND s.status = ? AND EXISTS (SELECT 1"
+            + " FROM msmt_source_destination d WHERE d.source_row = s._row"
+            + " AND d.destination = ? AND d.destination_type = ?) ORDER BY s._row",
+        trigger.getEnrollmentId(),
+        trigger.getTriggerTime(),
+        trigger.getTriggerTime(),
+        Source.Status.ACTIVE.ordinal(),
+        destination.get().toString(),
+        trigger.getDestinationType().ordinal());
+  }
+
+  @Override
+  public void updateSourceStatus(List<Source> sources, Source.Status status) {
+    for (Source source : sources) {
+      source.setStatus(status);
+      writeSource(source);
+    }
+  }
+
+  @Override
+  public void updateTriggerStatus(List<String> triggerIds, Trigger.Status status) {
+    for (String triggerId : triggerIds) {
+      List<Pair<Long, Trigger>> rows =
+          queryRows("SELECT _row, payload FROM msmt_trigger WHERE _id = ?", triggerId);
+      for (Pair<Long, Trigger> row : rows) {
+        row.second.setStatus(status);
+        update(
+            "UPDATE msmt_trigger SET status = ?, payload = ? WHERE _row = ?",
+            status.ordinal(),
+            toBytes(row.second),
+            row.first);
+      }
+    }
+  }
+
+  @Override
+  public void updateSourceEventReportDedupKeys(Source source) {
+    writeSource(source);
+  }
+
+  @Override
+  public void updateSourceAttributedTriggers(Source source) {
+    writeSource(source);
+  }
+
+  @Override
+  public void updateSourceAggregateReportDedupKeys(Source source) {
+    writeSource(source);
+  }
+
+  @Override
+  public void updateSourceAggregateContributions(Source source) {
+    writeSource(source);
+  }
+
+  @Override
+  public void updateEventReportSummaryBucket(String eventReportId, Pair<Long, Long> summaryBucket) {
+    List<Pair<Long, EventReport>> rows =
+        queryRows("SELECT _row, payload FROM msmt_event_report WHERE _id = ?", eventReportId);
+    for (Pair<Long, EventReport> row : rows) {
+      row.second.setTriggerSummaryBucket(summaryBucket);
+      update(
+          "UPDATE msmt_event_report SET payload = ? WHERE _row = ?",
+          toBytes(row.second),
+          row.first);
+    }
+  }
+
+  @Override
+  public List<EventReport> getSourceEventReports(Source source) {
+    return queryPayloads(
+        "SELECT payload FROM msmt_event_report WHERE source_id = ? ORDER BY _row", source.getId());
+  }
+
+  @Override
+  public void insertEventReport(EventReport report) {
+    if (report.getId() != null) {
+      update(
+          "UPDATE msmt_event_report SET status = ?, debug_report_status = ?, payload = ?"
+              + " WHERE _id = ?",
+          report.getStatus().ordinal(),
+          ordinal(report.getDebugReportStatus()),
+          toBytes(report),
+          report.getId());
+    }
+    update(
+        "INSERT INTO msmt_event_report (_id, source_id, attribution_destination, trigger_time,"
+            + " report_time, status, debug_report_status, destination_origin_key,"
+            + " destination_site_key, payload) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        report.getId(),
+        report.getSourceId(),
+        toText(first(report.getAttributionDestinations())),
+        report.getTriggerTime(),
+        report.getReportTime(),
+        report.getStatus().ordinal(),
+        ordinal(report.getDebugReportStatus()),
+        originKey(first(report.getAttributionDestinations())),
+        siteKey(first(report.getAttributionDestinations())),
+        toBytes(report));
+  }
+
+  @Override
+  public void deleteEventReport(EventReport report) {
+    // Like List#remove(Object), removes the first equal report; reports are compared by value.
+    List<Pair<Long, EventReport>> candidates =
+        queryRows(
+            "SELECT _row, payload FROM msmt_event_report WHERE _id IS ? ORDER BY _row",
+            report.getId());
+    if (candidates.stream().noneMatch(row -> report.equals(row.second))) {
+      candidates = queryRows("SELECT _row, payload FROM msmt_event_report ORDER BY _row");
+    }
+    for (Pair<Long, EventReport> row : candidates) {
+      if (report.equals(row.second)) {
+        update("DELETE FROM msmt_event_report WHERE _row = ?", row.first);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public List<String> getPendingEventReportIdsInWindow(long windowStartTime, long windowEndTime) {
+    return queryStrings(
+        "SELECT _id FROM msmt_event_report WHERE report_time >= ? AND report_time <= ?"
+            + " AND status = ? ORDER BY _row",
+        windowStartTime,
+        windowEndTime,
+        EventReport.Status.PENDING.ordinal());
+  }
+
+  @Override
+  public List<String> getPendingDebugEventReportIds() {
+    return queryStrings(
+        "SELECT _id FROM msmt_event_report WHERE debug_report_status = ? ORDER BY _row",
+        EventReport.DebugReportStatus.PENDING.ordinal());
+  }
+
+  @Override
+  public List<String> getPendingEventReportIdsForGivenApp(String appName) {
+    return queryStrings(
+        "SELECT e._id FROM msmt_event_report e WHERE e.status = ? AND EXISTS (SELECT 1"
+            + " FROM msmt_source s WHERE s._id = e.source_id AND s.registrant = ?)"
+            + " ORDER BY e._row",
+        EventReport.Status.PENDING.ordinal(),
+        appName);
+  }
+
+  @Override
+  public long getAttributionsPerRateLimitWindow(Source source, Trigger trigger) {
+    Optional<URI> publisherBaseURI =
+        extractBaseURI(source.getPublisher(), source.getPublisherType());
+    Optional<URI> destinationBaseURI =
+        extractBaseURI(trigger.getAttributionDestination(), trigger.getDestinationType());
+    if (!publisherBaseURI.isPresent() || !destinationBaseURI.isPresent()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "getAttributionsPerRateLimitWindow: extractBaseURI "
+                  + "failed. Publisher: %s; Attribution destination: %s",
+              source.getPublisher().toString(), trigger.getAttributionDestination().toString()));
+    }
+    return queryLong(
+        "SELECT COUNT(*) FROM msmt_attribution WHERE source_site = ? AND destination_site = ?"
+            + " AND enrollment_id = ? AND trigger_time > ? AND trigger_time <= ?",
+        publisherBaseURI.get().toString(),
+        destinationBaseURI.get().toString(),
+        trigger.getEnrollmentId(),
+        trigger.getTriggerTime() - PrivacyParams.RATE_LIMIT_WINDOW_MILLISECONDS,
+        trigger.getTriggerTime());
+  }
+
+  @Override
+  public void insertAttribution(Attribution attribution) {
+    update(
+        "INSERT INTO msmt_attribution (_id, source_site, source_origin, destination_site,"
+            + " destination_origin, enrollment_id, trigger_time, registrant, source_id,"
+            + " trigger_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        attribution.getId(),
+        attribution.getSourceSite(),
+        attribution.getSourceOrigin(),
+        attribution.getDestinationSite(),
+        attribution.getDestinationOrigin(),
+        attribution.getEnrollmentId(),
+        attribution.getTriggerTime(),
+        attribution.getRegistrant(),
+        attribution.getSourceId(),
+        attribution.getTriggerId());
+  }
+
+  @Override
+  public void deleteAppRecords(String uri) {
+    update(
+        "DELETE FROM msmt_event_report WHERE source_id IN"
+            + " (SELECT _id FROM msmt_source WHERE registrant = ?)",
+        uri);
+    update("DELETE FROM msmt_event_report WHERE attribution_destination = ?", uri);
+    update(
+        "DELETE FROM msmt_source WHERE registrant = ? OR (status = ? AND app_destination = ?)",
+        uri,
+        Source.Status.IGNORED.ordinal(),
+        uri);
+    update("DELETE FROM msmt_trigger WHERE registrant = ?", uri);
+    update("DELETE FROM msmt_attribution WHERE source_site = ? OR destination_site = ?", uri, uri);
+  }
+
+  @Override
+  public List<EventReport> deleteExpiredRecords(long currentTime) {
+    long earliestValidInsertion = currentTime - MEASUREMENT_DELETE_EXPIRED_WINDOW_MS;
+    int delivered = EventReport.Status.DELIVERED.ordinal();
+
+    update("DELETE FROM msmt_source WHERE event_time < ?", earliestValidInsertion);
+    update("DELETE FROM msmt_trigger WHERE trigger_time < ?", earliestValidInsertion);
+    // Ordered like MeasurementDAO orders them.
+    List<EventReport> expiredEventReports =
+        queryPayloads(
+            "SELECT payload FROM msmt_event_report WHERE status = ? OR report_time < ?"
+                + " ORDER BY CASE WHEN status = ? THEN ? ELSE report_time END, _row",
+            delivered,
+            earliestValidInsertion,
+            delivered,
+            Long.MIN_VALUE);
+    update(
+        "DELETE FROM msmt_event_report WHERE status = ? OR report_time < ?",
+        delivered,
+        earliestValidInsertion);
+    update("DELETE FROM msmt_attribution WHERE trigger_time < ?", earliestValidInsertion);
+    return expiredEventReports;
+  }
+
+  @Override
+  public void doInstallAttribution(URI uri, long eventTimestamp) {
+    List<Pair<Long, Source>> sources =
+        queryRows(
+            "SELECT _row, payload FROM msmt_source WHERE app_destination = ? AND event_time <= ?"
+                + " AND expiry_time > ? AND event_time + install_attribution_window >= ?"
+                + " AND status = ? ORDER BY priority DESC, event_time DESC, _row LIMIT 1",
+            uri.toString(),
+            eventTimestamp,
+            eventTimestamp,
+            eventTimestamp,
+            Source.Status.ACTIVE.ordinal());
+    for (Pair<Long, Source> row : sources) {
+      row.second.setInstallAttributed(true);
+      row.second.setInstallTime(eventTimestamp);
+      update("UPDATE msmt_source SET payload = ? WHERE _row = ?", toBytes(row.second), row.first);
+    }
+  }
+
+  @Override
+  public void undoInstallAttribution(URI uri) {
+    List<Pair<Long, Source>> rows =
+        queryRows(
+            "SELECT _row, payload FROM msmt_source WHERE app_destination = ?", uri.toString());
+    for (Pair<Long, Source> row : rows) {
+      row.second.setInstallAttributed(false);
+      row.second.setInstallTime(null);
+      update("UPDATE msmt_source SET payload = ? WHERE _row = ?", toBytes(row.second), row.first);
+    }
+  }
+
+  @Override
+  public void insertAggregateReport(AggregateReport aggregateReport) {
+    update(
+        "INSERT INTO msmt_aggregate_report (_id, publisher, attribution_destination,"
+            + " scheduled_report_time, status, destination_origin_key, destination_site_key,"
+            + " payload) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+        aggregateReport.getId(),
+        toText(aggregateReport.getPublisher()),
+        toText(aggregateReport.getAttributionDestination()),
+        aggregateReport.getScheduledReportTime(),
+        aggregateReport.getStatus().ordinal(),
+        originKey(aggregateReport.getAttributionDestination()),
+        siteKey(aggregateReport.getAttributionDestination()),
+        toBytes(aggregateReport));
+  }
+
+  @Override
+  public void insertDebugReport(DebugReport debugReport) {
+    update("INSERT INTO msmt_debug_report (payload) VALUES (?)", toBytes(debugReport));
+  }
+
+  @Override
+  public List<String> getPendingAggregateReportIdsInWindow(
+      long windowStartTime, long windowEndTime) {
+    return queryStrings(
+        "SELECT _id FROM msmt_aggregate_report WHERE scheduled_report_time >= ?"
+            + " AND scheduled_report_time <= ? AND status = ? ORDER BY _row",
+        windowStartTime,
+        windowEndTime,
+        AggregateReport.Status.PENDING.ordinal());
+  }
+
+  @Override
+  public List<String> getPendingAggregateReportIdsForGivenApp(String appName) {
+    return queryStrings(
+        "SELECT _id FROM msmt_aggregate_report WHERE publisher = ? AND status = ? ORDER BY _row",
+        appName,
+        AggregateReport.Status.PENDING.ordinal());
+  }
+
+  @Override
+  public void deleteMeasurementData(String registrant, String origin, Instant start, Instant end) {
+    MeasurementDAO.validateOptionalRange(start, end);
+    long startTime = start == null ? Long.MIN_VALUE : start.toEpochMilli();
+    long endTime = end == null ? Long.MAX_VALUE : end.toEpochMilli();
+
+    if (origin == null) { // Delete by registrant, and by time range if one was given
+      update(
+          "DELETE FROM msmt_attribution WHERE registrant = ? AND trigger_time >= ?"
+              + " AND trigger_time <= ?",
+          registrant,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_event_report WHERE EXISTS (SELECT 1 FROM msmt_source s"
+              + " WHERE s._id = msmt_event_report.source_id AND s.registrant = ?"
+              + " AND ((s.event_time >= ? AND s.event_time <= ?)"
+              + " OR (msmt_event_report.trigger_time >= ?"
+              + " AND msmt_event_report.trigger_time <= ?)))",
+          registrant,
+          startTime,
+          endTime,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_trigger WHERE registrant = ? AND trigger_time >= ?"
+              + " AND trigger_time <= ?",
+          registrant,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_source WHERE registrant = ? AND event_time >= ? AND event_time <= ?",
+          registrant,
+          startTime,
+          endTime);
+    } else { // Delete by registrant and URI, and by time range if one was given
+      update(
+          "DELETE FROM msmt_attribution WHERE registrant = ?"
+              + " AND (source_site = ? OR destination_site = ?) AND trigger_time >= ?"
+              + " AND trigger_time <= ?",
+          registrant,
+          origin,
+          origin,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_event_report WHERE EXISTS (SELECT 1 FROM msmt_source s"
+              + " WHERE s._id = msmt_event_report.source_id AND s.registrant = ?"
+              + " AND ((s.publisher = ? AND s.event_time >= ? AND s.event_time <= ?)"
+              + " OR (msmt_event_report.attribution_destination = ?"
+              + " AND msmt_event_report.trigger_time >= ?"
+              + " AND msmt_event_report.trigger_time <= ?)))",
+          registrant,
+          origin,
+          startTime,
+          endTime,
+          origin,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_trigger WHERE registrant = ? AND attribution_destination = ?"
+              + " AND trigger_time >= ? AND trigger_time <= ?",
+          registrant,
+          origin,
+          startTime,
+          endTime);
+      update(
+          "DELETE FROM msmt_source WHERE registrant = ? AND publisher = ? AND event_time >= ?"
+              + " AND event_time <= ?",
+          registrant,
+          origin,
+          startTime,
+          endTime);
+    }
+  }
+
+  @Override
+  public List<AggregateReport> getAllAggregateReports() {
+    return queryPayloads("SELECT payload FROM msmt_aggregate_report ORDER BY _row");
+  }
+
+  @Override
+  public List<EventReport> getAllEventReports() {
+    return queryPayloads("SELECT payload FROM msmt_event_report ORDER BY _row");
+  }
+
+  @Override
+  public List<DebugReport> getAllDebugReports() {
+    return queryPayloads("SELECT payload FROM msmt_debug_report ORDER BY _row");
+  }
+
+  @Override
+  public List<Source> getAllSources() {
+    return queryPayloads("SELECT payload FROM msmt_source ORDER BY _row");
+  }
+
+  @Override
+  public List<Trigger> getAllTriggers() {
+    return queryPayloads("SELECT payload FROM msmt_trigger ORDER BY _row");
+  }
+
+  @Override
+  public List<Attribution> getAllAttributions() {
+    String sql =
+        "SELECT _id, source_site, source_origin, destination_site, destination_origin,"
+            + " enrollment_id, trigger_time, registrant, source_id, trigger_id"
+            + " FROM msmt_attribution ORDER BY _row";
+    List<Attribution> attributions = new ArrayList<>();
+    try (ResultSet resultSet = bind(sql).executeQuery()) {
+      while (resultSet.next()) {
+        attributions.add(
+            new Attribution.Builder()
+                .setId(resultSet.getString(1))
+                .setSourceSite(resultSet.getString(2))
+                .setSourceOrigin(resultSet.getString(3))
+                .setDestinationSite(resultSet.getString(4))
+                .setDestinationOrigin(resultSet.getString(5))
+                .setEnrollmentId(resultSet.getString(6))
+                .setTriggerTime(resultSet.getLong(7))
+                .setRegistrant(resultSet.getString(8))
+                .setSourceId(resultSet.getString(9))
+                .setTriggerId(resultSet.getString(10))
+                .build());
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Query failed: " + sql, e);
+    }
+    return attributions;
+  }
+
+  @Override
+  public boolean canStoreSource(Source source) {
+    Optional<URI> publisher =
+        source.getPublisherType() == EventSurfaceType.APP
+            ? Optional.of(source.getPublisher())
+            : Web.topPrivateDomainAndScheme(source.getPublisher());
+    if (publisher.isEmpty()) {
+      logger.info(
+          String.format("getTopLevelPublisher failed: %s", source.getPublisher().toString()));
+      return false;
+    }
+
+    long numSourcesPerPublisher =
+        getNumSourcesPerPublisher(
+            BaseUriExtractor.getBaseUri(publisher.get()), source.getPublisherType());
+    if (numSourcesPerPublisher >= SystemHealthParams.MAX_SOURCES_PER_PUBLISHER) {
+      logger.info(
+          String.format(
+              "Max limit of %d sources for publisher - %s reached.",
+              SystemHealthParams.MAX_SOURCES_PER_PUBLISHER, source.getPublisher().toString()));
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean canStoreTrigger(Trigger trigger) {
+    long triggersPerDestination =
+        getNumTriggersPerDestination(
+            trigger.getAttributionDestination(), trigger.getDestinationType());
+    return triggersPerDestination < SystemHealthParams.MAX_TRIGGER_REGISTERS_PER_DESTINATION;
+  }
+
+  private void insertSourceDestinations(
+      long sourceRow, List<URI> destinations, EventSurfaceType destinationType) {
+    if (destinations == null) {
+      return;
+    }
+    for (URI destination : new LinkedHashSet<>(destinations)) {
+      update(
+          "INSERT INTO msmt_source_destination (source_row, destination, destination_type)"
+              + " VALUES (?, ?, ?)",
+          sourceRow,
+          destination.toString(),
+          destinationType.ordinal());
+    }
+  }
+
+  private void writeSource(Source source) {
+    update(
+        "UPDATE msmt_source SET status = ?, payload = ? WHERE _id = ?",
+        source.getStatus().ordinal(),
+        toBytes(source),
+        source.getId());
+  }
+
+  // Counts the rows of table whose URI, stored as keys in the columns starting with column, is an
+  // origin match of destination for app destinations and a site match for web destinations.
+  private long countMatchingDestination(
+      String table, String column, DestinationUri destination, EventSurfaceType destinationType) {
+    if (destinationType == EventSurfaceType.APP) {
+      String originKey = destination.getOriginKey();
+      return originKey == null
+          ? 0
+          : queryLong(
+              "SELECT COUNT(*) FROM " + table + " WHERE " + column + "_origin_key = ?", originKey);
+    }
+    String siteKey = destination.getReversedSiteKey();
+    return siteKey == null
+        ? 0
+        : queryLong(
+            "SELECT COUNT(*) FROM "
+                + table
+                + " WHERE "
+                + column
+                + "_site_key >= ? AND "
+                + column
+                + "_site_key < ?",
+            siteKey,
+            destination.getReversedSiteKeyEnd());
+  }
+
+  private static String publisherClause(EventSurfaceType publisherType) {
+    return publisherType == EventSurfaceType.APP ? APP_PUBLISHER : WEB_PUBLISHER;
+  }
+
+  private static List<Object> publisherArgs(
+      URI publisher, EventSurfaceType publisherType, String subdomainSeparator) {
+    List<Object> args = new ArrayList<>();
+    args.add(publisher.toString());
+    if (publisherType != EventSurfaceType.APP) {
+      args.add(publisher.getScheme() + subdomainSeparator + publisher.getAuthority());
+    }
+    return args;
+  }
+
+  private static Optional<URI> extractBaseURI(URI uri, EventSurfaceType eventSurfaceType) {
+    return eventSurfaceType == EventSurfaceType.APP
+        ? Optional.of(BaseUriExtractor.getBaseUri(uri))
+        : Web.topPrivateDomainAndScheme(uri);
+  }
+
+  private PreparedStatement statement(String sql) throws SQLException {
+    PreparedStatement statement = mStatements.get(sql);
+    if (statement == null) {
+      statement = mConnection.prepareStatement(sql);
+      mStatements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  private PreparedStatement bind(String sql, Object... args) throws SQLException {
+    PreparedStatement statement = statement(sql);
+    for (int i = 0; i < args.length; i++) {
+      statement.setObject(i + 1, args[i]);
+    }
+    return statement;
+  }
+
+  private void update(String sql, Object... args) {
+    try {
+      bind(sql, args).executeUpdate();
+    } catch (SQLException e) {
+      throw new IllegalStateException("Update failed: " + sql, e);
+    }
+  }
+
+  private long queryLong(String sql, Object... args) {
+    try (ResultSet resultSet = bind(sql, args).executeQuery()) {
+      return resultSet.next() ? resultSet.getLong(1) : 0;
+    } catch (SQLException e) {
+      throw new IllegalStateException("Query failed: " + sql, e);
+    }
+  }
+
+  private List<String> queryStrings(String sql, Object... args) {
+    List<String> values = new ArrayList<>();
+    try (ResultSet resultSet = bind(sql, args).executeQuery()) {
+      while (resultSet.next()) {
+        values.add(resultSet.getString(1));
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Query failed: " + sql, e);
+    }
+    return values;
+  }
+
+  private <T> List<T> queryPayloads(String sql, Object... args) {
+    List<T> records = new ArrayList<>();
+    try (ResultSet resultSet = bind(sql, args).executeQuery()) {
+      while (resultSet.next()) {
+        records.add(fromBytes(resultSet.getBytes(1)));
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Query failed: " + sql, e);
+    }
+    return records;
+  }
+
+  private <T> List<Pair<Long, T>> queryRows(String sql, Object... args) {
+    List<Pair<Long, T>> rows = new ArrayList<>();
+    try (ResultSet resultSet = bind(sql, args).executeQuery()) {
+      while (resultSet.next()) {
+        rows.add(new Pair<>(resultSet.getLong(1), fromBytes(resultSet.getBytes(2))));
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Query failed: " + sql, e);
+    }
+    return rows;
+  }
+
+  private static byte[] toBytes(Object record) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(record);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T fromBytes(byte[] bytes) {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return (T) in.readObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toJsonArray(List<URI> uris) {
+    JSONArray array = new JSONArray();
+    for (URI uri : uris) {
+      array.add(uri.toString());
+    }
+    return array.toJSONString();
+  }
+
+  private static String originKey(URI uri) {
+    return uri == null ? null : DestinationUri.from(uri).getOriginKey();
+  }
+
+  private static String siteKey(URI uri) {
+    return uri == null ? null : DestinationUri.from(uri).getReversedSiteKey();
+  }
+
+  private static URI first(List<URI> uris) {
+    return uris == null || uris.isEmpty() ? null : uris.get(0);
+  }
+
+  private static String toText(URI uri) {
+    return Objects.toString(uri, null);
+  }
+
+  private static Integer ordinal(Enum<?> value) {
+    return value == null ? null : value.ordinal();
+  }
+}
@@ -27,6 +27,7 @@ import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,15 +35,14 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import org.apache.avro.reflect.Nullable;
-import org.apache.beam.sdk.coders.AvroCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-@DefaultCoder(AvroCoder.class)
-public class Trigger implements Serializable {
+@DefaultCoder(TriggerCoder.class)
+public class Trigger implements Serializable, UserEvent, Cloneable {
   private String mId;
   private URI mAttributionDestination;
   private EventSurfaceType mDestinationType;
@@ -55,7 +55,10 @@ public class Trigger implements Serializable {
   @Nullable private String mAggregateValues;
   @Nullable private String mAggregateDeduplicationKeys;
   private boolean mIsDebugReporting;
-  @Nullable private Optional<AggregatableAttributionTrigger> mAggregatableAttributionTrigger;
+  // Parsed lazily from the aggregate fields; Optional is not serializable.
+  @Nullable
+  private transient Optional<AggregatableAttributionTrigger> mAggregatableAttributionTrigger;
+
   @Nullable private String mFilters;
   @Nullable private String mNotFilters;
   @Nullable private UnsignedLong mDebugKey;
@@ -68,6 +71,11 @@ public class Trigger implements Serializable {
   @Nullable private String mDebugAdId;
   @Nullable private URI mRegistrationOrigin;
   private ApiChoice mApiChoice;
+  // Parsed lazily from the JSON fields above and shared by every use during attribution.
+  @Nullable private transient List<EventTrigger> mParsedEventTriggers;
+  @Nullable private transient Optional<Map<Object, BigInteger>> mParsedAdtechKeyMapping;
+  @Nullable private transient List<FilterMap> mFilterSet;
+  @Nullable private transient List<FilterMap> mNotFilterSet;
 
   public enum Status {
     PENDING,
@@ -167,6 +175,16 @@ public class Trigger implements Serializable {
     return mTriggerTime;
   }
 
+  @Override
+  public long getTimestamp() {
+    return mTriggerTime;
+  }
+
+  @Override
+  public Type getUserEventType() {
+    return Type.TRIGGER;
+  }
+
   /** Event triggers containing priority, de-dup key, trigger data and event-level filters info. */
   public String getEventTriggers() {
     return mEventTriggers;
@@ -243,6 +261,22 @@ public class Trigger implements Serializable {
     return mFilters;
   }
 
+  /** Returns the top level filters parsed from {@link #getFilters()}. */
+  public List<FilterMap> getFilterSet() throws ParseException {
+    if (mFilterSet == null) {
+      mFilterSet = parseFilterSet(mFilters);
+    }
+    return mFilterSet;
+  }
+
+  /** Returns the top level not-filters parsed from {@link #getNotFilters()}. */
+  public List<FilterMap> getNotFilterSet() throws ParseException {
+    if (mNotFilterSet == null) {
+      mNotFilterSet = parseFilterSet(mNotFilters);
+    }
+    return mNotFilterSet;
+  }
+
   /** Is Ad Tech Opt-in to Debug Reporting {@link Trigger}. */
   public boolean isDebugReporting() {
     return mIsDebugReporting;
@@ -408,6 +442,19 @@ public class Trigger implements Serializable {
             .build());
   }
 
+  /**
+   * Returns the {@link EventTrigger}s parsed from {@link #mEventTriggers}, reading their values.
+   * The list is parsed once and must not be modified.
+   *
+   * @throws ParseException if JSON parsing fails
+   */
+  public List<EventTrigger> getParsedEventTriggers() throws ParseException {
+    if (mParsedEventTriggers == null) {
+      mParsedEventTriggers = Collections.unmodifiableList(parseEventTriggers(true));
+    }
+    return mParsedEventTriggers;
+  }
+
   /**
    * Parses the json array under {@link #mEventTriggers} to form a list of {@link EventTrigger}s.
    *
@@ -479,6 +526,35 @@ public class Trigger implements Serializable {
     return adtechBitMapping;
   }
 
+  /**
+   * Returns the mapping of Ad Techs to their bits parsed from {@link #mAdtechKeyMapping}, or null
+   * if the trigger has none. The mapping is parsed once and must not be modified.
+   *
+   * @throws ParseException if JSON parsing fails
+   * @throws NumberFormatException if BigInteger parsing fails
+   */
+  @Nullable
+  public Map<Object, BigInteger> getParsedAdtechKeyMapping()
+      throws ParseException, NumberFormatException {
+    if (mParsedAdtechKeyMapping == null) {
+      mParsedAdtechKeyMapping =
+          Optional.ofNullable(parseAdtechKeyMapping()).map(Collections::unmodifiableMap);
+    }
+    return mParsedAdtechKeyMapping.orElse(null);
+  }
+
+  private static List<FilterMap> parseFilterSet(@Nullable String filters) throws ParseException {
+    String json = (filters == null || filters.isEmpty()) ? "[]" : filters;
+    List<FilterMap> filterSet = new ArrayList<>();
+    JSONParser parser = new JSONParser();
+    JSONArray filterArray = (JSONArray) parser.parse(json);
+    for (int i = 0; i < filterArray.size(); i++) {
+      filterSet.add(
+          new FilterMap.Builder().buildFilterData((JSONObject) filterArray.get(i)).build());
+    }
+    return Collections.unmodifiableList(filterSet);
+  }
+
   /**
    * Returns a {@code URI} with scheme and (1) public suffix + 1 in case of a web destination, or
    * (2) the Android package name in case of an app destination. Returns null if extracting the
@@ -494,6 +570,36 @@ public class Trigger implements Serializable {
     }
   }
 
+  /**
+   * Returns a copy of this trigger for a store to update without changing this trigger. Only the
+   * status of a stored trigger changes, so the copy shares everything else with this trigger.
+   */
+  Trigger copy() {
+    try {
+      return (Trigger) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns a copy of this trigger for a simulation to update. Attribution only changes the status
+   * of a trigger, so the copy shares everything else with this trigger.
+   *
+   * <p>Like the copies simulations used to make through the {@link Builder}, the copy leaves out
+   * the debug key, debug ids, registration origin and API choice.
+   */
+  Trigger copyForSimulation() {
+    Trigger copy = copy();
+    copy.mDebugKey = null;
+    copy.mDebugJoinKey = null;
+    copy.mPlatformAdId = null;
+    copy.mDebugAdId = null;
+    copy.mRegistrationOrigin = null;
+    copy.mApiChoice = null;
+    return copy;
+  }
+
   /** Builder for {@link Trigger}. */
   public static final class Builder {
     private final Trigger mBuilding;
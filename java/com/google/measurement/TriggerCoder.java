@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static com.google.measurement.RecordCoding.readEnum;
+import static com.google.measurement.RecordCoding.readString;
+import static com.google.measurement.RecordCoding.readUnsignedLong;
+import static com.google.measurement.RecordCoding.readUri;
+import static com.google.measurement.RecordCoding.readVarInt;
+import static com.google.measurement.RecordCoding.readVarLong;
+import static com.google.measurement.RecordCoding.writeEnum;
+import static com.google.measurement.RecordCoding.writeString;
+import static com.google.measurement.RecordCoding.writeUnsignedLong;
+import static com.google.measurement.RecordCoding.writeUri;
+import static com.google.measurement.RecordCoding.writeVarInt;
+import static com.google.measurement.RecordCoding.writeVarLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.values.TypeDescriptor;
+
+/**
+ * Binary {@link org.apache.beam.sdk.coders.Coder} for {@link Trigger}. Fields are written in a
+ * fixed order with the encodings of {@link RecordCoding}; the booleans share one varint of flags.
+ * The parsed aggregatable attribution trigger is a cache and is not encoded.
+ */
+public class TriggerCoder extends AtomicCoder<Trigger> {
+  private static final TriggerCoder INSTANCE = new TriggerCoder();
+
+  private static final int DEBUG_REPORTING = 1;
+  private static final int AD_ID_PERMISSION = 1 << 1;
+  private static final int AR_DEBUG_PERMISSION = 1 << 2;
+
+  public static TriggerCoder of() {
+    return INSTANCE;
+  }
+
+  /** Used by {@link org.apache.beam.sdk.coders.DefaultCoder} to register this coder. */
+  public static CoderProvider getCoderProvider() {
+    return CoderProviders.forCoder(TypeDescriptor.of(Trigger.class), INSTANCE);
+  }
+
+  private TriggerCoder() {}
+
+  @Override
+  public void encode(Trigger trigger, OutputStream out) throws IOException {
+    if (trigger == null) {
+      throw new CoderException("Cannot encode a null Trigger");
+    }
+    int flags = 0;
+    flags |= trigger.isDebugReporting() ? DEBUG_REPORTING : 0;
+    flags |= trigger.hasAdIdPermission() ? AD_ID_PERMISSION : 0;
+    flags |= trigger.hasArDebugPermission() ? AR_DEBUG_PERMISSION : 0;
+    writeVarInt(flags, out);
+
+    writeString(trigger.getId(), out);
+    writeUri(trigger.getAttributionDestination(), out);
+    writeEnum(trigger.getDestinationType(), out);
+    writeString(trigger.getEnrollmentId(), out);
+    writeVarLong(trigger.getTriggerTime(), out);
+    writeString(trigger.getEventTriggers(), out);
+    writeEnum(trigger.getStatus(), out);
+    writeUri(trigger.getRegistrant(), out);
+    writeString(trigger.getAggregateTriggerData(), out);
+    writeString(trigger.getAggregateValues(), out);
+    writeString(trigger.getAggregateDeduplicationKeys(), out);
+    writeString(trigger.getFilters(), out);
+    writeString(trigger.getNotFilters(), out);
+    writeUnsignedLong(trigger.getDebugKey(), out);
+    writeString(trigger.getAttributionConfig(), out);
+    writeString(trigger.getAdtechKeyMapping(), out);
+    writeString(trigger.getDebugJoinKey(), out);
+    writeString(trigger.getPlatformAdId(), out);
+    writeString(trigger.getDebugAdId(), out);
+    writeUri(trigger.getRegistrationOrigin(), out);
+    writeEnum(trigger.getApiChoice(), out);
+  }
+
+  @Override
+  public Trigger decode(InputStream in) throws IOException {
+    int flags = readVarInt(in);
+    return new Trigger.Builder()
+        .setIsDebugReporting((flags & DEBUG_REPORTING) != 0)
+        .setAdIdPermission((flags & AD_ID_PERMISSION) != 0)
+        .setArDebugPermission((flags & AR_DEBUG_PERMISSION) != 0)
+        .setId(readString(in))
+        .setAttributionDestination(readUri(in))
+        .setDestinationType(readEnum(EventSurfaceType.values(), in))
+        .setEnrollmentId(readString(in))
+        .setTriggerTime(readVarLong(in))
+        .setEventTriggers(readString(in))
+        .setStatus(readEnum(Trigger.Status.values(), in))
+        .setRegistrant(readUri(in))
+        .setAggregateTriggerData(readString(in))
+        .setAggregateValues(readString(in))
+        .setAggregateDeduplicationKeys(readString(in))
+        .setFilters(readString(in))
+        .setNotFilters(readString(in))
+        .setDebugKey(readUnsignedLong(in))
+        .setAttributionConfig(readString(in))
+        .setAdtechBitMapping(readString(in))
+        .setDebugJoinKey(readString(in))
+        .setPlatformAdId(readString(in))
+        .setDebugAdId(readString(in))
+        .setRegistrationOrigin(readUri(in))
+        .setApiChoice(readEnum(ApiChoice.values(), in))
+        .build();
+  }
+
+  @Override
+  public void verifyDeterministic() throws NonDeterministicException {
+    throw new NonDeterministicException(this, "Trigger equality ignores the id");
+  }
+}
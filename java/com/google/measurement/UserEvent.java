@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+/** A record in the time-ordered stream of events of one user, see {@link UserEvents}. */
+public interface UserEvent {
+  /** Kinds of events. Events that occur at the same time are ordered by kind, in this order. */
+  enum Type {
+    SOURCE,
+    TRIGGER,
+    EXTENSION_EVENT
+  }
+
+  /** Time the event occurred. */
+  long getTimestamp();
+
+  /** Kind of the event. */
+  Type getUserEventType();
+}
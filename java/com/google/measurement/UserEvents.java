@@ -0,0 +1,140 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Orders the events of one user by time and then by {@link UserEvent.Type}, keeping the input order
+ * of equal events.
+ */
+final class UserEvents {
+  private static final Comparator<UserEvent> ORDER =
+      Comparator.comparingLong(UserEvent::getTimestamp).thenComparing(UserEvent::getUserEventType);
+  private static final int TYPE_BITS = 2;
+
+  private UserEvents() {}
+
+  /**
+   * Returns {@code events} in time order. Input that is already in order, as it is when it was
+   * written in time order, is only checked. Otherwise the events are sorted on primitive keys that
+   * pack the time, type and input position of each event.
+   */
+  static <T extends UserEvent> List<T> inTimeOrder(Iterable<T> events) {
+    List<T> list = new ArrayList<>();
+    events.forEach(list::add);
+    if (isInTimeOrder(list)) {
+      return list;
+    }
+    int size = list.size();
+    long minTimestamp = Long.MAX_VALUE;
+    long maxTimestamp = Long.MIN_VALUE;
+    for (T event : list) {
+      minTimestamp = Math.min(minTimestamp, event.getTimestamp());
+      maxTimestamp = Math.max(maxTimestamp, event.getTimestamp());
+    }
+    int indexBits = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    int timeBits = Long.SIZE - Long.numberOfLeadingZeros(maxTimestamp - minTimestamp);
+    // Fall back to a comparator when the span of times is too wide to pack, or overflows.
+    if (maxTimestamp - minTimestamp < 0 || timeBits + TYPE_BITS + indexBits >= Long.SIZE) {
+      list.sort(ORDER);
+      return list;
+    }
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++) {
+      T event = list.get(i);
+      keys[i] =
+          (event.getTimestamp() - minTimestamp) << (TYPE_BITS + indexBits)
+              | (long) event.getUserEventType().ordinal() << indexBits
+              | i;
+    }
+    Arrays.sort(keys);
+    long indexMask = (1L << indexBits) - 1;
+    List<T> sorted = new ArrayList<>(size);
+    for (long key : keys) {
+      sorted.add(list.get((int) (key & indexMask)));
+    }
+    return sorted;
+  }
+
+  /**
+   * Merges inputs that are each in time order into one sequence in time order. Of equal events,
+   * those of earlier inputs come first. The inputs are read one event ahead as the result is
+   * iterated, so they are never held in full.
+   */
+  @SafeVarargs
+  static Iterable<UserEvent> merge(Iterable<? extends UserEvent>... inputs) {
+    return () ->
+        new Iterator<UserEvent>() {
+          private final List<Iterator<? extends UserEvent>> mIterators = new ArrayList<>();
+          // The next event of each input, or null once it is exhausted.
+          private final UserEvent[] mHeads = new UserEvent[inputs.length];
+
+          {
+            for (int i = 0; i < inputs.length; i++) {
+              mIterators.add(inputs[i].iterator());
+              advance(i);
+            }
+          }
+
+          @Override
+          public boolean hasNext() {
+            for (UserEvent head : mHeads) {
+              if (head != null) {
+                return true;
+              }
+            }
+            return false;
+          }
+
+          @Override
+          public UserEvent next() {
+            int next = -1;
+            for (int i = 0; i < mHeads.length; i++) {
+              if (mHeads[i] != null && (next == -1 || ORDER.compare(mHeads[i], mHeads[next]) < 0)) {
+                next = i;
+              }
+            }
+            if (next == -1) {
+              throw new NoSuchElementException();
+            }
+            UserEvent event = mHeads[next];
+            advance(next);
+            return event;
+          }
+
+          private void advance(int input) {
+            Iterator<? extends UserEvent> iterator = mIterators.get(input);
+            mHeads[input] = iterator.hasNext() ? iterator.next() : null;
+          }
+        };
+  }
+
+  private static boolean isInTimeOrder(List<? extends UserEvent> events) {
+    for (int i = 1; i < events.size(); i++) {
+      if (ORDER.compare(events.get(i - 1), events.get(i)) > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
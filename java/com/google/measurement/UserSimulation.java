@@ -20,26 +20,39 @@ import com.google.measurement.noising.SourceNoiseHandler;
 import com.google.measurement.util.Web;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.avro.reflect.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
 class UserSimulation implements Serializable {
+  /** Receives the state of a user at the end of an incremental run, see {@link #setCheckpoint}. */
+  interface CheckpointSink {
+    void write(UserStateCheckpoint checkpoint) throws IOException;
+  }
+
   String userId;
   String outputDirectory;
   SourceNoiseHandler mSourceNoiseHandler;
+  Flags mFlags;
   DebugReportApi mDebugReportApi;
+  int mSqliteDaoRecordThreshold;
+  @Nullable UserStateCheckpoint mCheckpoint;
+  @Nullable CheckpointSink mCheckpointSink;
+  // Null to write the reports of each run to a new ReportSink#perUserDirectories().
+  @Nullable ReportSink mReportSink;
 
   public UserSimulation(String userId, String outputDirectory) {
     this(userId, outputDirectory, new SourceNoiseHandler(new Flags()));
@@ -47,103 +60,45 @@ class UserSimulation implements Serializable {
 
   public UserSimulation(
       String userId, String outputDirectory, SourceNoiseHandler sourceNoiseHandler) {
+    this(userId, outputDirectory, sourceNoiseHandler, new Flags());
+  }
+
+  UserSimulation(
+      String userId, String outputDirectory, SourceNoiseHandler sourceNoiseHandler, Flags flags) {
     this.userId = userId;
     this.outputDirectory = outputDirectory;
     mSourceNoiseHandler = sourceNoiseHandler;
-    mDebugReportApi = new DebugReportApi(new Flags());
-  }
-
-  private List<Source> cloneSourceData(final List<Source> inputSourceData) {
-    List<Source> clonedSourceData = new ArrayList<>();
-    for (Source source : inputSourceData) {
-      Source clonedSource =
-          new Source.Builder()
-              .setId(source.getId())
-              .setEventId(source.getEventId())
-              .setPublisher(source.getPublisher())
-              .setAppDestinations(source.getAppDestinations())
-              .setWebDestinations(source.getWebDestinations())
-              .setEnrollmentId(source.getEnrollmentId())
-              .setEventTime(source.getEventTime())
-              .setExpiryTime(source.getExpiryTime())
-              .setPriority(source.getPriority())
-              .setSourceType(source.getSourceType())
-              .setDebugKey(source.getDebugKey())
-              .setIsDebugReporting(source.isDebugReporting())
-              .setAdIdPermission(source.hasAdIdPermission())
-              .setArDebugPermission(source.hasArDebugPermission())
-              .setRegistrationId(source.getRegistrationId())
-              .setParentId(source.getParentId())
-              .setEventReportDedupKeys(new ArrayList<>(source.getEventReportDedupKeys()))
-              .setAggregateReportDedupKeys(new ArrayList<>(source.getAggregateReportDedupKeys()))
-              .setSharedAggregationKeys(source.getSharedAggregationKeys())
-              .setEventReportWindow(source.getEventReportWindow())
-              .setAggregatableReportWindow(source.getAggregatableReportWindow())
-              .setStatus(source.getStatus())
-              .setRegistrant(source.getRegistrant())
-              .setAttributionMode(source.getAttributionMode())
-              .setInstallAttributionWindow(source.getInstallAttributionWindow())
-              .setInstallCooldownWindow(source.getInstallCooldownWindow())
-              .setInstallTime(source.getInstallTime())
-              .setFilterData(source.getFilterDataString())
-              .setAggregateSource(source.getAggregateSource())
-              .setAttributedTriggers(getClonedAttributedTriggers(source.getAttributedTriggers()))
-              .setTriggerSpecs(source.getTriggerSpecs())
-              .setMaxEventLevelReports(source.getMaxEventLevelReports())
-              .setEventAttributionStatus(source.getEventAttributionStatus())
-              .setPrivacyParameters(source.encodePrivacyParametersToJSONString())
-              .build();
-      clonedSourceData.add(clonedSource);
-    }
-    return clonedSourceData;
+    mFlags = flags;
+    mDebugReportApi = new DebugReportApi(flags);
+    mSqliteDaoRecordThreshold = flags.getMeasurementSqliteDaoRecordThreshold();
   }
 
-  @Nullable
-  private List<AttributedTrigger> getClonedAttributedTriggers(List<AttributedTrigger> copyFrom) {
-    List<AttributedTrigger> copy = new ArrayList<>();
-    if (copyFrom == null) {
-      return copy;
-    }
-    for (AttributedTrigger trigger : copyFrom) {
-      copy.add(AttributedTrigger.copy(trigger));
-    }
-    return copy;
+  /**
+   * Makes {@link #runSimulation(Iterable, Iterable, Iterable)} continue from the previous run: the
+   * state this user had at its end is restored from {@code checkpoint}, if not null, before the new
+   * input is stored, only the reports generated by this run are output, and the state at the end of
+   * the run is written to {@code checkpointSink}, unless no live state is left.
+   */
+  void setCheckpoint(@Nullable UserStateCheckpoint checkpoint, CheckpointSink checkpointSink) {
+    mCheckpoint = checkpoint;
+    mCheckpointSink = checkpointSink;
   }
 
-  private List<Trigger> cloneTriggerData(final List<Trigger> inputTriggerData) {
-    List<Trigger> clonedTriggerData = new ArrayList<>();
-    for (Trigger trigger : inputTriggerData) {
-      Trigger clonedTrigger =
-          new Trigger.Builder()
-              .setId(trigger.getId())
-              .setAttributionDestination(trigger.getAttributionDestination())
-              .setDestinationType(trigger.getDestinationType())
-              .setEnrollmentId(trigger.getEnrollmentId())
-              .setStatus(trigger.getStatus())
-              .setIsDebugReporting(trigger.isDebugReporting())
-              .setAdIdPermission(trigger.hasAdIdPermission())
-              .setArDebugPermission(trigger.hasArDebugPermission())
-              .setEventTriggers(trigger.getEventTriggers())
-              .setTriggerTime(trigger.getTriggerTime())
-              .setRegistrant(trigger.getRegistrant())
-              .setAttributionConfig(trigger.getAttributionConfig())
-              .setAdtechBitMapping(trigger.getAdtechKeyMapping())
-              .setAggregateDeduplicationKeys(trigger.getAggregateDeduplicationKeys())
-              .setAggregateTriggerData(trigger.getAggregateTriggerData())
-              .setAggregateValues(trigger.getAggregateValues())
-              .setFilters(trigger.getFilters())
-              .setNotFilters(trigger.getNotFilters())
-              .build();
-      clonedTriggerData.add(clonedTrigger);
-    }
-    return clonedTriggerData;
+  /**
+   * Sends the event and debug reports to {@code reportSink} instead of writing them to {@code
+   * outputDirectory/<userId>}.
+   */
+  void setReportSink(ReportSink reportSink) {
+    mReportSink = reportSink;
   }
 
   private void storeAllowedSourceData(
-      IMeasurementDAO measurementDAO, List<Source> inputSourceData) {
+      IMeasurementDAO measurementDAO,
+      Iterable<Source> inputSourceData,
+      SourceNoiseHandler sourceNoiseHandler) {
     for (Source source : inputSourceData) {
       if (measurementDAO.canStoreSource(source)) {
-        List<EventReport> eventReports = generateFakeEventReports(source);
+        List<EventReport> eventReports = generateFakeEventReports(source, sourceNoiseHandler);
         if (!eventReports.isEmpty()) {
           mDebugReportApi.scheduleSourceNoisedDebugReport(source, measurementDAO);
         }
@@ -215,7 +170,7 @@ class UserSimulation implements Serializable {
   }
 
   private void storeAllowedTriggerData(
-      IMeasurementDAO measurementDAO, List<Trigger> inputTriggerData) {
+      IMeasurementDAO measurementDAO, Iterable<Trigger> inputTriggerData) {
     for (Trigger trigger : inputTriggerData) {
       if (measurementDAO.canStoreTrigger(trigger)) {
         measurementDAO.insertTrigger(trigger);
@@ -224,158 +179,329 @@ class UserSimulation implements Serializable {
   }
 
   /**
-   * Create an IMeasurementDAO using copies of the supplied lists.
+   * Create an IMeasurementDAO using copies of the supplied records. The DAO is chosen before any
+   * record is copied: users with more records than {@link
+   * Flags#getMeasurementSqliteDaoRecordThreshold()} get a {@link SqliteMeasurementDAO}, which the
+   * caller must close, and their input is streamed into it and put in time order there, so that it
+   * is never held in heap. The input is therefore iterated twice, the first time only partly, to
+   * count the records up to the threshold.
    *
    * @param inputSourceData
    * @param inputTriggerData
-   * @return IMeasurementDAO instance that contains a copy of the supplied lists.
+   * @param checkpoint records of a previous run stored before the input, or null
+   * @param sourceNoiseHandler handler that noises the sources as they are stored
+   * @return IMeasurementDAO instance that contains a copy of the supplied records.
    */
   private IMeasurementDAO createMeasurementDAO(
-      final List<Source> inputSourceData, final List<Trigger> inputTriggerData) {
-    MeasurementDAO measurementDAO = new MeasurementDAO();
+      final Iterable<Source> inputSourceData,
+      final Iterable<Trigger> inputTriggerData,
+      @Nullable UserStateCheckpoint checkpoint,
+      SourceNoiseHandler sourceNoiseHandler) {
+    long recordLimit = mSqliteDaoRecordThreshold;
+    if (checkpoint != null) {
+      recordLimit -= checkpoint.size();
+    }
+    if (hasMoreThan(recordLimit, inputSourceData, inputTriggerData)) {
+      return createSqliteMeasurementDAO(
+          inputSourceData, inputTriggerData, checkpoint, sourceNoiseHandler);
+    }
 
-    // Need to clone input source and trigger data to modify their state.
+    // Need to copy input source and trigger data to modify their state.
     // Apache beam does not allow to modify any processing element as it could be used in the
-    // downstream PTransform.
-    List<Source> clonedSourceData = this.cloneSourceData(inputSourceData);
-    List<Trigger> clonedTriggerData = this.cloneTriggerData(inputTriggerData);
+    // downstream PTransform. The copies share the registration data, which is never modified.
+    List<Source> clonedSourceData = new ArrayList<>();
+    for (Source source : inputSourceData) {
+      clonedSourceData.add(source.copyForSimulation());
+    }
+    List<Trigger> clonedTriggerData = new ArrayList<>();
+    for (Trigger trigger : inputTriggerData) {
+      clonedTriggerData.add(trigger.copyForSimulation());
+    }
+
+    IMeasurementDAO measurementDAO = new IndexedMeasurementDAO();
+    if (checkpoint != null) {
+      checkpoint.restore(measurementDAO);
+    }
 
-    // Beam pipeline does not guarantee the ordering of elements, so we need to sort them
-    // again based on event times
-    clonedSourceData.sort(Comparator.comparingLong(Source::getEventTime));
-    clonedTriggerData.sort(Comparator.comparingLong(Trigger::getTriggerTime));
+    // Beam pipeline does not guarantee the ordering of elements. Input that was written in time
+    // order usually arrives in order and is only checked, anything else is sorted.
+    clonedSourceData = UserEvents.inTimeOrder(clonedSourceData);
+    clonedTriggerData = UserEvents.inTimeOrder(clonedTriggerData);
 
     // store allowed source and trigger data
-    this.storeAllowedSourceData(measurementDAO, clonedSourceData);
+    this.storeAllowedSourceData(measurementDAO, clonedSourceData, sourceNoiseHandler);
     this.storeAllowedTriggerData(measurementDAO, clonedTriggerData);
     return measurementDAO;
   }
 
-  private List<EventReport> generateFakeEventReports(Source source) {
+  private SqliteMeasurementDAO createSqliteMeasurementDAO(
+      final Iterable<Source> inputSourceData,
+      final Iterable<Trigger> inputTriggerData,
+      @Nullable UserStateCheckpoint checkpoint,
+      SourceNoiseHandler sourceNoiseHandler) {
+    SqliteMeasurementDAO measurementDAO =
+        SqliteMeasurementDAO.inTemporaryFile("measurement-" + userId + "-");
+    try {
+      if (checkpoint != null) {
+        checkpoint.restore(measurementDAO);
+      }
+      // The records are staged one at a time and read back in time order, a page at a time, as
+      // they are stored. Staging serializes them, which copies them like copyForSimulation.
+      for (Source source : inputSourceData) {
+        measurementDAO.stageUserEvent(source.copyForSimulation());
+      }
+      for (Trigger trigger : inputTriggerData) {
+        measurementDAO.stageUserEvent(trigger.copyForSimulation());
+      }
+      this.storeAllowedSourceData(
+          measurementDAO,
+          measurementDAO.getStagedUserEvents(UserEvent.Type.SOURCE),
+          sourceNoiseHandler);
+      this.storeAllowedTriggerData(
+          measurementDAO, measurementDAO.getStagedUserEvents(UserEvent.Type.TRIGGER));
+      return measurementDAO;
+    } catch (RuntimeException e) {
+      measurementDAO.close();
+      throw e;
+    }
+  }
+
+  /** Returns whether {@code inputs} hold more than {@code limit} records, counting at most that. */
+  private static boolean hasMoreThan(long limit, Iterable<?>... inputs) {
+    long count = 0;
+    for (Iterable<?> input : inputs) {
+      for (Object unused : input) {
+        if (++count > limit) {
+          return true;
+        }
+      }
+    }
+    return count > limit;
+  }
+
+  private List<EventReport> generateFakeEventReports(
+      Source source, SourceNoiseHandler sourceNoiseHandler) {
     List<Source.FakeReport> fakeReports =
-        mSourceNoiseHandler.assignAttributionModeAndGenerateFakeReports(source);
-    return fakeReports.stream()
-        .map(
-            fakeReport ->
-                new EventReport.Builder()
-                    .setSourceEventId(source.getEventId())
-                    .setReportTime(fakeReport.getReportingTime())
-                    .setTriggerData(fakeReport.getTriggerData())
-                    .setAttributionDestinations(fakeReport.getDestinations())
-                    .setEnrollmentId(source.getEnrollmentId())
-                    // The query for attribution check is from
-                    // (triggerTime - 30 days) to triggerTime and max expiry is
-                    // 30 days, so it's safe to choose triggerTime as source
-                    // event time so that it gets considered when the query is
-                    // fired for attribution rate limit check.
-                    .setTriggerTime(source.getEventTime())
-                    .setTriggerPriority(0L)
-                    .setTriggerDedupKey(null)
-                    .setSourceType(source.getSourceType())
-                    .setStatus(EventReport.Status.PENDING)
-                    .setRandomizedTriggerRate(
-                        mSourceNoiseHandler.getRandomAttributionProbability(source))
-                    .setRegistrationOrigin(source.getRegistrationOrigin())
-                    .build())
+        sourceNoiseHandler.assignAttributionModeAndGenerateFakeReports(source);
+    return IntStream.range(0, fakeReports.size())
+        .mapToObj(
+            index -> {
+              Source.FakeReport fakeReport = fakeReports.get(index);
+              return new EventReport.Builder()
+                  // Like every stored report, fake ones get an id, which tells the reports
+                  // output by an earlier run apart from new ones, see setCheckpoint. It is
+                  // derived from the source, so that a run gives the same ids each time.
+                  .setId(source.getId() + "-" + index)
+                  .setSourceEventId(source.getEventId())
+                  .setReportTime(fakeReport.getReportingTime())
+                  .setTriggerData(fakeReport.getTriggerData())
+                  .setAttributionDestinations(fakeReport.getDestinations())
+                  .setEnrollmentId(source.getEnrollmentId())
+                  // The query for attribution check is from
+                  // (triggerTime - 30 days) to triggerTime and max expiry is
+                  // 30 days, so it's safe to choose triggerTime as source
+                  // event time so that it gets considered when the query is
+                  // fired for attribution rate limit check.
+                  .setTriggerTime(source.getEventTime())
+                  .setTriggerPriority(0L)
+                  .setTriggerDedupKey(null)
+                  .setSourceType(source.getSourceType())
+                  .setStatus(EventReport.Status.PENDING)
+                  .setRandomizedTriggerRate(
+                      sourceNoiseHandler.getRandomAttributionProbability(source))
+                  .setRegistrationOrigin(source.getRegistrationOrigin())
+                  .build();
+            })
         .collect(Collectors.toList());
   }
 
   public List<JSONObject> runSimulation(
-      final List<Source> inputSourceData,
-      final List<Trigger> inputTriggerData,
-      final List<ExtensionEvent> inputExtensionEventData)
+      final Iterable<Source> inputSourceData,
+      final Iterable<Trigger> inputTriggerData,
+      final Iterable<ExtensionEvent> inputExtensionEventData)
       throws ParseException {
-    IMeasurementDAO measurementDAO = createMeasurementDAO(inputSourceData, inputTriggerData);
+    UserStateCheckpoint checkpoint = mCheckpoint;
+    IMeasurementDAO measurementDAO =
+        createMeasurementDAO(inputSourceData, inputTriggerData, checkpoint, mSourceNoiseHandler);
+    try {
+      List<JSONObject> aggregatableReports =
+          runSimulation(
+              measurementDAO,
+              newAttributionJobHandler(
+                  measurementDAO, getCombinedData(measurementDAO, inputExtensionEventData)),
+              outputDirectory,
+              checkpoint == null ? Set.of() : checkpoint.getReportIds());
+      if (mCheckpointSink != null) {
+        UserStateCheckpoint state = UserStateCheckpoint.capture(measurementDAO, checkpoint);
+        if (state.size() > 0) {
+          mCheckpointSink.write(state);
+        }
+      }
+      return aggregatableReports;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to write the checkpoint of user " + userId, e);
+    } finally {
+      close(measurementDAO);
+    }
+  }
 
-    List<Object> combinedData = new ArrayList<>(measurementDAO.getPendingTriggers());
-    if (!inputExtensionEventData.isEmpty()) {
-      combinedData.addAll(inputExtensionEventData);
+  /**
+   * Runs attribution once for each scenario over the same input. The input is cloned, filtered and
+   * stored once for each distinct {@link PrivacyParams} of the scenarios, since sources are noised
+   * as they are stored; each scenario then attributes on its own fork of the stored state, see
+   * {@link MeasurementDAO#snapshot()}, with its own {@link Flags}. Scenarios with the same privacy
+   * parameters therefore see the same source noise. The reports of each scenario are written under
+   * {@code outputDirectory/<scenario>/<userId>}. Checkpoints are not read or written.
+   *
+   * @return the aggregatable reports of each scenario by name, in the order of {@code scenarios}
+   */
+  public Map<String, List<JSONObject>> runScenarios(
+      final Iterable<Source> inputSourceData,
+      final Iterable<Trigger> inputTriggerData,
+      final Iterable<ExtensionEvent> inputExtensionEventData,
+      final List<SimulationScenario> scenarios)
+      throws ParseException {
+    Map<String, List<JSONObject>> aggregatableReports = new LinkedHashMap<>();
+    Map<PrivacyParams, MeasurementDAO.Snapshot> snapshots = new HashMap<>();
+    for (SimulationScenario scenario : scenarios) {
+      MeasurementDAO.Snapshot snapshot = snapshots.get(scenario.getPrivacyParams());
+      IMeasurementDAO measurementDAO;
+      if (snapshot != null) {
+        measurementDAO = snapshot.fork();
+      } else {
+        // The SQLite DAO cannot be forked, so it is rebuilt from the input for every scenario.
+        measurementDAO =
+            createMeasurementDAO(
+                inputSourceData,
+                inputTriggerData,
+                null,
+                mSourceNoiseHandler.withPrivacyParams(scenario.getPrivacyParams()));
+        if (measurementDAO instanceof MeasurementDAO) {
+          snapshots.put(scenario.getPrivacyParams(), ((MeasurementDAO) measurementDAO).snapshot());
+        }
+      }
+      Flags flags = scenario.getFlags();
+      try {
+        aggregatableReports.put(
+            scenario.getName(),
+            runSimulation(
+                measurementDAO,
+                new AttributionJobHandler(
+                    measurementDAO,
+                    getCombinedData(measurementDAO, inputExtensionEventData),
+                    flags,
+                    new DebugReportApi(flags),
+                    new EventReportWindowCalcDelegate(flags),
+                    new SourceNoiseHandler(flags, scenario.getPrivacyParams())),
+                Path.of(outputDirectory, scenario.getName()).toString(),
+                Set.of()));
+      } finally {
+        close(measurementDAO);
+      }
     }
+    return aggregatableReports;
+  }
 
-    Collections.sort(
-        combinedData,
-        new Comparator<Object>() {
-          @Override
-          public int compare(Object o1, Object o2) {
-            long o1Value, o2Value;
-            if (o1 instanceof Trigger) {
-              o1Value = ((Trigger) o1).getTriggerTime();
-            } else {
-              o1Value = ((ExtensionEvent) o1).getTimestamp();
-            }
+  private static Iterable<UserEvent> getCombinedData(
+      IMeasurementDAO measurementDAO, Iterable<ExtensionEvent> inputExtensionEventData) {
+    // Triggers come before extension events that occur at the same time.
+    if (measurementDAO instanceof SqliteMeasurementDAO) {
+      // Both are put in time order on disk and read back a page at a time as they are attributed.
+      SqliteMeasurementDAO sqliteMeasurementDAO = (SqliteMeasurementDAO) measurementDAO;
+      for (ExtensionEvent event : inputExtensionEventData) {
+        sqliteMeasurementDAO.stageUserEvent(event);
+      }
+      return UserEvents.merge(
+          sqliteMeasurementDAO.getPendingTriggersInTimeOrder(),
+          sqliteMeasurementDAO.getStagedUserEvents(UserEvent.Type.EXTENSION_EVENT));
+    }
+    return UserEvents.merge(
+        UserEvents.inTimeOrder(measurementDAO.getPendingTriggers()),
+        UserEvents.inTimeOrder(inputExtensionEventData));
+  }
 
-            if (o2 instanceof Trigger) {
-              o2Value = ((Trigger) o2).getTriggerTime();
-            } else {
-              o2Value = ((ExtensionEvent) o2).getTimestamp();
-            }
-            return Long.compare(o1Value, o2Value);
-          }
-        });
+  private static void close(IMeasurementDAO measurementDAO) {
+    if (measurementDAO instanceof SqliteMeasurementDAO) {
+      ((SqliteMeasurementDAO) measurementDAO).close();
+    }
+  }
 
-    return runSimulation(measurementDAO, combinedData);
+  private void writeEventReports(
+      ReportSink reportSink,
+      String directory,
+      List<EventReport> eventReports,
+      Set<String> emittedReportIds) {
+    write(
+        reportSink,
+        directory,
+        ReportSink.EVENT_REPORTS,
+        eventReports.stream()
+            .filter(r -> !emittedReportIds.contains(r.getId()))
+            .map(r -> r.toJsonObject().toJSONString())
+            .collect(Collectors.toList()));
   }
 
-  private void writeEventReportsToFile(Path userDirectory, IMeasurementDAO measurementDAO) {
-    try {
-      List<String> reports =
-          measurementDAO.getAllEventReports().stream()
-              .map(r -> r.toJsonObject().toJSONString())
-              .collect(Collectors.toList());
-      if (reports.size() > 0) {
-        Files.createDirectories(userDirectory);
-        Path eventReportsFilePath = userDirectory.resolve("event_reports.json");
-        Files.deleteIfExists(eventReportsFilePath); // Empty file if one already exists
-        for (String report : reports) {
-          Files.writeString(
-              eventReportsFilePath,
-              report + "\n",
-              StandardOpenOption.APPEND,
-              StandardOpenOption.CREATE);
-        }
-      }
-    } catch (IOException e) {
-      System.err.println("Failed to write event report to file with error:");
-      e.printStackTrace();
-    }
+  private void writeDebugReports(
+      ReportSink reportSink, String directory, List<DebugReport> debugReports) {
+    write(
+        reportSink,
+        directory,
+        ReportSink.DEBUG_EVENT_REPORTS,
+        debugReports.stream().map(r -> r.toJSON().toJSONString()).collect(Collectors.toList()));
   }
 
-  private void writeDebugEventReportsToFile(Path userDirectory, IMeasurementDAO measurementDAO) {
+  private void write(
+      ReportSink reportSink, String directory, String fileName, List<String> reports) {
+    if (reports.isEmpty()) {
+      return;
+    }
     try {
-      List<String> reports =
-          measurementDAO.getAllDebugReports().stream()
-              .map(r -> r.toJSON().toJSONString())
-              .collect(Collectors.toList());
-      if (reports.size() > 0) {
-        Files.createDirectories(userDirectory);
-        Path debugReportsFilePath = userDirectory.resolve("debug_event_reports.json");
-        Files.deleteIfExists(debugReportsFilePath); // Empty file if one already exists
-        for (String report : reports) {
-          Files.writeString(
-              debugReportsFilePath,
-              report + "\n",
-              StandardOpenOption.APPEND,
-              StandardOpenOption.CREATE);
-        }
-      }
+      reportSink.write(directory, fileName, userId, reports);
     } catch (IOException e) {
-      System.err.println("Failed to write debug event report to file with error:");
-      e.printStackTrace();
+      throw new UncheckedIOException("Failed to write the reports of user " + userId, e);
     }
   }
 
-  public List<JSONObject> runSimulation(IMeasurementDAO measurementDAO, List<Object> combinedData)
+  public List<JSONObject> runSimulation(
+      IMeasurementDAO measurementDAO, List<UserEvent> combinedData) throws ParseException {
+    return runSimulation(
+        measurementDAO,
+        newAttributionJobHandler(measurementDAO, combinedData),
+        outputDirectory,
+        Set.of());
+  }
+
+  private AttributionJobHandler newAttributionJobHandler(
+      IMeasurementDAO measurementDAO, Iterable<UserEvent> combinedData) {
+    return new AttributionJobHandler(
+        measurementDAO,
+        combinedData,
+        mFlags,
+        mDebugReportApi,
+        new EventReportWindowCalcDelegate(mFlags),
+        new SourceNoiseHandler(mFlags));
+  }
+
+  private List<JSONObject> runSimulation(
+      IMeasurementDAO measurementDAO,
+      AttributionJobHandler attributionJobHandler,
+      String reportDirectory,
+      Set<String> emittedReportIds)
       throws ParseException {
-    AttributionJobHandler attributionJobHandler =
-        new AttributionJobHandler(measurementDAO, combinedData);
+    // Reports deleted as expired are output as they are deleted, so that they are not held until
+    // the end of the run.
+    ReportSink reportSink = mReportSink != null ? mReportSink : ReportSink.perUserDirectories();
+    attributionJobHandler.setExpiredEventReportConsumer(
+        eventReports ->
+            writeEventReports(reportSink, reportDirectory, eventReports, emittedReportIds));
     attributionJobHandler.performPendingAttributions();
-    Path userDirectory = Path.of(outputDirectory, userId);
-    writeEventReportsToFile(userDirectory, measurementDAO);
-    // Debug event reports
-    writeDebugEventReportsToFile(userDirectory, measurementDAO);
+    writeEventReports(
+        reportSink, reportDirectory, measurementDAO.getAllEventReports(), emittedReportIds);
+    writeDebugReports(reportSink, reportDirectory, measurementDAO.getAllDebugReports());
 
     List<JSONObject> aggregatableReports =
         measurementDAO.getAllAggregateReports().stream()
+            .filter(r -> !emittedReportIds.contains(r.getId()))
             .map(
                 r -> {
                   try {
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static com.google.measurement.RecordCoding.readString;
+import static com.google.measurement.RecordCoding.readVarInt;
+import static com.google.measurement.RecordCoding.readVarLong;
+import static com.google.measurement.RecordCoding.writeString;
+import static com.google.measurement.RecordCoding.writeVarInt;
+import static com.google.measurement.RecordCoding.writeVarLong;
+
+import com.google.measurement.aggregation.AggregateReport;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.avro.reflect.Nullable;
+
+/**
+ * State of one user at the end of an incremental run, restored at the start of the next one, see
+ * {@link UserSimulation#setCheckpoint}. The checkpoints of all users are stored as the rows of
+ * sharded files, see {@link CheckpointFiles}.
+ *
+ * <p>Only the state that can still change the reports of later input is kept, as of the latest
+ * source or trigger time seen so far: sources registered within the rate limit window, with their
+ * dedup keys and aggregate contributions, attribution rate limit entries within that window,
+ * pending triggers, and the event and aggregate reports of the kept sources or not due yet. Debug
+ * reports and everything older are only output, so they are not kept. The ids of the kept reports
+ * tell the reports output by an earlier run apart from new ones, so the set of reports recorded as
+ * emitted is bounded by the live state rather than growing with every run.
+ *
+ * <p>The state is encoded as the {@link #VERSION} of its format, the time it was captured at and
+ * the records: sources and triggers with their binary coders, see {@link SourceCoder}, attribution
+ * rate limit entries field by field, and event and aggregate reports with Java serialization.
+ * States of another version are rejected rather than misread, so the version must be bumped
+ * whenever the encoding of any of these records changes.
+ */
+final class UserStateCheckpoint {
+  static final int VERSION = 2;
+
+  private final long mTime;
+  private final List<Source> mSources;
+  private final List<Trigger> mTriggers;
+  private final List<Attribution> mAttributions;
+  private final List<EventReport> mEventReports;
+  private final List<AggregateReport> mAggregateReports;
+
+  private UserStateCheckpoint(
+      long time,
+      List<Source> sources,
+      List<Trigger> triggers,
+      List<Attribution> attributions,
+      List<EventReport> eventReports,
+      List<AggregateReport> aggregateReports) {
+    mTime = time;
+    mSources = sources;
+    mTriggers = triggers;
+    mAttributions = attributions;
+    mEventReports = eventReports;
+    mAggregateReports = aggregateReports;
+  }
+
+  /**
+   * Captures the live state of the records stored in {@code measurementDAO}.
+   *
+   * @param previous the checkpoint the records were restored from, or null, whose time the captured
+   *     one does not go back from
+   */
+  static UserStateCheckpoint capture(
+      IMeasurementDAO measurementDAO, @Nullable UserStateCheckpoint previous) {
+    List<Source> sources = measurementDAO.getAllSources();
+    List<Trigger> triggers = measurementDAO.getAllTriggers();
+    long time = previous == null ? Long.MIN_VALUE : previous.mTime;
+    for (Source source : sources) {
+      time = Math.max(time, source.getEventTime());
+    }
+    for (Trigger trigger : triggers) {
+      time = Math.max(time, trigger.getTriggerTime());
+    }
+    long now = time;
+    long windowStart = now - PrivacyParams.RATE_LIMIT_WINDOW_MILLISECONDS;
+
+    List<Source> liveSources =
+        sources.stream().filter(s -> s.getEventTime() > windowStart).collect(Collectors.toList());
+    Set<String> liveSourceIds = liveSources.stream().map(Source::getId).collect(Collectors.toSet());
+    return new UserStateCheckpoint(
+        now,
+        liveSources,
+        triggers.stream()
+            .filter(t -> t.getStatus() == Trigger.Status.PENDING)
+            .collect(Collectors.toList()),
+        measurementDAO.getAllAttributions().stream()
+            .filter(a -> a.getTriggerTime() > windowStart)
+            .collect(Collectors.toList()),
+        measurementDAO.getAllEventReports().stream()
+            .filter(r -> liveSourceIds.contains(r.getSourceId()) || r.getReportTime() > now)
+            .collect(Collectors.toList()),
+        measurementDAO.getAllAggregateReports().stream()
+            .filter(
+                r -> liveSourceIds.contains(r.getSourceId()) || r.getScheduledReportTime() > now)
+            .collect(Collectors.toList()));
+  }
+
+  /** Stores the captured records in {@code measurementDAO}, which must be empty. */
+  void restore(IMeasurementDAO measurementDAO) {
+    mSources.forEach(measurementDAO::insertSource);
+    mTriggers.forEach(measurementDAO::insertTrigger);
+    mAttributions.forEach(measurementDAO::insertAttribution);
+    mEventReports.forEach(measurementDAO::insertEventReport);
+    mAggregateReports.forEach(measurementDAO::insertAggregateReport);
+  }
+
+  /** Returns the latest source or trigger time of the user seen when this was captured. */
+  long getTime() {
+    return mTime;
+  }
+
+  /** Returns the number of captured records. */
+  int size() {
+    return mSources.size()
+        + mTriggers.size()
+        + mAttributions.size()
+        + mEventReports.size()
+        + mAggregateReports.size();
+  }
+
+  /** Returns the ids of the captured event and aggregate reports, which were already output. */
+  Set<String> getReportIds() {
+    Set<String> reportIds = new HashSet<>();
+    mEventReports.forEach(report -> reportIds.add(report.getId()));
+    mAggregateReports.forEach(report -> reportIds.add(report.getId()));
+    return reportIds;
+  }
+
+  /** Encodes the captured state, see {@link #decode(byte[])}. */
+  byte[] encode() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarInt(VERSION, out);
+    writeVarLong(mTime, out);
+    writeVarInt(mSources.size(), out);
+    for (Source source : mSources) {
+      SourceCoder.of().encode(source, out);
+    }
+    writeVarInt(mTriggers.size(), out);
+    for (Trigger trigger : mTriggers) {
+      TriggerCoder.of().encode(trigger, out);
+    }
+    writeVarInt(mAttributions.size(), out);
+    for (Attribution attribution : mAttributions) {
+      writeAttribution(attribution, out);
+    }
+    ObjectOutputStream objects = new ObjectOutputStream(out);
+    writeObjects(mEventReports, objects);
+    writeObjects(mAggregateReports, objects);
+    objects.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a state encoded by {@link #encode()}.
+   *
+   * @throws IOException if {@code state} is not a checkpoint or is a checkpoint of another version
+   */
+  static UserStateCheckpoint decode(byte[] state) throws IOException {
+    InputStream in = new ByteArrayInputStream(state);
+    int version = readVarInt(in);
+    if (version != VERSION) {
+      throw new IOException(
+          String.format("Unsupported checkpoint version %d, expected %d", version, VERSION));
+    }
+    long time = readVarLong(in);
+    List<Source> sources = new ArrayList<>();
+    for (int i = readVarInt(in); i > 0; i--) {
+      sources.add(SourceCoder.of().decode(in));
+    }
+    List<Trigger> triggers = new ArrayList<>();
+    for (int i = readVarInt(in); i > 0; i--) {
+      triggers.add(TriggerCoder.of().decode(in));
+    }
+    List<Attribution> attributions = new ArrayList<>();
+    for (int i = readVarInt(in); i > 0; i--) {
+      attributions.add(readAttribution(in));
+    }
+    ObjectInputStream objects = new ObjectInputStream(in);
+    try {
+      List<EventReport> eventReports = readObjects(objects);
+      List<AggregateReport> aggregateReports = readObjects(objects);
+      return new UserStateCheckpoint(
+          time, sources, triggers, attributions, eventReports, aggregateReports);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Unreadable checkpoint", e);
+    }
+  }
+
+  private static void writeAttribution(Attribution attribution, OutputStream out)
+      throws IOException {
+    writeString(attribution.getId(), out);
+    writeString(attribution.getSourceSite(), out);
+    writeString(attribution.getSourceOrigin(), out);
+    writeString(attribution.getDestinationSite(), out);
+    writeString(attribution.getDestinationOrigin(), out);
+    writeString(attribution.getEnrollmentId(), out);
+    writeVarLong(attribution.getTriggerTime(), out);
+    writeString(attribution.getRegistrant(), out);
+    writeString(attribution.getSourceId(), out);
+    writeString(attribution.getTriggerId(), out);
+  }
+
+  private static Attribution readAttribution(InputStream in) throws IOException {
+    return new Attribution.Builder()
+        .setId(readString(in))
+        .setSourceSite(readString(in))
+        .setSourceOrigin(readString(in))
+        .setDestinationSite(readString(in))
+        .setDestinationOrigin(readString(in))
+        .setEnrollmentId(readString(in))
+        .setTriggerTime(readVarLong(in))
+        .setRegistrant(readString(in))
+        .setSourceId(readString(in))
+        .setTriggerId(readString(in))
+        .build();
+  }
+
+  private static void writeObjects(List<?> records, ObjectOutputStream out) throws IOException {
+    out.writeInt(records.size());
+    for (Object record : records) {
+      out.writeObject(record);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> List<T> readObjects(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    int size = in.readInt();
+    List<T> records = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      records.add((T) in.readObject());
+    }
+    return records;
+  }
+}
@@ -16,8 +16,14 @@
 
 package com.google.measurement.adtech;
 
+import com.google.measurement.aggregation.AggregationArgs;
 import com.google.measurement.util.Util;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.beam.sdk.transforms.GroupByKey;
 import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
@@ -40,23 +46,28 @@ public final class BatchAggregatableReports implements Serializable {
             new SimpleFunction<JSONObject, KV<String, JSONObject>>() {
               @Override
               public KV<String, JSONObject> apply(JSONObject input) {
-                String sharedInfoStr = (String) input.get("shared_info");
-                JSONParser parser = new JSONParser();
-                try {
-                  JSONObject sharedInfo = (JSONObject) parser.parse(sharedInfoStr);
-                  String advertiser = (String) sharedInfo.get("attribution_destination");
-                  long formattedDate =
-                      Util.roundDownToDay((long) sharedInfo.get("scheduled_report_time"));
-                  String groupByKey = advertiser + "_" + formattedDate;
-                  return KV.of(groupByKey, input);
-                } catch (ParseException e) {
-                  e.printStackTrace();
-                  return null;
-                }
+                String groupByKey = getBatchKey(input);
+                return groupByKey == null ? null : KV.of(groupByKey, input);
               }
             }));
   }
 
+  // The advertiser and day of the scheduled report time of an aggregatable report, or null if its
+  // shared info cannot be parsed.
+  private static String getBatchKey(JSONObject aggregatePayload) {
+    String sharedInfoStr = (String) aggregatePayload.get("shared_info");
+    JSONParser parser = new JSONParser();
+    try {
+      JSONObject sharedInfo = (JSONObject) parser.parse(sharedInfoStr);
+      String advertiser = (String) sharedInfo.get("attribution_destination");
+      long formattedDate = Util.roundDownToDay((long) sharedInfo.get("scheduled_report_time"));
+      return advertiser + "_" + formattedDate;
+    } catch (ParseException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
   public static PCollection<KV<String, Iterable<JSONObject>>> generateBatches(
       PCollection<JSONObject> aggregatablePayloadPCollection) {
     PCollection<KV<String, JSONObject>> collectionReports =
@@ -70,10 +81,49 @@ public final class BatchAggregatableReports implements Serializable {
 
   public static void generateAggregateReports(
       PCollection<JSONObject> aggregatablePayloadPCollection, String outputDirectory) {
+    generateAggregateReports(
+        aggregatablePayloadPCollection, outputDirectory, new AggregationArgs());
+  }
+
+  /** Aggregates the reports with the settings of {@code aggregationArgs}. */
+  public static void generateAggregateReports(
+      PCollection<JSONObject> aggregatablePayloadPCollection,
+      String outputDirectory,
+      AggregationArgs aggregationArgs) {
     PCollection<KV<String, Iterable<JSONObject>>> batchedReports =
         generateBatches(aggregatablePayloadPCollection);
 
     // Write each batch to avro file and call Aggregation service for each of them in parallel.
-    batchedReports.apply(ParDo.of(new ProcessBatch(outputDirectory)));
+    batchedReports.apply(ParDo.of(new ProcessBatch(outputDirectory, aggregationArgs)));
+  }
+
+  /**
+   * Batches aggregatable reports produced without a pipeline as {@link #generateBatches} does,
+   * writes each batch to an avro file and calls the Aggregation service for each of them in
+   * parallel.
+   */
+  public static void generateAggregateReports(
+      Collection<JSONObject> aggregatablePayloads, String outputDirectory) {
+    generateAggregateReports(aggregatablePayloads, outputDirectory, new AggregationArgs());
+  }
+
+  /**
+   * Batches and aggregates the reports as {@link #generateAggregateReports(Collection, String)}
+   * does, with the settings of {@code aggregationArgs}.
+   */
+  public static void generateAggregateReports(
+      Collection<JSONObject> aggregatablePayloads,
+      String outputDirectory,
+      AggregationArgs aggregationArgs) {
+    Map<String, List<JSONObject>> batchedReports = new LinkedHashMap<>();
+    for (JSONObject aggregatablePayload : aggregatablePayloads) {
+      String batchKey = getBatchKey(aggregatablePayload);
+      if (batchKey != null) {
+        batchedReports.computeIfAbsent(batchKey, k -> new ArrayList<>()).add(aggregatablePayload);
+      }
+    }
+    ProcessBatch processBatch = new ProcessBatch(outputDirectory, aggregationArgs);
+    batchedReports.entrySet().parallelStream()
+        .forEach(batch -> processBatch.process(batch.getKey(), batch.getValue()));
   }
 }
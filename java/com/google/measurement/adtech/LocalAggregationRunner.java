@@ -30,7 +30,7 @@ public final class LocalAggregationRunner {
     // Run Aggregation API on generated reports
     try {
       ServiceManager serviceManager = LocalRunner.internalMain(args.toStringArgs());
-      serviceManager.awaitStopped(Duration.ofMinutes(AggregationArgs.timeoutMinutes));
+      serviceManager.awaitStopped(Duration.ofMinutes(args.timeoutMinutes));
     } catch (IOException e) {
       System.err.println("IO Exception in Aggregation API for batch: " + batchKey);
       e.printStackTrace();
@@ -45,10 +45,16 @@ import org.json.simple.JSONObject;
 class ProcessBatch extends DoFn<KV<String, Iterable<JSONObject>>, Void> {
 
   private final String outputDirectory;
-  private String batchKey;
+  private final AggregationArgs aggregationArgs;
 
   ProcessBatch(final String outputDirectory) {
+    this(outputDirectory, new AggregationArgs());
+  }
+
+  /** Aggregates each batch with the settings of {@code aggregationArgs}. */
+  ProcessBatch(final String outputDirectory, final AggregationArgs aggregationArgs) {
     this.outputDirectory = outputDirectory;
+    this.aggregationArgs = aggregationArgs;
   }
 
   private GenericRecord generateGenericRecord(JSONArray payload, String sharedInfo, Schema schema)
@@ -64,7 +70,7 @@ class ProcessBatch extends DoFn<KV<String, Iterable<JSONObject>>, Void> {
   }
 
   private Optional<Path> writeToAvroFile(
-      List<JSONObject> aggregatableReportPayloadList, String randomFileName) {
+      List<JSONObject> aggregatableReportPayloadList, String randomFileName, String batchKey) {
     Path avroFilePath = null;
     try {
       if (aggregatableReportPayloadList.isEmpty()) {
@@ -97,16 +103,19 @@ class ProcessBatch extends DoFn<KV<String, Iterable<JSONObject>>, Void> {
 
   @ProcessElement
   public void processElement(ProcessContext c) {
-    batchKey = c.element().getKey();
-    Iterable<JSONObject> element = c.element().getValue();
+    process(c.element().getKey(), c.element().getValue());
+  }
+
+  /** Writes the aggregatable reports of one batch to an avro file and aggregates them. */
+  void process(String batchKey, Iterable<JSONObject> element) {
     List<JSONObject> batchList = Lists.newArrayList(element);
     String randomFilePath = Util.generateRandomString();
-    Optional<Path> avroFilePath = writeToAvroFile(batchList, randomFilePath);
+    Optional<Path> avroFilePath = writeToAvroFile(batchList, randomFilePath, batchKey);
 
     // Call Local Aggregation service
     if (avroFilePath.isPresent()) {
-      AggregationArgs args = new AggregationArgs();
-      if (!AggregationArgs.skipDomain) {
+      AggregationArgs args = new AggregationArgs(aggregationArgs);
+      if (!args.skipDomain) {
         args.domainAvroFile =
             Path.of("domain")
                 .resolve(Util.sanitizeFilename(batchKey))
@@ -16,13 +16,14 @@
 
 package com.google.measurement.aggregation;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import org.apache.avro.reflect.Nullable;
 
 /** Class that contains the data specific to the aggregate report. */
-public class AggregateAttributionData {
+public class AggregateAttributionData implements Serializable {
   private List<AggregateHistogramContribution> mContributions;
   @Nullable private Long mId;
 
@@ -17,12 +17,13 @@
 package com.google.measurement.aggregation;
 
 import com.google.measurement.util.Util;
+import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.Objects;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
-public class AggregateHistogramContribution {
+public class AggregateHistogramContribution implements Serializable {
   static final String BUCKET = "bucket";
   static final String VALUE = "value";
   private BigInteger mKey; // Equivalent to uint128 in C++.
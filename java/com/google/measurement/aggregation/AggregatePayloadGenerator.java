@@ -73,7 +73,7 @@ public class AggregatePayloadGenerator {
       }
       final BigInteger triggerDataKey;
       Optional<BigInteger> keyMappingForAdtech =
-          Optional.ofNullable(trigger.parseAdtechKeyMapping())
+          Optional.ofNullable(trigger.getParsedAdtechKeyMapping())
               .map(map -> map.get(source.getEnrollmentId()));
       if (source.getParentId() != null && keyMappingForAdtech.isPresent()) {
         int keyOffset =
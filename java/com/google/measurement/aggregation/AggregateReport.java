@@ -18,6 +18,7 @@ package com.google.measurement.aggregation;
 
 import com.google.measurement.Constants;
 import com.google.measurement.util.UnsignedLong;
+import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,7 +30,7 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 /** Class that contains all the real data needed after aggregation, it is not encrypted. */
-public class AggregateReport {
+public class AggregateReport implements Serializable {
   static final String OPERATION = "operation";
   static final String HISTOGRAM = "histogram";
   static final String DATA = "data";
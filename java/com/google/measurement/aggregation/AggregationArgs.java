@@ -22,7 +22,24 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Properties;
 
+/**
+ * Arguments of a local Aggregation service run. The settings are read from a properties file,
+ * {@code config/AggregationArgs.properties} unless another one is {@link #load(String) loaded}, so
+ * that the reports of several scenarios can be aggregated with different settings in the same run.
+ */
 public class AggregationArgs implements Serializable {
+  private static final String DEFAULT_PROPERTIES_FILE = "./config/AggregationArgs.properties";
+  private static final Properties DEFAULT_PROPERTIES = new Properties();
+
+  static {
+    try {
+      Util.loadProperties(DEFAULT_PROPERTIES, DEFAULT_PROPERTIES_FILE);
+    } catch (IOException e) {
+      throw new RuntimeException(
+          "Error with reading file config/AggregationArgs.properties."
+              + " Please ensure that it exists and is properly formatted");
+    }
+  }
 
   // Location on disk of batch.avro input file
   public String inputDataAvroFile;
@@ -34,37 +51,39 @@ public class AggregationArgs implements Serializable {
   public String outputDirectory;
 
   // Epsilon value for noise. Must be > 0, and <= 64
-  public static int epsilon;
+  public int epsilon;
 
   // Whether to ignore noising and thresholding
-  public static boolean noNoising;
+  public boolean noNoising;
 
   // Whether to format the output as json
-  public static boolean jsonOutput;
+  public boolean jsonOutput;
 
   // Whether to use the domain file or not. False = use domain, True = skip domain
-  public static boolean skipDomain;
+  public boolean skipDomain;
 
   // File format for the domain generation file. TEXT_FILE or AVRO. Does not seem to apply to batch
-  public static String domainFileFormat;
+  public String domainFileFormat;
 
   // Time limit to run aggregation for before error is thrown. Default 5 minutes
-  public static long timeoutMinutes;
+  public long timeoutMinutes;
 
-  static {
-    initialize();
+  /** Creates arguments with the settings of {@code config/AggregationArgs.properties}. */
+  public AggregationArgs() {
+    this(DEFAULT_PROPERTIES);
   }
 
-  public static void initialize() {
-    Properties props = new Properties();
-    try {
-      Util.loadProperties(props, "./config/AggregationArgs.properties");
-    } catch (IOException e) {
-      throw new RuntimeException(
-          "Error with reading file config/AggregationArgs.properties."
-              + " Please ensure that it exists and is properly formatted");
-    }
+  /** Creates arguments with the settings, but not the files, of {@code settings}. */
+  public AggregationArgs(AggregationArgs settings) {
+    epsilon = settings.epsilon;
+    noNoising = settings.noNoising;
+    jsonOutput = settings.jsonOutput;
+    skipDomain = settings.skipDomain;
+    domainFileFormat = settings.domainFileFormat;
+    timeoutMinutes = settings.timeoutMinutes;
+  }
 
+  private AggregationArgs(Properties props) {
     epsilon = validateEpsilon(props, "epsilon");
     noNoising = validateBoolean(props, "noNoising");
     jsonOutput = validateBoolean(props, "jsonOutput");
@@ -73,6 +92,18 @@ public class AggregationArgs implements Serializable {
     timeoutMinutes = validateInt(props, "timeoutMinutes");
   }
 
+  /**
+   * Creates arguments with the settings of a properties file with the keys of {@code
+   * config/AggregationArgs.properties}.
+   *
+   * @throws IllegalArgumentException if a key is missing or its value is not valid
+   */
+  public static AggregationArgs load(String propertiesFile) throws IOException {
+    Properties props = new Properties();
+    Util.loadProperties(props, propertiesFile);
+    return new AggregationArgs(props);
+  }
+
   private static String validateDomainFileFormat(Properties props, String key) {
     String domainFileFormat = props.getProperty(validateKey(props, key));
     if (!domainFileFormat.equals("TEXT_FILE") && !domainFileFormat.equals("AVRO")) {
@@ -39,15 +39,38 @@ public class SourceNoiseHandler {
   private static final int PROBABILITY_DECIMAL_POINTS_LIMIT = 7;
   private final Flags mFlags;
   private final EventReportWindowCalcDelegate mEventReportWindowCalcDelegate;
+  private final PrivacyParams mPrivacyParams;
 
   public SourceNoiseHandler(Flags flags) {
-    mFlags = flags;
-    mEventReportWindowCalcDelegate = new EventReportWindowCalcDelegate(flags);
+    this(flags, PrivacyParams.getDefault());
+  }
+
+  /** Creates a handler that noises sources with the probabilities of {@code privacyParams}. */
+  public SourceNoiseHandler(Flags flags, PrivacyParams privacyParams) {
+    this(flags, new EventReportWindowCalcDelegate(flags), privacyParams);
   }
 
   SourceNoiseHandler(Flags flags, EventReportWindowCalcDelegate eventReportWindowCalcDelegate) {
+    this(flags, eventReportWindowCalcDelegate, PrivacyParams.getDefault());
+  }
+
+  private SourceNoiseHandler(
+      Flags flags,
+      EventReportWindowCalcDelegate eventReportWindowCalcDelegate,
+      PrivacyParams privacyParams) {
     mFlags = flags;
     mEventReportWindowCalcDelegate = eventReportWindowCalcDelegate;
+    mPrivacyParams = privacyParams;
+  }
+
+  /**
+   * Returns a handler like this one that noises sources with the probabilities of {@code
+   * privacyParams}, or this handler if it already uses them.
+   */
+  public SourceNoiseHandler withPrivacyParams(PrivacyParams privacyParams) {
+    return mPrivacyParams.equals(privacyParams)
+        ? this
+        : new SourceNoiseHandler(mFlags, mEventReportWindowCalcDelegate, privacyParams);
   }
 
   /** Multiplier is 1, when only one destination needs to be considered. */
@@ -130,27 +153,27 @@ public class SourceNoiseHandler {
         && source.hasWebDestinations()
         && isInstallDetectionEnabled(source)) {
       return source.getSourceType() == Source.SourceType.EVENT
-          ? PrivacyParams.INSTALL_ATTR_DUAL_DESTINATION_EVENT_NOISE_PROBABILITY
-          : PrivacyParams.INSTALL_ATTR_DUAL_DESTINATION_NAVIGATION_NOISE_PROBABILITY;
+          ? mPrivacyParams.getInstallAttrDualDestinationEventNoiseProbability()
+          : mPrivacyParams.getInstallAttrDualDestinationNavigationNoiseProbability();
     }
     // Both destinations are set but install attribution isn't supported
     if (!shouldReportCoarseDestinations(source)
         && source.hasAppDestinations()
         && source.hasWebDestinations()) {
       return source.getSourceType() == Source.SourceType.EVENT
-          ? PrivacyParams.DUAL_DESTINATION_EVENT_NOISE_PROBABILITY
-          : PrivacyParams.DUAL_DESTINATION_NAVIGATION_NOISE_PROBABILITY;
+          ? mPrivacyParams.getDualDestinationEventNoiseProbability()
+          : mPrivacyParams.getDualDestinationNavigationNoiseProbability();
     }
     // App destination is set and install attribution is supported
     if (isInstallDetectionEnabled(source)) {
       return source.getSourceType() == Source.SourceType.EVENT
-          ? PrivacyParams.INSTALL_ATTR_EVENT_NOISE_PROBABILITY
-          : PrivacyParams.INSTALL_ATTR_NAVIGATION_NOISE_PROBABILITY;
+          ? mPrivacyParams.getInstallAttrEventNoiseProbability()
+          : mPrivacyParams.getInstallAttrNavigationNoiseProbability();
     }
     // One of the destinations is available without install attribution support
     return source.getSourceType() == Source.SourceType.EVENT
-        ? PrivacyParams.EVENT_NOISE_PROBABILITY
-        : PrivacyParams.NAVIGATION_NOISE_PROBABILITY;
+        ? mPrivacyParams.getEventNoiseProbability()
+        : mPrivacyParams.getNavigationNoiseProbability();
   }
 
   private double calculateNoiseDynamically(Source source) {
@@ -18,6 +18,7 @@ package com.google.measurement.util;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Optional;
 
 /** Class to extract URI. */
 public class BaseUriExtractor {
@@ -25,18 +26,22 @@ public class BaseUriExtractor {
    * Returns the base URI of the given URI. For example: "https://www.example.com/abc" ->
    * "https://www.example.com" "android-app://com.example.sample" ->
    * "android-app://com.example.sample" "https://www.example.com:8080/abc" ->
-   * "https://www.example.com:8080"
+   * "https://www.example.com:8080". Results are cached in {@link SiteCache}.
    */
   public static URI getBaseUri(URI uri) {
     if (!uri.isAbsolute()) {
       throw new IllegalArgumentException(String.format("URI should be absolute. Input: %s", uri));
     }
+    return SiteCache.baseUri(uri, () -> resolveBaseUri(uri)).orElse(null);
+  }
+
+  private static Optional<URI> resolveBaseUri(URI uri) {
     try {
-      return new URI(uri.getScheme() + "://" + parseAuthority(uri.toString()));
+      return Optional.of(new URI(uri.getScheme() + "://" + parseAuthority(uri.toString())));
     } catch (URISyntaxException e) {
       e.printStackTrace();
     }
-    return null;
+    return Optional.empty();
   }
 
   private BaseUriExtractor() {}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A filter map whose keys and values are replaced by integer ids, so that matching it against
+ * another compiled filter map only compares sorted int arrays and allocates nothing.
+ *
+ * <p>Ids come from a process wide table of at most {@link #MAX_IDS} strings. A full table is
+ * replaced by an empty one, which starts a new generation of ids, so the table neither grows
+ * without bound nor runs out of ids. Maps compiled in different generations are matched by
+ * comparing their strings. Instances are immutable and thread safe.
+ */
+public final class CompiledFilterMap {
+  static final int MAX_IDS = 1 << 20;
+  private static final Ids IDS = new Ids(MAX_IDS);
+  // json-simple can hand over null array elements, which the table cannot hold.
+  private static final int NULL_ID = -1;
+
+  private final Generation mGeneration;
+  private final Map<String, List<String>> mFilterMap;
+  // Sorted key ids, and for each key its sorted value ids.
+  private final int[] mKeys;
+  private final int[][] mValues;
+
+  private CompiledFilterMap(
+      Generation generation, Map<String, List<String>> filterMap, int[] keys, int[][] values) {
+    mGeneration = generation;
+    mFilterMap = filterMap;
+    mKeys = keys;
+    mValues = values;
+  }
+
+  /** Compiles {@code filterMap}, which must not change afterwards. */
+  public static CompiledFilterMap compile(Map<String, List<String>> filterMap) {
+    return IDS.compile(filterMap);
+  }
+
+  /**
+   * Returns false once the ids of this map belong to a replaced generation. The map still matches
+   * correctly, but compiling it again makes matching it against new maps cheap.
+   */
+  public boolean isCurrent() {
+    return !mGeneration.mRetired;
+  }
+
+  /** Returns true if the filter map has no keys. */
+  public boolean isEmpty() {
+    return mKeys.length == 0;
+  }
+
+  /**
+   * Checks this source filter map against a trigger filter map in the same way as {@link
+   * Filter#isFilterMatch}: every key present in both must have intersecting values for filters, and
+   * disjoint values for not_filters. An empty trigger value list matches a source with no values
+   * for filters, and a source with values for not_filters.
+   */
+  public boolean matches(CompiledFilterMap triggerFilter, boolean isFilter) {
+    if (mGeneration != triggerFilter.mGeneration) {
+      return matchesByValue(triggerFilter.mFilterMap, isFilter);
+    }
+    int i = 0;
+    int j = 0;
+    while (i < mKeys.length && j < triggerFilter.mKeys.length) {
+      int sourceKey = mKeys[i];
+      int triggerKey = triggerFilter.mKeys[j];
+      if (sourceKey < triggerKey) {
+        i++;
+      } else if (sourceKey > triggerKey) {
+        j++;
+      } else {
+        if (!matchValues(mValues[i], triggerFilter.mValues[j], isFilter)) {
+          return false;
+        }
+        i++;
+        j++;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesByValue(Map<String, List<String>> triggerFilter, boolean isFilter) {
+    for (Map.Entry<String, List<String>> entry : triggerFilter.entrySet()) {
+      List<String> sourceValues = mFilterMap.get(entry.getKey());
+      if (sourceValues == null) {
+        continue;
+      }
+      List<String> triggerValues = entry.getValue();
+      if (triggerValues.isEmpty()) {
+        if (isFilter != sourceValues.isEmpty()) {
+          return false;
+        }
+        continue;
+      }
+      if (isFilter != intersects(sourceValues, new HashSet<>(triggerValues))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean intersects(List<String> values, Set<String> otherValues) {
+    for (String value : values) {
+      if (otherValues.contains(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matchValues(int[] sourceValues, int[] triggerValues, boolean isFilter) {
+    if (triggerValues.length == 0) {
+      return isFilter ? sourceValues.length == 0 : sourceValues.length != 0;
+    }
+    return isFilter == intersects(sourceValues, triggerValues);
+  }
+
+  private static boolean intersects(int[] first, int[] second) {
+    int i = 0;
+    int j = 0;
+    while (i < first.length && j < second.length) {
+      if (first[i] < second[j]) {
+        i++;
+      } else if (first[i] > second[j]) {
+        j++;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Interns strings to ids, starting a new generation once it holds {@code maxIds} strings. */
+  static final class Ids {
+    private final int mMaxIds;
+    private final AtomicReference<Generation> mCurrent = new AtomicReference<>(new Generation());
+
+    Ids(int maxIds) {
+      mMaxIds = maxIds;
+    }
+
+    CompiledFilterMap compile(Map<String, List<String>> filterMap) {
+      Generation generation = mCurrent.get();
+      if (generation.mNextId.get() >= mMaxIds) {
+        Generation next = new Generation();
+        if (mCurrent.compareAndSet(generation, next)) {
+          generation.mRetired = true;
+        }
+        generation = mCurrent.get();
+      }
+      // Sorts the keys by id together with the position of their values.
+      long[] keyAndIndex = new long[filterMap.size()];
+      int[][] unsortedValues = new int[filterMap.size()][];
+      int i = 0;
+      for (Map.Entry<String, List<String>> entry : filterMap.entrySet()) {
+        unsortedValues[i] = generation.idsOf(entry.getValue());
+        keyAndIndex[i] = ((long) generation.idOf(entry.getKey()) << 32) | i;
+        i++;
+      }
+      Arrays.sort(keyAndIndex);
+      int[] keys = new int[keyAndIndex.length];
+      int[][] values = new int[keyAndIndex.length][];
+      for (int j = 0; j < keyAndIndex.length; j++) {
+        keys[j] = (int) (keyAndIndex[j] >> 32);
+        values[j] = unsortedValues[(int) keyAndIndex[j]];
+      }
+      return new CompiledFilterMap(generation, filterMap, keys, values);
+    }
+  }
+
+  private static final class Generation {
+    private final ConcurrentMap<String, Integer> mIds = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private volatile boolean mRetired;
+
+    private int[] idsOf(List<String> values) {
+      int[] ids = new int[values.size()];
+      int i = 0;
+      for (String value : values) {
+        ids[i++] = value == null ? NULL_ID : idOf(value);
+      }
+      Arrays.sort(ids);
+      return ids;
+    }
+
+    private int idOf(String value) {
+      Integer id = mIds.get(value);
+      return id != null ? id : mIds.computeIfAbsent(value, v -> mNextId.getAndIncrement());
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A destination or publisher URI split once into the parts used for matching: scheme, authority,
+ * host and path. Origin matches compare scheme and authority and accept any path, e.g.
+ * "android-app://com.example" matches "android-app://com.example/path". Site matches compare the
+ * scheme and accept the site's host or any of its subdomains with any path, e.g.
+ * "https://example.com" matches "https://store.example.com/path".
+ */
+public final class DestinationUri {
+  private final String mScheme;
+  private final String mAuthority;
+  private final String mHost;
+  private final String mPath;
+
+  private DestinationUri(String scheme, String authority, String host, String path) {
+    mScheme = scheme;
+    mAuthority = authority;
+    mHost = host;
+    mPath = path;
+  }
+
+  /** Splits {@code uri} into its matching parts. */
+  public static DestinationUri from(URI uri) {
+    return new DestinationUri(uri.getScheme(), uri.getRawAuthority(), uri.getHost(), uri.getPath());
+  }
+
+  public String getScheme() {
+    return mScheme;
+  }
+
+  public String getAuthority() {
+    return mAuthority;
+  }
+
+  public String getHost() {
+    return mHost;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  /** Returns true if this URI has the same scheme and authority as {@code origin}. */
+  public boolean isSameOrigin(DestinationUri origin) {
+    return mAuthority != null
+        && Objects.equals(mScheme, origin.mScheme)
+        && mAuthority.equals(origin.mAuthority);
+  }
+
+  /**
+   * Returns true if this URI has the same scheme as {@code site} and its host is the host of {@code
+   * site} or one of its subdomains.
+   */
+  public boolean isSameSiteOrSubdomain(DestinationUri site) {
+    return mHost != null
+        && site.mHost != null
+        && Objects.equals(mScheme, site.mScheme)
+        && (mHost.equals(site.mHost) || mHost.endsWith("." + site.mHost));
+  }
+
+  /**
+   * Returns the key under which origin matches for this URI are counted, or null if the URI has no
+   * authority.
+   */
+  public String getOriginKey() {
+    return mScheme == null || mAuthority == null ? null : mScheme + "://" + mAuthority;
+  }
+
+  /**
+   * Returns the key under which site matches for this URI are counted, or null if the URI has no
+   * host.
+   */
+  public String getSiteKey() {
+    return mScheme == null || mHost == null ? null : mScheme + "://" + mHost;
+  }
+
+  /**
+   * Returns a key under which the site matches of a site sort together, or null if the URI has no
+   * host: the scheme followed by the labels of the host in reverse order, each ending in a dot. For
+   * "https://store.example.com" this is "https://com.example.store.". A URI is a {@link
+   * #isSameSiteOrSubdomain} match for a site exactly when its key starts with the key of the site,
+   * so the matches of a site are the keys from its key up to {@link #getReversedSiteKeyEnd()}.
+   */
+  public String getReversedSiteKey() {
+    if (mScheme == null || mHost == null) {
+      return null;
+    }
+    String[] labels = mHost.split("\\.", -1);
+    StringBuilder key = new StringBuilder(mScheme).append("://");
+    for (int i = labels.length - 1; i >= 0; i--) {
+      key.append(labels[i]).append('.');
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns the first key after every key that starts with {@link #getReversedSiteKey()}, or null
+   * if the URI has no host.
+   */
+  public String getReversedSiteKeyEnd() {
+    String key = getReversedSiteKey();
+    // The key ends in a dot, and '/' is the character after it.
+    return key == null ? null : key.substring(0, key.length() - 1) + '/';
+  }
+
+  /**
+   * Returns the site keys of every site this URI is a site match for: its own host and each parent
+   * domain of it. For "https://a.b.example.com" these are "https://a.b.example.com",
+   * "https://b.example.com", "https://example.com" and "https://com".
+   */
+  public List<String> getMatchingSiteKeys() {
+    if (mScheme == null || mHost == null) {
+      return Collections.emptyList();
+    }
+    List<String> keys = new ArrayList<>();
+    int start = 0;
+    while (start >= 0) {
+      keys.add(mScheme + "://" + mHost.substring(start));
+      int dot = mHost.indexOf('.', start);
+      start = dot < 0 ? -1 : dot + 1;
+    }
+    return keys;
+  }
+}
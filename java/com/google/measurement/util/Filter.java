@@ -18,9 +18,7 @@ package com.google.measurement.util;
 
 import com.google.measurement.FilterMap;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
@@ -44,40 +42,15 @@ public class Filter {
     if (sourceFilter.getAttributionFilterMap().isEmpty() || triggerFilters.isEmpty()) {
       return true;
     }
+    CompiledFilterMap compiledSourceFilter = sourceFilter.getCompiledFilterMap();
     for (FilterMap filterMap : triggerFilters) {
-      if (isFilterMatch(sourceFilter, filterMap, isFilter)) {
+      if (compiledSourceFilter.matches(filterMap.getCompiledFilterMap(), isFilter)) {
         return true;
       }
     }
     return false;
   }
 
-  private static boolean isFilterMatch(
-      FilterMap sourceFilter, FilterMap triggerFilter, boolean isFilter) {
-    for (String key : triggerFilter.getAttributionFilterMap().keySet()) {
-      if (!sourceFilter.getAttributionFilterMap().containsKey(key)) {
-        continue;
-      }
-      // Finds the intersection of two value lists.
-      List<String> sourceValues = sourceFilter.getAttributionFilterMap().get(key);
-      List<String> triggerValues = triggerFilter.getAttributionFilterMap().get(key);
-      if (!matchFilterValues(sourceValues, triggerValues, isFilter)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
-  private static boolean matchFilterValues(
-      List<String> sourceValues, List<String> triggerValues, boolean isFilter) {
-    if (triggerValues.isEmpty()) {
-      return isFilter ? sourceValues.isEmpty() : !sourceValues.isEmpty();
-    }
-    Set<String> intersection = new HashSet<>(sourceValues);
-    intersection.retainAll(triggerValues);
-    return isFilter ? !intersection.isEmpty() : intersection.isEmpty();
-  }
-
   /**
    * Deserializes the provided {@link JSONArray} of filters into filter set.
    *
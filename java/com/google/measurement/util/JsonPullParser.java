@@ -0,0 +1,323 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reusable parser for the one-JSON-object-per-line input files. It produces the same values as
+ * json-simple's {@link JSONParser}: {@link JSONObject}, {@link JSONArray}, {@link String}, {@link
+ * Long} for integers, {@link Double} for other numbers, {@link Boolean} and null, so its output can
+ * be passed to the existing processors unchanged.
+ *
+ * <p>{@link JSONParser} allocates a new lexer buffer per parser and a token object per value. This
+ * parser instead pulls values directly out of the input string, reuses one buffer for escaped
+ * strings, and reuses the strings of the object keys it has already seen. Keep one instance per
+ * thread and reuse it for every line; instances are not thread safe.
+ */
+public final class JsonPullParser {
+  private static final int KEY_CACHE_SIZE = 512;
+
+  private final StringBuilder mBuffer = new StringBuilder();
+  // Keys seen so far, indexed by hash; repeated keys are returned without allocating.
+  private final String[] mKeys = new String[KEY_CACHE_SIZE];
+  private String mInput;
+  private int mPosition;
+
+  /**
+   * Parses {@code input}, which must hold exactly one JSON value.
+   *
+   * @throws ParseException if {@code input} is not valid JSON
+   */
+  public Object parse(String input) throws ParseException {
+    mInput = input;
+    mPosition = 0;
+    try {
+      Object value = readValue();
+      skipWhitespace();
+      if (mPosition < mInput.length()) {
+        throw unexpectedChar();
+      }
+      return value;
+    } catch (NumberFormatException e) {
+      throw new ParseException(mPosition, ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    } finally {
+      mInput = null;
+    }
+  }
+
+  /**
+   * Parses {@code input}, which must hold exactly one JSON object.
+   *
+   * @throws ParseException if {@code input} is not a valid JSON object
+   */
+  public JSONObject parseObject(String input) throws ParseException {
+    Object value = parse(input);
+    if (!(value instanceof JSONObject)) {
+      throw new ParseException(0, ParseException.ERROR_UNEXPECTED_TOKEN, value);
+    }
+    return (JSONObject) value;
+  }
+
+  private Object readValue() throws ParseException {
+    skipWhitespace();
+    if (mPosition >= mInput.length()) {
+      throw new ParseException(mPosition, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+    char c = mInput.charAt(mPosition);
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString(false);
+      case 't':
+        return readLiteral("true", Boolean.TRUE);
+      case 'f':
+        return readLiteral("false", Boolean.FALSE);
+      case 'n':
+        return readLiteral("null", null);
+      default:
+        if (c == '-' || isDigit(c)) {
+          return readNumber();
+        }
+        throw unexpectedChar();
+    }
+  }
+
+  // Like json-simple, commas between object members and array elements are optional and repeated
+  // or trailing commas are skipped.
+  @SuppressWarnings("unchecked")
+  private JSONObject readObject() throws ParseException {
+    JSONObject object = new JSONObject();
+    mPosition++;
+    while (true) {
+      skipSeparators();
+      if (mPosition >= mInput.length()) {
+        throw unexpectedChar();
+      }
+      char c = mInput.charAt(mPosition);
+      if (c == '}') {
+        mPosition++;
+        return object;
+      }
+      if (c != '"') {
+        throw unexpectedChar();
+      }
+      String key = readString(true);
+      if (!consume(':')) {
+        throw unexpectedChar();
+      }
+      object.put(key, readValue());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private JSONArray readArray() throws ParseException {
+    JSONArray array = new JSONArray();
+    mPosition++;
+    while (true) {
+      skipSeparators();
+      if (mPosition < mInput.length() && mInput.charAt(mPosition) == ']') {
+        mPosition++;
+        return array;
+      }
+      array.add(readValue());
+    }
+  }
+
+  private String readString(boolean isKey) throws ParseException {
+    int start = ++mPosition;
+    int length = mInput.length();
+    int hash = 0;
+    for (int i = start; i < length; i++) {
+      char c = mInput.charAt(i);
+      if (c == '"') {
+        mPosition = i + 1;
+        return isKey ? key(start, i, hash) : mInput.substring(start, i);
+      }
+      if (c == '\\') {
+        return readEscapedString(start, i);
+      }
+      hash = 31 * hash + c;
+    }
+    throw new ParseException(length, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+  }
+
+  private String key(int start, int end, int hash) {
+    int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+    String cached = mKeys[slot];
+    int length = end - start;
+    if (cached != null
+        && cached.length() == length
+        && mInput.regionMatches(start, cached, 0, length)) {
+      return cached;
+    }
+    String key = mInput.substring(start, end);
+    mKeys[slot] = key;
+    return key;
+  }
+
+  private String readEscapedString(int start, int firstEscape) throws ParseException {
+    mBuffer.setLength(0);
+    mBuffer.append(mInput, start, firstEscape);
+    int length = mInput.length();
+    int i = firstEscape;
+    while (i < length) {
+      char c = mInput.charAt(i++);
+      if (c == '"') {
+        mPosition = i;
+        return mBuffer.toString();
+      }
+      if (c != '\\') {
+        mBuffer.append(c);
+        continue;
+      }
+      if (i >= length) {
+        break;
+      }
+      char escaped = mInput.charAt(i++);
+      switch (escaped) {
+        case '"':
+        case '\\':
+        case '/':
+          mBuffer.append(escaped);
+          break;
+        case 'b':
+          mBuffer.append('\b');
+          break;
+        case 'f':
+          mBuffer.append('\f');
+          break;
+        case 'n':
+          mBuffer.append('\n');
+          break;
+        case 'r':
+          mBuffer.append('\r');
+          break;
+        case 't':
+          mBuffer.append('\t');
+          break;
+        case 'u':
+          if (i + 4 > length) {
+            throw new ParseException(i, ParseException.ERROR_UNEXPECTED_CHAR, escaped);
+          }
+          int codeUnit = 0;
+          for (int end = i + 4; i < end; i++) {
+            int digit = Character.digit(mInput.charAt(i), 16);
+            if (digit < 0) {
+              throw new ParseException(i, ParseException.ERROR_UNEXPECTED_CHAR, mInput.charAt(i));
+            }
+            codeUnit = codeUnit * 16 + digit;
+          }
+          mBuffer.append((char) codeUnit);
+          break;
+        default:
+          throw new ParseException(i - 1, ParseException.ERROR_UNEXPECTED_CHAR, escaped);
+      }
+    }
+    throw new ParseException(length, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+  }
+
+  // Accepts the number forms json-simple does: -?[0-9]+ as a Long, and with a fraction and/or an
+  // exponent as a Double.
+  private Object readNumber() throws ParseException {
+    int start = mPosition;
+    if (mInput.charAt(mPosition) == '-') {
+      mPosition++;
+    }
+    skipDigits();
+    boolean isDecimal = false;
+    if (mPosition < mInput.length() && mInput.charAt(mPosition) == '.') {
+      mPosition++;
+      skipDigits();
+      isDecimal = true;
+    }
+    if (mPosition < mInput.length()
+        && (mInput.charAt(mPosition) == 'e' || mInput.charAt(mPosition) == 'E')) {
+      mPosition++;
+      if (mPosition < mInput.length()
+          && (mInput.charAt(mPosition) == '+' || mInput.charAt(mPosition) == '-')) {
+        mPosition++;
+      }
+      skipDigits();
+      isDecimal = true;
+    }
+    String number = mInput.substring(start, mPosition);
+    return isDecimal ? (Object) Double.valueOf(number) : (Object) Long.valueOf(number);
+  }
+
+  private void skipDigits() throws ParseException {
+    int start = mPosition;
+    while (mPosition < mInput.length() && isDigit(mInput.charAt(mPosition))) {
+      mPosition++;
+    }
+    if (mPosition == start) {
+      throw unexpectedChar();
+    }
+  }
+
+  private Object readLiteral(String literal, Object value) throws ParseException {
+    if (!mInput.startsWith(literal, mPosition)) {
+      throw unexpectedChar();
+    }
+    mPosition += literal.length();
+    return value;
+  }
+
+  private boolean consume(char expected) {
+    skipWhitespace();
+    if (mPosition < mInput.length() && mInput.charAt(mPosition) == expected) {
+      mPosition++;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipSeparators() {
+    skipWhitespace();
+    while (mPosition < mInput.length() && mInput.charAt(mPosition) == ',') {
+      mPosition++;
+      skipWhitespace();
+    }
+  }
+
+  private void skipWhitespace() {
+    while (mPosition < mInput.length()) {
+      char c = mInput.charAt(mPosition);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f') {
+        return;
+      }
+      mPosition++;
+    }
+  }
+
+  private ParseException unexpectedChar() {
+    return mPosition < mInput.length()
+        ? new ParseException(
+            mPosition, ParseException.ERROR_UNEXPECTED_CHAR, mInput.charAt(mPosition))
+        : new ParseException(mPosition, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
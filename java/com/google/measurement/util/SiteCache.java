@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricResults;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.metrics.MetricsFilter;
+
+/**
+ * Bounded caches of the site and base URI lookups that attribution repeats for every source and
+ * trigger. The caches are shared by every thread of the process. Inputs usually have a few thousand
+ * distinct hosts, so nearly all lookups are hits.
+ *
+ * <p>The {@link CacheStats} of the caches only describe the current process. Hits and misses are
+ * also counted in Beam metrics, which a pipeline aggregates across its workers.
+ */
+public final class SiteCache {
+  /** Maximum number of entries each cache keeps. */
+  public static final long MAXIMUM_SIZE = 100_000L;
+
+  // Keyed by "scheme://host"; the site only depends on the scheme and the host of a URI.
+  private static final Cache<String, Optional<URI>> SITES = newCache();
+  // Keyed by the URI string, as URI equality ignores the case of the scheme and the host.
+  private static final Cache<String, Optional<URI>> BASE_URIS = newCache();
+
+  static final String NAMESPACE = SiteCache.class.getName();
+  private static final String SITE_HITS = "site hits";
+  private static final String SITE_MISSES = "site misses";
+  private static final String BASE_URI_HITS = "base URI hits";
+  private static final String BASE_URI_MISSES = "base URI misses";
+  private static final Counter SITE_HIT_COUNTER = Metrics.counter(NAMESPACE, SITE_HITS);
+  private static final Counter SITE_MISS_COUNTER = Metrics.counter(NAMESPACE, SITE_MISSES);
+  private static final Counter BASE_URI_HIT_COUNTER = Metrics.counter(NAMESPACE, BASE_URI_HITS);
+  private static final Counter BASE_URI_MISS_COUNTER = Metrics.counter(NAMESPACE, BASE_URI_MISSES);
+
+  private SiteCache() {}
+
+  /** Returns the hit and load counts of {@link Web#topPrivateDomainAndScheme}. */
+  public static CacheStats siteStats() {
+    return SITES.stats();
+  }
+
+  /** Returns the hit and load counts of {@link BaseUriExtractor#getBaseUri}. */
+  public static CacheStats baseUriStats() {
+    return BASE_URIS.stats();
+  }
+
+  /**
+   * Formats the hit rates of the caches of the current process, which is where a local run does all
+   * of its lookups.
+   */
+  public static String report() {
+    return String.format(
+        "Site cache: %s%nBase URI cache: %s%n", format(siteStats()), format(baseUriStats()));
+  }
+
+  /** Formats the hit rates counted by the workers of a finished pipeline. */
+  public static String report(MetricResults metrics) {
+    long siteHits = 0;
+    long siteMisses = 0;
+    long baseUriHits = 0;
+    long baseUriMisses = 0;
+    for (MetricResult<Long> counter :
+        metrics
+            .queryMetrics(
+                MetricsFilter.builder()
+                    .addNameFilter(MetricNameFilter.inNamespace(NAMESPACE))
+                    .build())
+            .getCounters()) {
+      long count = counter.getAttempted();
+      switch (counter.getName().getName()) {
+        case SITE_HITS:
+          siteHits += count;
+          break;
+        case SITE_MISSES:
+          siteMisses += count;
+          break;
+        case BASE_URI_HITS:
+          baseUriHits += count;
+          break;
+        case BASE_URI_MISSES:
+          baseUriMisses += count;
+          break;
+        default:
+          break;
+      }
+    }
+    return String.format(
+        "Site cache: %s%nBase URI cache: %s%n",
+        format(siteHits + siteMisses, siteHits), format(baseUriHits + baseUriMisses, baseUriHits));
+  }
+
+  static Optional<URI> site(String schemeAndHost, Callable<Optional<URI>> resolver) {
+    return get(SITES, schemeAndHost, resolver, SITE_HIT_COUNTER, SITE_MISS_COUNTER);
+  }
+
+  static Optional<URI> baseUri(URI uri, Callable<Optional<URI>> resolver) {
+    return get(BASE_URIS, uri.toString(), resolver, BASE_URI_HIT_COUNTER, BASE_URI_MISS_COUNTER);
+  }
+
+  private static Optional<URI> get(
+      Cache<String, Optional<URI>> cache,
+      String key,
+      Callable<Optional<URI>> resolver,
+      Counter hits,
+      Counter misses) {
+    boolean[] resolved = {false};
+    Optional<URI> value;
+    try {
+      value =
+          cache.get(
+              key,
+              () -> {
+                resolved[0] = true;
+                return resolver.call();
+              });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    (resolved[0] ? misses : hits).inc();
+    return value;
+  }
+
+  private static String format(CacheStats stats) {
+    return String.format(
+        "%s, %d entries evicted",
+        format(stats.requestCount(), stats.hitCount()), stats.evictionCount());
+  }
+
+  // Like CacheStats#hitRate, no lookups count as all hits.
+  private static String format(long lookups, long hits) {
+    return String.format(
+        "%d lookups, %.1f%% hits", lookups, lookups == 0 ? 100.0 : 100.0 * hits / lookups);
+  }
+
+  private static Cache<String, Optional<URI>> newCache() {
+    return CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).recordStats().build();
+  }
+}
@@ -27,7 +27,7 @@ public final class Web {
 
   /**
    * Returns a {@code URI} of the scheme concatenated with the first subdomain of the provided URL
-   * that is beneath the public suffix.
+   * that is beneath the public suffix. Results are cached in {@link SiteCache}.
    *
    * @param uri the URI to parse.
    */
@@ -37,6 +37,10 @@ public final class Web {
     if (scheme == null || host == null) {
       return Optional.empty();
     }
+    return SiteCache.site(scheme + "://" + host, () -> resolveTopPrivateDomain(scheme, host));
+  }
+
+  private static Optional<URI> resolveTopPrivateDomain(String scheme, String host) {
     try {
       InternetDomainName domainName = InternetDomainName.from(host);
       String url = scheme + "://" + domainName.topPrivateDomain();
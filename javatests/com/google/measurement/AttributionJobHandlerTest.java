@@ -17,8 +17,6 @@
 package com.google.measurement;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
@@ -119,16 +117,60 @@ public class AttributionJobHandlerTest {
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
+  @Test
+  public void shouldDeleteExpiredRecordsAtTriggerTime_simulatedClockExpiryEnabled() {
+    mFlags.MEASUREMENT_ENABLE_SIMULATED_CLOCK_EXPIRY = true;
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setId("triggerId1")
+            .setStatus(Trigger.Status.IGNORED)
+            .setTriggerTime(TimeUnit.DAYS.toMillis(40))
+            .build();
+    when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
+    mHandler.performPendingAttributions();
+    verify(mMeasurementDao).deleteExpiredRecords(TimeUnit.DAYS.toMillis(40));
+  }
+
+  @Test
+  public void shouldHandOverExpiredEventReports_simulatedClockExpiryEnabled() {
+    mFlags.setMeasurementEnableSimulatedClockExpiry(true);
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setId("triggerId1")
+            .setStatus(Trigger.Status.IGNORED)
+            .setTriggerTime(TimeUnit.DAYS.toMillis(40))
+            .build();
+    EventReport expired = EventReportFixture.getBaseEventReportBuild().setId("expired").build();
+    when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
+    when(mMeasurementDao.deleteExpiredRecords(TimeUnit.DAYS.toMillis(40)))
+        .thenReturn(List.of(expired));
+    List<EventReport> handedOver = new ArrayList<>();
+    mHandler.setExpiredEventReportConsumer(handedOver::addAll);
+    mHandler.performPendingAttributions();
+    assertEquals(List.of(expired), handedOver);
+  }
+
+  @Test
+  public void shouldNotDeleteExpiredRecords_simulatedClockExpiryDisabled() {
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setId("triggerId1")
+            .setStatus(Trigger.Status.IGNORED)
+            .build();
+    when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
+    mHandler.performPendingAttributions();
+    verify(mMeasurementDao, never()).deleteExpiredRecords(anyLong());
+  }
+
   @Test
   public void shouldIgnoreIfNoSourcesFound() throws ParseException {
     Trigger trigger = createAPendingTrigger();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
 
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(new ArrayList<>());
     mHandler.performPendingAttributions();
 
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -159,12 +201,11 @@ public class AttributionJobHandlerTest {
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
 
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -191,12 +232,11 @@ public class AttributionJobHandlerTest {
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
 
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -230,8 +270,6 @@ public class AttributionJobHandlerTest {
             .setEventReportWindow(triggerTime)
             .build());
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Arrays.asList(trigger1, trigger2));
-    when(mMeasurementDao.getTrigger(trigger1.getId())).thenReturn(trigger1);
-    when(mMeasurementDao.getTrigger(trigger2.getId())).thenReturn(trigger2);
     when(mMeasurementDao.getMatchingActiveSources(trigger1)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getMatchingActiveSources(trigger2)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
@@ -239,8 +277,8 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     // Verify trigger status updates.
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger1.getId()).getStatus());
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger2.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger1.getId()), Status.ATTRIBUTED);
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger2.getId()), Status.IGNORED);
 
     // Verify new event report insertion.
     ArgumentCaptor<EventReport> reportArg = ArgumentCaptor.forClass(EventReport.class);
@@ -287,7 +325,6 @@ public class AttributionJobHandlerTest {
             .setEventReportWindow(triggerTime - 1)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
 
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source1);
@@ -296,7 +333,7 @@ public class AttributionJobHandlerTest {
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
     assertEquals(1, matchingSourceList.size());
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -308,15 +345,13 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(105L);
     mHandler.performPendingAttributions();
     verify(mMeasurementDao).getAttributionsPerRateLimitWindow(source, trigger);
-    assertNotNull(mMeasurementDao.getTrigger(trigger.getId()));
-    assertEquals(Trigger.Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -328,7 +363,6 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(matchingSourceList);
@@ -336,7 +370,7 @@ public class AttributionJobHandlerTest {
             any(), any(), any(), anyLong(), anyLong()))
         .thenReturn(10);
     mHandler.performPendingAttributions();
-    assertSame(Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -348,7 +382,6 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     EventReport eventReport1 =
@@ -365,8 +398,7 @@ public class AttributionJobHandlerTest {
     when(mMeasurementDao.getSourceEventReports(source)).thenReturn(matchingReports);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
-    assertNotNull(mMeasurementDao.getTrigger(trigger.getId()));
-    assertEquals(Trigger.Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -391,7 +423,6 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     EventReport eventReport1 =
@@ -411,8 +442,7 @@ public class AttributionJobHandlerTest {
     when(mMeasurementDao.getSourceEventReports(source)).thenReturn(matchingReports);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
-    assertNotNull(mMeasurementDao.getTrigger(trigger.getId()));
-    assertEquals(Trigger.Status.IGNORED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
 
@@ -424,14 +454,13 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     when(mMeasurementDao.getMatchingActiveSources(trigger)).thenReturn(matchingSourceList);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     when(mMeasurementDao.getSourceEventReports(any())).thenReturn(new ArrayList<>());
     mHandler.performPendingAttributions();
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
     assertEquals(
@@ -474,7 +503,6 @@ public class AttributionJobHandlerTest {
             .setEventTime(2L)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source1);
     matchingSourceList.add(source2);
@@ -483,7 +511,7 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
     trigger.setStatus(Trigger.Status.ATTRIBUTED);
     assertEquals(1, matchingSourceList.size());
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
     assertEquals(
@@ -520,7 +548,6 @@ public class AttributionJobHandlerTest {
         .when(mEventReportWindowCalcDelegate)
         .getReportingTime(any(Source.class), anyLong(), any(EventSurfaceType.class));
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source);
     EventReport eventReport1 =
@@ -553,7 +580,7 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     verify(mMeasurementDao).deleteEventReport(eventReport1);
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     verify(mMeasurementDao).insertEventReport(any());
   }
 
@@ -599,8 +626,6 @@ public class AttributionJobHandlerTest {
             .setAttributionMode(Source.AttributionMode.TRUTHFULLY)
             .build());
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Arrays.asList(trigger1, trigger2));
-    when(mMeasurementDao.getTrigger(trigger1.getId())).thenReturn(trigger1);
-    when(mMeasurementDao.getTrigger(trigger2.getId())).thenReturn(trigger2);
     when(mMeasurementDao.getMatchingActiveSources(trigger1)).thenReturn(matchingSourceList1);
     when(mMeasurementDao.getMatchingActiveSources(trigger2)).thenReturn(matchingSourceList2);
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
@@ -608,8 +633,8 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     // Verify trigger status updates.
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger1.getId()).getStatus());
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger2.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger1.getId()), Status.ATTRIBUTED);
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger2.getId()), Status.ATTRIBUTED);
     // Verify source dedup key updates.
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao, times(2)).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -670,7 +695,6 @@ public class AttributionJobHandlerTest {
             .setEventTime(eventTime)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source2);
     matchingSourceList.add(source1);
@@ -681,7 +705,7 @@ public class AttributionJobHandlerTest {
     verify(mMeasurementDao).updateSourceStatus(eq(List.of(source2)), eq(Source.Status.IGNORED));
     assertEquals(1, matchingSourceList.size());
     assertEquals(source2.getEventId(), matchingSourceList.get(0).getEventId());
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
     assertEquals(source1.getEventId(), sourceArg.getValue().getEventId());
@@ -733,7 +757,6 @@ public class AttributionJobHandlerTest {
             .setEventReportWindow(triggerTime)
             .build();
     when(mMeasurementDao.getPendingTriggers()).thenReturn(Collections.singletonList(trigger));
-    when(mMeasurementDao.getTrigger(trigger.getId())).thenReturn(trigger);
     List<Source> matchingSourceList = new ArrayList<>();
     matchingSourceList.add(source2);
     matchingSourceList.add(source1);
@@ -746,7 +769,7 @@ public class AttributionJobHandlerTest {
     assertEquals(1, matchingSourceList.size());
     assertEquals(source1.getEventId(), matchingSourceList.get(0).getEventId());
 
-    assertSame(Status.ATTRIBUTED, mMeasurementDao.getTrigger(trigger.getId()).getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
     assertEquals(source2.getEventId(), sourceArg.getValue().getEventId());
@@ -782,7 +805,7 @@ public class AttributionJobHandlerTest {
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
 
-    assertSame(Status.IGNORED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).updateSourceEventReportDedupKeys(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
@@ -813,7 +836,7 @@ public class AttributionJobHandlerTest {
     when(mMeasurementDao.getAttributionsPerRateLimitWindow(any(), any())).thenReturn(5L);
     mHandler.performPendingAttributions();
 
-    assertSame(Status.IGNORED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).updateSourceEventReportDedupKeys(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
@@ -1084,7 +1107,7 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     // Assertions
-    assertSame(Status.IGNORED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).updateSourceEventReportDedupKeys(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
@@ -1128,7 +1151,7 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     // Assertions
-    assertSame(Status.IGNORED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
     verify(mMeasurementDao, never()).updateSourceEventReportDedupKeys(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
   }
@@ -1174,7 +1197,7 @@ public class AttributionJobHandlerTest {
     mHandler.performPendingAttributions();
 
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
     assertEquals(
@@ -1223,7 +1246,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1272,7 +1295,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1322,7 +1345,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1374,7 +1397,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1426,7 +1449,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1478,7 +1501,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1528,7 +1551,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     ArgumentCaptor<Source> sourceArg = ArgumentCaptor.forClass(Source.class);
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(sourceArg.capture());
@@ -1608,7 +1631,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(source);
   }
@@ -1681,7 +1704,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(source);
   }
@@ -1756,7 +1779,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(source);
   }
@@ -1829,7 +1852,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(source);
   }
@@ -1905,7 +1928,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).updateSourceEventReportDedupKeys(source);
   }
@@ -1961,7 +1984,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao, never()).insertEventReport(any());
     verify(mMeasurementDao).insertAggregateReport(any());
@@ -2016,7 +2039,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao, never()).insertEventReport(any());
     verify(mMeasurementDao).insertAggregateReport(any());
@@ -2076,7 +2099,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertions
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao, never()).insertAggregateReport(any());
     verify(mMeasurementDao).insertEventReport(any());
@@ -2135,7 +2158,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertion
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).insertAggregateReport(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
@@ -2194,7 +2217,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertion
-    assertSame(Status.IGNORED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.IGNORED);
 
     verify(mMeasurementDao, never()).insertAggregateReport(any());
     verify(mMeasurementDao, never()).insertEventReport(any());
@@ -2254,7 +2277,7 @@ public class AttributionJobHandlerTest {
     // Execution
     mHandler.performPendingAttributions();
     // Assertion
-    assertSame(Status.ATTRIBUTED, trigger.getStatus());
+    verify(mMeasurementDao).updateTriggerStatus(List.of(trigger.getId()), Status.ATTRIBUTED);
 
     verify(mMeasurementDao).insertAggregateReport(any());
     verify(mMeasurementDao).insertEventReport(any());
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AttributionRateLimitLedgerTest {
+  private static final String SOURCE_SITE = "android-app://publisher.app";
+  private static final String DESTINATION_SITE = "android-app://destination.app";
+  private static final String OTHER_DESTINATION_SITE = "https://destination.test";
+
+  @Test
+  public void count_windowIsExclusiveOfStartAndInclusiveOfEnd() {
+    AttributionRateLimitLedger ledger = new AttributionRateLimitLedger();
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 100L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 150L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 200L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 201L));
+
+    assertEquals(2L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 100L, 200L));
+    assertEquals(4L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 0L, 1000L));
+    assertEquals(0L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-2", 0L, 1000L));
+    assertEquals(0L, ledger.count(SOURCE_SITE, OTHER_DESTINATION_SITE, "enrollment-1", 0L, 1000L));
+  }
+
+  @Test
+  public void count_outOfOrderInsertsAndDuplicateTimes() {
+    AttributionRateLimitLedger ledger = new AttributionRateLimitLedger();
+    long[] times = {500L, 100L, 300L, 300L, 900L, 100L, 700L, 300L};
+    for (long time : times) {
+      ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", time));
+    }
+
+    assertEquals(3L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 100L, 300L));
+    assertEquals(5L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 99L, 300L));
+    assertEquals(8L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 0L, 900L));
+  }
+
+  @Test
+  public void remove_dropsSingleOccurrence() {
+    AttributionRateLimitLedger ledger = new AttributionRateLimitLedger();
+    Attribution attribution = createAttribution(DESTINATION_SITE, "enrollment-1", 100L);
+    ledger.add(attribution);
+    ledger.add(attribution);
+
+    ledger.remove(attribution);
+    assertEquals(1L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 0L, 100L));
+
+    ledger.remove(attribution);
+    ledger.remove(attribution);
+    assertEquals(0L, ledger.count(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 0L, 100L));
+  }
+
+  @Test
+  public void countDistinctEnrollments_excludesEnrollmentAndOutOfWindow() {
+    AttributionRateLimitLedger ledger = new AttributionRateLimitLedger();
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 100L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-1", 110L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-2", 120L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-3", 130L));
+    ledger.add(createAttribution(DESTINATION_SITE, "enrollment-4", 1000L));
+    ledger.add(createAttribution(OTHER_DESTINATION_SITE, "enrollment-5", 120L));
+
+    assertEquals(
+        3,
+        ledger.countDistinctEnrollments(SOURCE_SITE, DESTINATION_SITE, "enrollment-0", 50L, 500L));
+    assertEquals(
+        2,
+        ledger.countDistinctEnrollments(SOURCE_SITE, DESTINATION_SITE, "enrollment-1", 50L, 500L));
+    assertEquals(
+        1,
+        ledger.countDistinctEnrollments(SOURCE_SITE, DESTINATION_SITE, "enrollment-0", 120L, 500L));
+  }
+
+  private static Attribution createAttribution(
+      String destinationSite, String enrollmentId, long triggerTime) {
+    return new Attribution.Builder()
+        .setSourceSite(SOURCE_SITE)
+        .setSourceOrigin(SOURCE_SITE)
+        .setDestinationSite(destinationSite)
+        .setDestinationOrigin(destinationSite)
+        .setEnrollmentId(enrollmentId)
+        .setTriggerTime(triggerTime)
+        .setRegistrant(SOURCE_SITE)
+        .build();
+  }
+}
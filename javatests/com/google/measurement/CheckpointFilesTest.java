@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.beam.sdk.PipelineResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointFilesTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void latestGeneration_skipsGenerationsThatWereNotCommitted() throws Exception {
+    String checkpointDirectory = tempFolder.getRoot().toString();
+    try (CheckpointFiles.Writer writer = new CheckpointFiles.Writer(checkpointDirectory, 0, 2)) {
+      writer.commit();
+    }
+    Path uncommittedShard =
+        Path.of(
+            CheckpointFiles.generationDirectory(checkpointDirectory, 1),
+            "checkpoint-00000-of-00001.avro");
+    Files.createDirectories(uncommittedShard.getParent());
+    Files.createFile(uncommittedShard);
+
+    assertEquals(-1, CheckpointFiles.latestGeneration(tempFolder.newFolder().toString()));
+    assertEquals(0, CheckpointFiles.latestGeneration(checkpointDirectory));
+    assertEquals(2, CheckpointFiles.shards(checkpointDirectory, 0).size());
+    assertEquals(2, CheckpointFiles.nextGeneration(checkpointDirectory));
+  }
+
+  @Test
+  public void writer_deletesTheShardsOfAGenerationThatIsNotCommitted() throws Exception {
+    String checkpointDirectory = tempFolder.getRoot().toString();
+
+    try (CheckpointFiles.Writer writer = new CheckpointFiles.Writer(checkpointDirectory, 0, 2)) {
+      writer.write(
+          DataProcessor.platformKey(ApiChoice.OS, "U1"),
+          UserStateCheckpoint.capture(new IndexedMeasurementDAO(), /* previous= */ null));
+    }
+
+    assertEquals(List.of(), files(checkpointDirectory));
+  }
+
+  @Test
+  public void deleteGenerationsBefore_keepsTheLaterGenerations() throws Exception {
+    String checkpointDirectory = tempFolder.getRoot().toString();
+    for (int generation = 0; generation < 3; generation++) {
+      try (CheckpointFiles.Writer writer =
+          new CheckpointFiles.Writer(checkpointDirectory, generation, 1)) {
+        writer.commit();
+      }
+    }
+
+    CheckpointFiles.deleteGenerationsBefore(checkpointDirectory, 2);
+
+    assertEquals(
+        List.of("generation-00002/_COMMITTED", "generation-00002/checkpoint-00000-of-00001.avro"),
+        files(checkpointDirectory));
+  }
+
+  @Test
+  public void commitWhenDone_commitsAndDeletesTheEarlierGenerations() throws Exception {
+    String checkpointDirectory = tempFolder.getRoot().toString();
+    writeCommittedGeneration(checkpointDirectory, 0);
+    new CheckpointFiles.Writer(checkpointDirectory, 1, 1).close();
+
+    CheckpointFiles.commitWhenDone(
+        finishedPipeline(PipelineResult.State.DONE), checkpointDirectory, 1);
+
+    assertEquals(1, CheckpointFiles.latestGeneration(checkpointDirectory));
+    assertEquals(List.of("generation-00001/_COMMITTED"), files(checkpointDirectory));
+  }
+
+  @Test
+  public void commitWhenDone_pipelineNotDone_keepsTheCheckpointItStartedFrom() throws Exception {
+    String checkpointDirectory = tempFolder.getRoot().toString();
+    writeCommittedGeneration(checkpointDirectory, 0);
+    Path partialShard =
+        Path.of(
+            CheckpointFiles.generationDirectory(checkpointDirectory, 1),
+            "checkpoint-00000-of-00001.avro");
+    Files.createDirectories(partialShard.getParent());
+    Files.createFile(partialShard);
+
+    for (PipelineResult.State state :
+        new PipelineResult.State[] {
+          PipelineResult.State.FAILED, PipelineResult.State.CANCELLED, PipelineResult.State.UNKNOWN
+        }) {
+      assertThrows(
+          IllegalStateException.class,
+          () -> CheckpointFiles.commitWhenDone(finishedPipeline(state), checkpointDirectory, 1));
+    }
+
+    assertEquals(0, CheckpointFiles.latestGeneration(checkpointDirectory));
+    assertEquals(
+        List.of(
+            "generation-00000/_COMMITTED",
+            "generation-00000/checkpoint-00000-of-00001.avro",
+            "generation-00001/checkpoint-00000-of-00001.avro"),
+        files(checkpointDirectory));
+  }
+
+  // A pipeline that finished in state, which remote runners report instead of throwing.
+  private static PipelineResult finishedPipeline(PipelineResult.State state) {
+    PipelineResult result = mock(PipelineResult.class);
+    when(result.waitUntilFinish()).thenReturn(state);
+    return result;
+  }
+
+  private static void writeCommittedGeneration(String checkpointDirectory, int generation)
+      throws Exception {
+    try (CheckpointFiles.Writer writer =
+        new CheckpointFiles.Writer(checkpointDirectory, generation, 1)) {
+      writer.commit();
+    }
+  }
+
+  private static List<String> files(String directory) throws Exception {
+    try (Stream<Path> files = Files.walk(Path.of(directory))) {
+      return files
+          .filter(Files::isRegularFile)
+          .map(file -> Path.of(directory).relativize(file).toString())
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.util.JsonPullParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.beam.sdk.coders.AvroCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares encoding and decoding the attribution sources and triggers under {@code testdata} with
+ * the coders the registry used to resolve for them and with {@link SourceCoder} and {@link
+ * TriggerCoder}. {@link AvroCoder} cannot derive a schema for {@link Source}, so sources used to
+ * fall back to {@link SerializableCoder}; triggers used {@link AvroCoder}. The total encoded size
+ * for each is printed during setup.
+ *
+ * <p>Run with {@code bazel run //:CoderBenchmark} from the workspace root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoderBenchmark {
+  @Param({"1000"})
+  public int mRecordCount;
+
+  private final List<Source> mSources = new ArrayList<>();
+  private final List<Trigger> mTriggers = new ArrayList<>();
+  private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+  private final Coder<Source> mPreviousSourceCoder = SerializableCoder.of(Source.class);
+  private final Coder<Trigger> mPreviousTriggerCoder = AvroCoder.of(Trigger.class);
+  private List<byte[]> mPreviousSources;
+  private List<byte[]> mPreviousTriggers;
+  private List<byte[]> mEncodedSources;
+  private List<byte[]> mEncodedTriggers;
+
+  @Setup
+  public void setup() throws Exception {
+    JsonPullParser parser = new JsonPullParser();
+    List<String> sources = readLines("attribution_source.json");
+    List<String> triggers = readLines("trigger.json");
+    for (int i = 0; i < mRecordCount; i++) {
+      mSources.add(
+          SourceProcessor.buildSourceFromJson(parser.parseObject(sources.get(i % sources.size()))));
+      mTriggers.add(
+          TriggerProcessor.buildTriggerFromJson(
+              parser.parseObject(triggers.get(i % triggers.size()))));
+    }
+    mPreviousSources = encodeAll(mPreviousSourceCoder, mSources);
+    mPreviousTriggers = encodeAll(mPreviousTriggerCoder, mTriggers);
+    mEncodedSources = encodeAll(SourceCoder.of(), mSources);
+    mEncodedTriggers = encodeAll(TriggerCoder.of(), mTriggers);
+    System.out.printf(
+        "%nEncoded bytes for %d sources: SerializableCoder %d, SourceCoder %d%n",
+        mRecordCount, totalSize(mPreviousSources), totalSize(mEncodedSources));
+    System.out.printf(
+        "Encoded bytes for %d triggers: AvroCoder %d, TriggerCoder %d%n",
+        mRecordCount, totalSize(mPreviousTriggers), totalSize(mEncodedTriggers));
+  }
+
+  @Benchmark
+  public void encodeWithPreviousCoders(Blackhole blackhole) throws IOException {
+    encode(mPreviousSourceCoder, mSources, blackhole);
+    encode(mPreviousTriggerCoder, mTriggers, blackhole);
+  }
+
+  @Benchmark
+  public void encodeWithRecordCoders(Blackhole blackhole) throws IOException {
+    encode(SourceCoder.of(), mSources, blackhole);
+    encode(TriggerCoder.of(), mTriggers, blackhole);
+  }
+
+  @Benchmark
+  public void decodeWithPreviousCoders(Blackhole blackhole) throws IOException {
+    decode(mPreviousSourceCoder, mPreviousSources, blackhole);
+    decode(mPreviousTriggerCoder, mPreviousTriggers, blackhole);
+  }
+
+  @Benchmark
+  public void decodeWithRecordCoders(Blackhole blackhole) throws IOException {
+    decode(SourceCoder.of(), mEncodedSources, blackhole);
+    decode(TriggerCoder.of(), mEncodedTriggers, blackhole);
+  }
+
+  private <T> void encode(Coder<T> coder, List<T> values, Blackhole blackhole) throws IOException {
+    for (T value : values) {
+      mOut.reset();
+      coder.encode(value, mOut);
+      blackhole.consume(mOut.size());
+    }
+  }
+
+  private static <T> void decode(Coder<T> coder, List<byte[]> encoded, Blackhole blackhole)
+      throws IOException {
+    for (byte[] bytes : encoded) {
+      blackhole.consume(coder.decode(new ByteArrayInputStream(bytes)));
+    }
+  }
+
+  private static <T> List<byte[]> encodeAll(Coder<T> coder, List<T> values) throws IOException {
+    List<byte[]> encoded = new ArrayList<>(values.size());
+    for (T value : values) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      coder.encode(value, out);
+      encoded.add(out.toByteArray());
+    }
+    return encoded;
+  }
+
+  private static long totalSize(List<byte[]> encoded) {
+    return encoded.stream().mapToLong(bytes -> bytes.length).sum();
+  }
+
+  private static List<String> readLines(String fileName) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(Path.of("testdata"))) {
+      for (Path file :
+          files.filter(f -> f.endsWith(fileName)).sorted().collect(Collectors.toList())) {
+        Files.readAllLines(file).stream().filter(line -> !line.isBlank()).forEach(lines::add);
+      }
+    }
+    return lines;
+  }
+}
@@ -16,17 +16,36 @@
 
 package com.google.measurement;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.options.PipelineOptions.CheckEnabled;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionView;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.junit.Before;
@@ -242,6 +261,150 @@ public class DataProcessorTest {
     p.run().waitUntilFinish();
   }
 
+  @Test
+  public void keyTriggerMapByPlatformTest() throws IOException {
+    String webTriggerData =
+        getTriggerData().replace("\"api_choice\": \"OS\"", "\"api_choice\": \"WEB\"");
+    String triggerData = String.join("\n", getTriggerData(), webTriggerData);
+    Files.write(triggerFile.toPath(), triggerData.getBytes());
+    String[] cmdArgs = getTriggerCmdArgs();
+    SimulationConfig options =
+        PipelineOptionsFactory.fromArgs(cmdArgs).withValidation().as(SimulationConfig.class);
+    p.getOptions().setStableUniqueNames(CheckEnabled.OFF);
+
+    PCollection<KV<String, Trigger>> userToAdtechTriggerData =
+        DataProcessor.keyTriggerMapByPlatform(DataProcessor.buildUserToTriggerMap(p, options));
+
+    JSONParser parser = new JSONParser();
+    try {
+      Trigger trigger1 =
+          TriggerProcessor.buildTriggerFromJson((JSONObject) parser.parse(getTriggerData()));
+      Trigger trigger2 =
+          TriggerProcessor.buildTriggerFromJson((JSONObject) parser.parse(webTriggerData));
+
+      PAssert.that(userToAdtechTriggerData)
+          .containsInAnyOrder(List.of(KV.of("OS/U1", trigger1), KV.of("WEB/U1", trigger2)));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void platformKeyTest() {
+    String key = DataProcessor.platformKey(ApiChoice.WEB, "U1/device");
+    assertEquals(ApiChoice.WEB, DataProcessor.apiChoiceOf(key));
+    assertEquals("U1/device", DataProcessor.userIdOf(key));
+  }
+
+  @Test
+  public void partitionByKeySizeTest() {
+    Source source = SourceFixture.getValidSource();
+    Trigger trigger = TriggerFixture.getValidTrigger();
+    PCollection<KV<String, Source>> sourceMap =
+        p.apply(
+            "CreateSources",
+            Create.of(
+                KV.of("OS/U1", source),
+                KV.of("OS/U1", source),
+                KV.of("OS/U1", source),
+                KV.of("OS/U2", source)));
+    PCollection<KV<String, Trigger>> triggerMap =
+        p.apply("CreateTriggers", Create.of(KV.of("OS/U1", trigger), KV.of("WEB/U1", trigger)));
+    PCollection<KV<String, ExtensionEvent>> extensionEventMap =
+        p.apply(
+            "CreateExtensionEvents",
+            Create.empty(KvCoder.of(StringUtf8Coder.of(), ExtensionEventCoder.of())));
+    p.getOptions().setStableUniqueNames(CheckEnabled.OFF);
+
+    PCollectionView<Map<String, Long>> heavyKeys =
+        DataProcessor.detectHeavyKeys(sourceMap, triggerMap, extensionEventMap, 1, 4);
+    PCollectionList<KV<String, Source>> sources =
+        DataProcessor.partitionByKeySize(sourceMap, heavyKeys);
+    PCollectionList<KV<String, Trigger>> triggers =
+        DataProcessor.partitionByKeySize(triggerMap, heavyKeys);
+
+    PAssert.that(sources.get(DataProcessor.HEAVY_KEYS))
+        .containsInAnyOrder(KV.of("OS/U1", source), KV.of("OS/U1", source), KV.of("OS/U1", source));
+    PAssert.that(sources.get(DataProcessor.REGULAR_KEYS))
+        .containsInAnyOrder(KV.of("OS/U2", source));
+    PAssert.that(triggers.get(DataProcessor.HEAVY_KEYS))
+        .containsInAnyOrder(KV.of("OS/U1", trigger));
+    PAssert.that(triggers.get(DataProcessor.REGULAR_KEYS))
+        .containsInAnyOrder(KV.of("WEB/U1", trigger));
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void detectHeavyKeys_invalidSampleRateTest() {
+    PCollection<KV<String, Source>> sourceMap =
+        p.apply(Create.empty(KvCoder.of(StringUtf8Coder.of(), SourceCoder.of())));
+    PCollection<KV<String, Trigger>> triggerMap =
+        p.apply(Create.empty(KvCoder.of(StringUtf8Coder.of(), TriggerCoder.of())));
+    PCollection<KV<String, ExtensionEvent>> extensionEventMap =
+        p.apply(Create.empty(KvCoder.of(StringUtf8Coder.of(), ExtensionEventCoder.of())));
+    p.getOptions().setStableUniqueNames(CheckEnabled.OFF);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> DataProcessor.detectHeavyKeys(sourceMap, triggerMap, extensionEventMap, 0, 1));
+    p.enableAbandonedNodeEnforcement(false);
+  }
+
+  @Test
+  public void sampleUsersTest() {
+    Source source = SourceFixture.getValidSource();
+    List<KV<String, Source>> records = new ArrayList<>();
+    List<KV<String, Source>> sampledRecords = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      KV<String, Source> record = KV.of("U" + i, source);
+      records.add(record);
+      if (DataProcessor.isSampledUser(record.getKey(), 0.3, 7)) {
+        sampledRecords.add(record);
+      }
+    }
+    PCollection<KV<String, Source>> sourceMap = p.apply(Create.of(records));
+
+    PAssert.that(DataProcessor.sampleUsers(sourceMap, 0.3, 7)).containsInAnyOrder(sampledRecords);
+    assertSame(sourceMap, DataProcessor.sampleUsers(sourceMap, 1, 7));
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void isSampledUserTest() {
+    int sampled = 0;
+    for (int i = 0; i < 10000; i++) {
+      String userId = "U" + i;
+      boolean isSampled = DataProcessor.isSampledUser(userId, 0.1, 42);
+      assertEquals(isSampled, DataProcessor.isSampledUser(userId, 0.1, 42));
+      if (isSampled) {
+        sampled++;
+        assertTrue(DataProcessor.isSampledUser(userId, 0.2, 42));
+      }
+      assertTrue(DataProcessor.isSampledUser(userId, 1, 42));
+    }
+    assertEquals(1000, sampled, 100);
+    long differentlySampled =
+        IntStream.range(0, 10000)
+            .filter(
+                i ->
+                    DataProcessor.isSampledUser("U" + i, 0.1, 42)
+                        != DataProcessor.isSampledUser("U" + i, 0.1, 43))
+            .count();
+    assertTrue(differentlySampled > 0);
+  }
+
+  @Test
+  public void sampleUsers_invalidSampleRateTest() {
+    PCollection<KV<String, Source>> sourceMap =
+        p.apply(Create.empty(KvCoder.of(StringUtf8Coder.of(), SourceCoder.of())));
+
+    assertThrows(IllegalArgumentException.class, () -> DataProcessor.sampleUsers(sourceMap, 0, 1));
+    assertThrows(
+        IllegalArgumentException.class, () -> DataProcessor.sampleUsers(sourceMap, 1.5, 1));
+    p.enableAbandonedNodeEnforcement(false);
+  }
+
   @Test
   public void noWebTriggersTest() throws IOException {
     Files.write(triggerFile.toPath(), getTriggerData().getBytes());
@@ -304,6 +467,128 @@ public class DataProcessorTest {
     p.run().waitUntilFinish();
   }
 
+  @Test
+  public void buildSourceMapFromAvroTest() throws Exception {
+    // The file has a column the simulation does not read.
+    List<Schema.Field> fields = new ArrayList<>();
+    for (Schema.Field field : InputSchemas.ATTRIBUTION_SOURCE.getFields()) {
+      fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultVal()));
+    }
+    fields.add(
+        new Schema.Field("campaign", Schema.create(Schema.Type.STRING), null, (Object) null));
+    Schema writerSchema = Schema.createRecord("Export", null, "com.example", false, fields);
+    File avroSourceFile = new File(sourceFile.getParentFile(), "attribution_source.avro");
+    writeAvro(
+        avroSourceFile,
+        writerSchema,
+        List.of(
+            getSourceData().replaceFirst("\\{", "{\"campaign\": \"c1\", "),
+            getSourceDataWithFlexEventAPI().replaceFirst("\\{", "{\"campaign\": \"c2\", ")));
+
+    String[] cmdArgs = {
+      "--sourceStartDate=" + inputDate,
+      "--sourceEndDate=" + inputDate,
+      "--attributionSourceFileName=attribution_source.avro",
+      "--inputDirectory=" + tempFolder.getRoot().getAbsolutePath(),
+    };
+    SimulationConfig options =
+        PipelineOptionsFactory.fromArgs(cmdArgs).withValidation().as(SimulationConfig.class);
+    p.getOptions().setStableUniqueNames(CheckEnabled.OFF);
+
+    JSONParser parser = new JSONParser();
+    Source source1 =
+        SourceProcessor.buildSourceFromJson((JSONObject) parser.parse(getSourceData()));
+    Source source2 =
+        SourceProcessor.buildSourceFromJson(
+            (JSONObject) parser.parse(getSourceDataWithFlexEventAPI()));
+    PCollection<KV<String, Source>> userToAdtechSourceData =
+        DataProcessor.buildUserToSourceMap(p, options);
+
+    PAssert.that(userToAdtechSourceData)
+        .containsInAnyOrder(List.of(KV.of("U1", source1), KV.of("U1", source2)));
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void buildTriggerMapFromAvroWithInputFileFormatTest() throws Exception {
+    String user2TriggerData = getTriggerData().replace("U1", "U2");
+    writeAvro(
+        new File(triggerFile.getParentFile(), "trigger.data"),
+        InputSchemas.TRIGGER,
+        List.of(getTriggerData(), user2TriggerData));
+
+    String[] cmdArgs = {
+      "--triggerStartDate=" + inputDate,
+      "--triggerEndDate=" + inputDate,
+      "--triggerFileName=trigger.data",
+      "--inputFileFormat=AVRO",
+      "--inputDirectory=" + tempFolder.getRoot().getAbsolutePath(),
+    };
+    SimulationConfig options =
+        PipelineOptionsFactory.fromArgs(cmdArgs).withValidation().as(SimulationConfig.class);
+    p.getOptions().setStableUniqueNames(CheckEnabled.OFF);
+
+    JSONParser parser = new JSONParser();
+    Trigger trigger1 =
+        TriggerProcessor.buildTriggerFromJson((JSONObject) parser.parse(getTriggerData()));
+    Trigger trigger2 =
+        TriggerProcessor.buildTriggerFromJson((JSONObject) parser.parse(user2TriggerData));
+    PCollection<KV<String, Trigger>> userToAdtechTriggerData =
+        DataProcessor.buildUserToTriggerMap(p, options);
+
+    PAssert.that(userToAdtechTriggerData)
+        .containsInAnyOrder(List.of(KV.of("U1", trigger1), KV.of("U2", trigger2)));
+    p.run().waitUntilFinish();
+  }
+
+  // Writes the JSON rows to an Avro file, converting each value to the type of its column.
+  private static void writeAvro(File file, Schema schema, List<String> jsonRows) throws Exception {
+    JSONParser parser = new JSONParser();
+    try (DataFileWriter<GenericRecord> writer =
+        new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema))) {
+      writer.create(schema, file);
+      for (String row : jsonRows) {
+        writer.append((GenericRecord) toAvro(schema, parser.parse(row)));
+      }
+    }
+  }
+
+  private static Object toAvro(Schema schema, Object value) {
+    switch (schema.getType()) {
+      case UNION:
+        return value == null ? null : toAvro(schema.getTypes().get(1), value);
+      case RECORD:
+        GenericRecordBuilder builder = new GenericRecordBuilder(schema);
+        JSONObject jsonObject = (JSONObject) value;
+        for (Schema.Field field : schema.getFields()) {
+          if (jsonObject.containsKey(field.name())) {
+            builder.set(field, toAvro(field.schema(), jsonObject.get(field.name())));
+          }
+        }
+        return builder.build();
+      case ARRAY:
+        List<Object> array = new ArrayList<>();
+        for (Object element : value instanceof List ? (List<?>) value : List.of(value)) {
+          array.add(toAvro(schema.getElementType(), element));
+        }
+        return array;
+      case MAP:
+        Map<String, Object> map = new HashMap<>();
+        for (Object key : ((JSONObject) value).keySet()) {
+          map.put((String) key, toAvro(schema.getValueType(), ((JSONObject) value).get(key)));
+        }
+        return map;
+      case LONG:
+        return Long.valueOf(value.toString());
+      case INT:
+        return Integer.valueOf(value.toString());
+      case STRING:
+        return value.toString();
+      default:
+        return value;
+    }
+  }
+
   private String getSourceData() {
     return "{\"user_id\": \"U1\", \"source_event_id\": 1, \"source_type\": \"EVENT\","
         + " \"publisher\": \"https://www.example1.com/s1\", \"web_destination\":"
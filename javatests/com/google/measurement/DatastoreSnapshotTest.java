@@ -0,0 +1,154 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.measurement.util.UnsignedLong;
+import java.net.URI;
+import java.util.List;
+import org.junit.Test;
+
+public class DatastoreSnapshotTest {
+  private static final URI APP = URI.create("android-app://com.example.app");
+  private static final long DAY = 86_400_000L;
+
+  @Test
+  public void fork_sharesUnmodifiedRecords() {
+    DatastoreManager store = new IndexedDatastoreManager();
+    Source source = source();
+    Trigger trigger = trigger();
+    store.insertSource(source);
+    store.insertTrigger(trigger);
+
+    DatastoreManager fork = store.snapshot().fork();
+
+    assertSame(source, fork.getSources().iterator().next());
+    assertSame(trigger, fork.getTriggers().iterator().next());
+    assertSame(source, store.getSources().iterator().next());
+  }
+
+  @Test
+  public void fork_isolatesUpdates() {
+    DatastoreManager store = new DatastoreManager();
+    Source source = source();
+    store.insertSource(source);
+    DatastoreSnapshot snapshot = store.snapshot();
+    DatastoreManager first = snapshot.fork();
+    DatastoreManager second = snapshot.fork();
+
+    first.updateSourceStatus(List.of(source), Source.Status.IGNORED);
+    Source update = source();
+    update.getEventReportDedupKeys().add(new UnsignedLong(1L));
+    second.updateSourceEventReportDedupKeys(update);
+
+    assertEquals(Source.Status.IGNORED, first.getSource(source.getId()).getStatus());
+    assertTrue(first.getSource(source.getId()).getEventReportDedupKeys().isEmpty());
+    assertEquals(Source.Status.ACTIVE, second.getSource(source.getId()).getStatus());
+    assertEquals(1, second.getSource(source.getId()).getEventReportDedupKeys().size());
+    assertSame(source, store.getSource(source.getId()));
+    assertEquals(Source.Status.ACTIVE, source.getStatus());
+    assertTrue(source.getEventReportDedupKeys().isEmpty());
+  }
+
+  @Test
+  public void daoFork_indexesFollowCopies() {
+    IndexedMeasurementDAO dao = new IndexedMeasurementDAO();
+    Source source = source();
+    Trigger trigger = trigger();
+    dao.insertSource(source);
+    dao.insertTrigger(trigger);
+    MeasurementDAO.Snapshot snapshot = dao.snapshot();
+    MeasurementDAO fork = snapshot.fork();
+
+    List<Source> matched = fork.getMatchingActiveSources(trigger);
+    assertEquals(List.of(source), matched);
+    assertNotSame(source, matched.get(0));
+    fork.updateSourceStatus(matched, Source.Status.IGNORED);
+    assertTrue(fork.getMatchingActiveSources(trigger).isEmpty());
+    assertEquals(1, dao.getMatchingActiveSources(trigger).size());
+    assertEquals(1, snapshot.fork().getMatchingActiveSources(trigger).size());
+
+    fork.deleteExpiredRecords(1000 * DAY);
+    assertEquals(0, fork.getNumSourcesPerPublisher(source.getPublisher(), EventSurfaceType.APP));
+    assertTrue(fork.getPendingTriggers().isEmpty());
+    assertEquals(1, dao.getNumSourcesPerPublisher(source.getPublisher(), EventSurfaceType.APP));
+  }
+
+  @Test
+  public void daoFork_updatesTriggerStatusOnCopy() {
+    IndexedMeasurementDAO dao = new IndexedMeasurementDAO();
+    Trigger trigger = trigger();
+    dao.insertTrigger(trigger);
+    MeasurementDAO.Snapshot snapshot = dao.snapshot();
+    MeasurementDAO fork = snapshot.fork();
+
+    assertSame(trigger, fork.getPendingTriggers().get(0));
+    fork.updateTriggerStatus(List.of(trigger.getId()), Trigger.Status.ATTRIBUTED);
+
+    assertTrue(fork.getPendingTriggers().isEmpty());
+    assertEquals(Trigger.Status.ATTRIBUTED, fork.getTrigger(trigger.getId()).getStatus());
+    assertEquals(Trigger.Status.PENDING, trigger.getStatus());
+    assertEquals(List.of(trigger), dao.getPendingTriggers());
+    assertSame(trigger, snapshot.fork().getPendingTriggers().get(0));
+  }
+
+  @Test
+  public void daoFork_copiesIndexes() {
+    IndexedMeasurementDAO dao = new IndexedMeasurementDAO();
+    dao.insertSource(source());
+    MeasurementDAO.Snapshot snapshot = dao.snapshot();
+    MeasurementDAO first = snapshot.fork();
+
+    first.insertSource(source("other"));
+
+    assertEquals(2, first.getNumSourcesPerPublisher(APP, EventSurfaceType.APP));
+    assertEquals(2, first.getMatchingActiveSources(trigger()).size());
+    assertEquals(1, snapshot.fork().getNumSourcesPerPublisher(APP, EventSurfaceType.APP));
+    assertEquals(1, snapshot.fork().getMatchingActiveSources(trigger()).size());
+    assertEquals(1, dao.getNumSourcesPerPublisher(APP, EventSurfaceType.APP));
+  }
+
+  private static Source source() {
+    return source("source");
+  }
+
+  private static Source source(String id) {
+    return SourceFixture.getValidSourceBuilder()
+        .setId(id)
+        .setEnrollmentId("enrollment")
+        .setPublisher(APP)
+        .setAppDestinations(List.of(APP))
+        .setEventTime(DAY)
+        .setExpiryTime(10 * DAY)
+        .setStatus(Source.Status.ACTIVE)
+        .build();
+  }
+
+  private static Trigger trigger() {
+    return TriggerFixture.getValidTriggerBuilder()
+        .setId("trigger")
+        .setEnrollmentId("enrollment")
+        .setAttributionDestination(APP)
+        .setDestinationType(EventSurfaceType.APP)
+        .setTriggerTime(2 * DAY)
+        .build();
+  }
+}
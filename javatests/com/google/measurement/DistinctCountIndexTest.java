@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.List;
+import org.junit.Test;
+
+public class DistinctCountIndexTest {
+  private static final URI PUBLISHER = URI.create("https://example.test");
+  private static final URI SUBDOMAIN_PUBLISHER = URI.create("https://news.example.test");
+  private static final URI APP_ONE = URI.create("android-app://com.example.one");
+  private static final URI APP_TWO = URI.create("android-app://com.example.two");
+
+  @Test
+  public void countDistinctDestinations_followsStatusAndWindow() {
+    DistinctCountIndex index = new DistinctCountIndex();
+    Source first = source("first", PUBLISHER, "enrollment", APP_ONE, 10);
+    Source second = source("second", SUBDOMAIN_PUBLISHER, "enrollment", APP_TWO, 20);
+    index.addSource(first);
+    index.addSource(second);
+
+    assertEquals(2, countDestinations(index, List.of(), 0, 30));
+    assertEquals(1, countDestinations(index, List.of(APP_TWO), 0, 30));
+    assertEquals(1, countDestinations(index, List.of(), 10, 30));
+    assertEquals(0, countDestinations(index, List.of(), 0, 100));
+
+    second.setStatus(Source.Status.IGNORED);
+    index.updateStatus(second);
+    assertEquals(1, countDestinations(index, List.of(), 0, 30));
+
+    second.setStatus(Source.Status.ACTIVE);
+    index.updateStatus(second);
+    index.removeSource(first);
+    assertEquals(1, countDestinations(index, List.of(), 0, 30));
+  }
+
+  @Test
+  public void countDistinctEnrollments_countsEachSourceOccurrence() {
+    DistinctCountIndex index = new DistinctCountIndex();
+    Source source = source("source", PUBLISHER, "first", APP_ONE, 10);
+    index.addSource(source);
+    index.addSource(source);
+    index.addSource(source("other", PUBLISHER, "second", APP_ONE, 10));
+
+    assertEquals(2, countEnrollments(index, null));
+    assertEquals(1, countEnrollments(index, "second"));
+
+    index.removeSource(source);
+    assertEquals(2, countEnrollments(index, null));
+    index.removeSource(source);
+    assertEquals(1, countEnrollments(index, null));
+  }
+
+  @Test
+  public void countDistinctDebugAdIds_sharesReferenceCountsWithTriggers() {
+    DistinctCountIndex index = new DistinctCountIndex();
+    Source source =
+        SourceFixture.getValidSourceBuilder()
+            .setPublisherType(EventSurfaceType.WEB)
+            .setEnrollmentId("enrollment")
+            .setDebugAdId("ad-id")
+            .build();
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setDestinationType(EventSurfaceType.WEB)
+            .setEnrollmentId("enrollment")
+            .setDebugAdId("ad-id")
+            .build();
+    index.addSource(source);
+    index.addTrigger(trigger);
+    assertEquals(1, index.countDistinctDebugAdIds("enrollment"));
+
+    index.removeSource(source);
+    assertEquals(1, index.countDistinctDebugAdIds("enrollment"));
+    index.removeTrigger(trigger);
+    assertEquals(0, index.countDistinctDebugAdIds("enrollment"));
+  }
+
+  private static int countDestinations(
+      DistinctCountIndex index, List<URI> excluded, long windowStart, long windowEnd) {
+    return index.countDistinctDestinationsInActiveSources(
+        PUBLISHER,
+        EventSurfaceType.WEB,
+        "enrollment",
+        excluded,
+        EventSurfaceType.APP,
+        windowStart,
+        windowEnd);
+  }
+
+  private static int countEnrollments(DistinctCountIndex index, String excludedEnrollmentId) {
+    return index.countDistinctEnrollmentsInSources(
+        PUBLISHER, EventSurfaceType.WEB, List.of(APP_ONE), excludedEnrollmentId, 0, 30);
+  }
+
+  private static Source source(
+      String id, URI publisher, String enrollmentId, URI destination, long eventTime) {
+    return SourceFixture.getValidSourceBuilder()
+        .setId(id)
+        .setPublisher(publisher)
+        .setPublisherType(EventSurfaceType.WEB)
+        .setEnrollmentId(enrollmentId)
+        .setAppDestinations(List.of(destination))
+        .setWebDestinations(null)
+        .setEventTime(eventTime)
+        .setExpiryTime(eventTime + 50)
+        .setStatus(Source.Status.ACTIVE)
+        .build();
+  }
+}
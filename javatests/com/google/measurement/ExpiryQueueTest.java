@@ -0,0 +1,50 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import org.junit.Test;
+
+public class ExpiryQueueTest {
+
+  @Test
+  public void pollBefore_returnsEarlierRecordsInTimeThenInsertionOrder() {
+    ExpiryQueue<String> queue = new ExpiryQueue<>();
+    queue.add("c", 30L);
+    queue.add("a", 10L);
+    queue.add("b1", 20L);
+    queue.add("b2", 20L);
+    assertEquals(List.of(), queue.pollBefore(10L));
+    assertEquals(List.of("a", "b1", "b2"), queue.pollBefore(30L));
+    assertEquals(1, queue.size());
+    assertEquals(List.of(), queue.pollBefore(30L));
+    assertEquals(List.of("c"), queue.pollBefore(Long.MAX_VALUE));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void pollBefore_earlierTimeAfterLaterTime_returnsNothing() {
+    ExpiryQueue<String> queue = new ExpiryQueue<>();
+    queue.add("a", 10L);
+    queue.add("b", 20L);
+    assertEquals(List.of("a"), queue.pollBefore(15L));
+    assertEquals(List.of(), queue.pollBefore(5L));
+    assertEquals(1, queue.size());
+  }
+}
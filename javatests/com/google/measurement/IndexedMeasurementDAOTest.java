@@ -0,0 +1,341 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the same records and deletions through {@link MeasurementDAO} and {@link
+ * IndexedMeasurementDAO} and checks that both end up with the same records.
+ */
+public class IndexedMeasurementDAOTest {
+  private static final List<URI> APPS =
+      List.of(
+          URI.create("android-app://com.example.one"),
+          URI.create("android-app://com.example.two"),
+          URI.create("android-app://com.example.three"));
+  private static final URI WEB_SITE = WebUtil.validUri("https://example.test");
+  private static final List<URI> WEB_PUBLISHERS =
+      List.of(WEB_SITE, WebUtil.validUri("https://news.example.test"));
+  private static final List<String> ENROLLMENTS = List.of("enrollment-1", "enrollment-2");
+  private static final long DAY = 86_400_000L;
+
+  private DatastoreManager mReferenceDatastore;
+  private MeasurementDAO mReferenceDao;
+  private IndexedDatastoreManager mIndexedDatastore;
+  private IndexedMeasurementDAO mIndexedDao;
+  private int mInitialEventReportCount;
+
+  @Before
+  public void before() {
+    mReferenceDatastore = new DatastoreManager();
+    mReferenceDao = new MeasurementDAO(mReferenceDatastore);
+    mIndexedDatastore = new IndexedDatastoreManager();
+    mIndexedDao = new IndexedMeasurementDAO(mIndexedDatastore);
+    insertRecords(new Random(42L));
+    mInitialEventReportCount = mReferenceDatastore.getEventReports().size();
+  }
+
+  @After
+  public void after() {
+    // Guards against deletions that match nothing, which would trivially agree.
+    assertTrue(mReferenceDatastore.getEventReports().size() < mInitialEventReportCount);
+  }
+
+  @Test
+  public void deleteAppRecords_matchesReference() {
+    for (URI app : APPS) {
+      apply(dao -> dao.deleteAppRecords(app.toString()));
+    }
+  }
+
+  @Test
+  public void deleteMeasurementDataByRegistrant_matchesReference() {
+    apply(dao -> dao.deleteMeasurementData(APPS.get(0).toString(), null, null, null));
+    apply(dao -> dao.deleteMeasurementData(APPS.get(1).toString(), null, null, null));
+  }
+
+  @Test
+  public void deleteMeasurementDataByRegistrantAndUri_matchesReference() {
+    for (URI origin : List.of(APPS.get(1), APPS.get(2), WEB_SITE)) {
+      apply(
+          dao -> dao.deleteMeasurementData(APPS.get(0).toString(), origin.toString(), null, null));
+    }
+  }
+
+  @Test
+  public void deleteMeasurementDataByRegistrantAndTimeRange_matchesReference() {
+    Instant start = Instant.ofEpochMilli(3 * DAY);
+    Instant end = Instant.ofEpochMilli(6 * DAY);
+    apply(dao -> dao.deleteMeasurementData(APPS.get(0).toString(), null, start, end));
+    apply(dao -> dao.deleteMeasurementData(APPS.get(2).toString(), null, end, end));
+  }
+
+  @Test
+  public void deleteMeasurementDataByAllVars_matchesReference() {
+    Instant start = Instant.ofEpochMilli(2 * DAY);
+    Instant end = Instant.ofEpochMilli(8 * DAY);
+    for (URI origin : APPS) {
+      apply(
+          dao -> dao.deleteMeasurementData(APPS.get(1).toString(), origin.toString(), start, end));
+    }
+  }
+
+  @Test
+  public void deleteExpiredRecords_matchesReference() {
+    // The expiry queues are built on the first deletion of expired records, so they do not hold
+    // the app records deleted before it.
+    apply(dao -> dao.deleteAppRecords(APPS.get(0).toString()));
+    for (long day = 30; day <= 70; day += 5) {
+      long currentTime = day * DAY;
+      List<EventReport> expected = mReferenceDao.deleteExpiredRecords(currentTime);
+      assertSameRecords(expected, mIndexedDao.deleteExpiredRecords(currentTime));
+      assertSameState();
+    }
+  }
+
+  @Test
+  public void deleteExpiredRecords_afterDeletingMostRecords_matchesReference() {
+    // Builds the expiry queues, then deletes enough records by other means to rebuild them.
+    apply(dao -> dao.deleteExpiredRecords(0L));
+    apply(dao -> dao.deleteAppRecords(APPS.get(0).toString()));
+    apply(dao -> dao.deleteAppRecords(APPS.get(1).toString()));
+    for (long day = 30; day <= 70; day += 5) {
+      long currentTime = day * DAY;
+      List<EventReport> expected = mReferenceDao.deleteExpiredRecords(currentTime);
+      assertSameRecords(expected, mIndexedDao.deleteExpiredRecords(currentTime));
+      assertSameState();
+    }
+  }
+
+  @Test
+  public void updateSourceStatus_matchesReference() {
+    List<Source> ignored =
+        mReferenceDatastore.getSources().stream()
+            .filter(s -> s.getId().hashCode() % 3 == 0)
+            .collect(Collectors.toList());
+    apply(dao -> dao.updateSourceStatus(ignored, Source.Status.IGNORED));
+    apply(dao -> dao.deleteAppRecords(APPS.get(1).toString()));
+  }
+
+  private void insertRecords(Random random) {
+    List<Source> sources = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      long eventTime = random.nextInt(10) * DAY;
+      boolean webPublisher = i % 4 == 0;
+      Source source =
+          SourceFixture.getValidSourceBuilder()
+              .setId("source-" + i)
+              .setEnrollmentId(pick(random, ENROLLMENTS))
+              .setEventTime(eventTime)
+              .setExpiryTime(eventTime + (1 + random.nextInt(5)) * DAY)
+              .setPublisher(webPublisher ? pick(random, WEB_PUBLISHERS) : pick(random, APPS))
+              .setPublisherType(webPublisher ? EventSurfaceType.WEB : EventSurfaceType.APP)
+              .setDebugAdId(webPublisher ? "ad-id-" + random.nextInt(3) : null)
+              .setRegistrant(pick(random, APPS))
+              .setAppDestinations(List.of(pick(random, APPS)))
+              .setWebDestinations(List.of(WEB_SITE))
+              .setStatus(random.nextBoolean() ? Source.Status.ACTIVE : Source.Status.IGNORED)
+              .build();
+      sources.add(source);
+      onBoth(dao -> dao.insertSource(source));
+    }
+    for (int i = 0; i < 120; i++) {
+      EventReport report =
+          EventReportFixture.getBaseEventReportBuild()
+              .setId("report-" + i)
+              // Some reports point to sources that are not stored.
+              .setSourceId("source-" + random.nextInt(70))
+              .setAttributionDestinations(List.of(pick(random, APPS)))
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setReportTime(random.nextInt(40) * DAY)
+              .build();
+      onBoth(dao -> dao.insertEventReport(report));
+      if (i % 10 == 0) {
+        // Flexible event reports store the same report more than once.
+        onBoth(dao -> dao.insertEventReport(report));
+      }
+    }
+    for (int i = 0; i < 40; i++) {
+      Trigger trigger =
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("trigger-" + i)
+              .setEnrollmentId(pick(random, ENROLLMENTS))
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setAttributionDestination(pick(random, APPS))
+              .setRegistrant(pick(random, APPS))
+              .build();
+      onBoth(dao -> dao.insertTrigger(trigger));
+    }
+    for (int i = 0; i < 40; i++) {
+      Attribution attribution =
+          new Attribution.Builder()
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setSourceSite(pick(random, APPS).toString())
+              .setSourceOrigin(APPS.get(0).toString())
+              .setDestinationSite(pick(random, APPS).toString())
+              .setDestinationOrigin(APPS.get(0).toString())
+              .setEnrollmentId("enrollment-id")
+              .setRegistrant(pick(random, APPS).toString())
+              .setSourceId(pick(random, sources).getId())
+              .build();
+      onBoth(dao -> dao.insertAttribution(attribution));
+    }
+  }
+
+  private void onBoth(Consumer<IMeasurementDAO> operation) {
+    operation.accept(mReferenceDao);
+    operation.accept(mIndexedDao);
+  }
+
+  private void apply(Consumer<IMeasurementDAO> deletion) {
+    onBoth(deletion);
+    assertSameState();
+  }
+
+  private void assertSameState() {
+    assertSameRecords(mReferenceDatastore.getSources(), mIndexedDatastore.getSources());
+    assertSameRecords(mReferenceDatastore.getTriggers(), mIndexedDatastore.getTriggers());
+    assertSameRecords(mReferenceDatastore.getEventReports(), mIndexedDatastore.getEventReports());
+    assertSameRecords(mReferenceDatastore.getAttributions(), mIndexedDatastore.getAttributions());
+    assertEquals(
+        ids(mReferenceDatastore.getSources(), Source::getId),
+        ids(mIndexedDatastore.getSources(), Source::getId));
+    assertEquals(
+        ids(mReferenceDatastore.getEventReports(), EventReport::getId),
+        ids(mIndexedDatastore.getEventReports(), EventReport::getId));
+    assertIndexesMatchRecords();
+    assertDistinctCountsMatchReference();
+    for (Trigger trigger : mReferenceDatastore.getTriggers()) {
+      // The indexed sources come ordered by event time, which the attribution ranking then sorts
+      // by; sources with equal event times must keep their relative order.
+      assertSameRecords(
+          mReferenceDao.getMatchingActiveSources(trigger).stream()
+              .sorted(Comparator.comparingLong(Source::getEventTime))
+              .collect(Collectors.toList()),
+          mIndexedDao.getMatchingActiveSources(trigger));
+    }
+  }
+
+  private void assertDistinctCountsMatchReference() {
+    List<URI> publishers = new ArrayList<>(APPS);
+    publishers.addAll(WEB_PUBLISHERS);
+    for (URI publisher : publishers) {
+      EventSurfaceType publisherType =
+          publisher.getScheme().equals("https") ? EventSurfaceType.WEB : EventSurfaceType.APP;
+      for (String enrollmentId : ENROLLMENTS) {
+        for (long windowEnd = 0; windowEnd <= 10 * DAY; windowEnd += 2 * DAY) {
+          long windowStart = windowEnd - 5 * DAY;
+          for (EventSurfaceType destinationType : EventSurfaceType.values()) {
+            for (List<URI> excluded : List.of(List.<URI>of(), List.of(APPS.get(0), WEB_SITE))) {
+              assertEquals(
+                  mReferenceDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+                      publisher,
+                      publisherType,
+                      enrollmentId,
+                      excluded,
+                      destinationType,
+                      windowStart,
+                      windowEnd),
+                  mIndexedDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+                      publisher,
+                      publisherType,
+                      enrollmentId,
+                      excluded,
+                      destinationType,
+                      windowStart,
+                      windowEnd));
+            }
+          }
+          for (List<URI> destinations : List.of(APPS, List.of(WEB_SITE), List.of(APPS.get(1)))) {
+            assertEquals(
+                mReferenceDao.countDistinctEnrollmentsPerPublisherXDestinationInSource(
+                    publisher, publisherType, destinations, enrollmentId, windowStart, windowEnd),
+                mIndexedDao.countDistinctEnrollmentsPerPublisherXDestinationInSource(
+                    publisher, publisherType, destinations, enrollmentId, windowStart, windowEnd));
+          }
+        }
+      }
+    }
+    for (String enrollmentId : ENROLLMENTS) {
+      assertEquals(
+          mReferenceDao.countDistinctDebugAdIdsUsedByEnrollment(enrollmentId),
+          mIndexedDao.countDistinctDebugAdIdsUsedByEnrollment(enrollmentId));
+    }
+  }
+
+  // The indexes used by the deletions must only hold the records that are still stored.
+  private void assertIndexesMatchRecords() {
+    for (URI app : APPS) {
+      String uri = app.toString();
+      assertSameRecords(
+          mIndexedDatastore.getSources().stream()
+              .filter(s -> s.getRegistrant().toString().equals(uri))
+              .collect(Collectors.toList()),
+          mIndexedDatastore.getSourcesByRegistrant(uri));
+      assertSameRecords(
+          mIndexedDatastore.getTriggers().stream()
+              .filter(t -> t.getRegistrant().toString().equals(uri))
+              .collect(Collectors.toList()),
+          mIndexedDatastore.getTriggersByRegistrant(uri));
+      assertSameRecords(
+          mIndexedDatastore.getEventReports().stream()
+              .filter(e -> e.getAttributionDestinations().get(0).toString().equals(uri))
+              .collect(Collectors.toList()),
+          mIndexedDatastore.getEventReportsByFirstDestination(uri));
+      assertSameRecords(
+          mIndexedDatastore.getAttributions().stream()
+              .filter(a -> a.getRegistrant().equals(uri))
+              .collect(Collectors.toList()),
+          mIndexedDatastore.getAttributionsByRegistrant(uri));
+    }
+    for (Source source : mIndexedDatastore.getSources()) {
+      assertSameRecords(
+          mIndexedDatastore.getEventReports().stream()
+              .filter(e -> e.getSourceId().equals(source.getId()))
+              .collect(Collectors.toList()),
+          mIndexedDao.getSourceEventReports(source));
+    }
+  }
+
+  private static <T> List<String> ids(Collection<T> records, Function<T, String> getId) {
+    return records.stream().map(getId).collect(Collectors.toList());
+  }
+
+  private static <T> void assertSameRecords(Collection<T> expected, Collection<T> actual) {
+    assertEquals(new ArrayList<>(expected), new ArrayList<>(actual));
+  }
+
+  private static <T> T pick(Random random, List<T> values) {
+    return values.get(random.nextInt(values.size()));
+  }
+}
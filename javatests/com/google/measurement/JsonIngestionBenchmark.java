@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import com.google.measurement.util.JsonPullParser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares parsing the attribution source and trigger input lines under {@code testdata} with a new
+ * json-simple {@link JSONParser} per line, as the input DoFns used to, and with one reused {@link
+ * JsonPullParser}, both with and without building the {@link Source} and {@link Trigger}.
+ *
+ * <p>Run with {@code bazel run //:JsonIngestionBenchmark} from the workspace root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonIngestionBenchmark {
+  @Param({"1000", "10000"})
+  public int mLineCount;
+
+  private final List<String> mSourceLines = new ArrayList<>();
+  private final List<String> mTriggerLines = new ArrayList<>();
+  private final JsonPullParser mPullParser = new JsonPullParser();
+
+  @Setup
+  public void setup() throws IOException {
+    List<String> sources = readLines("attribution_source.json");
+    List<String> triggers = readLines("trigger.json");
+    for (int i = 0; i < mLineCount; i++) {
+      mSourceLines.add(sources.get(i % sources.size()));
+      mTriggerLines.add(triggers.get(i % triggers.size()));
+    }
+  }
+
+  @Benchmark
+  public void parseWithJsonSimple(Blackhole blackhole) throws ParseException {
+    for (String line : mSourceLines) {
+      blackhole.consume(new JSONParser().parse(line));
+    }
+    for (String line : mTriggerLines) {
+      blackhole.consume(new JSONParser().parse(line));
+    }
+  }
+
+  @Benchmark
+  public void parseWithPullParser(Blackhole blackhole) throws ParseException {
+    for (String line : mSourceLines) {
+      blackhole.consume(mPullParser.parseObject(line));
+    }
+    for (String line : mTriggerLines) {
+      blackhole.consume(mPullParser.parseObject(line));
+    }
+  }
+
+  @Benchmark
+  public void buildWithJsonSimple(Blackhole blackhole) throws Exception {
+    for (String line : mSourceLines) {
+      blackhole.consume(
+          SourceProcessor.buildSourceFromJson((JSONObject) new JSONParser().parse(line)));
+    }
+    for (String line : mTriggerLines) {
+      blackhole.consume(
+          TriggerProcessor.buildTriggerFromJson((JSONObject) new JSONParser().parse(line)));
+    }
+  }
+
+  @Benchmark
+  public void buildWithPullParser(Blackhole blackhole) throws Exception {
+    for (String line : mSourceLines) {
+      blackhole.consume(SourceProcessor.buildSourceFromJson(mPullParser.parseObject(line)));
+    }
+    for (String line : mTriggerLines) {
+      blackhole.consume(TriggerProcessor.buildTriggerFromJson(mPullParser.parseObject(line)));
+    }
+  }
+
+  private static List<String> readLines(String fileName) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(Path.of("testdata"))) {
+      for (Path file :
+          files.filter(f -> f.endsWith(fileName)).sorted().collect(Collectors.toList())) {
+        Files.readAllLines(file).stream().filter(line -> !line.isBlank()).forEach(lines::add);
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class KeySizeHistogramTest {
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  @Test
+  public void bucket_coversPowersOfTwo() {
+    assertEquals(0, KeySizeHistogram.bucket(0));
+    assertEquals(1, KeySizeHistogram.bucket(1));
+    assertEquals(2, KeySizeHistogram.bucket(2));
+    assertEquals(2, KeySizeHistogram.bucket(3));
+    assertEquals(11, KeySizeHistogram.bucket(1024));
+    assertEquals(63, KeySizeHistogram.bucket(Long.MAX_VALUE));
+    assertEquals("keys with [2, 4) records", KeySizeHistogram.bucketName(2));
+    assertEquals(
+        "keys with [4611686018427387904, 9223372036854775808) records",
+        KeySizeHistogram.bucketName(63));
+  }
+
+  @Test
+  public void report_aggregatesRecordedSizes() {
+    p.apply(Create.of(1L, 3L, 2L, 1000L)).apply(ParDo.of(new RecordSizeDoFn()));
+
+    PipelineResult result = p.run();
+    result.waitUntilFinish();
+
+    assertEquals(
+        String.format(
+            "Records per user and API platform:%n"
+                + "  keys with [1, 2) records: 1%n"
+                + "  keys with [2, 4) records: 2%n"
+                + "  keys with [512, 1024) records: 1%n"
+                + "  4 keys, 251.5 records per key on average, 1000 at most%n"),
+        KeySizeHistogram.report(result.metrics()));
+  }
+
+  private static class RecordSizeDoFn extends DoFn<Long, Void> {
+    private transient KeySizeHistogram mHistogram;
+
+    @Setup
+    public void setup() {
+      mHistogram = new KeySizeHistogram();
+    }
+
+    @ProcessElement
+    public void processElement(@Element Long size) {
+      mHistogram.record(size);
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.measurement.aggregation.AggregationArgs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.values.PCollection;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalSimulationEngineTest {
+  private static final Pattern SHARD_NAME = Pattern.compile("(.*)-\\d{5}-of-\\d{5}\\.json");
+  private static final Pattern CHECKPOINT_FILE_NAME =
+      Pattern.compile("generation-\\d{5}/(checkpoint-\\d{5}-of-\\d{5}\\.avro|_COMMITTED)");
+  private static final Pattern ROW =
+      Pattern.compile("\\{\"user_id\":\"([^\"]*)\",\"report\":(.*)}");
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void run_writesTheReportsOfThePipeline() throws Exception {
+    Path pipelineOutput = tempFolder.newFolder("beam").toPath();
+    Path localOutput = tempFolder.newFolder("local").toPath();
+    new ReportCollectingRunner().run(args("beam", pipelineOutput));
+    ReportCollectingRunner localRunner = new ReportCollectingRunner();
+    localRunner.run(args("local", localOutput));
+
+    Map<Path, List<String>> pipelineReports = readReports(pipelineOutput);
+    assertFalse(pipelineReports.isEmpty());
+    assertEquals(pipelineReports, readReports(localOutput));
+    assertEquals(1, localRunner.mAggregatableReports.size());
+  }
+
+  @Test
+  public void run_withCheckpoints_continuesFromThePreviousRun() throws Exception {
+    ReportCollectingRunner fullRunner = new ReportCollectingRunner();
+    ReportCollectingRunner incrementalRunner = new ReportCollectingRunner();
+
+    assertIncrementalRunsMatchFullRun("local", fullRunner, incrementalRunner);
+
+    assertEquals(
+        fullRunner.mAggregatableReports.size(), incrementalRunner.mAggregatableReports.size());
+  }
+
+  @Test
+  public void runPipeline_withCheckpoints_continuesFromThePreviousRun() throws Exception {
+    assertIncrementalRunsMatchFullRun(
+        "beam", new ReportCollectingRunner(), new ReportCollectingRunner());
+  }
+
+  @Test
+  public void run_withScenarios_simulatesEveryScenarioInOneRun() throws Exception {
+    Path singleOutput = tempFolder.newFolder("single").toPath();
+    new ReportCollectingRunner().run(args("local", singleOutput));
+    Path scenarioDirectory = tempFolder.newFolder("scenarios").toPath();
+    Files.createDirectory(scenarioDirectory.resolve("baseline"));
+    Path noisy = Files.createDirectory(scenarioDirectory.resolve("noisy"));
+    Files.writeString(
+        noisy.resolve(SimulationScenario.PRIVACY_PARAMS_FILE),
+        Files.readString(Path.of("config/PrivacyParams.properties"))
+            .replaceAll("(?m)NoiseProbability = .*$", "NoiseProbability = 1.0D"));
+    Files.writeString(
+        noisy.resolve(SimulationScenario.AGGREGATION_ARGS_FILE),
+        Files.readString(Path.of("config/AggregationArgs.properties"))
+            .replaceAll("(?m)^epsilon = .*$", "epsilon = 10"));
+    Path sweepOutput = tempFolder.newFolder("sweep").toPath();
+    ReportCollectingRunner sweepRunner = new ReportCollectingRunner();
+
+    sweepRunner.run(with(args("local", sweepOutput), "--scenarioDirectory=" + scenarioDirectory));
+
+    Map<Path, List<String>> singleReports = readReports(singleOutput);
+    Map<Path, List<String>> baselineReports = new TreeMap<>();
+    Map<Path, List<String>> noisyReports = new TreeMap<>();
+    readReports(sweepOutput)
+        .forEach(
+            (file, lines) -> {
+              // <api choice>/<scenario>/<userId>/<report file>
+              Path reportFile = file.getName(0).resolve(file.subpath(2, file.getNameCount()));
+              String scenario = file.getName(1).toString();
+              (scenario.equals("baseline") ? baselineReports : noisyReports).put(reportFile, lines);
+            });
+    assertEquals(singleReports, baselineReports);
+    assertFalse(noisyReports.isEmpty());
+    assertFalse(singleReports.equals(noisyReports));
+    assertEquals(
+        Map.of(
+            sweepOutput.resolve("baseline").toString(), 5,
+            sweepOutput.resolve("noisy").toString(), 10),
+        sweepRunner.mEpsilons);
+  }
+
+  @Test
+  public void run_withUserSample_simulatesOnlyTheSampledUsers() throws Exception {
+    Path fullOutput = tempFolder.newFolder("full").toPath();
+    new ReportCollectingRunner().run(args("local", fullOutput));
+    // Seed 1 keeps U2 and drops U1 at this rate.
+    Path pipelineOutput = tempFolder.newFolder("beam").toPath();
+    Path localOutput = tempFolder.newFolder("local").toPath();
+    new ReportCollectingRunner()
+        .run(with(args("beam", pipelineOutput), "--userSampleRate=0.5", "--userSampleSeed=1"));
+    new ReportCollectingRunner()
+        .run(with(args("local", localOutput), "--userSampleRate=0.5", "--userSampleSeed=1"));
+
+    Map<Path, List<String>> sampledReports = new TreeMap<>(readReports(fullOutput));
+    sampledReports.keySet().removeIf(file -> file.getName(1).toString().equals("U1"));
+    assertFalse(sampledReports.isEmpty());
+    assertEquals(sampledReports, readReports(pipelineOutput));
+    assertEquals(sampledReports, readReports(localOutput));
+    JSONObject metadata =
+        (JSONObject)
+            new JSONParser()
+                .parse(Files.readString(localOutput.resolve(SimulationRunner.METADATA_FILE)));
+    assertEquals(0.5, metadata.get("user_sample_rate"));
+    assertEquals(1L, metadata.get("user_sample_seed"));
+    assertFalse(Files.exists(fullOutput.resolve(SimulationRunner.METADATA_FILE)));
+  }
+
+  @Test
+  public void run_withPerUserLayout_writesTheSameReportsPerUser() throws Exception {
+    Path shardedOutput = tempFolder.newFolder("sharded").toPath();
+    Path perUserOutput = tempFolder.newFolder("perUser").toPath();
+    new ReportCollectingRunner().run(args("local", shardedOutput));
+    new ReportCollectingRunner()
+        .run(
+            with(
+                args("local", perUserOutput),
+                "--reportLayout=" + ShardedReportFiles.PER_USER_LAYOUT));
+
+    assertTrue(Files.exists(perUserOutput.resolve("OS/U1/event_reports.json")));
+    assertEquals(readReports(shardedOutput), readReports(perUserOutput));
+  }
+
+  @Test
+  public void keySizeReport_countsSimulatedKeys() throws Exception {
+    SimulationConfig options =
+        PipelineOptionsFactory.fromArgs(args("local", tempFolder.newFolder().toPath()))
+            .as(SimulationConfig.class);
+    options.setLocalSpillBuckets(3);
+    options.setLocalParallelism(2);
+    LocalSimulationEngine engine = new LocalSimulationEngine(options);
+
+    engine.run();
+
+    assertTrue(
+        engine.keySizeReport(),
+        engine.keySizeReport().contains("4 keys, 5.5 records per key on average, 11 at most"));
+  }
+
+  @Test
+  public void constructor_rejectsInvalidOptions() {
+    SimulationConfig options = PipelineOptionsFactory.create().as(SimulationConfig.class);
+    options.setLocalSpillBuckets(0);
+    assertThrows(IllegalArgumentException.class, () -> new LocalSimulationEngine(options));
+    options.setLocalSpillBuckets(1);
+    options.setLocalParallelism(-1);
+    assertThrows(IllegalArgumentException.class, () -> new LocalSimulationEngine(options));
+    options.setLocalParallelism(0);
+    options.setUserSampleRate(0);
+    assertThrows(IllegalArgumentException.class, () -> new LocalSimulationEngine(options));
+  }
+
+  // Runs the same input in one run and in two checkpointed runs: every source and the triggers up
+  // to 2022-01-19, then the rest.
+  private void assertIncrementalRunsMatchFullRun(
+      String engine, SimulationRunner fullRunner, SimulationRunner incrementalRunner)
+      throws Exception {
+    Path fullOutput = tempFolder.newFolder("full").toPath();
+    fullRunner.run(args(engine, fullOutput));
+    Path checkpointDirectory = tempFolder.newFolder("checkpoints").toPath();
+    Path firstOutput = tempFolder.newFolder("first").toPath();
+    Path secondOutput = tempFolder.newFolder("second").toPath();
+
+    incrementalRunner.run(
+        withCheckpoints(
+            args(engine, firstOutput, "2022-01-15", "2022-01-16", "2022-01-15", "2022-01-19"),
+            checkpointDirectory));
+    incrementalRunner.run(
+        withCheckpoints(
+            args(engine, secondOutput, "2022-01-20", "2022-01-20", "2022-01-20", "2022-02-06"),
+            checkpointDirectory));
+
+    Map<Path, List<String>> incrementalReports = readReports(firstOutput);
+    readReports(secondOutput)
+        .forEach(
+            (file, lines) ->
+                incrementalReports.merge(
+                    file,
+                    lines,
+                    (first, second) ->
+                        Stream.concat(first.stream(), second.stream())
+                            .sorted()
+                            .collect(Collectors.toList())));
+    assertFalse(readReports(secondOutput).isEmpty());
+    assertEquals(readReports(fullOutput), incrementalReports);
+    // Each run wrote a generation of sharded checkpoint files, and the second one deleted the first
+    // once it had written its own.
+    try (Stream<Path> files = Files.walk(checkpointDirectory)) {
+      List<Path> checkpointFiles =
+          files
+              .filter(Files::isRegularFile)
+              .map(checkpointDirectory::relativize)
+              .collect(Collectors.toList());
+      assertFalse(checkpointFiles.isEmpty());
+      for (Path file : checkpointFiles) {
+        assertTrue(file.toString(), CHECKPOINT_FILE_NAME.matcher(file.toString()).matches());
+      }
+      assertEquals(
+          List.of("generation-00001"),
+          checkpointFiles.stream()
+              .map(file -> file.getName(0).toString())
+              .distinct()
+              .sorted()
+              .collect(Collectors.toList()));
+    }
+  }
+
+  private static String[] args(String engine, Path outputDirectory) {
+    return args(engine, outputDirectory, "2022-01-15", "2022-01-16", "2022-01-15", "2022-02-06");
+  }
+
+  private static String[] args(
+      String engine,
+      Path outputDirectory,
+      String sourceStartDate,
+      String sourceEndDate,
+      String triggerStartDate,
+      String triggerEndDate) {
+    return new String[] {
+      "--engine=" + engine,
+      "--sourceStartDate=" + sourceStartDate,
+      "--sourceEndDate=" + sourceEndDate,
+      "--triggerStartDate=" + triggerStartDate,
+      "--triggerEndDate=" + triggerEndDate,
+      "--inputDirectory=testdata/",
+      "--outputDirectory=" + outputDirectory
+    };
+  }
+
+  private static String[] withCheckpoints(String[] args, Path checkpointDirectory) {
+    return with(args, "--checkpointDirectory=" + checkpointDirectory);
+  }
+
+  private static String[] with(String[] args, String... moreArgs) {
+    String[] withMoreArgs = Arrays.copyOf(args, args.length + moreArgs.length);
+    System.arraycopy(moreArgs, 0, withMoreArgs, args.length, moreArgs.length);
+    return withMoreArgs;
+  }
+
+  // Report files by path relative to the output directory, with their report ids, which are
+  // random, left out and their lines in order. The rows of sharded report files are listed under
+  // the path of the per-user file they would have been written to.
+  private static Map<Path, List<String>> readReports(Path outputDirectory) throws Exception {
+    Map<Path, List<String>> reports = new TreeMap<>();
+    try (Stream<Path> files = Files.walk(outputDirectory)) {
+      for (Path file :
+          files
+              .filter(Files::isRegularFile)
+              // Sampled runs also write their metadata.
+              .filter(file -> !file.endsWith(SimulationRunner.METADATA_FILE))
+              .collect(Collectors.toList())) {
+        Path relativeFile = outputDirectory.relativize(file);
+        Matcher shard = SHARD_NAME.matcher(file.getFileName().toString());
+        for (String line : Files.readAllLines(file)) {
+          Path reportFile = relativeFile;
+          String report = line;
+          if (shard.matches()) {
+            // Split as written rather than parsed, since debug reports are not all valid JSON.
+            Matcher row = ROW.matcher(line);
+            assertTrue(line, row.matches());
+            reportFile =
+                relativeFile.resolveSibling(Path.of(row.group(1), shard.group(1) + ".json"));
+            report = row.group(2);
+          }
+          reports
+              .computeIfAbsent(reportFile, f -> new ArrayList<>())
+              .add(report.replaceAll("\"report_id\":\"[^\"]*\"", ""));
+        }
+      }
+    }
+    reports.values().forEach(Collections::sort);
+    return reports;
+  }
+
+  // Skips the Aggregation service, which is the same for both engines.
+  private static class ReportCollectingRunner extends SimulationRunner {
+    private final List<JSONObject> mAggregatableReports = new ArrayList<>();
+    private final Map<String, Integer> mEpsilons = new TreeMap<>();
+
+    @Override
+    protected void generateAggregateReports(
+        PCollection<JSONObject> aggregatableReports, String outputDirectory) {}
+
+    @Override
+    protected void generateAggregateReports(
+        List<JSONObject> aggregatableReports, String outputDirectory) {
+      mAggregatableReports.addAll(aggregatableReports);
+    }
+
+    @Override
+    protected void generateAggregateReports(
+        List<JSONObject> aggregatableReports,
+        String outputDirectory,
+        AggregationArgs aggregationArgs) {
+      mEpsilons.put(outputDirectory, aggregationArgs.epsilon);
+    }
+  }
+}
@@ -36,13 +36,19 @@ import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.json.simple.parser.ParseException;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+@RunWith(Parameterized.class)
 public class MeasurementDAOTest {
   private static final URI APP_TWO_SOURCES = URI.create("android-app://com.example1.two-sources");
   private static final URI APP_ONE_SOURCE = URI.create("android-app://com.example2.one-source");
@@ -84,6 +90,21 @@ public class MeasurementDAOTest {
   private Flags mFlags;
   public static final URI REGISTRATION_ORIGIN_2 =
       WebUtil.validUri("https://subdomain_2.example.test");
+  private final Supplier<IMeasurementDAO> mDaoFactory;
+
+  // Every test runs against the list-backed reference DAO and the indexed DAO.
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> daoFactories() {
+    return Arrays.asList(
+        new Object[][] {
+          {"MeasurementDAO", (Supplier<IMeasurementDAO>) MeasurementDAO::new},
+          {"IndexedMeasurementDAO", (Supplier<IMeasurementDAO>) IndexedMeasurementDAO::new}
+        });
+  }
+
+  public MeasurementDAOTest(String name, Supplier<IMeasurementDAO> daoFactory) {
+    mDaoFactory = daoFactory;
+  }
 
   @Before
   public void before() {
@@ -93,7 +114,7 @@ public class MeasurementDAOTest {
   @Test
   public void testInsertTrigger() {
     Trigger validTrigger = TriggerFixture.getValidTrigger();
-    IMeasurementDAO dao = new MeasurementDAO();
+    IMeasurementDAO dao = mDaoFactory.get();
     dao.insertTrigger(validTrigger);
     Trigger trigger = dao.getTrigger(validTrigger.getId());
     assertNotNull(trigger);
@@ -113,7 +134,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testGetNumSourcesPerPublisher_publisherTypeApp() {
-    IMeasurementDAO dao = new MeasurementDAO();
+    IMeasurementDAO dao = mDaoFactory.get();
     setupSourceAndTriggerData(dao);
     assertEquals(2, dao.getNumSourcesPerPublisher(APP_TWO_PUBLISHER, EventSurfaceType.APP));
     assertEquals(1, dao.getNumSourcesPerPublisher(APP_ONE_PUBLISHER, EventSurfaceType.APP));
@@ -122,7 +143,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testGetNumSourcesPerPublisher_publisherTypeWeb() {
-    IMeasurementDAO dao = new MeasurementDAO();
+    IMeasurementDAO dao = mDaoFactory.get();
     setupSourceDataForPublisherTypeWeb(dao);
     assertEquals(1, dao.getNumSourcesPerPublisher(WEB_PUBLISHER_ONE, EventSurfaceType.WEB));
 
@@ -133,7 +154,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testCountDistinctEnrollmentsPerPublisherXDestinationInAttribution_atWindow() {
-    IMeasurementDAO measurementDAO = new MeasurementDAO();
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
     URI sourceSite = URI.create("android-app://publisher.app");
     URI appDestination = URI.create("android-app://destination.app");
     String registrant = "android-app://registrant.app";
@@ -152,7 +173,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testCountDistinctEnrollmentsPerPublisherXDestinationInAttribution_beyondWindow() {
-    IMeasurementDAO measurementDAO = new MeasurementDAO();
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
     URI sourceSite = URI.create("android-app://publisher.app");
     URI appDestination = URI.create("android-app://destination.app");
     String registrant = "android-app://registrant.app";
@@ -169,9 +190,117 @@ public class MeasurementDAOTest {
             sourceSite, appDestination, excludedEnrollmentId, 5000000000L, 6000000000L));
   }
 
+  @Test
+  public void testDeleteExpiredRecords_usesSimulatedTime() {
+    IMeasurementDAO measurementDao = mDaoFactory.get();
+    long currentTime = TimeUnit.DAYS.toMillis(100);
+    long expiredTime = currentTime - TimeUnit.DAYS.toMillis(31);
+    long validTime = currentTime - TimeUnit.DAYS.toMillis(29);
+    for (long time : List.of(expiredTime, validTime)) {
+      insertSource(
+          SourceFixture.getValidSourceBuilder()
+              .setId("source-" + time)
+              .setPublisher(APP_ONE_PUBLISHER)
+              .setEventTime(time)
+              .build(),
+          measurementDao);
+      measurementDao.insertTrigger(
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("trigger-" + time)
+              .setAttributionDestination(APP_ONE_DESTINATION)
+              .setTriggerTime(time)
+              .build());
+      measurementDao.insertEventReport(
+          EventReportFixture.getBaseEventReportBuild()
+              .setId("report-" + time)
+              .setAttributionDestinations(List.of(APP_ONE_DESTINATION))
+              .setReportTime(time)
+              .build());
+      insertAttribution(
+          createAttribution(
+              APP_ONE_PUBLISHER, APP_ONE_DESTINATION, "enrollment-" + time, time, "registrant"),
+          measurementDao);
+    }
+    measurementDao.insertEventReport(
+        EventReportFixture.getBaseEventReportBuild()
+            .setId("delivered-report")
+            .setAttributionDestinations(List.of(APP_ONE_DESTINATION))
+            .setReportTime(currentTime)
+            .setStatus(EventReport.Status.DELIVERED)
+            .build());
+
+    // Only the delivered report has expired as of the earlier simulated time.
+    assertEquals(
+        List.of("delivered-report"), reportIds(measurementDao.deleteExpiredRecords(expiredTime)));
+    assertEquals(
+        2, measurementDao.getNumSourcesPerPublisher(APP_ONE_PUBLISHER, EventSurfaceType.APP));
+
+    assertEquals(
+        List.of("report-" + expiredTime),
+        reportIds(measurementDao.deleteExpiredRecords(currentTime)));
+    assertEquals(
+        1, measurementDao.getNumSourcesPerPublisher(APP_ONE_PUBLISHER, EventSurfaceType.APP));
+    assertEquals(
+        1, measurementDao.getNumTriggersPerDestination(APP_ONE_DESTINATION, EventSurfaceType.APP));
+    assertEquals(
+        1,
+        measurementDao.getNumEventReportsPerDestination(APP_ONE_DESTINATION, EventSurfaceType.APP));
+    assertEquals(
+        Integer.valueOf(1),
+        measurementDao.countDistinctEnrollmentsPerPublisherXDestinationInAttribution(
+            APP_ONE_PUBLISHER, APP_ONE_DESTINATION, "other-enrollment", 0L, currentTime));
+    assertEquals(List.of("report-" + validTime), reportIds(measurementDao.getAllEventReports()));
+  }
+
+  private static List<String> reportIds(List<EventReport> eventReports) {
+    return eventReports.stream().map(EventReport::getId).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testGetAttributionsPerRateLimitWindow_countsWithinWindowAndAfterDeletion() {
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
+    URI sourceSite = URI.create("android-app://publisher.app");
+    URI appDestination = URI.create("android-app://destination.app");
+    String registrant = "android-app://registrant.app";
+    long triggerTime = PrivacyParams.RATE_LIMIT_WINDOW_MILLISECONDS + 1000L;
+    // One attribution on the window start boundary (excluded), two inside it, one after the
+    // trigger, and one for another enrollment.
+    for (long time :
+        new long[] {
+          triggerTime - PrivacyParams.RATE_LIMIT_WINDOW_MILLISECONDS,
+          triggerTime - 1,
+          triggerTime,
+          triggerTime + 1
+        }) {
+      insertAttribution(
+          createAttribution(sourceSite, appDestination, "enrollment-id-1", time, registrant),
+          measurementDAO);
+    }
+    insertAttribution(
+        createAttribution(sourceSite, appDestination, "enrollment-id-2", triggerTime, registrant),
+        measurementDAO);
+    Source source =
+        SourceFixture.getValidSourceBuilder()
+            .setPublisher(sourceSite)
+            .setPublisherType(EventSurfaceType.APP)
+            .build();
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setAttributionDestination(appDestination)
+            .setDestinationType(EventSurfaceType.APP)
+            .setEnrollmentId("enrollment-id-1")
+            .setTriggerTime(triggerTime)
+            .build();
+
+    assertEquals(2L, measurementDAO.getAttributionsPerRateLimitWindow(source, trigger));
+
+    measurementDAO.deleteAppRecords(appDestination.toString());
+    assertEquals(0L, measurementDAO.getAttributionsPerRateLimitWindow(source, trigger));
+  }
+
   @Test
   public void singleAppTrigger_triggersPerDestination_returnsOne() {
-    IMeasurementDAO measurementDAO = new MeasurementDAO();
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
     List<Trigger> triggerList = new ArrayList<>();
     triggerList.add(createAppTrigger(APP_ONE_DESTINATION, APP_ONE_DESTINATION));
     addTriggersToDatabase(triggerList, measurementDAO);
@@ -181,7 +310,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void multipleAppTriggers_similarUris_triggersPerDestination() {
-    IMeasurementDAO measurementDAO = new MeasurementDAO();
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
     List<Trigger> triggerList = new ArrayList<>();
     triggerList.add(createAppTrigger(APP_TWO_DESTINATION, APP_TWO_DESTINATION));
     triggerList.add(createAppTrigger(APP_TWO_DESTINATION, APP_TWO_DESTINATION));
@@ -192,7 +321,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void noAppTriggers_triggersPerDestination_returnsNone() {
-    IMeasurementDAO measurementDAO = new MeasurementDAO();
+    IMeasurementDAO measurementDAO = mDaoFactory.get();
     assertEquals(
         0L, measurementDAO.getNumTriggersPerDestination(APP_NO_TRIGGERS, EventSurfaceType.APP));
   }
@@ -203,7 +332,7 @@ public class MeasurementDAOTest {
     triggerList.add(createAppTrigger(APP_THREE_DESTINATION, APP_THREE_DESTINATION));
     triggerList.add(createAppTrigger(APP_THREE_DESTINATION, APP_THREE_DESTINATION_PATH1));
     triggerList.add(createAppTrigger(APP_THREE_DESTINATION, APP_THREE_DESTINATION_PATH2));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     assertEquals(
         3L,
@@ -227,7 +356,7 @@ public class MeasurementDAOTest {
   public void singleWebTrigger_triggersPerDestination_returnsOne() {
     List<Trigger> triggerList = new ArrayList<>();
     triggerList.add(createWebTrigger(WEB_ONE_DESTINATION));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     assertEquals(
         1L, measurementDao.getNumTriggersPerDestination(WEB_ONE_DESTINATION, EventSurfaceType.WEB));
@@ -239,7 +368,7 @@ public class MeasurementDAOTest {
     triggerList.add(createWebTrigger(WEB_ONE_DESTINATION));
     triggerList.add(createWebTrigger(WEB_ONE_DESTINATION_DIFFERENT_SUBDOMAIN));
     triggerList.add(createWebTrigger(WEB_ONE_DESTINATION_DIFFERENT_SUBDOMAIN_2));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     assertEquals(
         3L, measurementDao.getNumTriggersPerDestination(WEB_ONE_DESTINATION, EventSurfaceType.WEB));
@@ -274,7 +403,7 @@ public class MeasurementDAOTest {
     triggerList.add(createWebTrigger(webDestinationWithoutSubdomain));
     triggerList.add(createWebTrigger(webDestinationWithoutSubdomainPath1));
     triggerList.add(createWebTrigger(webDestinationWithoutSubdomainPath2));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     assertEquals(
         3L,
@@ -299,7 +428,7 @@ public class MeasurementDAOTest {
     List<Trigger> triggerList = new ArrayList<>();
     triggerList.add(createWebTrigger(WEB_TWO_DESTINATION));
     triggerList.add(createWebTrigger(WEB_TWO_DESTINATION_WITH_PATH));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     assertEquals(
         2L, measurementDao.getNumTriggersPerDestination(WEB_TWO_DESTINATION, EventSurfaceType.WEB));
@@ -309,11 +438,25 @@ public class MeasurementDAOTest {
             WEB_TWO_DESTINATION_WITH_PATH, EventSurfaceType.WEB));
   }
 
+  @Test
+  public void deletedAppTriggers_triggersPerDestination_excludesDeleted() {
+    List<Trigger> triggerList = new ArrayList<>();
+    triggerList.add(createAppTrigger(APP_TWO_DESTINATION, APP_THREE_DESTINATION));
+    triggerList.add(createAppTrigger(APP_THREE_DESTINATION, APP_THREE_DESTINATION_PATH1));
+    triggerList.add(createAppTrigger(APP_THREE_DESTINATION, APP_THREE_DESTINATION_PATH2));
+    IMeasurementDAO measurementDao = mDaoFactory.get();
+    addTriggersToDatabase(triggerList, measurementDao);
+    measurementDao.deleteAppRecords(APP_THREE_DESTINATION.toString());
+    assertEquals(
+        1L,
+        measurementDao.getNumTriggersPerDestination(APP_THREE_DESTINATION, EventSurfaceType.APP));
+  }
+
   @Test
   public void noMathingWebTriggers_triggersPerDestination_returnsZero() {
     List<Trigger> triggerList = new ArrayList<>();
     triggerList.add(createWebTrigger(WEB_ONE_DESTINATION));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     addTriggersToDatabase(triggerList, measurementDao);
     URI differentScheme = WebUtil.validUri("http://www.example1.test");
     assertEquals(
@@ -345,7 +488,7 @@ public class MeasurementDAOTest {
     List<Attribution> attributionsOutOfWindow =
         getAttributionsWithDifferentEnrollments(
             10, appDestination, 50000000000L, sourceSite, registrant);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Attribution attribution : attributionsWithAppDestinations1) {
       insertAttribution(attribution, measurementDao);
     }
@@ -383,7 +526,7 @@ public class MeasurementDAOTest {
     List<Attribution> attributionsOutOfWindow =
         getAttributionsWithDifferentEnrollments(
             10, webDestination, 50000000000L, sourceSite, registrant);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Attribution attribution : attributionsWithAppDestinations) {
       insertAttribution(attribution, measurementDao);
     }
@@ -416,7 +559,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.ACTIVE);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -456,7 +599,7 @@ public class MeasurementDAOTest {
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.ACTIVE,
             REGISTRATION_ORIGIN);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -488,7 +631,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.ACTIVE);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -553,7 +696,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -631,7 +774,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -708,7 +851,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -787,7 +930,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -866,7 +1009,7 @@ public class MeasurementDAOTest {
             publisher,
             SourceFixture.ValidSourceParams.ENROLLMENT_ID,
             Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     insertSource(activeSourceWithAppAndWebDestinations, measurementDao);
     for (Source source : activeSourcesWithAppDestinations) {
       insertSource(source, measurementDao);
@@ -904,7 +1047,7 @@ public class MeasurementDAOTest {
     List<Source> activeSourcesWithAppAndWebDestinations =
         getSourcesWithDifferentEnrollments(
             2, appDestinations, webDestinations, 4500000001L, publisher, Source.Status.ACTIVE);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -928,7 +1071,7 @@ public class MeasurementDAOTest {
     List<Source> activeSourcesWithAppAndWebDestinations =
         getSourcesWithDifferentEnrollments(
             2, appDestinations, webDestinations, 4500000000L, publisher, Source.Status.ACTIVE);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -961,7 +1104,7 @@ public class MeasurementDAOTest {
             6000000000L,
             publisher,
             Source.Status.ACTIVE);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -1000,7 +1143,7 @@ public class MeasurementDAOTest {
     List<Source> ignoredSources =
         getSourcesWithDifferentEnrollments(
             3, appDestinations, webDestinations, 5000000000L, publisher, Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -1048,7 +1191,7 @@ public class MeasurementDAOTest {
     List<Source> ignoredSources =
         getSourcesWithDifferentEnrollments(
             3, appDestinations, webDestinations, 5000000000L, publisher, Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -1101,7 +1244,7 @@ public class MeasurementDAOTest {
     List<Source> ignoredSources =
         getSourcesWithDifferentEnrollments(
             2, appDestinations, webDestinations1, 5000000000L, publisher, Source.Status.IGNORED);
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     for (Source source : activeSourcesWithAppAndWebDestinations) {
       insertSource(source, measurementDao);
     }
@@ -1154,7 +1297,7 @@ public class MeasurementDAOTest {
                 WebUtil.validUrl("https://subdomain.destination-4.test/abcd"), 8));
     List<AggregateReport> reportsWithAndroidAppDestination =
         Arrays.asList(generateMockAggregateReport("android-app://destination-5.app", 9));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     Stream.of(
             reportsWithPlainDestination,
             reportsWithPlainAndSubDomainDestination,
@@ -1210,7 +1353,7 @@ public class MeasurementDAOTest {
                 WebUtil.validUrl("https://subdomain.destination-4.test/abcd"), 8));
     List<EventReport> reportsWithAndroidAppDestination =
         Arrays.asList(generateMockEventReport("android-app://destination-5.app", 9));
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     Stream.of(
             reportsWithPlainDestination,
             reportsWithPlainAndSubDomainDestination,
@@ -1381,7 +1524,7 @@ public class MeasurementDAOTest {
             .setTriggerId("1001")
             .setRegistrationOrigin(REGISTRATION_ORIGIN)
             .build());
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     sourceList.forEach(source -> measurementDao.insertSource(source));
     triggers.forEach(trigger -> measurementDao.insertTrigger(trigger));
     Stream.of(reportList1, reportList2, reportList3)
@@ -1491,7 +1634,7 @@ public class MeasurementDAOTest {
             .setTriggerId("102")
             .setRegistrationOrigin(REGISTRATION_ORIGIN)
             .build());
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     sourceList.forEach(source -> measurementDao.insertSource(source));
     triggers.forEach(trigger -> measurementDao.insertTrigger(trigger));
     Stream.of(reportList1, reportList2, reportList3)
@@ -1504,7 +1647,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testGetMatchingActiveSources() {
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     String enrollmentId = "enrollment-id";
     URI appDestination = URI.create("android-app://com.example.abc");
     URI webDestination = WebUtil.validUri("https://example.test");
@@ -1684,7 +1827,7 @@ public class MeasurementDAOTest {
 
   @Test
   public void testGetMatchingActiveSources_multipleDestinations() {
-    IMeasurementDAO measurementDao = new MeasurementDAO();
+    IMeasurementDAO measurementDao = mDaoFactory.get();
     String enrollmentId = "enrollment-id";
     URI webDestination1 = WebUtil.validUri("https://example.test");
     URI webDestination1WithSubdomain = WebUtil.validUri("https://xyz.example.test");
@@ -1917,6 +2060,23 @@ public class MeasurementDAOTest {
     return attributions;
   }
 
+  private static Attribution createAttribution(
+      URI sourceSite,
+      URI destinationSite,
+      String enrollmentId,
+      long triggerTime,
+      String registrant) {
+    return new Attribution.Builder()
+        .setTriggerTime(triggerTime)
+        .setSourceSite(sourceSite.toString())
+        .setSourceOrigin(sourceSite.toString())
+        .setDestinationSite(destinationSite.toString())
+        .setDestinationOrigin(destinationSite.toString())
+        .setEnrollmentId(enrollmentId)
+        .setRegistrant(registrant)
+        .build();
+  }
+
   private static void insertAttribution(Attribution attribution, IMeasurementDAO dao) {
     dao.insertAttribution(attribution);
   }
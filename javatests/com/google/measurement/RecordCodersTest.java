@@ -0,0 +1,243 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.measurement.util.UnsignedLong;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.junit.Test;
+
+public class RecordCodersTest {
+
+  @Test
+  public void sourceCoder_roundTripsEveryField() throws Exception {
+    Source.Builder builder = fullSourceBuilder();
+    Source source = builder.build();
+    builder.setFlexEventReportSpec(
+        new ReportSpec(source.getTriggerSpecs(), source.getMaxEventLevelReports(), source));
+
+    Source decoded = roundTrip(SourceCoder.of(), source);
+
+    assertFieldsEqual(source, decoded);
+    assertEquals(source, decoded);
+  }
+
+  @Test
+  public void sourceCoder_restoresFlexEventReportSpec() throws Exception {
+    Source.Builder builder = fullSourceBuilder();
+    Source source = builder.build();
+    ReportSpec template = SourceFixture.getValidReportSpecValueSum();
+    builder.setFlexEventReportSpec(
+        new ReportSpec(
+            template.encodeTriggerSpecsToJson(),
+            template.getMaxReports(),
+            source,
+            template.encodePrivacyParametersToJSONString()));
+
+    Source decoded = roundTrip(SourceCoder.of(), source);
+
+    assertFieldsEqual(source, decoded);
+    // The spec still refers to the attributed triggers of its own source.
+    decoded.getAttributedTriggers().add(attributedTrigger("T3"));
+    assertEquals(3, decoded.getFlexEventReportSpec().getAttributedTriggers().size());
+  }
+
+  @Test
+  public void sourceCoder_roundTripsMinimalSource() throws Exception {
+    Source source =
+        SourceFixture.getMinimalValidSourceBuilder()
+            .setEventReportWindow(null)
+            .setFlexEventReportSpec(new ReportSpec("", 0, null))
+            .build();
+
+    Source decoded = roundTrip(SourceCoder.of(), source);
+
+    assertFieldsEqual(source, decoded);
+    assertNull(decoded.getEventReportWindow());
+    assertNull(decoded.getInstallTime());
+    assertNull(decoded.getAttributedTriggers());
+  }
+
+  @Test
+  public void triggerCoder_roundTripsEveryField() throws Exception {
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setId("T1")
+            .setDestinationType(EventSurfaceType.WEB)
+            .setTriggerTime(8640000000L)
+            .setEventTriggers(TriggerFixture.ValidTriggerParams.EVENT_TRIGGERS)
+            .setStatus(Trigger.Status.ATTRIBUTED)
+            .setAggregateTriggerData(TriggerFixture.ValidTriggerParams.AGGREGATE_TRIGGER_DATA)
+            .setAggregateValues(TriggerFixture.ValidTriggerParams.AGGREGATE_VALUES)
+            .setAggregateDeduplicationKeys("[{\"deduplication_key\": \"10\"}]")
+            .setFilters(TriggerFixture.ValidTriggerParams.TOP_LEVEL_FILTERS_JSON_STRING)
+            .setNotFilters(TriggerFixture.ValidTriggerParams.TOP_LEVEL_NOT_FILTERS_JSON_STRING)
+            .setIsDebugReporting(true)
+            .setArDebugPermission(true)
+            .setDebugKey(new UnsignedLong("18446744073709551615"))
+            .setAttributionConfig(TriggerFixture.ValidTriggerParams.ATTRIBUTION_CONFIGS_STRING)
+            .setAdtechBitMapping(TriggerFixture.ValidTriggerParams.X_NETWORK_KEY_MAPPING)
+            .setDebugJoinKey("join-key")
+            .setPlatformAdId("platform-ad-id")
+            .setDebugAdId("debug-ad-id")
+            .setRegistrationOrigin(URI.create("https://origin.test"))
+            .setApiChoice(ApiChoice.WEB)
+            .build();
+
+    assertFieldsEqual(trigger, roundTrip(TriggerCoder.of(), trigger));
+    Trigger minimal = TriggerFixture.getValidTriggerBuilder().build();
+    assertFieldsEqual(minimal, roundTrip(TriggerCoder.of(), minimal));
+  }
+
+  @Test
+  public void extensionEventCoder_roundTripsAndIsDeterministic() throws Exception {
+    ExtensionEvent event = new ExtensionEvent();
+    event.setAction("install");
+    event.setURI(URI.create("android-app://com.example"));
+    event.setTimestamp(1_700_000_000_000L);
+
+    assertEquals(event, roundTrip(ExtensionEventCoder.of(), event));
+    assertArrayEquals(
+        CoderUtils.encodeToByteArray(ExtensionEventCoder.of(), event),
+        CoderUtils.encodeToByteArray(
+            ExtensionEventCoder.of(), roundTrip(ExtensionEventCoder.of(), event)));
+    ExtensionEventCoder.of().verifyDeterministic();
+    assertThrows(
+        Coder.NonDeterministicException.class, () -> SourceCoder.of().verifyDeterministic());
+  }
+
+  @Test
+  public void registry_usesRecordCoders() throws Exception {
+    CoderRegistry registry = CoderRegistry.createDefault();
+    assertSame(SourceCoder.of(), registry.getCoder(Source.class));
+    assertSame(TriggerCoder.of(), registry.getCoder(Trigger.class));
+    assertSame(ExtensionEventCoder.of(), registry.getCoder(ExtensionEvent.class));
+  }
+
+  @Test
+  public void decode_rejectsTruncatedInput() throws Exception {
+    byte[] encoded = CoderUtils.encodeToByteArray(SourceCoder.of(), fullSourceBuilder().build());
+    byte[] truncated = new byte[encoded.length / 2];
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    assertThrows(
+        EOFException.class, () -> SourceCoder.of().decode(new ByteArrayInputStream(truncated)));
+  }
+
+  private static Source.Builder fullSourceBuilder() {
+    List<AttributedTrigger> attributedTriggers = new ArrayList<>();
+    attributedTriggers.add(attributedTrigger("T1"));
+    attributedTriggers.add(attributedTrigger("T2"));
+    return SourceFixture.getValidSourceBuilder()
+        .setId("S1")
+        .setEventId(new UnsignedLong("18446744073709551615"))
+        .setPublisherType(EventSurfaceType.WEB)
+        .setWebDestinations(SourceFixture.ValidSourceParams.WEB_DESTINATIONS)
+        .setSourceType(Source.SourceType.NAVIGATION)
+        .setPriority(-100L)
+        .setStatus(Source.Status.IGNORED)
+        .setEventTime(8640000000L)
+        .setExpiryTime(8640000010L)
+        .setEventReportWindow(8640000005L)
+        .setAggregatableReportWindow(8640000007L)
+        .setAggregateReportDedupKeys(new ArrayList<>(List.of(new UnsignedLong(3L))))
+        .setEventReportDedupKeys(
+            new ArrayList<>(List.of(new UnsignedLong(1L), new UnsignedLong(2L))))
+        .setAttributionMode(Source.AttributionMode.FALSELY)
+        .setInstallAttributionWindow(841839879274L)
+        .setInstallCooldownWindow(8418398274L)
+        .setDebugKey(SourceFixture.ValidSourceParams.DEBUG_KEY)
+        .setInstallAttributed(true)
+        .setIsDebugReporting(true)
+        .setFilterData(SourceFixture.ValidSourceParams.buildFilterData())
+        .setAggregateSource(SourceFixture.ValidSourceParams.buildAggregateSource())
+        .setAggregateContributions(42)
+        .setAdIdPermission(true)
+        .setArDebugPermission(true)
+        .setRegistrationId("R1")
+        .setSharedAggregationKeys("[\"campaignCounts\"]")
+        .setInstallTime(100L)
+        .setParentId("P1")
+        .setDebugJoinKey("join-key")
+        .setPlatformAdId("platform-ad-id")
+        .setDebugAdId("debug-ad-id")
+        .setAttributedTriggers(attributedTriggers)
+        .setTriggerSpecs(SourceFixture.getTriggerSpecCountEncodedJSONValidBaseline())
+        .setMaxEventLevelReports(2)
+        .setEventAttributionStatus("[]")
+        .setPrivacyParameters("{\"flip_probability\": 0.5}")
+        .setCoarseEventReportDestinations(true)
+        .setApiChoice(ApiChoice.OS);
+  }
+
+  private static AttributedTrigger attributedTrigger(String id) {
+    return new AttributedTrigger(id, 7L, new UnsignedLong(2L), 5L, 1000L, new UnsignedLong(9L));
+  }
+
+  private static <T> T roundTrip(Coder<T> coder, T value) throws CoderException {
+    return CoderUtils.decodeFromByteArray(coder, CoderUtils.encodeToByteArray(coder, value));
+  }
+
+  // Compares every encoded field; derived caches are rebuilt on demand and are skipped.
+  private static void assertFieldsEqual(Object expected, Object actual) throws Exception {
+    for (Field field : expected.getClass().getDeclaredFields()) {
+      int modifiers = field.getModifiers();
+      if (Modifier.isStatic(modifiers)
+          || Modifier.isTransient(modifiers)
+          || field.getName().equals("mFilterData")) {
+        continue;
+      }
+      field.setAccessible(true);
+      Object expectedValue = field.get(expected);
+      Object actualValue = field.get(actual);
+      if (expectedValue instanceof ReportSpec) {
+        assertReportSpecsEqual((ReportSpec) expectedValue, (ReportSpec) actualValue);
+      } else {
+        assertEquals(field.getName(), expectedValue, actualValue);
+      }
+    }
+  }
+
+  private static void assertReportSpecsEqual(ReportSpec expected, ReportSpec actual) {
+    if (expected.getTriggerSpecs() == null) {
+      assertNull(actual.getTriggerSpecs());
+      return;
+    }
+    assertEquals(expected, actual);
+    assertEquals(expected.getMaxReports(), actual.getMaxReports());
+    assertEquals(expected.getNumberState(), actual.getNumberState());
+    assertEquals(
+        expected.encodePrivacyParametersToJSONString(),
+        actual.encodePrivacyParametersToJSONString());
+    assertTrue(expected.getAttributedTriggers() == null || actual.getAttributedTriggers() != null);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class RecordStoreTest {
+
+  @Test
+  public void values_keepInsertionOrderAndDuplicates() {
+    RecordStore<String, String> store = new RecordStore<>(RecordStoreTest::key);
+    store.add("b1");
+    store.add("a1");
+    store.add("b1");
+    assertEquals(List.of("b1", "a1", "b1"), new ArrayList<>(store.values()));
+    assertEquals(List.of("b1", "b1"), store.get("b"));
+    assertEquals("a1", store.getFirst("a"));
+    assertEquals(List.of(), store.get("c"));
+    assertNull(store.getFirst("c"));
+  }
+
+  @Test
+  public void removeFirstEqual_removesOneRecord() {
+    RecordStore<String, String> store = new RecordStore<>(RecordStoreTest::key);
+    store.add("a1");
+    store.add("a2");
+    store.add("a1");
+    assertEquals("a1", store.removeFirstEqual("a1"));
+    assertEquals(List.of("a2", "a1"), new ArrayList<>(store.values()));
+    assertNull(store.removeFirstEqual("c1"));
+    assertEquals(List.of("a2", "a1"), store.get("a"));
+  }
+
+  @Test
+  public void removeFirstEqual_nullKey() {
+    RecordStore<String, Record> store = new RecordStore<>(r -> r.mId);
+    Record withoutId = new Record(null, "x");
+    store.add(new Record("1", "x"));
+    store.add(withoutId);
+    assertSame(withoutId, store.removeFirstEqual(new Record(null, "x")));
+    assertEquals(1, store.values().size());
+    assertEquals(List.of(), store.get(null));
+  }
+
+  @Test
+  public void removeFirstEqual_fallsBackToOtherKeys() {
+    RecordStore<String, Record> store = new RecordStore<>(r -> r.mId);
+    Record stored = new Record("1", "x");
+    store.add(stored);
+    // Records are equal by value, like the measurement records whose equals() ignores the id.
+    assertSame(stored, store.removeFirstEqual(new Record("2", "x")));
+    assertNull(store.getFirst("1"));
+  }
+
+  @Test
+  public void removeSame_comparesByReference() {
+    RecordStore<String, Record> store = new RecordStore<>(r -> r.mId);
+    Record first = new Record("1", "x");
+    Record second = new Record("1", "x");
+    store.add(first);
+    store.add(second);
+    store.add(second);
+    assertTrue(store.removeSame(second));
+    assertEquals(List.of(first, second), store.get("1"));
+    assertSame(first, store.getFirst("1"));
+    assertTrue(store.removeSame(second));
+    assertFalse(store.removeSame(second));
+    assertSame(first, store.getFirst("1"));
+    assertEquals(1, store.values().size());
+  }
+
+  @Test
+  public void removeIf_evaluatesFilterBeforeRemoving() {
+    RecordStore<String, String> store = new RecordStore<>(RecordStoreTest::key);
+    store.add("a1");
+    store.add("b1");
+    store.add("a2");
+    // The filter reads the store, so it must see every record while it is evaluated.
+    List<String> removed = store.removeIf(r -> store.get(key(r)).size() > 1);
+    assertEquals(List.of("a1", "a2"), removed);
+    assertEquals(List.of("b1"), new ArrayList<>(store.values()));
+    assertEquals(List.of(), store.get("a"));
+  }
+
+  private static String key(String record) {
+    return record.substring(0, 1);
+  }
+
+  private static class Record {
+    final String mId;
+    final String mValue;
+
+    Record(String id, String value) {
+      mId = id;
+      mValue = value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Record && mValue.equals(((Record) obj).mValue);
+    }
+
+    @Override
+    public int hashCode() {
+      return mValue.hashCode();
+    }
+  }
+}
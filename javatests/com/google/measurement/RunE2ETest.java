@@ -245,6 +245,37 @@ public final class RunE2ETest {
       extensionEventObjs.add(ExtensionEvent.buildExtensionEventFromJson((JSONObject) uninstall));
     }
 
+    assertReports(
+        parser,
+        sourceObjs,
+        triggerObjs,
+        extensionEventObjs,
+        expectedEventReports,
+        expectedAggregatableReports,
+        new Flags());
+
+    // The records of users above the threshold are stored in SQLite, with the same results.
+    Flags sqliteFlags = new Flags();
+    sqliteFlags.setMeasurementSqliteDaoRecordThreshold(0);
+    assertReports(
+        parser,
+        sourceObjs,
+        triggerObjs,
+        extensionEventObjs,
+        expectedEventReports,
+        expectedAggregatableReports,
+        sqliteFlags);
+  }
+
+  private static void assertReports(
+      JSONParser parser,
+      List<Source> sourceObjs,
+      List<Trigger> triggerObjs,
+      List<ExtensionEvent> extensionEventObjs,
+      List<JSONObject> expectedEventReports,
+      List<JSONObject> expectedAggregatableReports,
+      Flags flags)
+      throws IOException, ParseException {
     Pipeline p = Pipeline.create();
 
     Path tempDir = Files.createTempDirectory("E2ETest");
@@ -252,7 +283,7 @@ public final class RunE2ETest {
     SourceNoiseHandler sourceNoiseHandler = getSourceNoiseHandler();
 
     UserSimulation userSimulation =
-        new UserSimulation("User1", tempDir.toString(), sourceNoiseHandler);
+        new UserSimulation("User1", tempDir.toString(), sourceNoiseHandler, flags);
 
     PCollection<JSONObject> aggregatableReports =
         getAggregatableReports(sourceObjs, triggerObjs, extensionEventObjs, p, userSimulation);
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedReportFilesTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void shardedWriter_writesCompressedJsonRows() throws Exception {
+    SimulationConfig options = options();
+    options.setCompressReports(true);
+    Path outputDirectory = Path.of(options.getOutputDirectory());
+
+    try (ShardedReportFiles.ShardedWriter writer =
+        new ShardedReportFiles.ShardedWriter(options, 4)) {
+      writer.write(
+          outputDirectory.resolve("OS").toString(),
+          ReportSink.EVENT_REPORTS,
+          "U1",
+          List.of("{\"a\":1}", "{\"a\":2}"));
+      writer.write(
+          outputDirectory.resolve("OS").toString(),
+          ReportSink.EVENT_REPORTS,
+          "U1",
+          List.of("{\"a\":3}"));
+    }
+
+    List<Path> files = list(outputDirectory.resolve("OS"));
+    assertEquals(1, files.size());
+    assertTrue(
+        files.get(0).getFileName().toString(),
+        files.get(0).getFileName().toString().matches("event_reports-0000[0-3]-of-00004.json.gz"));
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(files.get(0))), StandardCharsets.UTF_8))) {
+      reader.lines().forEach(lines::add);
+    }
+    assertEquals(
+        List.of(
+            "{\"user_id\":\"U1\",\"report\":{\"a\":1}}",
+            "{\"user_id\":\"U1\",\"report\":{\"a\":2}}",
+            "{\"user_id\":\"U1\",\"report\":{\"a\":3}}"),
+        lines);
+  }
+
+  @Test
+  public void shardedWriter_writesAvroRows() throws Exception {
+    SimulationConfig options = options();
+    options.setReportFileFormat(ShardedReportFiles.AVRO_FORMAT);
+    options.setReportShards(1);
+    Path outputDirectory = Path.of(options.getOutputDirectory());
+
+    try (ShardedReportFiles.ShardedWriter writer =
+        new ShardedReportFiles.ShardedWriter(options, 4)) {
+      writer.write(
+          outputDirectory.resolve("WEB/noisy").toString(),
+          ReportSink.DEBUG_EVENT_REPORTS,
+          "U2",
+          List.of("[{\"type\":\"t\"}]"));
+    }
+
+    Path file = outputDirectory.resolve("WEB/noisy/debug_event_reports-00000-of-00001.avro");
+    try (DataFileReader<GenericRecord> reader =
+        new DataFileReader<>(file.toFile(), new GenericDatumReader<>())) {
+      GenericRecord row = reader.next();
+      assertEquals("U2", row.get("user_id").toString());
+      assertEquals("[{\"type\":\"t\"}]", row.get("report").toString());
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  @Test
+  public void isSharded_rejectsInvalidOptions() {
+    SimulationConfig options = options();
+    assertTrue(ShardedReportFiles.isSharded(options));
+    options.setReportLayout(ShardedReportFiles.PER_USER_LAYOUT);
+    assertFalse(ShardedReportFiles.isSharded(options));
+    options.setReportLayout("perDay");
+    assertThrows(IllegalArgumentException.class, () -> ShardedReportFiles.isSharded(options));
+    options.setReportLayout(ShardedReportFiles.SHARDED_LAYOUT);
+    options.setReportFileFormat("csv");
+    assertThrows(IllegalArgumentException.class, () -> ShardedReportFiles.isSharded(options));
+    options.setReportFileFormat(ShardedReportFiles.JSON_FORMAT);
+    options.setReportShards(-1);
+    assertThrows(IllegalArgumentException.class, () -> ShardedReportFiles.isSharded(options));
+  }
+
+  private SimulationConfig options() {
+    SimulationConfig options = PipelineOptionsFactory.create().as(SimulationConfig.class);
+    options.setOutputDirectory(tempFolder.getRoot().toString());
+    return options;
+  }
+
+  private static List<Path> list(Path directory) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+}
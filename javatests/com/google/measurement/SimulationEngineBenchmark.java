@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.beam.sdk.values.PCollection;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares running the whole simulation, without the Aggregation service, as a Beam pipeline on the
+ * DirectRunner and on the {@link LocalSimulationEngine}. Both read the same input: the records
+ * under {@code testdata}, copied for {@code mUserCopies} users each.
+ *
+ * <p>Run with {@code bazel run //:SimulationEngineBenchmark} from the workspace root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulationEngineBenchmark {
+  @Param({"100", "1000"})
+  public int mUserCopies;
+
+  @Param({"beam", "local"})
+  public String mEngine;
+
+  private Path mInputDirectory;
+  private Path mOutputDirectory;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    mInputDirectory = Files.createTempDirectory("simulation-benchmark-input-");
+    Path testdata = Path.of("testdata");
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(testdata)) {
+      files = paths.filter(f -> f.toString().endsWith(".json")).collect(Collectors.toList());
+    }
+    JSONParser parser = new JSONParser();
+    for (Path file : files) {
+      List<String> lines = new ArrayList<>();
+      for (int copy = 0; copy < mUserCopies; copy++) {
+        for (String line : Files.readAllLines(file)) {
+          JSONObject record = (JSONObject) parser.parse(line);
+          record.put("user_id", record.get("user_id") + "-" + copy);
+          lines.add(record.toJSONString());
+        }
+      }
+      Path copied = mInputDirectory.resolve(testdata.relativize(file));
+      Files.createDirectories(copied.getParent());
+      Files.write(copied, lines);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void createOutputDirectory() throws IOException {
+    mOutputDirectory = Files.createTempDirectory("simulation-benchmark-output-");
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteOutputDirectory() throws IOException {
+    deleteRecursively(mOutputDirectory);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteInputDirectory() throws IOException {
+    deleteRecursively(mInputDirectory);
+  }
+
+  @Benchmark
+  public boolean simulate() {
+    return new SimulationOnlyRunner()
+        .run(
+            new String[] {
+              "--engine=" + mEngine,
+              "--sourceStartDate=2022-01-15",
+              "--sourceEndDate=2022-01-16",
+              "--triggerStartDate=2022-01-15",
+              "--triggerEndDate=2022-02-06",
+              "--inputDirectory=" + mInputDirectory,
+              "--outputDirectory=" + mOutputDirectory
+            });
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(SimulationEngineBenchmark::delete);
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.delete(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Skips the Aggregation service, which is the same for both engines.
+  private static class SimulationOnlyRunner extends SimulationRunner {
+    @Override
+    protected void generateAggregateReports(
+        PCollection<JSONObject> aggregatableReports, String outputDirectory) {}
+
+    @Override
+    protected void generateAggregateReports(
+        List<JSONObject> aggregatableReports, String outputDirectory) {}
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.google.measurement.aggregation.AggregationArgs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimulationScenarioTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void load_readsOneScenarioPerSubdirectory() throws Exception {
+    Path scenarioDirectory = tempFolder.getRoot().toPath();
+    Path noisy = Files.createDirectory(scenarioDirectory.resolve("noisy"));
+    Files.createDirectory(scenarioDirectory.resolve("baseline"));
+    Files.writeString(scenarioDirectory.resolve("notes.txt"), "not a scenario");
+    writeProperties(
+        noisy.resolve(SimulationScenario.PRIVACY_PARAMS_FILE),
+        "config/PrivacyParams.properties",
+        "eventNoiseProbability",
+        "0.5D");
+    writeProperties(
+        noisy.resolve(SimulationScenario.AGGREGATION_ARGS_FILE),
+        "config/AggregationArgs.properties",
+        "epsilon",
+        "10");
+
+    List<SimulationScenario> scenarios = SimulationScenario.load(scenarioDirectory.toString());
+
+    assertEquals(
+        List.of("baseline", "noisy"),
+        scenarios.stream().map(SimulationScenario::getName).collect(Collectors.toList()));
+    SimulationScenario baseline = scenarios.get(0);
+    assertEquals(PrivacyParams.getDefault(), baseline.getPrivacyParams());
+    assertEquals(new AggregationArgs().epsilon, baseline.getAggregationArgs().epsilon);
+    SimulationScenario noisyScenario = scenarios.get(1);
+    assertEquals(0.5D, noisyScenario.getPrivacyParams().getEventNoiseProbability(), 0);
+    assertEquals(
+        PrivacyParams.NAVIGATION_NOISE_PROBABILITY,
+        noisyScenario.getPrivacyParams().getNavigationNoiseProbability(),
+        0);
+    assertEquals(10, noisyScenario.getAggregationArgs().epsilon);
+  }
+
+  @Test
+  public void load_rejectsDirectoryWithoutScenarios() throws Exception {
+    Path scenarioDirectory = tempFolder.getRoot().toPath();
+    Files.writeString(scenarioDirectory.resolve("notes.txt"), "not a scenario");
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> SimulationScenario.load(scenarioDirectory.toString()));
+  }
+
+  @Test
+  public void load_rejectsInvalidProperties() throws Exception {
+    Path scenario = tempFolder.newFolder("invalid").toPath();
+    writeProperties(
+        scenario.resolve(SimulationScenario.PRIVACY_PARAMS_FILE),
+        "config/PrivacyParams.properties",
+        "eventNoiseProbability",
+        "high");
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> SimulationScenario.load(tempFolder.getRoot().toString()));
+  }
+
+  // Writes the properties of defaultFile with the value of key replaced.
+  private static void writeProperties(Path file, String defaultFile, String key, String value)
+      throws IOException {
+    Files.writeString(
+        file,
+        Files.readString(Path.of(defaultFile))
+            .replaceAll("(?m)^" + key + " = .*$", key + " = " + value));
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares finding the matching active sources of a trigger with the stream pipeline of {@link
+ * MeasurementDAO} and with the columnar {@link SourceTable} of {@link IndexedMeasurementDAO}.
+ *
+ * <p>Run with {@code bazel run //:SourceMatchingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceMatchingBenchmark {
+  private static final long DAY = 86_400_000L;
+  private static final int DESTINATIONS = 20;
+  private static final int ENROLLMENTS = 5;
+
+  @Param({"1000", "10000"})
+  public int mSourceCount;
+
+  private MeasurementDAO mStreamDao;
+  private IndexedMeasurementDAO mColumnarDao;
+  private final List<Trigger> mTriggers = new ArrayList<>();
+
+  @Setup
+  public void setup() {
+    mStreamDao = new MeasurementDAO();
+    mColumnarDao = new IndexedMeasurementDAO();
+    Random random = new Random(42L);
+    for (int i = 0; i < mSourceCount; i++) {
+      long eventTime = random.nextInt(30) * DAY;
+      Source source =
+          SourceFixture.getValidSourceBuilder()
+              .setId("source-" + i)
+              .setEnrollmentId(enrollment(random.nextInt(ENROLLMENTS)))
+              .setEventTime(eventTime)
+              .setExpiryTime(eventTime + (1 + random.nextInt(30)) * DAY)
+              .setAppDestinations(List.of(app(random.nextInt(DESTINATIONS))))
+              .setWebDestinations(null)
+              .setStatus(random.nextInt(4) == 0 ? Source.Status.IGNORED : Source.Status.ACTIVE)
+              .build();
+      mStreamDao.insertSource(source);
+      mColumnarDao.insertSource(source);
+    }
+    for (int i = 0; i < 100; i++) {
+      mTriggers.add(
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("trigger-" + i)
+              .setEnrollmentId(enrollment(random.nextInt(ENROLLMENTS)))
+              .setAttributionDestination(app(random.nextInt(DESTINATIONS)))
+              .setDestinationType(EventSurfaceType.APP)
+              .setTriggerTime(random.nextInt(60) * DAY)
+              .build());
+    }
+  }
+
+  @Benchmark
+  public void streamPipeline(Blackhole blackhole) {
+    for (Trigger trigger : mTriggers) {
+      blackhole.consume(mStreamDao.getMatchingActiveSources(trigger));
+    }
+  }
+
+  @Benchmark
+  public void columnarTable(Blackhole blackhole) {
+    for (Trigger trigger : mTriggers) {
+      blackhole.consume(mColumnarDao.getMatchingActiveSources(trigger));
+    }
+  }
+
+  private static String enrollment(int index) {
+    return "enrollment-" + index;
+  }
+
+  private static URI app(int index) {
+    return URI.create("android-app://com.example.app" + index);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.List;
+import org.junit.Test;
+
+public class SourceTableTest {
+  private static final URI APP = URI.create("android-app://com.example.app");
+  private static final URI WEB = URI.create("https://example.test");
+  private static final String ENROLLMENT_ID = "enrollment-id";
+
+  @Test
+  public void getActiveSources_filtersByTimeAndKeepsInsertionOrderForEqualTimes() {
+    SourceTable table = new SourceTable();
+    Source late = source("late", 30, 100);
+    Source first = source("first", 10, 100);
+    Source second = source("second", 10, 100);
+    Source expired = source("expired", 5, 20);
+    table.add(late);
+    table.add(first);
+    table.add(expired);
+    table.add(second);
+
+    assertEquals(
+        List.of(first, second),
+        table.getActiveSources(ENROLLMENT_ID, APP, EventSurfaceType.APP, 20));
+    assertEquals(
+        List.of(first, second, late),
+        table.getActiveSources(ENROLLMENT_ID, WEB, EventSurfaceType.WEB, 30));
+    assertEquals(
+        List.of(expired, first, second),
+        table.getActiveSources(ENROLLMENT_ID, APP, EventSurfaceType.APP, 19));
+    assertEquals(List.of(), table.getActiveSources(ENROLLMENT_ID, WEB, EventSurfaceType.APP, 30));
+    assertEquals(List.of(), table.getActiveSources("other", APP, EventSurfaceType.APP, 30));
+  }
+
+  @Test
+  public void updateStatus_hidesAndRestoresSource() {
+    SourceTable table = new SourceTable();
+    Source source = source("source", 10, 100);
+    table.add(source);
+
+    source.setStatus(Source.Status.IGNORED);
+    table.updateStatus(source);
+    assertEquals(List.of(), table.getActiveSources(ENROLLMENT_ID, APP, EventSurfaceType.APP, 20));
+
+    source.setStatus(Source.Status.ACTIVE);
+    table.updateStatus(source);
+    assertEquals(
+        List.of(source), table.getActiveSources(ENROLLMENT_ID, APP, EventSurfaceType.APP, 20));
+  }
+
+  @Test
+  public void remove_dropsOneRowAndReusesIt() {
+    SourceTable table = new SourceTable();
+    Source kept = source("kept", 10, 100);
+    Source twice = source("twice", 10, 100);
+    table.add(twice);
+    table.add(kept);
+    table.add(twice);
+
+    table.remove(twice);
+    assertEquals(2, table.size());
+    assertEquals(
+        List.of(kept, twice), table.getActiveSources(ENROLLMENT_ID, APP, EventSurfaceType.APP, 20));
+
+    Source added = source("added", 0, 100);
+    table.add(added);
+    table.remove(twice);
+    table.remove(twice);
+    assertEquals(
+        List.of(added, kept), table.getActiveSources(ENROLLMENT_ID, WEB, EventSurfaceType.WEB, 20));
+    assertEquals(2, table.size());
+  }
+
+  private static Source source(String id, long eventTime, long expiryTime) {
+    return SourceFixture.getValidSourceBuilder()
+        .setId(id)
+        .setEnrollmentId(ENROLLMENT_ID)
+        .setEventTime(eventTime)
+        .setExpiryTime(expiryTime)
+        .setAppDestinations(List.of(APP))
+        .setWebDestinations(List.of(WEB))
+        .setStatus(Source.Status.ACTIVE)
+        .build();
+  }
+}
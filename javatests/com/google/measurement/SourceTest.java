@@ -19,6 +19,8 @@ package com.google.measurement;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -53,6 +55,41 @@ public class SourceTest {
     assertEquals(Source.AttributionMode.UNASSIGNED, source.getAttributionMode());
   }
 
+  @Test
+  public void copyForSimulation_isolatesUpdates() {
+    Source source = SourceFixture.getValidSourceBuilder().build();
+    Source copy = source.copyForSimulation();
+    assertEquals(source.getId(), copy.getId());
+    assertSame(source.getPublisher(), copy.getPublisher());
+    assertSame(source.getAppDestinations(), copy.getAppDestinations());
+
+    copy.setStatus(Source.Status.IGNORED);
+    copy.getEventReportDedupKeys().add(DEBUG_KEY_1);
+    copy.getAggregateReportDedupKeys().add(DEBUG_KEY_2);
+    copy.setAggregateContributions(10);
+
+    assertEquals(Source.Status.ACTIVE, source.getStatus());
+    assertTrue(source.getEventReportDedupKeys().isEmpty());
+    assertTrue(source.getAggregateReportDedupKeys().isEmpty());
+    assertEquals(0, source.getAggregateContributions());
+  }
+
+  @Test
+  public void copyForSimulation_sharesTheFlexEventReportSpec() {
+    ReportSpec spec = SourceFixture.getValidReportSpecCountBased();
+    Source source = SourceFixture.getValidSourceBuilder().setFlexEventReportSpec(spec).build();
+    Source copy = source.copyForSimulation();
+    ReportSpec copySpec = copy.getFlexEventReportSpec();
+
+    assertSame(spec.getTriggerSpecs(), copySpec.getTriggerSpecs());
+    assertEquals(spec.getMaxReports(), copySpec.getMaxReports());
+    assertEquals(spec.getFlipProbability(), copySpec.getFlipProbability(), 0.0);
+    assertEquals(spec.getNumberState(), copySpec.getNumberState());
+    // The spec of the copy tracks the attributed triggers of the copy.
+    assertSame(copy.getAttributedTriggers(), copySpec.getAttributedTriggers());
+    assertNotSame(spec.getAttributedTriggers(), copySpec.getAttributedTriggers());
+  }
+
   @Test
   public void testEqualsPass() {
     assertEquals(
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.measurement.aggregation.AggregateReport;
+import com.google.measurement.aggregation.AggregateReportFixture;
+import com.google.measurement.util.UnsignedLong;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the same records and operations through {@link MeasurementDAO} and {@link
+ * SqliteMeasurementDAO} and checks that both answer every query the same way.
+ */
+public class SqliteMeasurementDAOTest {
+  private static final List<URI> APPS =
+      List.of(
+          URI.create("android-app://com.example.one"),
+          URI.create("android-app://com.example.two"),
+          URI.create("android-app://com.example.three"));
+  private static final URI WEB_SITE = WebUtil.validUri("https://example.test");
+  private static final List<String> ENROLLMENTS = List.of("enrollment-1", "enrollment-2");
+  private static final long DAY = 86_400_000L;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private MeasurementDAO mReferenceDao;
+  private SqliteMeasurementDAO mSqliteDao;
+  private final List<Source> mSources = new ArrayList<>();
+  private final List<Trigger> mTriggers = new ArrayList<>();
+
+  @Before
+  public void before() throws Exception {
+    mReferenceDao = new MeasurementDAO();
+    mSqliteDao = new SqliteMeasurementDAO(mTemporaryFolder.newFile("measurement.db").toPath());
+    insertRecords(new Random(42L));
+    assertSameAnswers();
+  }
+
+  @After
+  public void after() {
+    mSqliteDao.close();
+  }
+
+  @Test
+  public void queries_matchReference() {
+    assertTrue(mTriggers.stream().anyMatch(t -> !mSqliteDao.getMatchingActiveSources(t).isEmpty()));
+    for (Source source : mSources) {
+      for (Trigger trigger : mTriggers) {
+        assertEquals(
+            mReferenceDao.getAttributionsPerRateLimitWindow(source, trigger),
+            mSqliteDao.getAttributionsPerRateLimitWindow(source, trigger));
+      }
+    }
+    for (String enrollmentId : ENROLLMENTS) {
+      assertEquals(
+          mReferenceDao.countDistinctDebugAdIdsUsedByEnrollment(enrollmentId),
+          mSqliteDao.countDistinctDebugAdIdsUsedByEnrollment(enrollmentId));
+    }
+  }
+
+  @Test
+  public void deleteAppRecords_matchesReference() {
+    for (URI app : APPS) {
+      apply(dao -> dao.deleteAppRecords(app.toString()));
+    }
+  }
+
+  @Test
+  public void deleteMeasurementData_matchesReference() {
+    Instant start = Instant.ofEpochMilli(2 * DAY);
+    Instant end = Instant.ofEpochMilli(8 * DAY);
+    apply(dao -> dao.deleteMeasurementData(APPS.get(0).toString(), null, null, null));
+    apply(dao -> dao.deleteMeasurementData(APPS.get(1).toString(), null, start, end));
+    for (URI origin : List.of(APPS.get(1), APPS.get(2), WEB_SITE)) {
+      apply(
+          dao -> dao.deleteMeasurementData(APPS.get(2).toString(), origin.toString(), null, null));
+    }
+  }
+
+  @Test
+  public void deleteExpiredRecords_matchesReference() {
+    for (long day = 30; day <= 70; day += 5) {
+      long currentTime = day * DAY;
+      assertEquals(
+          mReferenceDao.deleteExpiredRecords(currentTime),
+          mSqliteDao.deleteExpiredRecords(currentTime));
+      assertSameAnswers();
+    }
+  }
+
+  @Test
+  public void updates_matchReference() {
+    List<Source> ignored =
+        mSources.stream().filter(s -> s.getId().hashCode() % 3 == 0).collect(Collectors.toList());
+    apply(dao -> dao.updateSourceStatus(ignored, Source.Status.IGNORED));
+    List<String> attributed =
+        mTriggers.stream()
+            .filter(t -> t.getId().hashCode() % 2 == 0)
+            .map(Trigger::getId)
+            .collect(Collectors.toList());
+    apply(dao -> dao.updateTriggerStatus(attributed, Trigger.Status.ATTRIBUTED));
+    for (Source source : mSources.subList(0, 10)) {
+      source.getEventReportDedupKeys().add(new UnsignedLong(7L));
+      apply(dao -> dao.updateSourceEventReportDedupKeys(source));
+    }
+    List<EventReport> reports = mReferenceDao.getAllEventReports();
+    for (EventReport report : new ArrayList<>(reports.subList(0, 10))) {
+      apply(dao -> dao.deleteEventReport(report));
+    }
+  }
+
+  @Test
+  public void installAttribution_matchesReference() {
+    apply(dao -> dao.doInstallAttribution(APPS.get(0), 5 * DAY));
+    apply(dao -> dao.undoInstallAttribution(APPS.get(0)));
+  }
+
+  @Test
+  public void getStagedUserEvents_returnsEachTypeInTimeOrder() {
+    Random random = new Random(7L);
+    List<Trigger> triggers = new ArrayList<>();
+    // More than a page of events, with many at the same time.
+    for (int i = 0; i < 2_500; i++) {
+      Trigger trigger =
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("staged-trigger-" + i)
+              .setTriggerTime(random.nextInt(100) * DAY)
+              .build();
+      triggers.add(trigger);
+      mSqliteDao.stageUserEvent(trigger);
+      mSqliteDao.stageUserEvent(mSources.get(i % mSources.size()));
+    }
+    List<String> expectedIds = ids(UserEvents.inTimeOrder(triggers));
+
+    Iterable<Trigger> staged = mSqliteDao.getStagedUserEvents(UserEvent.Type.TRIGGER);
+
+    assertEquals(expectedIds, ids(staged));
+    assertEquals(expectedIds, ids(staged));
+    List<Source> stagedSources = new ArrayList<>();
+    mSqliteDao.<Source>getStagedUserEvents(UserEvent.Type.SOURCE).forEach(stagedSources::add);
+    assertEquals(2_500, stagedSources.size());
+    assertEquals(ids(UserEvents.inTimeOrder(stagedSources)), ids(stagedSources));
+  }
+
+  @Test
+  public void getPendingTriggersInTimeOrder_matchesReference() {
+    List<Trigger> ignored =
+        mTriggers.stream().filter(t -> t.getId().hashCode() % 3 == 0).collect(Collectors.toList());
+    apply(
+        dao ->
+            dao.updateTriggerStatus(
+                ignored.stream().map(Trigger::getId).collect(Collectors.toList()),
+                Trigger.Status.IGNORED));
+    List<String> expectedIds = ids(UserEvents.inTimeOrder(mReferenceDao.getPendingTriggers()));
+
+    Iterable<Trigger> pending = mSqliteDao.getPendingTriggersInTimeOrder();
+    // Like a list of the pending triggers, the result does not follow later changes.
+    mSqliteDao.deleteAppRecords(APPS.get(0).toString());
+    mSqliteDao.updateTriggerStatus(expectedIds, Trigger.Status.ATTRIBUTED);
+
+    assertEquals(expectedIds, ids(pending));
+  }
+
+  @Test
+  public void webDestinationCounts_matchReference() {
+    List<URI> sites =
+        List.of(
+            WebUtil.validUri("https://example.test"),
+            WebUtil.validUri("https://store.example.test"),
+            WebUtil.validUri("https://a.store.example.test/path"),
+            WebUtil.validUri("https://notexample.test"),
+            WebUtil.validUri("https://store.notexample.test"),
+            WebUtil.validUri("http://example.test"));
+    Random random = new Random(7L);
+    for (int i = 0; i < 30; i++) {
+      URI site = pick(random, sites);
+      Source source =
+          SourceFixture.getValidSourceBuilder()
+              .setId("web-source-" + i)
+              .setPublisher(site)
+              .setPublisherType(EventSurfaceType.WEB)
+              .build();
+      Trigger trigger =
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("web-trigger-" + i)
+              .setAttributionDestination(site)
+              .setDestinationType(EventSurfaceType.WEB)
+              .build();
+      EventReport eventReport =
+          EventReportFixture.getBaseEventReportBuild()
+              .setId("web-report-" + i)
+              .setAttributionDestinations(List.of(site))
+              .build();
+      AggregateReport aggregateReport =
+          AggregateReportFixture.getValidAggregateReportBuilder()
+              .setId("web-aggregate-report-" + i)
+              .setAttributionDestination(site)
+              .build();
+      onBoth(dao -> dao.insertSource(source));
+      onBoth(dao -> dao.insertTrigger(trigger));
+      onBoth(dao -> dao.insertEventReport(eventReport));
+      onBoth(dao -> dao.insertAggregateReport(aggregateReport));
+    }
+
+    for (URI site : sites) {
+      for (EventSurfaceType type : EventSurfaceType.values()) {
+        assertEquals(
+            mReferenceDao.getNumSourcesPerPublisher(site, type),
+            mSqliteDao.getNumSourcesPerPublisher(site, type));
+        assertEquals(
+            mReferenceDao.getNumTriggersPerDestination(site, type),
+            mSqliteDao.getNumTriggersPerDestination(site, type));
+        assertEquals(
+            mReferenceDao.getNumEventReportsPerDestination(site, type),
+            mSqliteDao.getNumEventReportsPerDestination(site, type));
+        assertEquals(
+            mReferenceDao.getNumAggregateReportsPerDestination(site, type),
+            mSqliteDao.getNumAggregateReportsPerDestination(site, type));
+      }
+    }
+    for (URI publisher : sites) {
+      // Web publishers are matched by the regexp function.
+      assertEquals(
+          mReferenceDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+              publisher,
+              EventSurfaceType.WEB,
+              SourceFixture.ValidSourceParams.ENROLLMENT_ID,
+              List.of(),
+              EventSurfaceType.APP,
+              0,
+              SourceFixture.ValidSourceParams.SOURCE_EVENT_TIME),
+          mSqliteDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+              publisher,
+              EventSurfaceType.WEB,
+              SourceFixture.ValidSourceParams.ENROLLMENT_ID,
+              List.of(),
+              EventSurfaceType.APP,
+              0,
+              SourceFixture.ValidSourceParams.SOURCE_EVENT_TIME));
+    }
+    // Site matches include the subdomains, which origin matches leave out.
+    assertTrue(
+        mSqliteDao.getNumTriggersPerDestination(sites.get(0), EventSurfaceType.WEB)
+            > mSqliteDao.getNumTriggersPerDestination(sites.get(0), EventSurfaceType.APP));
+  }
+
+  private void insertRecords(Random random) {
+    for (int i = 0; i < 60; i++) {
+      long eventTime = random.nextInt(10) * DAY;
+      Source source =
+          SourceFixture.getValidSourceBuilder()
+              .setId("source-" + i)
+              .setEnrollmentId(pick(random, ENROLLMENTS))
+              .setEventTime(eventTime)
+              .setExpiryTime(eventTime + (1 + random.nextInt(5)) * DAY)
+              .setPublisher(pick(random, APPS))
+              .setRegistrant(pick(random, APPS))
+              .setAppDestinations(List.of(pick(random, APPS)))
+              .setWebDestinations(List.of(WEB_SITE))
+              .setStatus(random.nextBoolean() ? Source.Status.ACTIVE : Source.Status.IGNORED)
+              .build();
+      mSources.add(source);
+      onBoth(dao -> dao.insertSource(source));
+    }
+    for (int i = 0; i < 120; i++) {
+      EventReport report =
+          EventReportFixture.getBaseEventReportBuild()
+              .setId("report-" + i)
+              .setSourceId(pick(random, mSources).getId())
+              .setAttributionDestinations(List.of(pick(random, APPS)))
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setReportTime(random.nextInt(40) * DAY)
+              .build();
+      onBoth(dao -> dao.insertEventReport(report));
+    }
+    for (int i = 0; i < 40; i++) {
+      Trigger trigger =
+          TriggerFixture.getValidTriggerBuilder()
+              .setId("trigger-" + i)
+              .setEnrollmentId(pick(random, ENROLLMENTS))
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setAttributionDestination(pick(random, APPS))
+              .setDestinationType(EventSurfaceType.APP)
+              .setRegistrant(pick(random, APPS))
+              .build();
+      mTriggers.add(trigger);
+      onBoth(dao -> dao.insertTrigger(trigger));
+    }
+    for (int i = 0; i < 40; i++) {
+      Attribution attribution =
+          new Attribution.Builder()
+              .setTriggerTime(random.nextInt(10) * DAY)
+              .setSourceSite(pick(random, APPS).toString())
+              .setSourceOrigin(APPS.get(0).toString())
+              .setDestinationSite(pick(random, APPS).toString())
+              .setDestinationOrigin(APPS.get(0).toString())
+              .setEnrollmentId(pick(random, ENROLLMENTS))
+              .setRegistrant(pick(random, APPS).toString())
+              .setSourceId(pick(random, mSources).getId())
+              .build();
+      onBoth(dao -> dao.insertAttribution(attribution));
+    }
+  }
+
+  private static List<String> ids(Iterable<? extends UserEvent> events) {
+    List<String> ids = new ArrayList<>();
+    for (UserEvent event : events) {
+      ids.add(event instanceof Source ? ((Source) event).getId() : ((Trigger) event).getId());
+    }
+    return ids;
+  }
+
+  private void onBoth(Consumer<IMeasurementDAO> operation) {
+    operation.accept(mReferenceDao);
+    operation.accept(mSqliteDao);
+  }
+
+  private void apply(Consumer<IMeasurementDAO> operation) {
+    onBoth(operation);
+    assertSameAnswers();
+  }
+
+  private void assertSameAnswers() {
+    assertEquals(mReferenceDao.getAllEventReports(), mSqliteDao.getAllEventReports());
+    assertEquals(mReferenceDao.getPendingTriggers(), mSqliteDao.getPendingTriggers());
+    assertEquals(
+        mReferenceDao.getPendingEventReportIdsInWindow(5 * DAY, 30 * DAY),
+        mSqliteDao.getPendingEventReportIdsInWindow(5 * DAY, 30 * DAY));
+    assertEquals(
+        mReferenceDao.getPendingDebugEventReportIds(), mSqliteDao.getPendingDebugEventReportIds());
+    for (Trigger trigger : mTriggers) {
+      assertEquals(
+          mReferenceDao.getMatchingActiveSources(trigger),
+          mSqliteDao.getMatchingActiveSources(trigger));
+      assertEquals(
+          mReferenceDao.getTrigger(trigger.getId()), mSqliteDao.getTrigger(trigger.getId()));
+    }
+    for (Source source : mSources) {
+      assertEquals(
+          mReferenceDao.getSourceEventReports(source), mSqliteDao.getSourceEventReports(source));
+    }
+    for (URI app : APPS) {
+      assertEquals(
+          mReferenceDao.getPendingEventReportIdsForGivenApp(app.toString()),
+          mSqliteDao.getPendingEventReportIdsForGivenApp(app.toString()));
+      assertEquals(
+          mReferenceDao.getNumSourcesPerPublisher(app, EventSurfaceType.APP),
+          mSqliteDao.getNumSourcesPerPublisher(app, EventSurfaceType.APP));
+      assertEquals(
+          mReferenceDao.getNumTriggersPerRegistrant(app),
+          mSqliteDao.getNumTriggersPerRegistrant(app));
+      assertEquals(
+          mReferenceDao.getNumTriggersPerDestination(app, EventSurfaceType.APP),
+          mSqliteDao.getNumTriggersPerDestination(app, EventSurfaceType.APP));
+      assertEquals(
+          mReferenceDao.getNumEventReportsPerDestination(app, EventSurfaceType.APP),
+          mSqliteDao.getNumEventReportsPerDestination(app, EventSurfaceType.APP));
+      for (String enrollmentId : ENROLLMENTS) {
+        for (URI destination : APPS) {
+          assertEquals(
+              mReferenceDao.countDistinctEnrollmentsPerPublisherXDestinationInAttribution(
+                  app, destination, enrollmentId, 0, 8 * DAY),
+              mSqliteDao.countDistinctEnrollmentsPerPublisherXDestinationInAttribution(
+                  app, destination, enrollmentId, 0, 8 * DAY));
+          assertEquals(
+              mReferenceDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+                  app,
+                  EventSurfaceType.APP,
+                  enrollmentId,
+                  List.of(destination),
+                  EventSurfaceType.APP,
+                  0,
+                  8 * DAY),
+              mSqliteDao.countDistinctDestinationsPerPublisherXEnrollmentInActiveSource(
+                  app,
+                  EventSurfaceType.APP,
+                  enrollmentId,
+                  List.of(destination),
+                  EventSurfaceType.APP,
+                  0,
+                  8 * DAY));
+          assertEquals(
+              mReferenceDao.countDistinctEnrollmentsPerPublisherXDestinationInSource(
+                  app, EventSurfaceType.APP, List.of(destination), enrollmentId, 0, 8 * DAY),
+              mSqliteDao.countDistinctEnrollmentsPerPublisherXDestinationInSource(
+                  app, EventSurfaceType.APP, List.of(destination), enrollmentId, 0, 8 * DAY));
+        }
+      }
+    }
+  }
+
+  private static <T> T pick(Random random, List<T> values) {
+    return values.get(random.nextInt(values.size()));
+  }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.measurement.aggregation.AggregatableAttributionTrigger;
@@ -785,6 +786,34 @@ public class TriggerTest {
     assertEquals(adtechBit2, adtechMapping.get("AdTechB-enrollment_id"));
   }
 
+  @Test
+  public void parsedFields_areParsedOnce() throws ParseException {
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setEventTriggers("[{\"trigger_data\": 2, \"value\": 5}]")
+            .setFilters(createFilterJSONArray().toJSONString())
+            .setAdtechBitMapping("{\"AdTechA-enrollment_id\": \"0x1\"}")
+            .build();
+
+    List<EventTrigger> eventTriggers = trigger.getParsedEventTriggers();
+    assertEquals(trigger.parseEventTriggers(true), eventTriggers);
+    assertSame(eventTriggers, trigger.getParsedEventTriggers());
+    List<FilterMap> filterSet = trigger.getFilterSet();
+    assertEquals(1, filterSet.size());
+    assertSame(filterSet, trigger.getFilterSet());
+    assertTrue(trigger.getNotFilterSet().isEmpty());
+    Map<Object, BigInteger> adtechMapping = trigger.getParsedAdtechKeyMapping();
+    assertEquals(trigger.parseAdtechKeyMapping(), adtechMapping);
+    assertSame(adtechMapping, trigger.getParsedAdtechKeyMapping());
+    assertSame(eventTriggers, trigger.copyForSimulation().getParsedEventTriggers());
+  }
+
+  @Test
+  public void getParsedAdtechKeyMapping_noMapping_returnsNull() throws ParseException {
+    Trigger trigger = TriggerFixture.getValidTriggerBuilder().setAdtechBitMapping(null).build();
+    assertNull(trigger.getParsedAdtechKeyMapping());
+  }
+
   private JSONArray createFilterJSONArray() {
     JSONObject filterMap = new JSONObject();
     JSONArray subDomain = new JSONArray();
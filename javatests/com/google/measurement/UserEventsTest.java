@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class UserEventsTest {
+
+  @Test
+  public void inTimeOrder_keepsOrderedInput() {
+    List<Trigger> triggers = List.of(trigger("1", 10L), trigger("2", 10L), trigger("3", 20L));
+
+    List<Trigger> ordered = UserEvents.inTimeOrder(triggers);
+
+    assertEquals(triggers, ordered);
+    for (int i = 0; i < triggers.size(); i++) {
+      assertSame(triggers.get(i), ordered.get(i));
+    }
+  }
+
+  @Test
+  public void inTimeOrder_sortsStablyByTimeAndType() {
+    Random random = new Random(7);
+    List<UserEvent> events = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      long time = random.nextInt(50);
+      switch (random.nextInt(3)) {
+        case 0:
+          events.add(source(String.valueOf(i), time));
+          break;
+        case 1:
+          events.add(trigger(String.valueOf(i), time));
+          break;
+        default:
+          events.add(extensionEvent("install", time));
+      }
+    }
+    List<UserEvent> expected = new ArrayList<>(events);
+    expected.sort(
+        Comparator.comparingLong(UserEvent::getTimestamp)
+            .thenComparing(UserEvent::getUserEventType));
+
+    assertSameEvents(expected, UserEvents.inTimeOrder(events));
+  }
+
+  @Test
+  public void inTimeOrder_sortsTimesTooFarApartToPack() {
+    List<Trigger> triggers =
+        List.of(trigger("1", Long.MAX_VALUE), trigger("2", Long.MIN_VALUE), trigger("3", 0L));
+
+    List<Trigger> ordered = UserEvents.inTimeOrder(triggers);
+
+    assertSameEvents(List.of(triggers.get(1), triggers.get(2), triggers.get(0)), ordered);
+  }
+
+  @Test
+  public void merge_putsTriggersBeforeExtensionEventsAtTheSameTime() {
+    Trigger first = trigger("1", 10L);
+    Trigger second = trigger("2", 20L);
+    Trigger third = trigger("3", 30L);
+    ExtensionEvent install = extensionEvent("install", 5L);
+    ExtensionEvent uninstall = extensionEvent("uninstall", 20L);
+
+    List<UserEvent> merged = new ArrayList<>();
+    UserEvents.merge(List.of(first, second, third), List.of(install, uninstall))
+        .forEach(merged::add);
+
+    assertSameEvents(List.of(install, first, second, uninstall, third), merged);
+  }
+
+  @Test
+  public void merge_readsInputsAsItIsIterated() {
+    Iterable<Trigger> endless =
+        () -> Stream.iterate(0L, time -> time + 10L).map(time -> trigger("t", time)).iterator();
+    ExtensionEvent install = extensionEvent("install", 15L);
+
+    Iterator<UserEvent> merged = UserEvents.merge(endless, List.of(install)).iterator();
+
+    assertEquals(0L, merged.next().getTimestamp());
+    assertEquals(10L, merged.next().getTimestamp());
+    assertSame(install, merged.next());
+    assertEquals(20L, merged.next().getTimestamp());
+  }
+
+  private static void assertSameEvents(
+      List<? extends UserEvent> expected, List<? extends UserEvent> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame("at " + i, expected.get(i), actual.get(i));
+    }
+  }
+
+  private static Source source(String id, long time) {
+    return SourceFixture.getValidSourceBuilder().setId(id).setEventTime(time).build();
+  }
+
+  private static Trigger trigger(String id, long time) {
+    return TriggerFixture.getValidTriggerBuilder().setId(id).setTriggerTime(time).build();
+  }
+
+  private static ExtensionEvent extensionEvent(String action, long time) {
+    ExtensionEvent event = new ExtensionEvent();
+    event.setAction(action);
+    event.setURI(URI.create("android-app://com.example"));
+    event.setTimestamp(time);
+    return event;
+  }
+}
@@ -17,19 +17,25 @@
 package com.google.measurement;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
+import com.google.measurement.noising.SourceNoiseHandler;
 import com.google.measurement.util.UnsignedLong;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
 import org.json.simple.parser.ParseException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,6 +44,9 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class UserSimulationTest {
+  private static final long HOUR = 3_600_000L;
+  private static final long DAY = 24 * HOUR;
+
   @Mock IMeasurementDAO measurementDAO;
 
   @Test
@@ -92,6 +101,50 @@ public class UserSimulationTest {
     assertEquals(expectedArray, reportArray);
   }
 
+  @Test
+  public void runSimulation_streamsTheRecordsOfHeavyUsers() throws IOException, ParseException {
+    Flags flags = new Flags();
+    flags.setMeasurementSqliteDaoRecordThreshold(0);
+    // More triggers and extension events than are read from disk at a time.
+    GeneratedEvents<Source> sources =
+        new GeneratedEvents<>(
+            100,
+            i ->
+                SourceFixture.getValidSourceBuilder()
+                    .setId("source-" + i)
+                    .setEventTime(i * HOUR)
+                    .setExpiryTime(i * HOUR + 30 * DAY)
+                    .build());
+    GeneratedEvents<Trigger> triggers =
+        new GeneratedEvents<>(
+            1_500,
+            i ->
+                TriggerFixture.getValidTriggerBuilder()
+                    .setId("trigger-" + i)
+                    .setTriggerTime(i * HOUR)
+                    .setEventTriggers("[{\"trigger_data\": 1}]")
+                    .build());
+    GeneratedEvents<ExtensionEvent> extensionEvents =
+        new GeneratedEvents<>(
+            1_500,
+            i -> {
+              ExtensionEvent event = new ExtensionEvent();
+              event.setAction("install");
+              event.setURI(URI.create("android-app://com.example.app" + i));
+              event.setTimestamp(i * HOUR);
+              return event;
+            });
+    Path tempdir = Files.createTempDirectory("UserSimulationTest");
+    UserSimulation userSimulation =
+        new UserSimulation("U1", tempdir.toString(), new SourceNoiseHandler(flags), flags);
+
+    userSimulation.runSimulation(sources, triggers, extensionEvents);
+
+    assertTrue(sources.mFullPasses > 0);
+    assertTrue(triggers.mFullPasses > 0);
+    assertTrue(extensionEvents.mFullPasses > 0);
+  }
+
   private EventReport createEventReport() {
     return new EventReport.Builder()
         .setId("1")
@@ -107,4 +160,59 @@ public class UserSimulationTest {
         .setSourceType(Source.SourceType.NAVIGATION)
         .build();
   }
+
+  /**
+   * Generates new events on every iteration. Once an iteration has returned every event, it checks
+   * that the first of them has been garbage collected, i.e. that the reader did not keep them.
+   */
+  private static class GeneratedEvents<T> implements Iterable<T> {
+    private final int mSize;
+    private final IntFunction<T> mGenerator;
+    private int mFullPasses;
+
+    GeneratedEvents(int size, IntFunction<T> generator) {
+      mSize = size;
+      mGenerator = generator;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private int mNext;
+        private WeakReference<T> mFirst;
+
+        @Override
+        public boolean hasNext() {
+          if (mNext < mSize) {
+            return true;
+          }
+          if (mFirst != null) {
+            assertCollected(mFirst);
+            mFirst = null;
+            mFullPasses++;
+          }
+          return false;
+        }
+
+        @Override
+        public T next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          T event = mGenerator.apply(mNext++);
+          if (mNext == 1) {
+            mFirst = new WeakReference<>(event);
+          }
+          return event;
+        }
+      };
+    }
+  }
+
+  private static void assertCollected(WeakReference<?> reference) {
+    for (int i = 0; i < 50 && reference.get() != null; i++) {
+      System.gc();
+    }
+    assertNull("An event was held after it was read", reference.get());
+  }
 }
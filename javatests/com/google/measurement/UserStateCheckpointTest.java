@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.google.measurement.aggregation.AggregateReport;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class UserStateCheckpointTest {
+  private static final URI APP = URI.create("android-app://com.example.app");
+  private static final long DAY = 86_400_000L;
+
+  @Test
+  public void encodeAndDecode_restoresTheStoredRecords() throws Exception {
+    IMeasurementDAO measurementDAO = new IndexedMeasurementDAO();
+    storeRecords(measurementDAO);
+
+    UserStateCheckpoint checkpoint =
+        UserStateCheckpoint.decode(UserStateCheckpoint.capture(measurementDAO, null).encode());
+    IMeasurementDAO restored = new IndexedMeasurementDAO();
+    checkpoint.restore(restored);
+
+    // The attributed trigger is not kept, as it cannot change the reports of later input.
+    assertEquals(4, checkpoint.size());
+    assertEquals(2 * DAY, checkpoint.getTime());
+    assertEquals(measurementDAO.getAllSources(), restored.getAllSources());
+    assertEquals(List.of(), restored.getAllTriggers());
+    assertEquals(measurementDAO.getAllAttributions(), restored.getAllAttributions());
+    assertEquals(measurementDAO.getAllEventReports(), restored.getAllEventReports());
+    assertEquals(measurementDAO.getAllAggregateReports(), restored.getAllAggregateReports());
+    assertEquals(Set.of("event-report", "aggregate-report"), checkpoint.getReportIds());
+  }
+
+  @Test
+  public void capture_readsTheRecordsOfTheSqliteDao() throws Exception {
+    IMeasurementDAO measurementDAO = new IndexedMeasurementDAO();
+    storeRecords(measurementDAO);
+    byte[] state;
+    SqliteMeasurementDAO sqliteDAO = SqliteMeasurementDAO.inTemporaryFile("checkpoint-test-");
+    try {
+      storeRecords(sqliteDAO);
+      state = UserStateCheckpoint.capture(sqliteDAO, null).encode();
+    } finally {
+      sqliteDAO.close();
+    }
+    IMeasurementDAO restored = new IndexedMeasurementDAO();
+
+    UserStateCheckpoint.decode(state).restore(restored);
+
+    assertEquals(measurementDAO.getAllSources(), restored.getAllSources());
+    assertEquals(measurementDAO.getAllAttributions(), restored.getAllAttributions());
+    assertEquals(measurementDAO.getAllEventReports(), restored.getAllEventReports());
+    assertEquals(measurementDAO.getAllAggregateReports(), restored.getAllAggregateReports());
+  }
+
+  @Test
+  public void capture_keepsOnlyTheLiveState() throws Exception {
+    IMeasurementDAO measurementDAO = new IndexedMeasurementDAO();
+    storeRecords(measurementDAO);
+    Source laterSource =
+        SourceFixture.getValidSourceBuilder()
+            .setId("later-source")
+            .setPublisher(APP)
+            .setAppDestinations(List.of(APP))
+            .setEventTime(40 * DAY)
+            .setExpiryTime(50 * DAY)
+            .setStatus(Source.Status.ACTIVE)
+            .build();
+    measurementDAO.insertSource(laterSource);
+    measurementDAO.insertEventReport(
+        EventReportFixture.getBaseEventReportBuild()
+            .setId("pending-report")
+            .setReportTime(45 * DAY)
+            .build());
+
+    UserStateCheckpoint checkpoint = UserStateCheckpoint.capture(measurementDAO, null);
+    IMeasurementDAO restored = new IndexedMeasurementDAO();
+    checkpoint.restore(restored);
+
+    // The records before the rate limit window that ends at the later source are dropped, apart
+    // from the reports that are not due yet.
+    assertEquals(40 * DAY, checkpoint.getTime());
+    assertEquals(List.of(laterSource), restored.getAllSources());
+    assertEquals(List.of(), restored.getAllAttributions());
+    assertEquals(Set.of("pending-report"), checkpoint.getReportIds());
+  }
+
+  @Test
+  public void capture_neverGoesBackInTime() {
+    IMeasurementDAO measurementDAO = new IndexedMeasurementDAO();
+    storeRecords(measurementDAO);
+    UserStateCheckpoint previous = UserStateCheckpoint.capture(measurementDAO, null);
+
+    UserStateCheckpoint checkpoint =
+        UserStateCheckpoint.capture(new IndexedMeasurementDAO(), previous);
+
+    assertEquals(previous.getTime(), checkpoint.getTime());
+    assertEquals(0, checkpoint.size());
+  }
+
+  @Test
+  public void decode_rejectsOtherVersions() throws Exception {
+    ByteArrayOutputStream otherVersion = new ByteArrayOutputStream();
+    RecordCoding.writeVarInt(UserStateCheckpoint.VERSION + 1, otherVersion);
+
+    assertThrows(IOException.class, () -> UserStateCheckpoint.decode(otherVersion.toByteArray()));
+  }
+
+  private static void storeRecords(IMeasurementDAO measurementDAO) {
+    Source source =
+        SourceFixture.getValidSourceBuilder()
+            .setId("source")
+            .setPublisher(APP)
+            .setAppDestinations(List.of(APP))
+            .setEventTime(DAY)
+            .setExpiryTime(10 * DAY)
+            .setStatus(Source.Status.ACTIVE)
+            .build();
+    Trigger trigger =
+        TriggerFixture.getValidTriggerBuilder()
+            .setId("trigger")
+            .setAttributionDestination(APP)
+            .setDestinationType(EventSurfaceType.APP)
+            .setTriggerTime(2 * DAY)
+            .setStatus(Trigger.Status.ATTRIBUTED)
+            .build();
+    measurementDAO.insertSource(source);
+    measurementDAO.insertTrigger(trigger);
+    measurementDAO.insertAttribution(
+        new Attribution.Builder()
+            .setId("attribution")
+            .setSourceSite(APP.toString())
+            .setSourceOrigin(APP.toString())
+            .setDestinationSite(APP.toString())
+            .setDestinationOrigin(APP.toString())
+            .setEnrollmentId(source.getEnrollmentId())
+            .setTriggerTime(trigger.getTriggerTime())
+            .setRegistrant(APP.toString())
+            .setSourceId(source.getId())
+            .setTriggerId(null)
+            .build());
+    measurementDAO.insertEventReport(
+        EventReportFixture.getBaseEventReportBuild()
+            .setId("event-report")
+            .setSourceId(source.getId())
+            .setTriggerId(trigger.getId())
+            .build());
+    measurementDAO.insertAggregateReport(
+        new AggregateReport.Builder()
+            .setId("aggregate-report")
+            .setSourceId(source.getId())
+            .setAttributionDestination(APP)
+            .build());
+  }
+}
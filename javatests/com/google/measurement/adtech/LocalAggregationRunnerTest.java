@@ -62,7 +62,6 @@ public class LocalAggregationRunnerTest {
     System.setErr(new PrintStream(err));
     workingDir = testWorkingDir.getRoot().toPath();
     outputDir = workingDir.resolve("output");
-    AggregationArgs.initialize();
   }
 
   @Test
@@ -78,7 +77,7 @@ public class LocalAggregationRunnerTest {
     args.inputDataAvroFile = "testdata/batch.avro";
     args.outputDirectory = outputDir.toString();
     args.domainAvroFile = "testdata/domain.avro";
-    AggregationArgs.epsilon = 100;
+    args.epsilon = 100;
 
     ParameterException e =
         Assert.assertThrows(
@@ -136,8 +135,8 @@ public class LocalAggregationRunnerTest {
     args.inputDataAvroFile = "testdata/batch.avro";
     args.outputDirectory = outputDir.toString();
     args.domainAvroFile = "testdata/domain.avro";
-    AggregationArgs.noNoising = true;
-    AggregationArgs.jsonOutput = true;
+    args.noNoising = true;
+    args.jsonOutput = true;
 
     LocalAggregationRunner.runAggregator(args, TESTKEY);
 
@@ -18,6 +18,7 @@ package com.google.measurement.noising;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -29,17 +30,22 @@ import com.google.measurement.PrivacyParams;
 import com.google.measurement.Source;
 import com.google.measurement.SourceFixture;
 import com.google.measurement.util.UnsignedLong;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SourceNoiseHandlerTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
   private Flags mFlags;
   private SourceNoiseHandler mSourceNoiseHandler;
 
@@ -111,6 +117,34 @@ public class SourceNoiseHandlerTest {
     assertNotEquals(0, truthCount);
   }
 
+  @Test
+  public void getRandomAttributionProbability_usesTheGivenPrivacyParams() throws Exception {
+    Path properties = tempFolder.newFile("PrivacyParams.properties").toPath();
+    Files.writeString(
+        properties,
+        Files.readString(Path.of("config/PrivacyParams.properties"))
+            .replaceAll(
+                "(?m)^navigationNoiseProbability = .*$", "navigationNoiseProbability = 0.25D"));
+    PrivacyParams privacyParams = PrivacyParams.load(properties.toString());
+    Source source =
+        SourceFixture.getMinimalValidSourceBuilder()
+            .setSourceType(Source.SourceType.NAVIGATION)
+            .build();
+
+    assertEquals(
+        PrivacyParams.NAVIGATION_NOISE_PROBABILITY,
+        mSourceNoiseHandler.getRandomAttributionProbability(source),
+        0);
+    assertEquals(
+        0.25D,
+        mSourceNoiseHandler
+            .withPrivacyParams(privacyParams)
+            .getRandomAttributionProbability(source),
+        0);
+    assertSame(
+        mSourceNoiseHandler, mSourceNoiseHandler.withPrivacyParams(PrivacyParams.getDefault()));
+  }
+
   @Test
   public void impressionNoiseParamGeneration() {
     long eventTime = System.currentTimeMillis();
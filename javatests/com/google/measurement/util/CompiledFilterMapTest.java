@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class CompiledFilterMapTest {
+  private static final Map<String, List<String>> SOURCE_FILTER =
+      Map.of("product", Arrays.asList("1234", null), "ctid", List.of("id"));
+  private static final Map<String, List<String>> MATCHING_FILTER =
+      Map.of("product", List.of("1", "1234"), "ctid", List.of("id"));
+  private static final Map<String, List<String>> OTHER_FILTER =
+      Map.of("product", List.of("2345"), "ctid", List.of("id"));
+  private static final Map<String, List<String>> EMPTY_VALUES_FILTER = Map.of("product", List.of());
+
+  @Test
+  public void compile_fullTable_startsNewGeneration() {
+    CompiledFilterMap.Ids ids = new CompiledFilterMap.Ids(3);
+    CompiledFilterMap first = ids.compile(SOURCE_FILTER);
+    assertTrue(first.isCurrent());
+
+    CompiledFilterMap second = ids.compile(MATCHING_FILTER);
+    assertFalse(first.isCurrent());
+    assertTrue(second.isCurrent());
+  }
+
+  @Test
+  public void matches_acrossGenerations_comparesValues() {
+    // Every compile starts a new generation, so no two maps share ids.
+    CompiledFilterMap.Ids ids = new CompiledFilterMap.Ids(1);
+    CompiledFilterMap source = ids.compile(SOURCE_FILTER);
+    CompiledFilterMap matching = ids.compile(MATCHING_FILTER);
+    CompiledFilterMap other = ids.compile(OTHER_FILTER);
+    CompiledFilterMap emptyValues = ids.compile(EMPTY_VALUES_FILTER);
+
+    assertTrue(source.matches(matching, true));
+    assertFalse(source.matches(matching, false));
+    assertFalse(source.matches(other, true));
+    assertFalse(source.matches(emptyValues, true));
+    assertTrue(source.matches(emptyValues, false));
+    assertTrue(source.matches(ids.compile(Map.of("product", Arrays.asList((String) null))), true));
+  }
+
+  @Test
+  public void matches_sameGeneration_comparesIds() {
+    CompiledFilterMap.Ids ids = new CompiledFilterMap.Ids(CompiledFilterMap.MAX_IDS);
+    CompiledFilterMap source = ids.compile(SOURCE_FILTER);
+
+    assertTrue(source.matches(ids.compile(MATCHING_FILTER), true));
+    assertFalse(source.matches(ids.compile(OTHER_FILTER), true));
+    assertTrue(source.matches(ids.compile(Map.of("product", List.of("2345"))), false));
+    assertTrue(source.matches(ids.compile(EMPTY_VALUES_FILTER), false));
+  }
+}
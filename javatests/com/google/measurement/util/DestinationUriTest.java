@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+import org.junit.Test;
+
+public class DestinationUriTest {
+
+  @Test
+  public void isSameOrigin_ignoresPath() {
+    DestinationUri origin = uri("android-app://com.example");
+    assertTrue(uri("android-app://com.example").isSameOrigin(origin));
+    assertTrue(uri("android-app://com.example/path").isSameOrigin(origin));
+    assertFalse(uri("android-app://com.example.other").isSameOrigin(origin));
+    assertFalse(uri("android-app://sub.com.example").isSameOrigin(origin));
+    assertFalse(uri("https://com.example").isSameOrigin(origin));
+  }
+
+  @Test
+  public void isSameSiteOrSubdomain_matchesSubdomainsAndPaths() {
+    DestinationUri site = uri("https://example.com");
+    assertTrue(uri("https://example.com").isSameSiteOrSubdomain(site));
+    assertTrue(uri("https://example.com/path").isSameSiteOrSubdomain(site));
+    assertTrue(uri("https://store.example.com").isSameSiteOrSubdomain(site));
+    assertTrue(uri("https://a.b.example.com/path").isSameSiteOrSubdomain(site));
+    assertFalse(uri("https://notexample.com").isSameSiteOrSubdomain(site));
+    assertFalse(uri("https://example.co").isSameSiteOrSubdomain(site));
+    assertFalse(uri("http://store.example.com").isSameSiteOrSubdomain(site));
+  }
+
+  @Test
+  public void getMatchingSiteKeys_listsHostAndParentDomains() {
+    assertEquals(
+        List.of(
+            "https://a.b.example.com",
+            "https://b.example.com",
+            "https://example.com",
+            "https://com"),
+        uri("https://a.b.example.com/path").getMatchingSiteKeys());
+    assertEquals(List.of(), DestinationUri.from(URI.create("path/only")).getMatchingSiteKeys());
+  }
+
+  @Test
+  public void keys_agreeWithMatches() {
+    DestinationUri site = uri("https://example.com");
+    DestinationUri record = uri("https://store.example.com/path");
+    assertTrue(record.getMatchingSiteKeys().contains(site.getSiteKey()));
+    assertEquals("https://store.example.com", record.getOriginKey());
+  }
+
+  @Test
+  public void reversedSiteKeys_rangeOfASiteHoldsItsMatches() {
+    DestinationUri site = uri("https://example.com");
+    assertEquals("https://com.example.", site.getReversedSiteKey());
+    assertEquals("https://com.example/", site.getReversedSiteKeyEnd());
+    for (String candidate :
+        List.of(
+            "https://example.com",
+            "https://example.com/path",
+            "https://store.example.com",
+            "https://a.b.example.com/path",
+            "https://notexample.com",
+            "https://example.co",
+            "https://example.com.au",
+            "https://com",
+            "http://store.example.com")) {
+      String key = uri(candidate).getReversedSiteKey();
+      assertEquals(
+          candidate,
+          uri(candidate).isSameSiteOrSubdomain(site),
+          key.compareTo(site.getReversedSiteKey()) >= 0
+              && key.compareTo(site.getReversedSiteKeyEnd()) < 0);
+    }
+    assertNull(DestinationUri.from(URI.create("path/only")).getReversedSiteKey());
+  }
+
+  private static DestinationUri uri(String uri) {
+    return DestinationUri.from(URI.create(uri));
+  }
+}
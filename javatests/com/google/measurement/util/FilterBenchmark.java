@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import com.google.measurement.FilterMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link Filter#isFilterMatch}, which matches compiled filter maps, with the previous
+ * matching that intersected the value lists through a {@link HashSet} for every shared key. The
+ * filter maps use the keys of the {@code FilterTest} cases.
+ *
+ * <p>Run with {@code bazel run //:FilterBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+  private static final List<String> KEYS =
+      List.of("conversion_subdomain", "product", "id", "ctid", "source_type");
+  private static final int PAIRS = 1000;
+
+  @Param({"1", "10"})
+  public int mValuesPerKey;
+
+  private final List<FilterMap> mSourceFilters = new ArrayList<>();
+  private final List<List<FilterMap>> mTriggerFilterSets = new ArrayList<>();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42L);
+    for (int i = 0; i < PAIRS; i++) {
+      mSourceFilters.add(filterMap(random));
+      mTriggerFilterSets.add(List.of(filterMap(random), filterMap(random)));
+    }
+    // Sources and triggers keep their filter maps during attribution, so compile them up front.
+    mSourceFilters.forEach(FilterMap::getCompiledFilterMap);
+    mTriggerFilterSets.forEach(filterSet -> filterSet.forEach(FilterMap::getCompiledFilterMap));
+  }
+
+  @Benchmark
+  public void compiledMatch(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++) {
+      blackhole.consume(
+          Filter.isFilterMatch(mSourceFilters.get(i), mTriggerFilterSets.get(i), true));
+      blackhole.consume(
+          Filter.isFilterMatch(mSourceFilters.get(i), mTriggerFilterSets.get(i), false));
+    }
+  }
+
+  @Benchmark
+  public void hashSetMatch(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++) {
+      blackhole.consume(hashSetMatch(mSourceFilters.get(i), mTriggerFilterSets.get(i), true));
+      blackhole.consume(hashSetMatch(mSourceFilters.get(i), mTriggerFilterSets.get(i), false));
+    }
+  }
+
+  private FilterMap filterMap(Random random) {
+    Map<String, List<String>> filterMap = new HashMap<>();
+    for (String key : KEYS) {
+      if (random.nextInt(4) == 0) {
+        continue;
+      }
+      List<String> values = new ArrayList<>();
+      for (int i = 0; i < mValuesPerKey; i++) {
+        values.add(key + "-" + random.nextInt(4 * mValuesPerKey));
+      }
+      filterMap.put(key, values);
+    }
+    return new FilterMap.Builder().setAttributionFilterMap(filterMap).build();
+  }
+
+  private static boolean hashSetMatch(
+      FilterMap sourceFilter, List<FilterMap> triggerFilters, boolean isFilter) {
+    if (sourceFilter.getAttributionFilterMap().isEmpty() || triggerFilters.isEmpty()) {
+      return true;
+    }
+    for (FilterMap triggerFilter : triggerFilters) {
+      if (hashSetMatch(sourceFilter, triggerFilter, isFilter)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hashSetMatch(
+      FilterMap sourceFilter, FilterMap triggerFilter, boolean isFilter) {
+    for (String key : triggerFilter.getAttributionFilterMap().keySet()) {
+      if (!sourceFilter.getAttributionFilterMap().containsKey(key)) {
+        continue;
+      }
+      List<String> sourceValues = sourceFilter.getAttributionFilterMap().get(key);
+      List<String> triggerValues = triggerFilter.getAttributionFilterMap().get(key);
+      if (triggerValues.isEmpty()) {
+        if (isFilter != sourceValues.isEmpty()) {
+          return false;
+        }
+        continue;
+      }
+      Set<String> intersection = new HashSet<>(sourceValues);
+      intersection.retainAll(triggerValues);
+      if (isFilter == intersection.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -23,11 +23,13 @@ import static org.junit.Assert.assertTrue;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.measurement.FilterMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.junit.Test;
@@ -381,6 +383,37 @@ public class FilterTest {
     assertFalse(Filter.isFilterMatch(sourceFilter, List.of(triggerFilter), false));
   }
 
+  @Test
+  public void testIsFilterMatch_matchesIntersectingValueSets() {
+    Random random = new Random(7L);
+    for (int i = 0; i < 1000; i++) {
+      FilterMap sourceFilter = randomFilterMap(random);
+      FilterMap triggerFilter = randomFilterMap(random);
+      for (boolean isFilter : new boolean[] {true, false}) {
+        assertEquals(
+            sourceFilter + " " + triggerFilter + " " + isFilter,
+            isValueSetMatch(sourceFilter, triggerFilter, isFilter),
+            Filter.isFilterMatch(sourceFilter, List.of(triggerFilter), isFilter));
+      }
+    }
+  }
+
+  @Test
+  public void testIsFilterMatch_nullValues() {
+    FilterMap sourceFilter =
+        new FilterMap.Builder()
+            .setAttributionFilterMap(Map.of("product", Arrays.asList(null, "1234")))
+            .build();
+    FilterMap nullTriggerFilter =
+        new FilterMap.Builder()
+            .setAttributionFilterMap(Map.of("product", Collections.singletonList(null)))
+            .build();
+    FilterMap otherTriggerFilter =
+        new FilterMap.Builder().setAttributionFilterMap(Map.of("product", List.of("1"))).build();
+    assertTrue(Filter.isFilterMatch(sourceFilter, List.of(nullTriggerFilter), true));
+    assertFalse(Filter.isFilterMatch(sourceFilter, List.of(otherTriggerFilter), true));
+  }
+
   @Test
   public void deserializeFilterSet_success() {
     // Setup
@@ -476,4 +509,43 @@ public class FilterTest {
     JsonElement actual = JsonParser.parseString(wrappedJsonArray.toString());
     assertEquals(expected, actual);
   }
+
+  private static FilterMap randomFilterMap(Random random) {
+    Map<String, List<String>> filterMap = new HashMap<>();
+    for (String key : List.of("conversion_subdomain", "product", "id")) {
+      if (random.nextBoolean()) {
+        continue;
+      }
+      List<String> values = new ArrayList<>();
+      for (int i = random.nextInt(4); i > 0; i--) {
+        values.add(String.valueOf(random.nextInt(6)));
+      }
+      filterMap.put(key, values);
+    }
+    return new FilterMap.Builder().setAttributionFilterMap(filterMap).build();
+  }
+
+  // Every key in both filter maps must have intersecting values, or disjoint values for
+  // not_filters; an empty trigger value list asks for no source values, or some for not_filters.
+  private static boolean isValueSetMatch(
+      FilterMap sourceFilter, FilterMap triggerFilter, boolean isFilter) {
+    if (sourceFilter.getAttributionFilterMap().isEmpty()) {
+      return true;
+    }
+    for (Map.Entry<String, List<String>> entry :
+        triggerFilter.getAttributionFilterMap().entrySet()) {
+      List<String> sourceValues = sourceFilter.getAttributionFilterMap().get(entry.getKey());
+      if (sourceValues == null) {
+        continue;
+      }
+      boolean matches =
+          entry.getValue().isEmpty()
+              ? sourceValues.isEmpty() == isFilter
+              : Collections.disjoint(sourceValues, entry.getValue()) != isFilter;
+      if (!matches) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+public class JsonPullParserTest {
+
+  @Test
+  public void parse_matchesJsonSimpleOnInputFiles() throws Exception {
+    List<String> lines;
+    try (Stream<Path> files = Files.walk(Path.of("testdata"))) {
+      lines =
+          files
+              .filter(f -> f.toString().endsWith(".json"))
+              .flatMap(JsonPullParserTest::readLines)
+              .filter(line -> !line.isBlank())
+              .collect(Collectors.toList());
+    }
+    assertFalse(lines.isEmpty());
+    JsonPullParser parser = new JsonPullParser();
+    for (String line : lines) {
+      assertParsesLikeJsonSimple(parser, line);
+    }
+  }
+
+  @Test
+  public void parse_matchesJsonSimpleOnValueForms() throws Exception {
+    JsonPullParser parser = new JsonPullParser();
+    for (String json :
+        List.of(
+            "{}",
+            "[]",
+            " { \"a\" : [ 1 , -2 , 3.5 , 4e2 , -5.0E-1 , 007 ] }\n",
+            "{\"a\": true, \"b\": false, \"c\": null, \"a\": \"last\"}",
+            "{\"s\": \"q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t \\u00e9\\u2603 raw\"}",
+            "{\"k\\u0031\": {\"nested\": [{\"x\": []}, [\"y\"]]}}",
+            "{\"a\": 1 \"b\": [1 2,, 3,], , \"c\": {},}",
+            "[,]",
+            "\"top-level string\"",
+            "9223372036854775807")) {
+      assertParsesLikeJsonSimple(parser, json);
+    }
+  }
+
+  @Test
+  public void parse_reusesKeyStrings() throws Exception {
+    JsonPullParser parser = new JsonPullParser();
+    JSONObject first = parser.parseObject("{\"user_id\": \"U1\"}");
+    JSONObject second = parser.parseObject("{\"user_id\": \"U2\"}");
+    assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+    assertEquals("U2", second.get("user_id"));
+  }
+
+  @Test
+  public void parse_rejectsInvalidJson() {
+    JsonPullParser parser = new JsonPullParser();
+    for (String json :
+        List.of(
+            "",
+            "{",
+            "{\"a\" 1}",
+            "{\"a\": 1 2}",
+            "[1 : 2]",
+            "{\"a\": tru}",
+            "{\"a\": \"unterminated}",
+            "{\"a\": \"\\x\"}",
+            "{\"a\": 1.}",
+            "{\"a\": -}",
+            "{} {}",
+            "{\"a\": 99999999999999999999}")) {
+      assertThrows(json, ParseException.class, () -> parser.parse(json));
+    }
+    assertThrows(ParseException.class, () -> parser.parseObject("[1]"));
+  }
+
+  private static void assertParsesLikeJsonSimple(JsonPullParser parser, String json)
+      throws ParseException {
+    Object expected = new JSONParser().parse(json);
+    Object actual = parser.parse(json);
+    assertEquals(json, expected, actual);
+    if (expected != null) {
+      assertEquals(json, expected.getClass(), actual.getClass());
+      assertEquals(json, expected.toString(), actual.toString());
+    }
+  }
+
+  private static Stream<String> readLines(Path file) {
+    try {
+      return Files.readAllLines(file).stream();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.measurement.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.cache.CacheStats;
+import java.net.URI;
+import java.util.Optional;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.junit.Rule;
+import org.junit.Test;
+
+public final class SiteCacheTest {
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  @Test
+  public void topPrivateDomainAndScheme_resolvesEachHostOnce() {
+    CacheStats before = SiteCache.siteStats();
+    Optional<URI> first = Web.topPrivateDomainAndScheme(URI.create("https://a.site-cache.com/x"));
+    Optional<URI> second = Web.topPrivateDomainAndScheme(URI.create("https://a.site-cache.com/y"));
+    Optional<URI> otherScheme =
+        Web.topPrivateDomainAndScheme(URI.create("http://a.site-cache.com/x"));
+
+    assertEquals(Optional.of(URI.create("https://site-cache.com")), first);
+    assertSame(first.get(), second.get());
+    assertEquals(Optional.of(URI.create("http://site-cache.com")), otherScheme);
+    CacheStats stats = SiteCache.siteStats().minus(before);
+    assertEquals(3, stats.requestCount());
+    assertEquals(1, stats.hitCount());
+  }
+
+  @Test
+  public void topPrivateDomainAndScheme_cachesFailures() {
+    CacheStats before = SiteCache.siteStats();
+    assertFalse(
+        Web.topPrivateDomainAndScheme(URI.create("https://site-cache.unknowntld")).isPresent());
+    assertFalse(
+        Web.topPrivateDomainAndScheme(URI.create("https://site-cache.unknowntld")).isPresent());
+
+    CacheStats stats = SiteCache.siteStats().minus(before);
+    assertEquals(1, stats.hitCount());
+  }
+
+  @Test
+  public void getBaseUri_resolvesEachUriOnce() {
+    CacheStats before = SiteCache.baseUriStats();
+    URI uri = URI.create("https://www.site-cache.com:8080/abc");
+    URI baseUri = BaseUriExtractor.getBaseUri(uri);
+    URI upperCaseBaseUri =
+        BaseUriExtractor.getBaseUri(URI.create("https://WWW.site-cache.com:8080/abc"));
+
+    assertEquals(URI.create("https://www.site-cache.com:8080"), baseUri);
+    assertSame(baseUri, BaseUriExtractor.getBaseUri(uri));
+    assertEquals("https://WWW.site-cache.com:8080", upperCaseBaseUri.toString());
+    CacheStats stats = SiteCache.baseUriStats().minus(before);
+    assertEquals(3, stats.requestCount());
+    assertEquals(1, stats.hitCount());
+  }
+
+  @Test
+  public void report_listsBothCaches() {
+    assertNotNull(Web.topPrivateDomainAndScheme(URI.create("https://report.site-cache.com")));
+    String report = SiteCache.report();
+    assertTrue(report, report.contains("Site cache: "));
+    assertTrue(report, report.contains("Base URI cache: "));
+  }
+
+  @Test
+  public void report_aggregatesPipelineCounters() {
+    p.apply(
+            Create.of(
+                "https://a.metrics.site-cache.com/x",
+                "https://a.metrics.site-cache.com/x",
+                "https://b.metrics.site-cache.com/x"))
+        .apply(ParDo.of(new LookUpDoFn()));
+
+    PipelineResult result = p.run();
+    result.waitUntilFinish();
+
+    assertEquals(
+        String.format(
+            "Site cache: 3 lookups, 33.3%% hits%nBase URI cache: 3 lookups, 33.3%% hits%n"),
+        SiteCache.report(result.metrics()));
+  }
+
+  private static class LookUpDoFn extends DoFn<String, Void> {
+    @ProcessElement
+    public void processElement(@Element String uri) {
+      Web.topPrivateDomainAndScheme(URI.create(uri));
+      BaseUriExtractor.getBaseUri(URI.create(uri));
+    }
+  }
+}
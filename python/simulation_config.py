@@ -29,7 +29,7 @@ import re
 from typing import List, Optional
 import json
 
-pattern = re.compile(r".+\.(json)", re.IGNORECASE)
+pattern = re.compile(r".+\.(json|avro)", re.IGNORECASE)
 isoformat = "%Y-%m-%d"
 
 
@@ -39,7 +39,7 @@ class SimulationConfig:
   Ingests and validates arguments. The following are expected:
     All directories are absolute paths.
     All dates are datetime.date objects.
-    File format is json.
+    File format is json or avro.
 
   Also contains logic for mapping attributes to command line strings that the
   Java SimulationRunner expects.
@@ -179,7 +179,7 @@ class SimulationConfig:
   def validate_file_name(self, file_name: str, arg: str) -> str:
     """Validate passed file name
 
-    Acceptable file format is json.
+    Acceptable file formats are json and avro.
 
     Args:
       file_name: File name to validate
@@ -193,7 +193,7 @@ class SimulationConfig:
       return file_name
     else:
       self.errors.append(f"Argument {arg} is not in an acceptable format."
-                         f" Acceptable format is json")
+                         f" Acceptable formats are json and avro")
 
   def validate_dict_string(self, mydict: str, arg: str) -> str:
     """Validate if string can be converted to a dict
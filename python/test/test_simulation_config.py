@@ -82,7 +82,7 @@ class TestSimulationConfig(TestCase):
       build_config(attribution_source_file_name="test.txt")
 
     self.assertEqual("Argument attribution_source_file_name is not in an "
-                     "acceptable format. Acceptable format is json"
+                     "acceptable format. Acceptable formats are json and avro"
                      , str(e.exception))
 
   def test_attribution_source_file_name_wrong_and_date_wrong(self):
@@ -91,7 +91,7 @@ class TestSimulationConfig(TestCase):
                    attribution_source_file_name="test.txt")
     error1 = "Argument source_start_date with value  is not a valid date"
     error2 = "Argument attribution_source_file_name is not in an " \
-             "acceptable format. Acceptable format is json"
+             "acceptable format. Acceptable formats are json and avro"
 
     self.assertEqual("\n".join([error1, error2]), str(e.exception))
 